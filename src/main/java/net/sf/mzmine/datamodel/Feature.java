@@ -111,6 +111,34 @@ public interface Feature {
   @Nullable
   DataPoint getDataPoint(int scanNumber);
 
+  /**
+   * Returns the m/z of this peak in a given scan, or 0 if there is no data point in given scan.
+   * Implementations which store their data points as primitive values override this to avoid
+   * creating a DataPoint instance.
+   */
+  default double getDataPointMZ(int scanNumber) {
+    DataPoint dataPoint = getDataPoint(scanNumber);
+    return dataPoint == null ? 0.0 : dataPoint.getMZ();
+  }
+
+  /**
+   * Returns the intensity of this peak in a given scan, or 0 if there is no data point in given
+   * scan. Implementations which store their data points as primitive values override this to avoid
+   * creating a DataPoint instance.
+   */
+  default double getDataPointIntensity(int scanNumber) {
+    DataPoint dataPoint = getDataPoint(scanNumber);
+    return dataPoint == null ? 0.0 : dataPoint.getIntensity();
+  }
+
+  /**
+   * Returns true if this peak has a data point in a given scan. Implementations which store their
+   * data points as primitive values override this to avoid creating a DataPoint instance.
+   */
+  default boolean hasDataPoint(int scanNumber) {
+    return getDataPoint(scanNumber) != null;
+  }
+
   /**
    * Returns the retention time range of all raw data points used to detect this peak
    */
@@ -73,6 +73,25 @@ public interface MassSpectrum {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * Copies m/z and intensity values of this m/z table, sorted in m/z order, into the given arrays.
+   * Unlike getDataPoints(), this does not create a DataPoint instance for each data point, so the
+   * arrays can be reused when processing many spectra. Both arrays must have at least
+   * getNumberOfDataPoints() elements.
+   *
+   * This method may need to read data from disk, therefore it may be quite slow.
+   *
+   * @return Number of data points copied into the arrays
+   */
+  public default int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
   /**
    * Returns data points in given m/z range, sorted in m/z order.
    *
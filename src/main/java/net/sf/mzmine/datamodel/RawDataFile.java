@@ -18,6 +18,8 @@
 
 package net.sf.mzmine.datamodel;
 
+import java.io.IOException;
+import java.util.Arrays;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -78,6 +80,28 @@ public interface RawDataFile {
   @Nonnull
   public int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange);
 
+  /**
+   * Returns sorted array of all MS2 scan numbers in given retention time range with a precursor m/z
+   * in given m/z range. Implementations may answer this from an index of the MS2 scans sorted by
+   * precursor m/z, which is created by the first call.
+   * 
+   * @param rtRange Retention time range
+   * @param precursorMZRange Precursor m/z range
+   * @return Sorted array of scan numbers, never returns null
+   */
+  @Nonnull
+  public default int[] getFragmentScanNumbers(@Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
+    int scanNumbers[] = getScanNumbers(2, rtRange);
+    int fragmentScanNumbers[] = new int[scanNumbers.length];
+    int numOfFragmentScans = 0;
+    for (int scanNumber : scanNumbers) {
+      if (precursorMZRange.contains(getScan(scanNumber).getPrecursorMZ()))
+        fragmentScanNumbers[numOfFragmentScans++] = scanNumber;
+    }
+    return Arrays.copyOf(fragmentScanNumbers, numOfFragmentScans);
+  }
+
   /**
    * Scan could be null if scanID is not contained in the raw data file
    *
@@ -102,6 +126,51 @@ public interface RawDataFile {
 
   public double getDataMaxTotalIonCurrent(int msLevel);
 
+  /**
+   * Returns the extracted ion chromatogram of given m/z range: the most intense data point within
+   * the m/z range of each scan of given MS level in the retention time range. The array is aligned
+   * with getScanNumbers(msLevel, rtRange), scans without data points in the m/z range have a null
+   * element. Reads only the matching slice of data points if createIonIndex(msLevel) was called
+   * before, otherwise every scan in the retention time range.
+   * 
+   * @param msLevel MS level
+   * @param mzRange m/z range
+   * @param rtRange Retention time range
+   * @return Base peak of each scan in the m/z range, never returns null
+   */
+  @Nonnull
+  public default DataPoint[] getXIC(int msLevel, @Nonnull Range<Double> mzRange,
+      @Nonnull Range<Double> rtRange) {
+    int scanNumbers[] = getScanNumbers(msLevel, rtRange);
+    DataPoint xic[] = new DataPoint[scanNumbers.length];
+    for (int i = 0; i < scanNumbers.length; i++) {
+      for (DataPoint dp : getScan(scanNumbers[i]).getDataPointsByMass(mzRange)) {
+        if ((xic[i] == null) || (dp.getIntensity() > xic[i].getIntensity()))
+          xic[i] = dp;
+      }
+    }
+    return xic;
+  }
+
+  /**
+   * Creates an index of all data points of given MS level sorted by m/z, which is used by
+   * getXIC(). Creating the index reads all scans twice, so it pays off when many chromatograms are
+   * extracted from the same file. If the index already exists, it is shared. Every successful call
+   * must be followed by releaseIonIndex(msLevel) when the caller does not need the index anymore.
+   * Does nothing if the implementation does not support it.
+   * 
+   * @param msLevel MS level
+   */
+  public default void createIonIndex(int msLevel) throws IOException {}
+
+  /**
+   * Releases the index created by createIonIndex(msLevel). The index is deleted when all callers
+   * released it.
+   * 
+   * @param msLevel MS level
+   */
+  public default void releaseIonIndex(int msLevel) {}
+
   /**
    * Close the file in case it is removed from the project
    */
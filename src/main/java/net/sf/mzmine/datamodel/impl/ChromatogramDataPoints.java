@@ -0,0 +1,309 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Data points of a chromatogram or feature, at most one per scan. The scan numbers, m/z and
+ * intensity values are kept in growable primitive arrays sorted by scan number, instead of a map of
+ * boxed scan numbers to DataPoint instances. DataPoint instances are only created on request.
+ * 
+ * Adding data points in increasing scan order is the fast path. put() inserts other scans in place,
+ * append() adds them at the end and the builder calls sort() once it has added all data points. The
+ * read methods never modify the columns, so a finished instance may be read by several threads. The
+ * modifying methods are not thread-safe.
+ */
+public class ChromatogramDataPoints {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private int scanNumbers[];
+  private double mzValues[], intensityValues[];
+  private int size;
+
+  // False if append() added a scan out of order since the last sort()
+  private boolean sorted = true;
+
+  // True if scanNumbers is an array passed to of() which must be copied before modification
+  private boolean sharedScanNumbers;
+
+  public ChromatogramDataPoints() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ChromatogramDataPoints(int initialCapacity) {
+    scanNumbers = new int[initialCapacity];
+    mzValues = new double[initialCapacity];
+    intensityValues = new double[initialCapacity];
+  }
+
+  private ChromatogramDataPoints(int scanNumbers[], double mzValues[], double intensityValues[],
+      int size, boolean sharedScanNumbers) {
+    this.scanNumbers = scanNumbers;
+    this.mzValues = mzValues;
+    this.intensityValues = intensityValues;
+    this.size = size;
+    this.sharedScanNumbers = sharedScanNumbers;
+  }
+
+  /**
+   * Creates the data points of given scans, skipping null data points. The scan numbers must be
+   * sorted. If no data point is null, the scanNumbers array is shared instead of copied.
+   * 
+   * @param scanNumbers Scan numbers, in ascending order
+   * @param dataPoints Data point of each scan, or null
+   */
+  public static ChromatogramDataPoints of(int scanNumbers[], DataPoint dataPoints[]) {
+    final int length = Math.min(scanNumbers.length, dataPoints.length);
+    int size = 0;
+    for (int i = 0; i < length; i++) {
+      if (dataPoints[i] != null)
+        size++;
+    }
+
+    final boolean shared = (size == scanNumbers.length);
+    final int scans[] = shared ? scanNumbers : new int[size];
+    final double mzs[] = new double[size], intensities[] = new double[size];
+    int index = 0;
+    for (int i = 0; i < length; i++) {
+      if (dataPoints[i] == null)
+        continue;
+      scans[index] = scanNumbers[i];
+      mzs[index] = dataPoints[i].getMZ();
+      intensities[index] = dataPoints[i].getIntensity();
+      index++;
+    }
+    return new ChromatogramDataPoints(scans, mzs, intensities, size, shared);
+  }
+
+  /**
+   * Returns the number of data points
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the scan number of the data point at given index (in ascending scan order)
+   */
+  public int getScanNumber(int index) {
+    checkSorted();
+    return scanNumbers[index];
+  }
+
+  public double getMZ(int index) {
+    checkSorted();
+    return mzValues[index];
+  }
+
+  public double getIntensity(int index) {
+    checkSorted();
+    return intensityValues[index];
+  }
+
+  /**
+   * Returns the index of the data point of given scan, or a negative value if there is none (see
+   * {@link Arrays#binarySearch(int[], int, int, int)})
+   */
+  public int indexOf(int scanNumber) {
+    checkSorted();
+    // Fast path for the last added scan
+    if ((size > 0) && (scanNumbers[size - 1] == scanNumber))
+      return size - 1;
+    return Arrays.binarySearch(scanNumbers, 0, size, scanNumber);
+  }
+
+  public boolean contains(int scanNumber) {
+    return indexOf(scanNumber) >= 0;
+  }
+
+  /**
+   * Returns a new DataPoint instance for given scan, or null if this scan has no data point. Loops
+   * over many scans should use getMZOfScan() and getIntensityOfScan() instead.
+   */
+  public DataPoint getDataPoint(int scanNumber) {
+    final int index = indexOf(scanNumber);
+    if (index < 0)
+      return null;
+    return new SimpleDataPoint(mzValues[index], intensityValues[index]);
+  }
+
+  /**
+   * Returns the m/z of given scan, or 0 if this scan has no data point
+   */
+  public double getMZOfScan(int scanNumber) {
+    final int index = indexOf(scanNumber);
+    return index < 0 ? 0.0 : mzValues[index];
+  }
+
+  /**
+   * Returns the intensity of given scan, or 0 if this scan has no data point
+   */
+  public double getIntensityOfScan(int scanNumber) {
+    final int index = indexOf(scanNumber);
+    return index < 0 ? 0.0 : intensityValues[index];
+  }
+
+  /**
+   * Returns the scan numbers of all data points in ascending order
+   */
+  public int[] getScanNumbers() {
+    checkSorted();
+    return Arrays.copyOf(scanNumbers, size);
+  }
+
+  /**
+   * Sets the data point of given scan, replacing any previous data point of that scan
+   */
+  public void put(int scanNumber, double mz, double intensity) {
+
+    sort();
+    int index;
+    if ((size == 0) || (scanNumbers[size - 1] < scanNumber)) {
+      index = size;
+    } else {
+      index = indexOf(scanNumber);
+      if (index >= 0) {
+        mzValues[index] = mz;
+        intensityValues[index] = intensity;
+        return;
+      }
+      index = -index - 1;
+    }
+
+    ensureCapacity(size + 1);
+    if (index < size) {
+      System.arraycopy(scanNumbers, index, scanNumbers, index + 1, size - index);
+      System.arraycopy(mzValues, index, mzValues, index + 1, size - index);
+      System.arraycopy(intensityValues, index, intensityValues, index + 1, size - index);
+    }
+    scanNumbers[index] = scanNumber;
+    mzValues[index] = mz;
+    intensityValues[index] = intensity;
+    size++;
+  }
+
+  public void put(int scanNumber, DataPoint dataPoint) {
+    put(scanNumber, dataPoint.getMZ(), dataPoint.getIntensity());
+  }
+
+  /**
+   * Adds the data point of a scan which has no data point yet, in any scan order. Unlike put(),
+   * this does not shift the following data points; they are sorted once when they are read next.
+   * The caller must make sure that the scan has no data point yet.
+   */
+  public void append(int scanNumber, double mz, double intensity) {
+    ensureCapacity(size + 1);
+    if ((size > 0) && (scanNumbers[size - 1] > scanNumber))
+      sorted = false;
+    scanNumbers[size] = scanNumber;
+    mzValues[size] = mz;
+    intensityValues[size] = intensity;
+    size++;
+  }
+
+  /**
+   * Removes the data point of given scan
+   * 
+   * @return True if there was a data point of given scan
+   */
+  public boolean remove(int scanNumber) {
+    sort();
+    final int index = indexOf(scanNumber);
+    if (index < 0)
+      return false;
+    unshareScanNumbers();
+    final int moved = size - index - 1;
+    if (moved > 0) {
+      System.arraycopy(scanNumbers, index + 1, scanNumbers, index, moved);
+      System.arraycopy(mzValues, index + 1, mzValues, index, moved);
+      System.arraycopy(intensityValues, index + 1, intensityValues, index, moved);
+    }
+    size--;
+    return true;
+  }
+
+  /**
+   * Releases unused capacity, e.g. once a chromatogram is finished
+   */
+  public void trimToSize() {
+    sort();
+    if (scanNumbers.length == size)
+      return;
+    if (!sharedScanNumbers)
+      scanNumbers = Arrays.copyOf(scanNumbers, size);
+    mzValues = Arrays.copyOf(mzValues, size);
+    intensityValues = Arrays.copyOf(intensityValues, size);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= scanNumbers.length)
+      return;
+    final int newCapacity = Math.max(capacity, scanNumbers.length + (scanNumbers.length >> 1));
+    scanNumbers = Arrays.copyOf(scanNumbers, newCapacity);
+    mzValues = Arrays.copyOf(mzValues, newCapacity);
+    intensityValues = Arrays.copyOf(intensityValues, newCapacity);
+    sharedScanNumbers = false;
+  }
+
+  /**
+   * Sorts the data points by scan number after append() added scans out of order. The builder must
+   * call this before the data points are read.
+   */
+  public void sort() {
+    if (sorted)
+      return;
+    final IntComparator byScanNumber =
+        (a, b) -> Integer.compare(scanNumbers[a], scanNumbers[b]);
+    final Swapper swapper = (a, b) -> {
+      final int scanNumber = scanNumbers[a];
+      scanNumbers[a] = scanNumbers[b];
+      scanNumbers[b] = scanNumber;
+      final double mz = mzValues[a];
+      mzValues[a] = mzValues[b];
+      mzValues[b] = mz;
+      final double intensity = intensityValues[a];
+      intensityValues[a] = intensityValues[b];
+      intensityValues[b] = intensity;
+    };
+    it.unimi.dsi.fastutil.Arrays.quickSort(0, size, byScanNumber, swapper);
+    sorted = true;
+  }
+
+  private void checkSorted() {
+    if (!sorted)
+      throw new IllegalStateException("Data points were appended out of order, call sort() first");
+  }
+
+  private void unshareScanNumbers() {
+    if (sharedScanNumbers) {
+      scanNumbers = scanNumbers.clone();
+      sharedScanNumbers = false;
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.util.MZRTRangeIndex;
+
+/**
+ * Range index over the rows of a feature list which is updated as the list changes. The rows are
+ * kept in an immutable {@link MZRTRangeIndex} built from the list at the last rebuild. Rows added
+ * since, and indexed rows whose m/z or RT changed since, are tested with their current values on
+ * each query; removed rows are skipped. The index is rebuilt once these pending rows outnumber the
+ * square root of the list size, so a query never scans more than a small part of the list.
+ * 
+ * Queries return the rows in their list order, like a linear scan of the list. Rows are only
+ * appended to a feature list, so the list order is the indexed order followed by the order of
+ * addition.
+ * 
+ * The index is not thread-safe, the feature list guards it by its own lock.
+ */
+final class PeakListRangeIndex {
+
+  private static final int MIN_PENDING_ROWS = 64;
+
+  private final ToDoubleFunction<PeakListRow> mzFunction, rtFunction;
+
+  private MZRTRangeIndex<PeakListRow> indexedRows;
+  private final Reference2IntOpenHashMap<PeakListRow> indexedPositions =
+      new Reference2IntOpenHashMap<>();
+  private boolean duplicateRows;
+
+  // Positions of the indexed rows which were removed or whose m/z or RT changed
+  private final BitSet removedRows = new BitSet(), changedRows = new BitSet();
+  private int numberOfRemovedRows;
+
+  // Rows added since the last rebuild, in their list order
+  private final List<PeakListRow> addedRows = new ArrayList<>();
+
+  private boolean outdated;
+
+  PeakListRangeIndex(List<PeakListRow> rows, ToDoubleFunction<PeakListRow> mzFunction,
+      ToDoubleFunction<PeakListRow> rtFunction) {
+    this.mzFunction = mzFunction;
+    this.rtFunction = rtFunction;
+    indexedPositions.defaultReturnValue(-1);
+    rebuild(rows);
+  }
+
+  /**
+   * Re-indexes all rows of the list
+   */
+  void rebuild(List<PeakListRow> rows) {
+    indexedRows = new MZRTRangeIndex<>(rows, mzFunction, rtFunction);
+    indexedPositions.clear();
+    duplicateRows = false;
+    for (int i = 0; i < indexedRows.size(); i++) {
+      if (indexedPositions.put(indexedRows.getItem(i), i) >= 0)
+        duplicateRows = true;
+    }
+    removedRows.clear();
+    changedRows.clear();
+    numberOfRemovedRows = 0;
+    addedRows.clear();
+    outdated = false;
+  }
+
+  /**
+   * Returns true if too many rows are pending, so the index should be rebuilt before the next query
+   */
+  boolean needsRebuild() {
+    if (outdated)
+      return true;
+    final int pendingRows = numberOfRemovedRows + changedRows.cardinality() + addedRows.size();
+    final int limit =
+        Math.max(MIN_PENDING_ROWS, (int) Math.sqrt(indexedRows.size() + addedRows.size()));
+    return pendingRows > limit;
+  }
+
+  /**
+   * Called when the row was appended to the list
+   */
+  void rowAdded(PeakListRow row) {
+    // A row which is in the list more than once cannot be located by its identity
+    if ((indexedPositions.getInt(row) >= 0) || addedRows.contains(row))
+      outdated = true;
+    addedRows.add(row);
+  }
+
+  /**
+   * Called when the row was removed from the list
+   */
+  void rowRemoved(PeakListRow row) {
+    if (addedRows.remove(row))
+      return;
+    final int position = indexedPositions.removeInt(row);
+    if (position < 0)
+      return;
+    if (duplicateRows)
+      outdated = true;
+    changedRows.clear(position);
+    removedRows.set(position);
+    numberOfRemovedRows++;
+  }
+
+  /**
+   * Called when the m/z or RT of the row changed
+   */
+  void rowChanged(PeakListRow row) {
+    final int position = indexedPositions.getInt(row);
+    if (position < 0)
+      return; // added rows are always tested with their current values
+    if (duplicateRows)
+      outdated = true;
+    changedRows.set(position);
+  }
+
+  /**
+   * Returns all rows inside given ranges, in their list order.
+   */
+  List<PeakListRow> getRowsInside(Range<Double> mzRange, Range<Double> rtRange) {
+    final int positions[] = indexedRows.getPositionsInside(mzRange, rtRange);
+    final List<PeakListRow> result = new ArrayList<>(positions.length);
+
+    // Merge the indexed matches with the changed rows, which are tested with their current values
+    int i = 0, changed = changedRows.nextSetBit(0);
+    while ((i < positions.length) || (changed >= 0)) {
+      if ((changed >= 0) && ((i == positions.length) || (changed <= positions[i]))) {
+        if ((i < positions.length) && (positions[i] == changed))
+          i++;
+        PeakListRow row = indexedRows.getItem(changed);
+        if (isInside(row, mzRange, rtRange))
+          result.add(row);
+        changed = changedRows.nextSetBit(changed + 1);
+      } else {
+        final int position = positions[i++];
+        if (!removedRows.get(position))
+          result.add(indexedRows.getItem(position));
+      }
+    }
+
+    for (PeakListRow row : addedRows) {
+      if (isInside(row, mzRange, rtRange))
+        result.add(row);
+    }
+    return result;
+  }
+
+  private boolean isInside(PeakListRow row, Range<Double> mzRange, Range<Double> rtRange) {
+    return mzRange.contains(mzFunction.applyAsDouble(row))
+        && rtRange.contains(rtFunction.applyAsDouble(row));
+  }
+
+}
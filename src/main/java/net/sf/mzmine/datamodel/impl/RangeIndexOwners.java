@@ -0,0 +1,73 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Owners which index a row or feature by its m/z and RT, see {@link PeakListRangeIndex}. A row
+ * holds the feature lists containing it, a feature the rows it was added to (a feature may be
+ * shared by the rows of several lists, e.g., after alignment). Each owner is kept once and removed
+ * again when the row or feature leaves it, so the set stays as small as the number of actual
+ * owners.
+ */
+final class RangeIndexOwners<T> {
+
+  private final ArrayList<T> owners = new ArrayList<>(1);
+
+  /**
+   * @return true if the owner was not present before
+   */
+  synchronized boolean add(T owner) {
+    if (owners.contains(owner))
+      return false;
+    owners.add(owner);
+    return true;
+  }
+
+  /**
+   * @return true if the owner was present
+   */
+  synchronized boolean remove(T owner) {
+    return owners.remove(owner);
+  }
+
+  synchronized boolean isEmpty() {
+    return owners.isEmpty();
+  }
+
+  /**
+   * Calls given action for each owner. The action is called without holding the lock of this set,
+   * so it may lock the owner.
+   */
+  void forEach(Consumer<? super T> action) {
+    final Object snapshot[];
+    synchronized (this) {
+      if (owners.isEmpty())
+        return;
+      snapshot = owners.toArray();
+    }
+    for (Object owner : snapshot) {
+      @SuppressWarnings("unchecked")
+      T typedOwner = (T) owner;
+      action.accept(typedOwner);
+    }
+  }
+
+}
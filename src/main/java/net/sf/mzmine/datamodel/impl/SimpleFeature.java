@@ -18,7 +18,6 @@
 
 package net.sf.mzmine.datamodel.impl;
 
-import java.util.Arrays;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import com.google.common.collect.Range;
@@ -44,7 +43,8 @@ public class SimpleFeature implements Feature {
   // Scan numbers
   private int scanNumbers[];
 
-  private DataPoint dataPointsPerScan[];
+  // Data points of the scans, null data points are not stored
+  private ChromatogramDataPoints dataPoints;
 
   // M/Z, RT, Height and Area, FWHM, Tailing factor, Asymmetry factor
   private double mz, rt, height, area;
@@ -72,6 +72,9 @@ public class SimpleFeature implements Feature {
   // chromatogram deconvolution method.
   private Integer parentChromatogramRowID;
 
+  // Rows in feature lists containing this feature, see PeakListRangeIndex
+  private final RangeIndexOwners<SimplePeakListRow> rows = new RangeIndexOwners<>();
+
   /**
    * Initializes a new peak using given values
    * 
@@ -98,7 +101,7 @@ public class SimpleFeature implements Feature {
     this.rtRange = rtRange;
     this.mzRange = mzRange;
     this.intensityRange = intensityRange;
-    this.dataPointsPerScan = dataPointsPerScan;
+    this.dataPoints = ChromatogramDataPoints.of(scanNumbers, dataPointsPerScan);
     this.fwhm = null;
     this.tf = null;
     this.af = null;
@@ -127,12 +130,13 @@ public class SimpleFeature implements Feature {
 
     this.scanNumbers = p.getScanNumbers();
 
-    this.dataPointsPerScan = new DataPoint[scanNumbers.length];
+    DataPoint dataPointsPerScan[] = new DataPoint[scanNumbers.length];
 
     for (int i = 0; i < scanNumbers.length; i++) {
       dataPointsPerScan[i] = p.getDataPoint(scanNumbers[i]);
 
     }
+    this.dataPoints = ChromatogramDataPoints.of(scanNumbers, dataPointsPerScan);
 
     this.peakStatus = p.getFeatureStatus();
 
@@ -168,11 +172,12 @@ public class SimpleFeature implements Feature {
     this.intensityRange = Range.closed(0.0, msdkFeature.getHeight().doubleValue());
 
     this.scanNumbers = new int[rtValues.length];
-    this.dataPointsPerScan = new DataPoint[scanNumbers.length];
+    DataPoint dataPointsPerScan[] = new DataPoint[scanNumbers.length];
     for (int i = 0; i < scanNumbers.length; i++) {
       scanNumbers[i] = RawDataFileUtils.getClosestScanNumber(dataFile, rtValues[i] / 60.0);
       dataPointsPerScan[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
     }
+    this.dataPoints = ChromatogramDataPoints.of(scanNumbers, dataPointsPerScan);
 
     this.peakStatus = status;
 
@@ -206,12 +211,21 @@ public class SimpleFeature implements Feature {
     return mz;
   }
 
+  /**
+   * Rows in feature lists containing this feature, see {@link PeakListRangeIndex}
+   */
+  RangeIndexOwners<SimplePeakListRow> getRows() {
+    return rows;
+  }
+
   public void setMZ(double mz) {
     this.mz = mz;
+    rows.forEach(SimplePeakListRow::positionsChanged);
   }
 
   public void setRT(double rt) {
     this.rt = rt;
+    rows.forEach(SimplePeakListRow::positionsChanged);
   }
 
   /**
@@ -267,10 +281,22 @@ public class SimpleFeature implements Feature {
    */
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    int index = Arrays.binarySearch(scanNumbers, scanNumber);
-    if (index < 0)
-      return null;
-    return dataPointsPerScan[index];
+    return dataPoints.getDataPoint(scanNumber);
+  }
+
+  @Override
+  public double getDataPointMZ(int scanNumber) {
+    return dataPoints.getMZOfScan(scanNumber);
+  }
+
+  @Override
+  public double getDataPointIntensity(int scanNumber) {
+    return dataPoints.getIntensityOfScan(scanNumber);
+  }
+
+  @Override
+  public boolean hasDataPoint(int scanNumber) {
+    return dataPoints.contains(scanNumber);
   }
 
   /**
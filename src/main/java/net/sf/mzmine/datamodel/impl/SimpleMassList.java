@@ -58,6 +58,11 @@ public class SimpleMassList implements MassList {
     return mzPeaks;
   }
 
+  @Override
+  public int getNumberOfDataPoints() {
+    return mzPeaks.length;
+  }
+
   public void setDataPoints(DataPoint mzPeaks[]) {
     this.mzPeaks = mzPeaks;
   }
@@ -23,7 +23,9 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.stream.Stream;
 import com.google.common.collect.Range;
@@ -48,6 +50,11 @@ public class SimplePeakList implements PeakList {
   private String dateCreated;
   private Range<Double> mzRange, rtRange;
 
+  // Indexes used by the range queries. They are built by the first query and then updated when
+  // rows are added or removed, or when the rows of this list report a change of their m/z or RT.
+  private PeakListRangeIndex rowIndex;
+  private final Map<RawDataFile, PeakListRangeIndex> peakIndexes = new HashMap<>();
+
   public static DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
   public SimplePeakList(String name, RawDataFile dataFile) {
@@ -165,15 +172,15 @@ public class SimplePeakList implements PeakList {
   }
 
   @Override
-  public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange, Range<Double> mzRange) {
-    Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
-
-    for (PeakListRow row : peakListRows) {
-      if (rtRange.contains(row.getAverageRT()) && mzRange.contains(row.getAverageMZ()))
-        rowsInside.add(row);
-    }
+  public synchronized PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange,
+      Range<Double> mzRange) {
+    if (rowIndex == null)
+      rowIndex = new PeakListRangeIndex(peakListRows, PeakListRow::getAverageMZ,
+          PeakListRow::getAverageRT);
+    else if (rowIndex.needsRebuild())
+      rowIndex.rebuild(peakListRows);
 
-    return rowsInside.toArray(new PeakListRow[0]);
+    return rowIndex.getRowsInside(mzRange, rtRange).toArray(new PeakListRow[0]);
   }
 
   @Override
@@ -184,7 +191,16 @@ public class SimplePeakList implements PeakList {
         throw (new IllegalArgumentException("Data file " + testFile + " is not in this feature list"));
     }
 
-    peakListRows.add(row);
+    synchronized (this) {
+      peakListRows.add(row);
+      if (rowIndex != null)
+        rowIndex.rowAdded(row);
+      for (PeakListRangeIndex peakIndex : peakIndexes.values())
+        peakIndex.rowAdded(row);
+    }
+    // Not holding the lock of this list, because the row reports changes while holding its own
+    if (row instanceof SimplePeakListRow)
+      ((SimplePeakListRow) row).addedToPeakList(this);
     if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
       maxDataPointIntensity = row.getDataPointMaxIntensity();
     }
@@ -225,13 +241,26 @@ public class SimplePeakList implements PeakList {
    *      double)
    */
   @Override
-  public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file, Range<Double> rtRange,
-      Range<Double> mzRange) {
-    Vector<Feature> peaksInside = new Vector<Feature>();
+  public synchronized Feature[] getPeaksInsideScanAndMZRange(RawDataFile file,
+      Range<Double> rtRange, Range<Double> mzRange) {
+    PeakListRangeIndex peakIndex = peakIndexes.get(file);
+    if (peakIndex == null) {
+      // Rows without a feature in the file have NaN values, see MZRTRangeIndex.forFeatures()
+      peakIndex = new PeakListRangeIndex(peakListRows, row -> {
+        Feature peak = row.getPeak(file);
+        return peak == null ? Double.NaN : peak.getMZ();
+      }, row -> {
+        Feature peak = row.getPeak(file);
+        return peak == null ? Double.NaN : peak.getRT();
+      });
+      peakIndexes.put(file, peakIndex);
+    } else if (peakIndex.needsRebuild())
+      peakIndex.rebuild(peakListRows);
 
-    Feature[] peaks = getPeaks(file);
-    for (Feature p : peaks) {
-      if (rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
+    Vector<Feature> peaksInside = new Vector<Feature>();
+    for (PeakListRow row : peakIndex.getRowsInside(mzRange, rtRange)) {
+      Feature p = row.getPeak(file);
+      if (p != null)
         peaksInside.add(p);
     }
 
@@ -243,7 +272,18 @@ public class SimplePeakList implements PeakList {
    */
   @Override
   public void removeRow(PeakListRow row) {
-    peakListRows.remove(row);
+    final boolean removed;
+    synchronized (this) {
+      if (peakListRows.remove(row)) {
+        if (rowIndex != null)
+          rowIndex.rowRemoved(row);
+        for (PeakListRangeIndex peakIndex : peakIndexes.values())
+          peakIndex.rowRemoved(row);
+      }
+      removed = !peakListRows.contains(row);
+    }
+    if (removed && (row instanceof SimplePeakListRow))
+      ((SimplePeakListRow) row).removedFromPeakList(this);
 
     // We have to update the project tree model
     MZmineProjectImpl project =
@@ -262,6 +302,17 @@ public class SimplePeakList implements PeakList {
     removeRow(peakListRows.get(rowNum));
   }
 
+  /**
+   * Called by a row of this list when its m/z or RT, or the m/z or RT of one of its features,
+   * changed
+   */
+  synchronized void rowPositionsChanged(PeakListRow row) {
+    if (rowIndex != null)
+      rowIndex.rowChanged(row);
+    for (PeakListRangeIndex peakIndex : peakIndexes.values())
+      peakIndex.rowChanged(row);
+  }
+
   private void updateMaxIntensity() {
     maxDataPointIntensity = 0;
     mzRange = null;
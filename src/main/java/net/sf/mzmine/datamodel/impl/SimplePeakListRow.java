@@ -54,6 +54,9 @@ public class SimplePeakListRow implements PeakListRow {
   private int myID;
   private double maxDataPointIntensity = 0;
 
+  // Feature lists containing this row, see PeakListRangeIndex
+  private final RangeIndexOwners<SimplePeakList> peakLists = new RangeIndexOwners<>();
+
   /**
    * These variables are used for caching the average values, so we don't need to calculate them
    * again and again
@@ -86,8 +89,10 @@ public class SimplePeakListRow implements PeakListRow {
   }
 
   @Override
-  public void removePeak(RawDataFile file) {
-    this.peaks.remove(file);
+  public synchronized void removePeak(RawDataFile file) {
+    Feature removed = this.peaks.remove(file);
+    if (removed instanceof SimpleFeature)
+      ((SimpleFeature) removed).getRows().remove(this);
     calculateAverageValues();
   }
 
@@ -113,13 +118,52 @@ public class SimplePeakListRow implements PeakListRow {
       throw new IllegalArgumentException("Cannot add null feature to a feature list row");
 
     // ConcurrentHashMap is already synchronized
-    peaks.put(rawData, peak);
+    Feature replaced = peaks.put(rawData, peak);
+    if ((replaced instanceof SimpleFeature) && (replaced != peak))
+      ((SimpleFeature) replaced).getRows().remove(this);
+    // Features only refer to the rows while they are in a feature list, see addedToPeakList()
+    if ((peak instanceof SimpleFeature) && !peakLists.isEmpty())
+      ((SimpleFeature) peak).getRows().add(this);
 
     if (peak.getRawDataPointsIntensityRange().upperEndpoint() > maxDataPointIntensity)
       maxDataPointIntensity = peak.getRawDataPointsIntensityRange().upperEndpoint();
     calculateAverageValues();
   }
 
+  /**
+   * Called when the row was added to a feature list. While the row is in any feature list, its
+   * features report their changes to it, see positionsChanged().
+   */
+  synchronized void addedToPeakList(SimplePeakList peakList) {
+    if (peakLists.isEmpty()) {
+      for (Feature peak : peaks.values()) {
+        if (peak instanceof SimpleFeature)
+          ((SimpleFeature) peak).getRows().add(this);
+      }
+    }
+    peakLists.add(peakList);
+  }
+
+  /**
+   * Called when the row was removed from a feature list. A row which is in no feature list is no
+   * longer referred to by its features, so it does not stay reachable through them.
+   */
+  synchronized void removedFromPeakList(SimplePeakList peakList) {
+    if (peakLists.remove(peakList) && peakLists.isEmpty()) {
+      for (Feature peak : peaks.values()) {
+        if (peak instanceof SimpleFeature)
+          ((SimpleFeature) peak).getRows().remove(this);
+      }
+    }
+  }
+
+  /**
+   * Updates the range indexes of the feature lists containing this row
+   */
+  void positionsChanged() {
+    peakLists.forEach(peakList -> peakList.rowPositionsChanged(this));
+  }
+
   @Override
   public double getAverageMZ() {
     return averageMZ;
@@ -163,6 +207,7 @@ public class SimplePeakListRow implements PeakListRow {
     }
     averageRT = rtSum / peaks.size();
     averageMZ = mzSum / peaks.size();
+    positionsChanged();
     averageHeight = heightSum / peaks.size();
     averageArea = areaSum / peaks.size();
     if (chargeArr.size() < 2) {
@@ -218,6 +263,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageMZ(double mz) {
     this.averageMZ = mz;
+    positionsChanged();
   }
 
   /**
@@ -226,6 +272,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageRT(double rt) {
     this.averageRT = rt;
+    positionsChanged();
   }
 
   /**
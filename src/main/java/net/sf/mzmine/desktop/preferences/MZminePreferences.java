@@ -27,6 +27,8 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
@@ -52,6 +54,16 @@ public class MZminePreferences extends SimpleParameterSet {
 
   public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+  public static final BooleanParameter memoryMappedStorage = new BooleanParameter(
+      "Memory-mapped scan storage",
+      "Map the temporary scan data files into memory, so that data points can be read by many tasks in parallel. Takes effect for newly created or opened raw data files.",
+      true);
+
+  public static final OptionalParameter<IntegerParameter> scanStorageCompaction =
+      new OptionalParameter<>(new IntegerParameter("Compact scan storage above (MB)",
+          "Rewrite the temporary scan data file of a raw data file in the background, once removed scans and mass lists occupy more than the given number of megabytes in it.",
+          1024, 1, null), true);
+
   public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
       "Use proxy", "Use proxy for internet connection?", new ProxySettings());
 
@@ -70,7 +82,7 @@ public class MZminePreferences extends SimpleParameterSet {
 
   public MZminePreferences() {
     super(new Parameter[] {colorPalettes, mzFormat, rtFormat, intensityFormat, numOfThreads,
-        proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail});
+        memoryMappedStorage, scanStorageCompaction, proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail});
   }
 
   @Override
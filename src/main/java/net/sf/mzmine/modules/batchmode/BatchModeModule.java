@@ -27,6 +27,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
 import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -85,7 +86,10 @@ public class BatchModeModule implements MZmineProcessingModule {
       DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
       Document parsedBatchXML = docBuilder.parse(batchFile);
       BatchQueue newQueue = BatchQueue.loadFromXml(parsedBatchXML.getDocumentElement());
-      ParameterSet parameters = new BatchModeParameters();
+      // keep the configured batch options, e.g., pipelining of raw data files
+      ParameterSet parameters =
+          MZmineCore.getConfiguration().getModuleParameters(BatchModeModule.class)
+              .cloneParameterSet();
       parameters.getParameter(BatchModeParameters.batchQueue).setValue(newQueue);
       Task batchTask = new BatchTask(project, parameters);
       batchTask.run();
@@ -23,6 +23,8 @@ import java.util.logging.Logger;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.dialogs.ParameterSetupDialog;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameListSilentParameter;
 import net.sf.mzmine.util.ExitCode;
 
@@ -33,8 +35,17 @@ public class BatchModeParameters extends SimpleParameterSet {
   public static final FileNameListSilentParameter lastFiles = new FileNameListSilentParameter("Last used files");
   public static final BatchQueueParameter batchQueue = new BatchQueueParameter();
 
+  public static final OptionalParameter<IntegerParameter> pipelineFiles =
+      new OptionalParameter<>(new IntegerParameter("Pipeline raw data files",
+          "Process the per-file steps at the start of the batch (raw data import, mass detection, "
+              + "chromatogram building, deconvolution, ...) for each raw data file without waiting "
+              + "for the other files. The batch waits for all files at the first step which works "
+              + "across files, e.g., alignment. The value is the maximum number of raw data files "
+              + "processed at the same time.",
+          4, 1, null));
+
   public BatchModeParameters() {
-    super(new Parameter[] {batchQueue, lastFiles});
+    super(new Parameter[] {batchQueue, pipelineFiles, lastFiles});
   }
 
   @Override
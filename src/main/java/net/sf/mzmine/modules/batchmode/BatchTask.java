@@ -18,28 +18,61 @@
 
 package net.sf.mzmine.modules.batchmode;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import com.google.common.collect.ImmutableSet;
+
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MZmineProjectListener;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder.ADAPChromatogramBuilderModule;
+import net.sf.mzmine.modules.masslistmethods.chromatogrambuilder.ChromatogramBuilderModule;
+import net.sf.mzmine.modules.masslistmethods.shoulderpeaksfilter.ShoulderPeaksFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.duplicatefilter.DuplicateFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.groupms2.GroupMS2Module;
+import net.sf.mzmine.modules.peaklistmethods.filtering.peakfilter.PeakFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.rowsfilter.RowsFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper.IsotopeGrouperModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.peakextender.PeakExtenderModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.shapemodeler.ShapeModelerModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.smoothing.SmoothingModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.BaselineCorrectionModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.cropper.CropFilterModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.scanfilters.ScanFiltersModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.scansmoothing.ScanSmoothingModule;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass.GridMassModule;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportParameters;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.TaskStatusListener;
 import net.sf.mzmine.util.ExitCode;
 
 /**
@@ -49,22 +82,60 @@ public class BatchTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  /**
+   * Modules which process every raw data file or feature list on its own. A batch which starts
+   * with raw data import followed by these modules can process each raw data file independently
+   * up to the first step which works across files, e.g., alignment.
+   */
+  private static final Set<Class<? extends MZmineModule>> PER_FILE_MODULES =
+      ImmutableSet.of(RawDataImportModule.class, CropFilterModule.class, ScanFiltersModule.class,
+          ScanSmoothingModule.class, BaselineCorrectionModule.class, MassDetectionModule.class,
+          ShoulderPeaksFilterModule.class, ChromatogramBuilderModule.class,
+          ADAPChromatogramBuilderModule.class, GridMassModule.class, DeconvolutionModule.class,
+          SmoothingModule.class, ShapeModelerModule.class, PeakExtenderModule.class,
+          IsotopeGrouperModule.class, PeakFilterModule.class, RowsFilterModule.class,
+          DuplicateFilterModule.class, GroupMS2Module.class);
+
   private int totalSteps, processedSteps;
 
   private MZmineProject project;
   private final BatchQueue queue;
 
-  private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
-  private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
+  // Maximum number of raw data files in the pipelined per-file steps, 0 if disabled
+  private final int pipelineFiles;
+
+  // Items created by the batch steps which run for all files
+  private final BatchItems batchItems = new BatchItems();
+
+  // Number of raw data files in the pipelined per-file steps and their processed steps, read by
+  // getFinishedPercentage()
+  private volatile int pipelinedFileCount, processedUnitSteps;
+
+  // Items added to the project while the files are pipelined, in the order they were added. Each
+  // pipelined file takes its items when a step is finished, see FileUnit.takeAddedItems(). The
+  // files which are processed at the moment and the pipelining flag are guarded by addedItems, too.
+  private final List<AddedItem> addedItems = new ArrayList<>();
+  private final List<FileUnit> runningUnits = new ArrayList<>();
+  private boolean pipelining = false;
+
+  // Set on the threads which run a task of a pipelined raw data file
+  private final ThreadLocal<FileUnit> currentFileUnit = new ThreadLocal<>();
+
+  // Set when this task or a task of the current step changes its status, guarded by this
+  private boolean statusChanged = false;
 
   BatchTask(MZmineProject project, ParameterSet parameters) {
     this.project = project;
     this.queue = parameters.getParameter(BatchModeParameters.batchQueue).getValue();
     totalSteps = queue.size();
-    createdDataFiles = new ArrayList<>();
-    createdPeakLists = new ArrayList<>();
-    previousCreatedDataFiles = new ArrayList<>();
-    previousCreatedPeakLists = new ArrayList<>();
+    final Integer maxPipelineFiles = parameters.getParameter(BatchModeParameters.pipelineFiles)
+        .getEmbeddedParameter().getValue();
+    pipelineFiles =
+        Boolean.TRUE.equals(parameters.getParameter(BatchModeParameters.pipelineFiles).getValue())
+            && (maxPipelineFiles != null) ? maxPipelineFiles : 0;
+
+    // Wake up processQueueStep() when the batch is canceled
+    addTaskStatusListener((task, newStatus, oldStatus) -> statusChanged());
   }
 
   @Override
@@ -73,22 +144,48 @@ public class BatchTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Starting a batch of " + totalSteps + " steps");
 
-    // Listen for new items in the project
+    // Listen for new items in the project. While the files are pipelined, the items are assigned to
+    // the files when their steps finish.
     MZmineProjectListener listener = new MZmineProjectListener() {
       @Override
       public void peakListAdded(PeakList newPeakList) {
-        createdPeakLists.add(newPeakList);
+        synchronized (addedItems) {
+          if (pipelining) {
+            addedItems.add(new AddedItem(newPeakList));
+            return;
+          }
+        }
+        batchItems.createdPeakLists.add(newPeakList);
       }
 
       @Override
       public void dataFileAdded(RawDataFile newFile) {
-        createdDataFiles.add(newFile);
+        synchronized (addedItems) {
+          if (pipelining) {
+            addedItems.add(new AddedItem(newFile));
+            return;
+          }
+        }
+        batchItems.createdDataFiles.add(newFile);
       }
     };
     project.addProjectListener(listener);
 
+    // Process the leading per-file steps for every raw data file on its own
+    int pipelinedSteps = getPipelinedSteps();
+    if (pipelinedSteps > 0) {
+      processPipelinedSteps(pipelinedSteps);
+      processedSteps = pipelinedSteps;
+      pipelinedFileCount = 0;
+
+      if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+        project.removeProjectListener(listener);
+        return;
+      }
+    }
+
     // Process individual batch steps
-    for (int i = 0; i < totalSteps; i++) {
+    for (int i = pipelinedSteps; i < totalSteps; i++) {
 
       processQueueStep(i);
       processedSteps++;
@@ -123,25 +220,71 @@ public class BatchTask extends AbstractTask {
     MZmineProcessingModule method = (MZmineProcessingModule) currentStep.getModule();
     ParameterSet batchStepParameters = currentStep.getParameterSet();
 
+    List<Task> currentStepTasks = startStep(method, batchStepParameters, batchItems);
+
+    // If current step didn't produce any tasks, continue with next step
+    if (currentStepTasks == null || currentStepTasks.isEmpty())
+      return;
+
+    boolean allTasksFinished = false;
+
+    // Wake up when a task changes its status. Tasks which do not report their status changes are
+    // checked every second.
+    boolean allTasksNotify = listenToTasks(currentStepTasks);
+
+    // Submit the tasks to the task controller for processing
+    MZmineCore.getTaskController().addTasks(currentStepTasks.toArray(new Task[0]));
+
+    while (!allTasksFinished) {
+
+      // If we canceled the batch, cancel all running tasks
+      if (isCanceled()) {
+        for (Task stepTask : currentStepTasks)
+          stepTask.cancel();
+        return;
+      }
+
+      TaskStatus stepStatus = checkTasks(currentStepTasks);
+      if ((stepStatus == TaskStatus.ERROR) || (stepStatus == TaskStatus.CANCELED))
+        return;
+      allTasksFinished = (stepStatus == TaskStatus.FINISHED);
+
+      // Wait for a status change before checking the tasks again
+      if (!allTasksFinished)
+        waitForStatusChange(allTasksNotify);
+
+    }
+
+  }
+
+  /**
+   * Sets the items of the batch to the parameters of a step and creates the tasks of this step. The
+   * tasks are not submitted yet.
+   * 
+   * @return the tasks or null if the step could not be started
+   */
+  private List<Task> startStep(MZmineProcessingModule method, ParameterSet batchStepParameters,
+      BatchItems items) {
+
     // If the last step did not produce any data files or feature lists, use
     // the ones from the previous step
-    if (createdDataFiles.isEmpty())
-      createdDataFiles.addAll(previousCreatedDataFiles);
-    if (createdPeakLists.isEmpty())
-      createdPeakLists.addAll(previousCreatedPeakLists);
+    if (items.createdDataFiles.isEmpty())
+      items.createdDataFiles.addAll(items.previousCreatedDataFiles);
+    if (items.createdPeakLists.isEmpty())
+      items.createdPeakLists.addAll(items.previousCreatedPeakLists);
 
     // Update the RawDataFilesParameter parameters to reflect the current
     // state of the batch
     for (Parameter<?> p : batchStepParameters.getParameters()) {
       if (p instanceof RawDataFilesParameter) {
         RawDataFilesParameter rdp = (RawDataFilesParameter) p;
-        RawDataFile createdFiles[] = createdDataFiles.toArray(new RawDataFile[0]);
+        RawDataFile createdFiles[] = items.createdDataFiles.toArray(new RawDataFile[0]);
         final RawDataFilesSelection selectedFiles = rdp.getValue();
         if (selectedFiles == null) {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return null;
         }
         selectedFiles.setBatchLastFiles(createdFiles);
       }
@@ -152,13 +295,13 @@ public class BatchTask extends AbstractTask {
     for (Parameter<?> p : batchStepParameters.getParameters()) {
       if (p instanceof PeakListsParameter) {
         PeakListsParameter rdp = (PeakListsParameter) p;
-        PeakList createdPls[] = createdPeakLists.toArray(new PeakList[0]);
+        PeakList createdPls[] = items.createdPeakLists.toArray(new PeakList[0]);
         final PeakListsSelection selectedPeakLists = rdp.getValue();
         if (selectedPeakLists == null) {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return null;
         }
         selectedPeakLists.setBatchLastPeakLists(createdPls);
       }
@@ -166,12 +309,7 @@ public class BatchTask extends AbstractTask {
 
     // Clear the saved data files and feature lists. Save them to the
     // "previous" lists, in case the next step does not produce any new data
-    previousCreatedDataFiles.clear();
-    previousCreatedDataFiles.addAll(createdDataFiles);
-    previousCreatedPeakLists.clear();
-    previousCreatedPeakLists.addAll(createdPeakLists);
-    createdDataFiles.clear();
-    createdPeakLists.clear();
+    items.nextStep();
 
     // Check if the parameter settings are valid
     ArrayList<String> messages = new ArrayList<String>();
@@ -188,69 +326,245 @@ public class BatchTask extends AbstractTask {
     if (exitCode != ExitCode.OK) {
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Could not start batch step " + method.getName());
-      return;
+      return null;
     }
 
-    // If current step didn't produce any tasks, continue with next step
-    if (currentStepTasks.isEmpty())
-      return;
+    return currentStepTasks;
+  }
 
-    boolean allTasksFinished = false;
+  /**
+   * Wake up when a task changes its status
+   * 
+   * @return false if some tasks do not report their status changes and need to be checked
+   *         periodically
+   */
+  private boolean listenToTasks(List<Task> tasks) {
+    TaskStatusListener stepTaskListener = (task, newStatus, oldStatus) -> statusChanged();
+    boolean allTasksNotify = true;
+    for (Task stepTask : tasks) {
+      if (stepTask instanceof AbstractTask)
+        ((AbstractTask) stepTask).addTaskStatusListener(stepTaskListener);
+      else
+        allTasksNotify = false;
+    }
+    return allTasksNotify;
+  }
 
-    // Submit the tasks to the task controller for processing
-    MZmineCore.getTaskController().addTasks(currentStepTasks.toArray(new Task[0]));
+  /**
+   * Checks the tasks of a step. Sets the batch status to ERROR or CANCELED if one of the tasks
+   * failed or was canceled.
+   * 
+   * @return FINISHED if all tasks are finished, ERROR or CANCELED if a task failed or was canceled,
+   *         else PROCESSING
+   */
+  private TaskStatus checkTasks(List<Task> currentStepTasks) {
 
-    while (!allTasksFinished) {
+    // First set to true, then check all tasks
+    boolean allTasksFinished = true;
 
-      // If we canceled the batch, cancel all running tasks
-      if (isCanceled()) {
-        for (Task stepTask : currentStepTasks)
-          stepTask.cancel();
-        return;
+    for (Task stepTask : currentStepTasks) {
+
+      TaskStatus stepStatus = stepTask.getStatus();
+
+      // If any of them is not finished, keep checking
+      if (stepStatus != TaskStatus.FINISHED)
+        allTasksFinished = false;
+
+      // If there was an error, we have to stop the whole batch
+      if (stepStatus == TaskStatus.ERROR) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
+        return TaskStatus.ERROR;
       }
 
-      // First set to true, then check all tasks
-      allTasksFinished = true;
+      // If user canceled any of the tasks, we have to cancel the
+      // whole batch
+      if (stepStatus == TaskStatus.CANCELED) {
+        setStatus(TaskStatus.CANCELED);
+        for (Task t : currentStepTasks)
+          t.cancel();
+        return TaskStatus.CANCELED;
+      }
 
-      for (Task stepTask : currentStepTasks) {
+    }
+    return allTasksFinished ? TaskStatus.FINISHED : TaskStatus.PROCESSING;
+  }
 
-        TaskStatus stepStatus = stepTask.getStatus();
+  private void waitForStatusChange(boolean allTasksNotify) {
+    synchronized (this) {
+      try {
+        if (!statusChanged)
+          this.wait(allTasksNotify ? 0 : 1000);
+      } catch (InterruptedException e) {
+        // ignore
+      }
+      statusChanged = false;
+    }
+  }
 
-        // If any of them is not finished, keep checking
-        if (stepStatus != TaskStatus.FINISHED)
-          allTasksFinished = false;
+  private synchronized void statusChanged() {
+    statusChanged = true;
+    notifyAll();
+  }
 
-        // If there was an error, we have to stop the whole batch
-        if (stepStatus == TaskStatus.ERROR) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
-          return;
-        }
+  /**
+   * Number of leading steps which are processed for each raw data file on its own: a raw data
+   * import of more than one file followed by per-file steps, which work on the data files and
+   * feature lists created by the previous step.
+   * 
+   * @return number of pipelined steps or 0 if the batch is processed step by step
+   */
+  private int getPipelinedSteps() {
+    if (pipelineFiles <= 0 || queue.isEmpty()
+        || !(queue.get(0).getModule() instanceof RawDataImportModule))
+      return 0;
+    File fileNames[] =
+        queue.get(0).getParameterSet().getParameter(RawDataImportParameters.fileNames).getValue();
+    if (fileNames == null || fileNames.length < 2)
+      return 0;
 
-        // If user canceled any of the tasks, we have to cancel the
-        // whole batch
-        if (stepStatus == TaskStatus.CANCELED) {
-          setStatus(TaskStatus.CANCELED);
-          for (Task t : currentStepTasks)
-            t.cancel();
-          return;
-        }
+    int steps = 1;
+    while (steps < totalSteps && isPerFileStep(queue.get(steps)))
+      steps++;
+    // pipelining the import alone does not change anything
+    return steps > 1 ? steps : 0;
+  }
 
+  private boolean isPerFileStep(MZmineProcessingStep<?> step) {
+    if (!PER_FILE_MODULES.contains(step.getModule().getClass()))
+      return false;
+    for (Parameter<?> p : step.getParameterSet().getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        RawDataFilesSelection selection = ((RawDataFilesParameter) p).getValue();
+        if (selection == null
+            || selection.getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES)
+          return false;
+      }
+      if (p instanceof PeakListsParameter) {
+        PeakListsSelection selection = ((PeakListsParameter) p).getValue();
+        if (selection == null
+            || selection.getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS)
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Processes the leading per-file steps for every raw data file independently. At most
+   * pipelineFiles raw data files are processed at the same time. The items created for all files
+   * are passed to the following steps in the order of the imported files.
+   */
+  private void processPipelinedSteps(int pipelinedSteps) {
+
+    logger.info("Processing steps 1-" + pipelinedSteps + " for each raw data file, "
+        + pipelineFiles + " files at a time");
+
+    File fileNames[] =
+        queue.get(0).getParameterSet().getParameter(RawDataImportParameters.fileNames).getValue();
+    List<FileUnit> fileUnits = new ArrayList<>();
+    for (File fileName : fileNames)
+      fileUnits.add(new FileUnit(fileName));
+    pipelinedFileCount = fileUnits.size();
+
+    synchronized (addedItems) {
+      pipelining = true;
+    }
+    try {
+      processFileUnits(fileUnits, pipelinedSteps);
+    } finally {
+      synchronized (addedItems) {
+        pipelining = false;
+        runningUnits.clear();
+      }
+    }
+    if (getStatus() != TaskStatus.PROCESSING)
+      return;
+
+    // Continue with the items of all files in the order of the files, followed by items which could
+    // not be assigned to a file
+    List<RawDataFile> dataFiles = new ArrayList<>();
+    List<PeakList> peakLists = new ArrayList<>();
+    for (FileUnit unit : fileUnits) {
+      dataFiles.addAll(unit.createdDataFiles.isEmpty() ? unit.previousCreatedDataFiles
+          : unit.createdDataFiles);
+      peakLists.addAll(unit.createdPeakLists.isEmpty() ? unit.previousCreatedPeakLists
+          : unit.createdPeakLists);
+    }
+    synchronized (addedItems) {
+      for (AddedItem added : addedItems) {
+        logger.warning("Could not assign " + added.item + " to a pipelined raw data file");
+        if (added.item instanceof RawDataFile)
+          batchItems.createdDataFiles.add((RawDataFile) added.item);
+        else
+          batchItems.createdPeakLists.add((PeakList) added.item);
+      }
+      addedItems.clear();
+    }
+    dataFiles.addAll(batchItems.createdDataFiles);
+    peakLists.addAll(batchItems.createdPeakLists);
+    batchItems.createdDataFiles.clear();
+    batchItems.createdDataFiles.addAll(dataFiles);
+    batchItems.createdPeakLists.clear();
+    batchItems.createdPeakLists.addAll(peakLists);
+  }
+
+  /**
+   * Runs the pipelined steps of the files until all files are processed or the batch is stopped
+   */
+  private void processFileUnits(List<FileUnit> fileUnits, int pipelinedSteps) {
+
+    Deque<FileUnit> waitingUnits = new ArrayDeque<>(fileUnits);
+
+    while (!waitingUnits.isEmpty() || !runningUnits.isEmpty()) {
+
+      // If we canceled the batch, cancel all running tasks
+      if (isCanceled()) {
+        for (FileUnit unit : runningUnits)
+          unit.cancelTasks();
+        return;
       }
 
-      // Wait 1s before checking the tasks again
-      if (!allTasksFinished) {
-        synchronized (this) {
-          try {
-            this.wait(1000);
-          } catch (InterruptedException e) {
-            // ignore
+      // Start the next files
+      while (runningUnits.size() < pipelineFiles && !waitingUnits.isEmpty()) {
+        FileUnit unit = waitingUnits.poll();
+        synchronized (addedItems) {
+          runningUnits.add(unit);
+        }
+        unit.start(pipelinedSteps);
+      }
+
+      // Start the next step of every file which finished its current step
+      boolean allTasksNotify = true;
+      for (int i = 0; i < runningUnits.size(); i++) {
+        FileUnit unit = runningUnits.get(i);
+        while ((getStatus() == TaskStatus.PROCESSING)
+            && (checkTasks(unit.tasks) == TaskStatus.FINISHED)) {
+          unit.takeAddedItems();
+          unit.step++;
+          processedUnitSteps++;
+          if (unit.step == pipelinedSteps) {
+            synchronized (addedItems) {
+              runningUnits.remove(i--);
+            }
+            break;
           }
+          unit.start(pipelinedSteps);
+        }
+        allTasksNotify &= unit.tasksNotify;
+
+        // A step failed, was canceled or could not be started, stop all files
+        if (getStatus() != TaskStatus.PROCESSING) {
+          for (FileUnit running : runningUnits)
+            running.cancelTasks();
+          return;
         }
       }
 
+      // Wait for a status change before checking the tasks again
+      if (!runningUnits.isEmpty())
+        waitForStatusChange(allTasksNotify);
     }
-
   }
 
   @Override
@@ -263,7 +577,10 @@ public class BatchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalSteps == 0)
       return 0;
-    return (double) processedSteps / totalSteps;
+    // the steps of the pipelined files, in units of the batch steps
+    final int files = pipelinedFileCount;
+    double pipelined = files == 0 ? 0 : (double) processedUnitSteps / files;
+    return (processedSteps + pipelined) / totalSteps;
   }
 
   @Override
@@ -271,4 +588,196 @@ public class BatchTask extends AbstractTask {
     return "Batch of " + totalSteps + " steps";
   }
 
+  /**
+   * Data files and feature lists created by the last and the previous step. The items created by the
+   * last step are the input of the next step.
+   */
+  private static class BatchItems {
+
+    final List<RawDataFile> createdDataFiles = Collections.synchronizedList(new ArrayList<>()),
+        previousCreatedDataFiles = new ArrayList<>();
+    final List<PeakList> createdPeakLists = Collections.synchronizedList(new ArrayList<>()),
+        previousCreatedPeakLists = new ArrayList<>();
+
+    /**
+     * Moves the created items to the previous items
+     */
+    void nextStep() {
+      synchronized (createdDataFiles) {
+        previousCreatedDataFiles.clear();
+        previousCreatedDataFiles.addAll(createdDataFiles);
+        createdDataFiles.clear();
+      }
+      synchronized (createdPeakLists) {
+        previousCreatedPeakLists.clear();
+        previousCreatedPeakLists.addAll(createdPeakLists);
+        createdPeakLists.clear();
+      }
+    }
+  }
+
+  /**
+   * One raw data file in the pipelined per-file steps of the batch, with the items created for this
+   * file
+   */
+  private class FileUnit extends BatchItems {
+
+    private final File fileName;
+    private int step = 0;
+    private List<Task> tasks = Collections.emptyList();
+    private boolean tasksNotify = true;
+
+    // All data files of this file, the imported file and the files created by the later steps
+    private final Set<RawDataFile> dataFiles = new HashSet<>();
+
+    FileUnit(File fileName) {
+      this.fileName = fileName;
+    }
+
+    /**
+     * Starts the current step for this file only. Errors are set to the batch.
+     */
+    void start(int pipelinedSteps) {
+      logger.info("Starting step # " + (step + 1) + " of " + pipelinedSteps + " for " + fileName);
+
+      MZmineProcessingStep<?> currentStep = queue.get(step);
+      MZmineProcessingModule method = (MZmineProcessingModule) currentStep.getModule();
+      ParameterSet batchStepParameters = currentStep.getParameterSet().cloneParameterSet();
+      if (step == 0)
+        batchStepParameters.getParameter(RawDataImportParameters.fileNames)
+            .setValue(new File[] {fileName});
+
+      List<Task> stepTasks = startStep(method, batchStepParameters, this);
+      if (stepTasks == null) {
+        tasks = Collections.emptyList();
+        return;
+      }
+
+      tasks = new ArrayList<>(stepTasks.size());
+      for (Task task : stepTasks)
+        tasks.add(new FileUnitTask(this, task));
+      tasksNotify = listenToTasks(stepTasks);
+      MZmineCore.getTaskController().addTasks(tasks.toArray(new Task[0]));
+    }
+
+    void cancelTasks() {
+      for (Task task : tasks)
+        task.cancel();
+    }
+
+    /**
+     * Takes the items which were added to the project during the current step and belong to this
+     * file, after the tasks of the step are finished
+     */
+    void takeAddedItems() {
+      synchronized (addedItems) {
+        for (Iterator<AddedItem> it = addedItems.iterator(); it.hasNext();) {
+          AddedItem added = it.next();
+          if (!added.belongsTo(this))
+            continue;
+          it.remove();
+          if (added.item instanceof RawDataFile) {
+            createdDataFiles.add((RawDataFile) added.item);
+            dataFiles.add((RawDataFile) added.item);
+          } else {
+            createdPeakLists.add((PeakList) added.item);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A data file or feature list which was added to the project while the files are pipelined. Must
+   * be created while holding the addedItems lock.
+   */
+  private class AddedItem {
+
+    private final Object item;
+
+    // The file of the task which added the item, null if it was added by another thread
+    private final FileUnit addedBy;
+
+    // The files which were processed when the item was added
+    private final List<FileUnit> running;
+
+    AddedItem(Object item) {
+      this.item = item;
+      this.addedBy = currentFileUnit.get();
+      this.running = new ArrayList<>(runningUnits);
+    }
+
+    /**
+     * Items added by the tasks of a file belong to this file. Items which were added by another
+     * thread, e.g. when a module adds its results on the event dispatch thread, are assigned by
+     * their data: a feature list belongs to the file if all its raw data files belong to it, any
+     * other item only if the file was the only one processed when the item was added.
+     */
+    boolean belongsTo(FileUnit unit) {
+      if (addedBy != null)
+        return addedBy == unit;
+      if (item instanceof PeakList) {
+        RawDataFile peakListFiles[] = ((PeakList) item).getRawDataFiles();
+        if (peakListFiles.length > 0)
+          return unit.dataFiles.containsAll(Arrays.asList(peakListFiles));
+      }
+      return running.size() == 1 && running.get(0) == unit;
+    }
+  }
+
+  /**
+   * Runs a task of a pipelined raw data file. Data files and feature lists which are added to the
+   * project by this task are assigned to this file.
+   */
+  private class FileUnitTask implements Task {
+
+    private final FileUnit unit;
+    private final Task task;
+
+    FileUnitTask(FileUnit unit, Task task) {
+      this.unit = unit;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      currentFileUnit.set(unit);
+      try {
+        task.run();
+      } finally {
+        currentFileUnit.remove();
+      }
+    }
+
+    @Override
+    public String getTaskDescription() {
+      return task.getTaskDescription();
+    }
+
+    @Override
+    public double getFinishedPercentage() {
+      return task.getFinishedPercentage();
+    }
+
+    @Override
+    public TaskStatus getStatus() {
+      return task.getStatus();
+    }
+
+    @Override
+    public String getErrorMessage() {
+      return task.getErrorMessage();
+    }
+
+    @Override
+    public TaskPriority getTaskPriority() {
+      return task.getTaskPriority();
+    }
+
+    @Override
+    public void cancel() {
+      task.cancel();
+    }
+  }
+
 }
@@ -27,19 +27,18 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Vector;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.ChromatogramDataPoints;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.scans.ScanUtils;
@@ -55,9 +54,12 @@ public class ADAPChromatogram implements Feature {
   // Data file of this chromatogram
   private RawDataFile dataFile;
 
-  // Data points of the chromatogram (map of scan number -> m/z peak)
-  // private Hashtable<Integer, DataPoint> dataPointsMap;
-  private HashMap<Integer, DataPoint> dataPointsMap;
+  // Data points of the chromatogram (scan number -> m/z peak)
+  private ChromatogramDataPoints dataPoints;
+
+  // Scans which have a data point while the chromatogram is being built. The builder adds the scans
+  // out of order, so the data points are appended and sorted once in finishChromatogram().
+  private IntOpenHashSet dataPointScans;
 
   // Chromatogram m/z, RT, height, area. The mz value will be the highest points mz value
   private double mz, rt, height, area, weightedMz;
@@ -73,9 +75,7 @@ public class ADAPChromatogram implements Feature {
   private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange, rawDataPointsRTRange;
 
   // A set of scan numbers of a segment which is currently being connected
-  private Vector<Integer> buildingSegment;
-  // A full list of all the scan numbers as points get added
-  private List<Integer> chromScanList;
+  private IntArrayList buildingSegment;
 
   // Keep track of last added data point
   private DataPoint lastMzPeak;
@@ -111,9 +111,9 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-    dataPointsMap = new HashMap<Integer, DataPoint>();
-    buildingSegment = new Vector<Integer>();
-    chromScanList = new ArrayList<Integer>();
+    dataPoints = new ChromatogramDataPoints();
+    dataPointScans = new IntOpenHashSet();
+    buildingSegment = new IntArrayList();
   }
 
   public double getHighPointMZ() {
@@ -130,10 +130,11 @@ public class ADAPChromatogram implements Feature {
     List intensityList = new ArrayList();
 
     for (int curScanNum = 0; curScanNum < scanNumbers.length; curScanNum++) {
-      if (dataPointsMap.get(curScanNum) == null) {
+      int index = dataPoints.indexOf(curScanNum);
+      if (index < 0) {
         intensityList.add(0.0);
       } else {
-        intensityList.add(dataPointsMap.get(curScanNum).getIntensity());
+        intensityList.add(dataPoints.getIntensity(index));
       }
     }
 
@@ -143,33 +144,27 @@ public class ADAPChromatogram implements Feature {
 
 
   public int findNumberOfContinuousPointsAboveNoise(double noise) {
-    // sort the array containing all of the scan numbers of the point added
-    // loop over the sorted array now.
+    // loop over the data points, which are sorted by scan number.
     // if you find a point with intensity higher than noise start the count
     // if the next scan contains a point higher than the noise update the count
     // otherwise start it oer when you hit a sufficiently high point.
     // keep track of the largest count which will be returned.
-    Collections.sort(chromScanList);
-
-
     int bestCount = 0;
     int curCount = 0;
     int lastScanNum = 0;
-    int scanListLength = chromScanList.size();
+    int scanListLength = dataPoints.size();
 
     int curScanNum;
-    DataPoint curDataPoint;
 
     for (int i = 1; i < scanListLength; i++) {
 
 
 
-      curScanNum = chromScanList.get(i);
-      curDataPoint = dataPointsMap.get(curScanNum);
+      curScanNum = dataPoints.getScanNumber(i);
 
-      if (curDataPoint.getIntensity() > noise) {
+      if (dataPoints.getIntensity(i) > noise) {
 
-        lastScanNum = chromScanList.get(i - 1);
+        lastScanNum = dataPoints.getScanNumber(i - 1);
         int lastScanNumsActIndex = Arrays.binarySearch(scanNumbers, lastScanNum);
         int seqNextScanShouldBe = scanNumbers[lastScanNumsActIndex + 1];
 
@@ -212,12 +207,13 @@ public class ADAPChromatogram implements Feature {
     // System.out.println("---------------- Adding MZ value to Chromatogram ----------------");
 
     // If we already have a mzvalue for the scan number then we need to add the intensities
-    // together before putting it into the dataPointsMap, otherwise the chromatogram is only
+    // together before putting it into the dataPoints, otherwise the chromatogram is only
     // representing the intesities of the llast added point for that scan.
     //
     // For now just don't add the point if we have it already. The highest point will be the
     // first one added
-    if (dataPointsMap.containsKey(scanNumber)) {
+    if ((dataPointScans != null) ? !dataPointScans.add(scanNumber)
+        : dataPoints.contains(scanNumber)) {
       tmp_see_same_scan_count += 1;
       return;
 
@@ -225,13 +221,15 @@ public class ADAPChromatogram implements Feature {
 
 
 
-    dataPointsMap.put(scanNumber, mzValue);
+    if (dataPointScans != null)
+      dataPoints.append(scanNumber, mzValue.getMZ(), mzValue.getIntensity());
+    else
+      dataPoints.put(scanNumber, mzValue);
     lastMzPeak = mzValue;
     mzSum += mzValue.getMZ();
     mzN++;
     mz = mzSum / mzN;
     buildingSegment.add(scanNumber);
-    chromScanList.add(scanNumber);
 
     curIntensity = mzValue.getIntensity();
 
@@ -245,7 +243,22 @@ public class ADAPChromatogram implements Feature {
 
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    return dataPointsMap.get(scanNumber);
+    return dataPoints.getDataPoint(scanNumber);
+  }
+
+  @Override
+  public double getDataPointMZ(int scanNumber) {
+    return dataPoints.getMZOfScan(scanNumber);
+  }
+
+  @Override
+  public double getDataPointIntensity(int scanNumber) {
+    return dataPoints.getIntensityOfScan(scanNumber);
+  }
+
+  @Override
+  public boolean hasDataPoint(int scanNumber) {
+    return dataPoints.contains(scanNumber);
   }
 
   /**
@@ -353,7 +366,6 @@ public class ADAPChromatogram implements Feature {
 
   @Override
   public void outputChromToFile() {
-    // int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
     int allScanNumbers[] = getScanNumbers();
     Arrays.sort(allScanNumbers);
     try {
@@ -410,47 +422,41 @@ public class ADAPChromatogram implements Feature {
 
   public void finishChromatogram() {
 
-    int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-    Arrays.sort(allScanNumbers);
+    dataPoints.sort();
+    final int numOfDataPoints = dataPoints.size();
 
     mz = highPointMZ;
 
     // Update raw data point ranges, height, rt and representative scan
     height = Double.MIN_VALUE;
-    for (int i = 0; i < allScanNumbers.length; i++) {
-
-      DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
+    for (int i = 0; i < numOfDataPoints; i++) {
 
-      // Replace the MzPeak instance with an instance of SimpleDataPoint,
-      // to reduce the memory usage. After we finish this Chromatogram, we
-      // don't need the additional data provided by the MzPeak
-
-      dataPointsMap.put(allScanNumbers[i], mzPeak);
+      final double mzValue = dataPoints.getMZ(i), intensity = dataPoints.getIntensity(i);
 
       if (i == 0) {
-        rawDataPointsIntensityRange = Range.singleton(mzPeak.getIntensity());
-        rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+        rawDataPointsIntensityRange = Range.singleton(intensity);
+        rawDataPointsMZRange = Range.singleton(mzValue);
       } else {
-        rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(mzPeak.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeak.getMZ()));
+        rawDataPointsIntensityRange = rawDataPointsIntensityRange.span(Range.singleton(intensity));
+        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzValue));
       }
 
-      if (height < mzPeak.getIntensity()) {
-        height = mzPeak.getIntensity();
-        rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
-        representativeScan = allScanNumbers[i];
+      if (height < intensity) {
+        height = intensity;
+        rt = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime();
+        representativeScan = dataPoints.getScanNumber(i);
       }
     }
 
     // Update area
     area = 0;
-    for (int i = 1; i < allScanNumbers.length; i++) {
+    for (int i = 1; i < numOfDataPoints; i++) {
       // For area calculation, we use retention time in seconds
-      double previousRT = dataFile.getScan(allScanNumbers[i - 1]).getRetentionTime() * 60d;
-      double currentRT = dataFile.getScan(allScanNumbers[i]).getRetentionTime() * 60d;
-      double previousHeight = dataPointsMap.get(allScanNumbers[i - 1]).getIntensity();
-      double currentHeight = dataPointsMap.get(allScanNumbers[i]).getIntensity();
+      double previousRT =
+          dataFile.getScan(dataPoints.getScanNumber(i - 1)).getRetentionTime() * 60d;
+      double currentRT = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime() * 60d;
+      double previousHeight = dataPoints.getIntensity(i - 1);
+      double currentHeight = dataPoints.getIntensity(i);
       area += (currentRT - previousRT) * (currentHeight + previousHeight) / 2;
     }
 
@@ -470,13 +476,12 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = null;
 
-    for (int scanNum : allScanNumbers) {
-      double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = getDataPoint(scanNum);
-
-      if ((dp == null) || (dp.getIntensity() == 0.0))
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (dataPoints.getIntensity(i) == 0.0)
         continue;
 
+      double scanRt = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime();
+
       if (rawDataPointsRTRange == null)
         rawDataPointsRTRange = Range.singleton(scanRt);
       else
@@ -486,14 +491,16 @@ public class ADAPChromatogram implements Feature {
     // Discard the fields we don't need anymore
     buildingSegment = null;
     lastMzPeak = null;
+    dataPointScans = null;
+    dataPoints.trimToSize();
 
   }
 
   public double getBuildingSegmentLength() {
     if (buildingSegment.size() < 2)
       return 0;
-    int firstScan = buildingSegment.firstElement();
-    int lastScan = buildingSegment.lastElement();
+    int firstScan = buildingSegment.getInt(0);
+    int lastScan = buildingSegment.getInt(buildingSegment.size() - 1);
     double firstRT = dataFile.getScan(firstScan).getRetentionTime();
     double lastRT = dataFile.getScan(lastScan).getRetentionTime();
     return (lastRT - firstRT);
@@ -504,8 +511,11 @@ public class ADAPChromatogram implements Feature {
   }
 
   public void removeBuildingSegment() {
-    for (int scanNumber : buildingSegment)
-      dataPointsMap.remove(scanNumber);
+    for (int i = buildingSegment.size() - 1; i >= 0; i--) {
+      dataPoints.remove(buildingSegment.getInt(i));
+      if (dataPointScans != null)
+        dataPointScans.remove(buildingSegment.getInt(i));
+    }
     buildingSegment.clear();
   }
 
@@ -515,8 +525,10 @@ public class ADAPChromatogram implements Feature {
   }
 
   public void addDataPointsFromChromatogram(ADAPChromatogram ch) {
-    for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-      addMzPeak(dp.getKey(), dp.getValue());
+    ch.dataPoints.sort();
+    for (int i = 0; i < ch.dataPoints.size(); i++) {
+      addMzPeak(ch.dataPoints.getScanNumber(i),
+          new SimpleDataPoint(ch.dataPoints.getMZ(i), ch.dataPoints.getIntensity(i)));
     }
   }
 
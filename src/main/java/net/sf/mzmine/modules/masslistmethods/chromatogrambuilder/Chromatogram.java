@@ -18,18 +18,16 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
-import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Map.Entry;
-import java.util.Vector;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.ChromatogramDataPoints;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.MathUtils;
@@ -45,8 +43,8 @@ public class Chromatogram implements Feature {
   // Data file of this chromatogram
   private RawDataFile dataFile;
 
-  // Data points of the chromatogram (map of scan number -> m/z peak)
-  private Hashtable<Integer, DataPoint> dataPointsMap;
+  // Data points of the chromatogram (scan number -> m/z peak)
+  private ChromatogramDataPoints dataPoints;
 
   // Chromatogram m/z, RT, height, area
   private double mz, rt, height, area;
@@ -62,7 +60,7 @@ public class Chromatogram implements Feature {
   private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange, rawDataPointsRTRange;
 
   // A set of scan numbers of a segment which is currently being connected
-  private Vector<Integer> buildingSegment;
+  private IntArrayList buildingSegment;
 
   // Keep track of last added data point
   private DataPoint lastMzPeak;
@@ -96,8 +94,8 @@ public class Chromatogram implements Feature {
 
     rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-    dataPointsMap = new Hashtable<Integer, DataPoint>();
-    buildingSegment = new Vector<Integer>(128);
+    dataPoints = new ChromatogramDataPoints();
+    buildingSegment = new IntArrayList(128);
   }
 
   /**
@@ -107,7 +105,7 @@ public class Chromatogram implements Feature {
    * @param mzValue
    */
   public void addMzPeak(int scanNumber, DataPoint mzValue) {
-    dataPointsMap.put(scanNumber, mzValue);
+    dataPoints.put(scanNumber, mzValue);
     lastMzPeak = mzValue;
     mzSum += mzValue.getMZ();
     mzN++;
@@ -118,7 +116,22 @@ public class Chromatogram implements Feature {
 
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    return dataPointsMap.get(scanNumber);
+    return dataPoints.getDataPoint(scanNumber);
+  }
+
+  @Override
+  public double getDataPointMZ(int scanNumber) {
+    return dataPoints.getMZOfScan(scanNumber);
+  }
+
+  @Override
+  public double getDataPointIntensity(int scanNumber) {
+    return dataPoints.getIntensityOfScan(scanNumber);
+  }
+
+  @Override
+  public boolean hasDataPoint(int scanNumber) {
+    return dataPoints.contains(scanNumber);
   }
 
   /**
@@ -218,52 +231,45 @@ public class Chromatogram implements Feature {
 
   public void finishChromatogram() {
 
-    int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-    Arrays.sort(allScanNumbers);
+    final int numOfDataPoints = dataPoints.size();
 
     // Calculate median m/z
-    double allMzValues[] = new double[allScanNumbers.length];
-    for (int i = 0; i < allScanNumbers.length; i++) {
-      allMzValues[i] = dataPointsMap.get(allScanNumbers[i]).getMZ();
+    double allMzValues[] = new double[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++) {
+      allMzValues[i] = dataPoints.getMZ(i);
     }
     mz = MathUtils.calcQuantile(allMzValues, 0.5f);
 
     // Update raw data point ranges, height, rt and representative scan
     height = Double.MIN_VALUE;
-    for (int i = 0; i < allScanNumbers.length; i++) {
-
-      DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
+    for (int i = 0; i < numOfDataPoints; i++) {
 
-      // Replace the MzPeak instance with an instance of SimpleDataPoint,
-      // to reduce the memory usage. After we finish this Chromatogram, we
-      // don't need the additional data provided by the MzPeak
-
-      dataPointsMap.put(allScanNumbers[i], mzPeak);
+      final double mzValue = dataPoints.getMZ(i), intensity = dataPoints.getIntensity(i);
 
       if (i == 0) {
-        rawDataPointsIntensityRange = Range.singleton(mzPeak.getIntensity());
-        rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+        rawDataPointsIntensityRange = Range.singleton(intensity);
+        rawDataPointsMZRange = Range.singleton(mzValue);
       } else {
-        rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(mzPeak.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeak.getMZ()));
+        rawDataPointsIntensityRange = rawDataPointsIntensityRange.span(Range.singleton(intensity));
+        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzValue));
       }
 
-      if (height < mzPeak.getIntensity()) {
-        height = mzPeak.getIntensity();
-        rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
-        representativeScan = allScanNumbers[i];
+      if (height < intensity) {
+        height = intensity;
+        rt = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime();
+        representativeScan = dataPoints.getScanNumber(i);
       }
     }
 
     // Update area
     area = 0;
-    for (int i = 1; i < allScanNumbers.length; i++) {
+    for (int i = 1; i < numOfDataPoints; i++) {
       // For area calculation, we use retention time in seconds
-      double previousRT = dataFile.getScan(allScanNumbers[i - 1]).getRetentionTime() * 60d;
-      double currentRT = dataFile.getScan(allScanNumbers[i]).getRetentionTime() * 60d;
-      double previousHeight = dataPointsMap.get(allScanNumbers[i - 1]).getIntensity();
-      double currentHeight = dataPointsMap.get(allScanNumbers[i]).getIntensity();
+      double previousRT =
+          dataFile.getScan(dataPoints.getScanNumber(i - 1)).getRetentionTime() * 60d;
+      double currentRT = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime() * 60d;
+      double previousHeight = dataPoints.getIntensity(i - 1);
+      double currentHeight = dataPoints.getIntensity(i);
       area += (currentRT - previousRT) * (currentHeight + previousHeight) / 2;
     }
 
@@ -280,13 +286,12 @@ public class Chromatogram implements Feature {
 
     rawDataPointsRTRange = null;
 
-    for (int scanNum : allScanNumbers) {
-      double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = getDataPoint(scanNum);
-
-      if ((dp == null) || (dp.getIntensity() == 0.0))
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (dataPoints.getIntensity(i) == 0.0)
         continue;
 
+      double scanRt = dataFile.getScan(dataPoints.getScanNumber(i)).getRetentionTime();
+
       if (rawDataPointsRTRange == null)
         rawDataPointsRTRange = Range.singleton(scanRt);
       else
@@ -296,14 +301,15 @@ public class Chromatogram implements Feature {
     // Discard the fields we don't need anymore
     buildingSegment = null;
     lastMzPeak = null;
+    dataPoints.trimToSize();
 
   }
 
   public double getBuildingSegmentLength() {
     if (buildingSegment.size() < 2)
       return 0;
-    int firstScan = buildingSegment.firstElement();
-    int lastScan = buildingSegment.lastElement();
+    int firstScan = buildingSegment.getInt(0);
+    int lastScan = buildingSegment.getInt(buildingSegment.size() - 1);
     double firstRT = dataFile.getScan(firstScan).getRetentionTime();
     double lastRT = dataFile.getScan(lastScan).getRetentionTime();
     return (lastRT - firstRT);
@@ -314,8 +320,9 @@ public class Chromatogram implements Feature {
   }
 
   public void removeBuildingSegment() {
-    for (int scanNumber : buildingSegment)
-      dataPointsMap.remove(scanNumber);
+    // The building segment is usually at the end of the data points, so remove from the last one
+    for (int i = buildingSegment.size() - 1; i >= 0; i--)
+      dataPoints.remove(buildingSegment.getInt(i));
     buildingSegment.clear();
   }
 
@@ -325,8 +332,9 @@ public class Chromatogram implements Feature {
   }
 
   public void addDataPointsFromChromatogram(Chromatogram ch) {
-    for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-      addMzPeak(dp.getKey(), dp.getValue());
+    for (int i = 0; i < ch.dataPoints.size(); i++) {
+      addMzPeak(ch.dataPoints.getScanNumber(i),
+          new SimpleDataPoint(ch.dataPoints.getMZ(i), ch.dataPoints.getIntensity(i)));
     }
   }
 
@@ -21,7 +21,6 @@ package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MassList;
@@ -139,6 +138,9 @@ public class ChromatogramBuilderTask extends AbstractTask {
     HighestDataPointConnector massConnector = new HighestDataPointConnector(dataFile,
         allScanNumbers, minimumTimeSpan, minimumHeight, mzTolerance);
 
+    // Buffers for the m/z and intensity values of each mass list, reused across the scans
+    double mzBuffer[] = new double[0], intensityBuffer[] = new double[0];
+
     for (Scan scan : scans) {
 
       if (isCanceled())
@@ -152,16 +154,14 @@ public class ChromatogramBuilderTask extends AbstractTask {
         return;
       }
 
-      DataPoint mzValues[] = massList.getDataPoints();
-
-      if (mzValues == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
-            + scan.getScanNumber() + " of file " + dataFile);
-        return;
+      final int numOfDataPoints = massList.getNumberOfDataPoints();
+      if (mzBuffer.length < numOfDataPoints) {
+        mzBuffer = new double[numOfDataPoints];
+        intensityBuffer = new double[numOfDataPoints];
       }
+      massList.getDataPoints(mzBuffer, intensityBuffer);
 
-      massConnector.addScan(scan.getScanNumber(), mzValues);
+      massConnector.addScan(scan.getScanNumber(), mzBuffer, intensityBuffer, numOfDataPoints);
       processedScans++;
     }
 
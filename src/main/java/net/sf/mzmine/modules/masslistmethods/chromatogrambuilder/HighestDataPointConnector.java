@@ -18,15 +18,13 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
-import com.google.common.collect.Range;
+import java.util.List;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.util.DataPointSorter;
 import net.sf.mzmine.util.SortingDirection;
@@ -39,8 +37,8 @@ public class HighestDataPointConnector {
   private final RawDataFile dataFile;
   private final int allScanNumbers[];
 
-  // Mapping of last data point m/z --> chromatogram
-  private Set<Chromatogram> buildingChromatograms;
+  // Chromatograms which are being built, in the order of their creation
+  private List<Chromatogram> buildingChromatograms;
 
   public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
       double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
@@ -51,73 +49,131 @@ public class HighestDataPointConnector {
     this.dataFile = dataFile;
     this.allScanNumbers = allScanNumbers;
 
-    // We use LinkedHashSet to maintain a reproducible ordering. If we use
-    // plain HashSet, the resulting feature list row IDs will have different
-    // order every time the method is invoked.
-    buildingChromatograms = new LinkedHashSet<Chromatogram>();
+    // We use a list to maintain a reproducible ordering. If we use plain
+    // HashSet, the resulting feature list row IDs will have different order
+    // every time the method is invoked.
+    buildingChromatograms = new ArrayList<Chromatogram>();
 
   }
 
-  public void addScan(int scanNumber, DataPoint mzValues[]) {
+  /**
+   * Connects the m/z peaks of one scan, given as m/z and intensity arrays, to the chromatograms.
+   * DataPoint instances are only created for the m/z peaks that are added to a chromatogram.
+   */
+  public void addScan(int scanNumber, double mzValues[], double intensityValues[],
+      int numOfDataPoints) {
 
     // Sort m/z peaks by descending intensity
-    Arrays.sort(mzValues,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
-
-    // Set of already connected chromatograms in each iteration
-    Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+    int sortedIndices[] = DataPointSorter.sortIndices(mzValues, intensityValues, numOfDataPoints,
+        SortingProperty.Intensity, SortingDirection.Descending);
+
+    // Building chromatograms sorted by the m/z of their last data point. The position in
+    // buildingChromatograms decides between chromatograms of the same intensity.
+    final Chromatogram building[] = buildingChromatograms.toArray(new Chromatogram[0]);
+    final double lastMzValues[] = new double[building.length];
+    final double lastIntensityValues[] = new double[building.length];
+    for (int i = 0; i < building.length; i++) {
+      DataPoint lastMzPeak = building[i].getLastMzPeak();
+      lastMzValues[i] = lastMzPeak.getMZ();
+      lastIntensityValues[i] = lastMzPeak.getIntensity();
+    }
+    final int chromatogramsByMz[] = DataPointSorter.sortIndices(lastMzValues, lastIntensityValues,
+        building.length, SortingProperty.MZ, SortingDirection.Ascending);
+    final double sortedLastMzValues[] = new double[building.length];
+    for (int i = 0; i < building.length; i++)
+      sortedLastMzValues[i] = lastMzValues[chromatogramsByMz[i]];
+
+    // m/z peaks of this scan sorted by m/z. A building chromatogram which gets connected takes
+    // the m/z peak as its last data point, so from then on it is found at the position of that
+    // m/z peak.
+    final int peaksByMz[] = DataPointSorter.sortIndices(mzValues, intensityValues,
+        numOfDataPoints, SortingProperty.MZ, SortingDirection.Ascending);
+    final double sortedPeakMzValues[] = new double[numOfDataPoints];
+    final int peakPositions[] = new int[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++) {
+      sortedPeakMzValues[i] = mzValues[peaksByMz[i]];
+      peakPositions[peaksByMz[i]] = i;
+    }
+    final int connectedChromatogramAt[] = new int[numOfDataPoints];
+    Arrays.fill(connectedChromatogramAt, -1);
+    final boolean connected[] = new boolean[building.length];
 
-    // TODO: these two nested cycles should be optimized for speed
-    for (DataPoint mzPeak : mzValues) {
+    // List of already connected chromatograms in each iteration
+    List<Chromatogram> connectedChromatograms = new ArrayList<Chromatogram>();
 
-      // Search for best chromatogram, which has highest last data point
-      Chromatogram bestChromatogram = null;
+    for (int index : sortedIndices) {
 
-      for (Chromatogram testChrom : buildingChromatograms) {
+      final double mz = mzValues[index];
+      final double searchWindow = getSearchWindow(mz);
+      final double lowMz = mz - searchWindow, highMz = mz + searchWindow;
 
-        DataPoint lastMzPeak = testChrom.getLastMzPeak();
-        Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
-        if (toleranceRange.contains(mzPeak.getMZ())) {
-          if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-              .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
-            bestChromatogram = testChrom;
-          }
+      // Search for best chromatogram, which has highest last data point
+      int best = -1;
+      double bestIntensity = 0;
+
+      // Chromatograms which have not been connected in this scan
+      for (int i = lowerBound(sortedLastMzValues, building.length, lowMz); (i < building.length)
+          && (sortedLastMzValues[i] <= highMz); i++) {
+        final int chrom = chromatogramsByMz[i];
+        if (connected[chrom] || !isWithinTolerance(lastMzValues[chrom], mz))
+          continue;
+        if (isBetterCandidate(chrom, lastIntensityValues[chrom], best, bestIntensity)) {
+          best = chrom;
+          bestIntensity = lastIntensityValues[chrom];
         }
+      }
 
+      // Chromatograms which have been connected to an m/z peak of this scan
+      for (int i = lowerBound(sortedPeakMzValues, numOfDataPoints, lowMz); (i < numOfDataPoints)
+          && (sortedPeakMzValues[i] <= highMz); i++) {
+        final int chrom = connectedChromatogramAt[i];
+        if ((chrom < 0) || !isWithinTolerance(sortedPeakMzValues[i], mz))
+          continue;
+        final double intensity = intensityValues[peaksByMz[i]];
+        if (isBetterCandidate(chrom, intensity, best, bestIntensity)) {
+          best = chrom;
+          bestIntensity = intensity;
+        }
       }
 
       // If we found best chromatogram, check if it is already connected.
       // In such case, we may discard this mass and continue. If we
       // haven't found a chromatogram, we may create a new one.
-      if (bestChromatogram != null) {
-        if (connectedChromatograms.contains(bestChromatogram)) {
+      final Chromatogram bestChromatogram;
+      if (best >= 0) {
+        if (connected[best]) {
           continue;
         }
+        connected[best] = true;
+        connectedChromatogramAt[peakPositions[index]] = best;
+        bestChromatogram = building[best];
       } else {
         bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
       }
 
       // Add this mzPeak to the chromatogram
-      bestChromatogram.addMzPeak(scanNumber, mzPeak);
+      bestChromatogram.addMzPeak(scanNumber, new SimpleDataPoint(mz, intensityValues[index]));
 
-      // Move the chromatogram to the set of connected chromatograms
+      // Move the chromatogram to the list of connected chromatograms
       connectedChromatograms.add(bestChromatogram);
 
     }
 
     // Process those chromatograms which were not connected to any m/z peak
-    for (Chromatogram testChrom : buildingChromatograms) {
+    for (int i = 0; i < building.length; i++) {
 
       // Skip those which were connected
-      if (connectedChromatograms.contains(testChrom)) {
+      if (connected[i]) {
         continue;
       }
 
+      Chromatogram testChrom = building[i];
+
       // Check if we just finished a long-enough segment
       if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
         testChrom.commitBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -126,7 +182,7 @@ public class HighestDataPointConnector {
       if (testChrom.getNumberOfCommittedSegments() > 0) {
         testChrom.removeBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -139,22 +195,65 @@ public class HighestDataPointConnector {
 
   }
 
+  /**
+   * Returns true if a chromatogram matching the m/z peak should replace the best chromatogram
+   * found so far. Same as iterating buildingChromatograms in order and keeping the first
+   * chromatogram with the highest last data point.
+   */
+  private static boolean isBetterCandidate(int chrom, double intensity, int best,
+      double bestIntensity) {
+    return (best < 0) || (intensity > bestIntensity)
+        || ((intensity == bestIntensity) && (chrom < best));
+  }
+
+  /**
+   * Same test as mzTolerance.getToleranceRange(lastMz).contains(mz)
+   */
+  private boolean isWithinTolerance(double lastMz, double mz) {
+    final double absoluteTolerance = mzTolerance.getMzToleranceForMass(lastMz);
+    return (Double.compare(lastMz - absoluteTolerance, mz) <= 0)
+        && (Double.compare(mz, lastMz + absoluteTolerance) <= 0);
+  }
+
+  /**
+   * Returns the half-width of the m/z window which contains the last m/z of every chromatogram
+   * whose tolerance range may include given m/z. The tolerance grows with the m/z, so twice the
+   * tolerance at given m/z is enough unless the relative tolerance exceeds 50%.
+   */
+  private double getSearchWindow(double mz) {
+    if (mzTolerance.getPpmTolerance() >= 500000.0)
+      return Double.POSITIVE_INFINITY;
+    return 2 * mzTolerance.getMzToleranceForMass(mz);
+  }
+
+  /**
+   * Returns the index of the first of given sorted values which is not below given value.
+   */
+  private static int lowerBound(double sortedValues[], int length, double value) {
+    int low = 0, high = length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sortedValues[mid] < value)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
   public Chromatogram[] finishChromatograms() {
 
     // Iterate through current chromatograms and remove those which do not
     // contain any committed segment nor long-enough building segment
 
-    Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
-    while (chromIterator.hasNext()) {
-
-      Chromatogram chromatogram = chromIterator.next();
+    List<Chromatogram> finishedChromatograms = new ArrayList<Chromatogram>();
+    for (Chromatogram chromatogram : buildingChromatograms) {
 
       if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
         chromatogram.commitBuildingSegment();
         chromatogram.finishChromatogram();
       } else {
         if (chromatogram.getNumberOfCommittedSegments() == 0) {
-          chromIterator.remove();
           continue;
         } else {
           chromatogram.removeBuildingSegment();
@@ -164,12 +263,14 @@ public class HighestDataPointConnector {
 
       // Remove chromatograms smaller then minimum height
       if (chromatogram.getHeight() < minimumHeight)
-        chromIterator.remove();
+        continue;
+
+      finishedChromatograms.add(chromatogram);
 
     }
 
     // All remaining chromatograms are good, so we can return them
-    Chromatogram[] chromatograms = buildingChromatograms.toArray(new Chromatogram[0]);
+    Chromatogram[] chromatograms = finishedChromatograms.toArray(new Chromatogram[0]);
     return chromatograms;
   }
 
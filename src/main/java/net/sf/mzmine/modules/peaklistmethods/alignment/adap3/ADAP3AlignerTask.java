@@ -263,10 +263,9 @@ public class ADAP3AlignerTask extends AbstractTask {
         NavigableMap<Double, Double> chromatogram = new TreeMap<>();
 
         for (final int scan : peak.getScanNumbers()) {
-            final DataPoint dataPoint = peak.getDataPoint(scan);
-            if (dataPoint != null)
+            if (peak.hasDataPoint(scan))
                 chromatogram.put(dataFile.getScan(scan).getRetentionTime(),
-                        dataPoint.getIntensity());
+                        peak.getDataPointIntensity(scan));
         }
 
         return new Component(null,
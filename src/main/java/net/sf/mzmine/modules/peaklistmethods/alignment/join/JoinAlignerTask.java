@@ -18,13 +18,21 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import com.google.common.collect.Range;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -42,6 +50,8 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
+import net.sf.mzmine.util.WorkerPoolUtils;
+import net.sf.mzmine.util.scans.DataPointArrays;
 import net.sf.mzmine.util.scans.similarity.SpectralSimilarity;
 import net.sf.mzmine.util.scans.similarity.SpectralSimilarityFunction;
 
@@ -49,11 +59,15 @@ public class JoinAlignerTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // Number of rows scored by one job on the shared worker threads
+  private static final int ROWS_PER_BLOCK = 100;
+
   private final MZmineProject project;
   private PeakList peakLists[], alignedPeakList;
 
   // Processed rows counter
-  private int processedRows, totalRows;
+  private final AtomicInteger processedRows = new AtomicInteger();
+  private int totalRows;
 
   private String peakListName;
   private MZTolerance mzTolerance;
@@ -129,7 +143,7 @@ public class JoinAlignerTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0f;
-    return (double) processedRows / (double) totalRows;
+    return (double) processedRows.get() / (double) totalRows;
   }
 
   /**
@@ -177,102 +191,41 @@ public class JoinAlignerTask extends AbstractTask {
     // Iterate source feature lists
     for (PeakList peakList : peakLists) {
 
-      // Create a sorted set of scores matching
-      TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
       PeakListRow allRows[] = peakList.getRows();
 
-      // Calculate scores for all possible alignments of this row
-      for (PeakListRow row : allRows) {
-
-        if (isCanceled())
-          return;
-
-        // Calculate limits for a row with which the row can be aligned
-        Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
-        Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
-
-        // Get all rows of the aligned peaklist within parameter limits
-        PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-        // Calculate scores and store them
-        for (PeakListRow candidate : candidateRows) {
-
-          if (sameChargeRequired) {
-            if (!PeakUtils.compareChargeState(row, candidate))
-              continue;
-          }
-
-          if (sameIDRequired) {
-            if (!PeakUtils.compareIdentities(row, candidate))
-              continue;
-          }
-
-          if (compareIsotopePattern) {
-            IsotopePattern ip1 = row.getBestIsotopePattern();
-            IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-            if ((ip1 != null) && (ip2 != null)) {
-              ParameterSet isotopeParams =
-                  parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
-                      .getEmbeddedParameters();
-
-              if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
-                continue;
-              }
-            }
-          }
-
-          // compare the similarity of spectra mass lists on MS1 or MS2 level
-          if (compareSpectraSimilarity) {
-            DataPoint[] rowDPs = null;
-            DataPoint[] candidateDPs = null;
-            SpectralSimilarity sim = null;
-
-            // get data points of mass list of the representative scans
-            if (msLevel == 1) {
-              rowDPs =
-                  row.getBestPeak().getRepresentativeScan().getMassList(massList).getDataPoints();
-              candidateDPs = candidate.getBestPeak().getRepresentativeScan().getMassList(massList)
-                  .getDataPoints();
-            }
-
-            // get data points of mass list of the best fragmentation scans
-            if (msLevel == 2) {
-              if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
-                rowDPs = row.getBestFragmentation().getMassList(massList).getDataPoints();
-                candidateDPs =
-                    candidate.getBestFragmentation().getMassList(massList).getDataPoints();
-              } else
-                continue;
-            }
-
-            // compare mass list data points of selected scans
-            if (rowDPs != null && candidateDPs != null) {
-
-              // calculate similarity using SimilarityFunction
-              sim = createSimilarity(rowDPs, candidateDPs);
-
-              // check if similarity is null. Similarity is not null if similarity score is >= the
-              // user set threshold
-              if (sim == null) {
-                continue;
-              }
-            }
-          }
-
-          RowVsRowScore score =
-              new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                  RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+      // Calculate scores for all possible alignments of each row in blocks on the shared worker
+      // threads. The scores are collected in row order and then added to the sorted set in the
+      // same order as by a sequential run, so equal scores are resolved the same way.
+      List<Future<List<RowVsRowScore>>> blockScores = new ArrayList<>();
+      TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
+      try {
+        for (int start = 0; start < allRows.length; start += ROWS_PER_BLOCK) {
+          final PeakListRow block[] = Arrays.copyOfRange(allRows, start,
+              Math.min(start + ROWS_PER_BLOCK, allRows.length));
+          blockScores.add(WorkerPoolUtils.getWorkerPool().submit(() -> scoreRows(block)));
+        }
 
-          scoreSet.add(score);
+        // Create a sorted set of scores matching
+        for (Future<List<RowVsRowScore>> scores : blockScores) {
+          if (isCanceled())
+            return;
+          scoreSet.addAll(scores.get());
         }
-        processedRows++;
+      } catch (InterruptedException | ExecutionException e) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Could not align feature list " + peakList + ": " + e.getCause());
+        return;
+      } finally {
+        for (Future<List<RowVsRowScore>> scores : blockScores)
+          scores.cancel(false);
       }
 
-      // Create a table of mappings for best scores
-      Hashtable<PeakListRow, PeakListRow> alignmentMapping =
-          new Hashtable<PeakListRow, PeakListRow>();
+      if (isCanceled())
+        return;
+
+      // Create a table of mappings for best scores and the set of mapped aligned rows
+      Map<PeakListRow, PeakListRow> alignmentMapping = new IdentityHashMap<>();
+      Set<PeakListRow> mappedAlignedRows = Collections.newSetFromMap(new IdentityHashMap<>());
 
       // Iterate scores by descending order
       Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
@@ -285,10 +238,11 @@ public class JoinAlignerTask extends AbstractTask {
           continue;
 
         // Check if the aligned row is already filled
-        if (alignmentMapping.containsValue(score.getAlignedRow()))
+        if (mappedAlignedRows.contains(score.getAlignedRow()))
           continue;
 
         alignmentMapping.put(score.getPeakListRow(), score.getAlignedRow());
+        mappedAlignedRows.add(score.getAlignedRow());
 
       }
 
@@ -313,7 +267,7 @@ public class JoinAlignerTask extends AbstractTask {
         // aligned row
         PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-        processedRows++;
+        processedRows.incrementAndGet();
 
       }
 
@@ -332,12 +286,123 @@ public class JoinAlignerTask extends AbstractTask {
 
   }
 
+  /**
+   * Calculates the scores of all possible alignments of a block of rows, in row order. Called on
+   * the shared worker threads.
+   * 
+   * @return the scores of these rows
+   */
+  private List<RowVsRowScore> scoreRows(PeakListRow rows[]) {
+    List<RowVsRowScore> scores = new ArrayList<>();
+    for (PeakListRow row : rows) {
+      if (isCanceled())
+        break;
+      scores.addAll(scoreRow(row));
+    }
+    return scores;
+  }
+
+  /**
+   * Calculates the scores of all possible alignments of a row with the rows of the aligned feature
+   * list. Called in parallel, the aligned feature list is not modified meanwhile.
+   * 
+   * @return the scores of this row
+   */
+  private List<RowVsRowScore> scoreRow(PeakListRow row) {
+    List<RowVsRowScore> scores = new ArrayList<>();
+
+    // Calculate limits for a row with which the row can be aligned
+    Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
+    Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
+
+    // Get all rows of the aligned peaklist within parameter limits
+    PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+    // mass list values of the row, read once for all candidates
+    DataPointArrays rowDPs = null;
+
+    // Calculate scores and store them
+    for (PeakListRow candidate : candidateRows) {
+
+      if (sameChargeRequired) {
+        if (!PeakUtils.compareChargeState(row, candidate))
+          continue;
+      }
+
+      if (sameIDRequired) {
+        if (!PeakUtils.compareIdentities(row, candidate))
+          continue;
+      }
+
+      if (compareIsotopePattern) {
+        IsotopePattern ip1 = row.getBestIsotopePattern();
+        IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+        if ((ip1 != null) && (ip2 != null)) {
+          ParameterSet isotopeParams =
+              parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
+                  .getEmbeddedParameters();
+
+          if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
+            continue;
+          }
+        }
+      }
+
+      // compare the similarity of spectra mass lists on MS1 or MS2 level
+      if (compareSpectraSimilarity) {
+        DataPointArrays candidateDPs = null;
+        SpectralSimilarity sim = null;
+
+        // get data points of mass list of the representative scans
+        if (msLevel == 1) {
+          if (rowDPs == null)
+            rowDPs = DataPointArrays
+                .of(row.getBestPeak().getRepresentativeScan().getMassList(massList));
+          candidateDPs = DataPointArrays
+              .of(candidate.getBestPeak().getRepresentativeScan().getMassList(massList));
+        }
+
+        // get data points of mass list of the best fragmentation scans
+        if (msLevel == 2) {
+          if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
+            if (rowDPs == null)
+              rowDPs = DataPointArrays.of(row.getBestFragmentation().getMassList(massList));
+            candidateDPs = DataPointArrays.of(candidate.getBestFragmentation().getMassList(massList));
+          } else
+            continue;
+        }
+
+        // compare mass list data points of selected scans
+        if (rowDPs != null && candidateDPs != null) {
+
+          // calculate similarity using SimilarityFunction
+          sim = createSimilarity(rowDPs, candidateDPs);
+
+          // check if similarity is null. Similarity is not null if similarity score is >= the
+          // user set threshold
+          if (sim == null) {
+            continue;
+          }
+        }
+      }
+
+      RowVsRowScore score =
+          new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+              RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+      scores.add(score);
+    }
+    processedRows.incrementAndGet();
+    return scores;
+  }
+
   /**
    * Uses the similarity function and filter to create similarity.
    * 
    * @return positive match with similarity or null if criteria was not met
    */
-  private SpectralSimilarity createSimilarity(DataPoint[] library, DataPoint[] query) {
+  private SpectralSimilarity createSimilarity(DataPointArrays library, DataPointArrays query) {
     return simFunction.getModule().getSimilarity(simFunction.getParameterSet(), mzTolerance, 0,
         library, query);
   }
@@ -49,7 +49,6 @@ import org.apache.commons.math.stat.regression.SimpleRegression;
 import com.google.common.collect.Range;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 
 class RansacAlignerTask extends AbstractTask {
@@ -187,10 +186,9 @@ class RansacAlignerTask extends AbstractTask {
       SortedMap<Double, Double> chromatogram = new TreeMap<>();
 
       for (int scan : peak.getScanNumbers()) {
-        DataPoint dataPoint = peak.getDataPoint(scan);
         double retTime = dataFile.getScan(scan).getRetentionTime() + retTimeDelta;
-        if (dataPoint != null)
-          chromatogram.put(retTime, dataPoint.getIntensity());
+        if (peak.hasDataPoint(scan))
+          chromatogram.put(retTime, peak.getDataPointIntensity(scan));
       }
     }
 
@@ -18,9 +18,13 @@
 
 package net.sf.mzmine.modules.peaklistmethods.filtering.duplicatefilter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -38,6 +42,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZRTRangeIndex;
 import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.SortingDirection;
@@ -160,6 +165,15 @@ public class DuplicateFilterTask extends AbstractTask {
     // filter by average mz and rt
     boolean filterByAvgRTMZ = !mode.equals(FilterMode.SINGLE_FEATURE);
 
+    // Index the sorted rows, either by their average m/z and RT or by their features in each raw
+    // data file. Only the rows found by the index can be duplicates of the first row.
+    final List<MZRTRangeIndex<PeakListRow>> indexes = new ArrayList<>();
+    if (filterByAvgRTMZ)
+      indexes.add(MZRTRangeIndex.forRows(peakListRows));
+    else
+      for (RawDataFile rawFile : rawFiles)
+        indexes.add(MZRTRangeIndex.forFeatures(peakListRows, rawFile));
+
     // Loop through all feature list rows
     processedRows = 0;
     int n = 0;
@@ -172,8 +186,18 @@ public class DuplicateFilterTask extends AbstractTask {
         // copy first row
         PeakListRow firstRow = copyRow(mainRow);
 
-        for (int secondRowIndex = firstRowIndex + 1; !isCanceled()
-            && secondRowIndex < rowCount; secondRowIndex++) {
+        // The candidates follow the first row in the sorted order. A consensus row may change its
+        // m/z and RT, the candidates of the remaining rows are then searched again.
+        int lastComparedIndex = firstRowIndex;
+        int candidates[] = findCandidates(indexes, rawFiles, firstRow, filterByAvgRTMZ,
+            mzTolerance, rtTolerance);
+
+        for (int c = 0; !isCanceled() && c < candidates.length; c++) {
+
+          final int secondRowIndex = candidates[c];
+          if (secondRowIndex <= lastComparedIndex)
+            continue;
+          lastComparedIndex = secondRowIndex;
 
           final PeakListRow secondRow = peakListRows[secondRowIndex];
           if (secondRow != null) {
@@ -193,6 +217,9 @@ public class DuplicateFilterTask extends AbstractTask {
                 // copy all detected features of row2 into row1
                 // to exchange gap-filled against detected features
                 createConsensusFirstRow(rawFiles, firstRow, secondRow);
+                candidates = findCandidates(indexes, rawFiles, firstRow, filterByAvgRTMZ,
+                    mzTolerance, rtTolerance);
+                c = -1;
               }
               // second row deleted
               n++;
@@ -222,6 +249,40 @@ public class DuplicateFilterTask extends AbstractTask {
     return newPeakList;
   }
 
+  /**
+   * Positions of the rows which may be duplicates of given row, in ascending order.
+   * 
+   * @param indexes index of the average m/z and RT, or feature indexes of each raw data file
+   * @param rawFiles
+   * @param firstRow
+   * @param filterByAvgRTMZ
+   * @param mzTolerance
+   * @param rtTolerance
+   * @return
+   */
+  private int[] findCandidates(List<MZRTRangeIndex<PeakListRow>> indexes, RawDataFile[] rawFiles,
+      PeakListRow firstRow, boolean filterByAvgRTMZ, MZTolerance mzTolerance,
+      RTTolerance rtTolerance) {
+    if (filterByAvgRTMZ)
+      return indexes.get(0).getPositionsInside(
+          mzTolerance.getToleranceRange(firstRow.getAverageMZ()),
+          rtTolerance.getToleranceRange(firstRow.getAverageRT()));
+
+    // rows with a similar feature in at least one raw data file
+    IntOpenHashSet candidates = new IntOpenHashSet();
+    for (int i = 0; i < rawFiles.length; i++) {
+      Feature f1 = firstRow.getPeak(rawFiles[i]);
+      if (f1 == null)
+        continue;
+      for (int candidate : indexes.get(i).getPositionsInside(
+          mzTolerance.getToleranceRange(f1.getMZ()), rtTolerance.getToleranceRange(f1.getRT())))
+        candidates.add(candidate);
+    }
+    int candidateArray[] = candidates.toIntArray();
+    IntArrays.quickSort(candidateArray);
+    return candidateArray;
+  }
+
   /**
    * Turns firstRow to consensus row. With all features with highest FeatureStatus:
    * DETECTED>ESTIMATED>UNKNOWN Or the highest feature when comparing two ESTIMATED features
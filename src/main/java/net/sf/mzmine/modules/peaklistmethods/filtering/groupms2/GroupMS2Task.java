@@ -21,13 +21,11 @@ package net.sf.mzmine.modules.peaklistmethods.filtering.groupms2;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.google.common.collect.Range;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -99,49 +97,21 @@ public class GroupMS2Task extends AbstractTask {
           if (isCanceled())
             return;
 
+          // The raw data file answers the lookup from its index of MS2 scans sorted by precursor m/z,
+          // which is created once by the first feature of the file
           RawDataFile raw = f.getDataFile();
-          IntArrayList scans = new IntArrayList();
-          int best = f.getRepresentativeScanNumber();
-          double frt = f.getRT();
-          double fmz = f.getMZ();
-          Range<Double> rtRange = f.getRawDataPointsRTRange();
-          int i = best;
-          // left
-          while (i > 1) {
-            i--;
-            Scan scan = raw.getScan(i);
-            if (scan != null) {
-              if ((!limitRTByFeature || rtRange.contains(scan.getRetentionTime()))
-                  && rtTol.checkWithinTolerance(frt, scan.getRetentionTime())) {
-                if (scan.getPrecursorMZ() != 0
-                    && mzTol.checkWithinTolerance(fmz, scan.getPrecursorMZ()))
-                  scans.add(i);
-              } else {
-                // end of loop - out of tolerance
-                break;
-              }
-            }
-          }
-          int[] scanNumbers = raw.getScanNumbers();
-          // right
-          while (i < scanNumbers[scanNumbers.length - 1]) {
-            i++;
-            Scan scan = raw.getScan(i);
-            // scanID does not have to be contiguous
-            if (scan != null) {
-              if ((!limitRTByFeature || rtRange.contains(scan.getRetentionTime()))
-                  && rtTol.checkWithinTolerance(frt, scan.getRetentionTime())) {
-                if (scan.getPrecursorMZ() != 0
-                    && mzTol.checkWithinTolerance(fmz, scan.getPrecursorMZ()))
-                  scans.add(i);
-              } else {
-                // end of loop - out of tolerance
-                break;
-              }
-            }
+          Range<Double> rtRange = rtTol.getToleranceRange(f.getRT());
+          Range<Double> mzRange = mzTol.getToleranceRange(f.getMZ());
+          int[] scans;
+          if (limitRTByFeature && !rtRange.isConnected(f.getRawDataPointsRTRange()))
+            scans = new int[0];
+          else {
+            if (limitRTByFeature)
+              rtRange = rtRange.intersection(f.getRawDataPointsRTRange());
+            scans = raw.getFragmentScanNumbers(rtRange, mzRange);
           }
           // set list to feature
-          f.setAllMS2FragmentScanNumbers(scans.toIntArray());
+          f.setAllMS2FragmentScanNumbers(scans);
         }
         processedRows++;
       }
@@ -62,6 +62,22 @@ public class Gap {
 
   }
 
+  public Range<Double> getMZRange() {
+    return mzRange;
+  }
+
+  public Range<Double> getRTRange() {
+    return rtRange;
+  }
+
+  /**
+   * Returns true if this gap ignores all scans from the given retention time on, because the RT
+   * range was passed and the last peak is finished
+   */
+  public boolean isClosed(double scanRT) {
+    return (scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null);
+  }
+
   public void offerNextScan(Scan scan) {
 
     double scanRT = scan.getRetentionTime();
@@ -71,19 +87,26 @@ public class Gap {
       return;
 
     // If we have passed the RT range and finished processing last peak
-    if ((scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null))
+    if (isClosed(scanRT))
       return;
 
     // Find top m/z peak in our range
-    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+    offerNextDataPoint(scan.getScanNumber(), scanRT, ScanUtils.findBasePeak(scan, mzRange));
+
+  }
+
+  /**
+   * Offers the most intense data point within the m/z range of the next scan (null if there is
+   * none). The scan must be inside the RT range or continue the current peak, see isClosed().
+   */
+  public void offerNextDataPoint(int scanNumber, double scanRT, DataPoint basePeak) {
 
     GapDataPoint currentDataPoint;
     if (basePeak != null) {
       currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), basePeak.getMZ(), scanRT, basePeak.getIntensity());
+          new GapDataPoint(scanNumber, basePeak.getMZ(), scanRT, basePeak.getIntensity());
     } else {
-      currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), RangeUtils.rangeCenter(mzRange), scanRT, 0);
+      currentDataPoint = new GapDataPoint(scanNumber, RangeUtils.rangeCenter(mzRange), scanRT, 0);
     }
 
     // If we have not yet started, just create a new peak
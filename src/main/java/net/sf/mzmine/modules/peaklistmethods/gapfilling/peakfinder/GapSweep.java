@@ -0,0 +1,125 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import com.google.common.collect.Range;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Feeds the MS1 scans of a raw data file to its gaps in a single sweep over retention time. The
+ * gaps are sorted by the start of their RT range and only the gaps whose range the current scan
+ * has reached (and which are not closed yet) are active. The data points of a scan are read once,
+ * and each active gap binary-searches its m/z range in them. Scans without any active gap are not
+ * read at all.
+ */
+public class GapSweep {
+
+  // hide the constructor
+  private GapSweep() {}
+
+  /**
+   * Offers all MS1 scans of the data file to the gaps and finalizes the gaps. The progress runnable
+   * is called after each scan.
+   * 
+   * @return false if the sweep was canceled, in this case the gaps are not finalized
+   */
+  public static boolean fillGaps(RawDataFile dataFile, List<Gap> gaps, BooleanSupplier isCanceled,
+      Runnable progress) {
+
+    final Gap sortedGaps[] = gaps.toArray(new Gap[0]);
+    Arrays.sort(sortedGaps, Comparator.comparingDouble(gap -> gap.getRTRange().lowerEndpoint()));
+
+    final List<Gap> activeGaps = new ArrayList<>();
+    int nextGap = 0;
+
+    // Get all scans of this data file
+    for (int scanNumber : dataFile.getScanNumbers(1)) {
+
+      // Canceled?
+      if (isCanceled.getAsBoolean())
+        return false;
+
+      final Scan scan = dataFile.getScan(scanNumber);
+      final double scanRT = scan.getRetentionTime();
+
+      // Activate the gaps whose RT range starts before this scan
+      while ((nextGap < sortedGaps.length)
+          && (sortedGaps[nextGap].getRTRange().lowerEndpoint() <= scanRT))
+        activeGaps.add(sortedGaps[nextGap++]);
+
+      // Drop closed gaps, the order of the active gaps does not matter
+      for (int i = activeGaps.size() - 1; i >= 0; i--) {
+        if (activeGaps.get(i).isClosed(scanRT)) {
+          Gap last = activeGaps.remove(activeGaps.size() - 1);
+          if (i < activeGaps.size())
+            activeGaps.set(i, last);
+        }
+      }
+
+      if (!activeGaps.isEmpty()) {
+        final DataPoint dataPoints[] = scan.getDataPoints();
+        for (Gap gap : activeGaps) {
+          gap.offerNextDataPoint(scanNumber, scanRT, findBasePeak(dataPoints, gap.getMZRange()));
+        }
+      }
+
+      progress.run();
+    }
+
+    // Finalize gaps
+    for (Gap gap : sortedGaps) {
+      gap.noMoreOffers();
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Returns the most intense of the data points (sorted by m/z) within the m/z range, or null
+   */
+  private static DataPoint findBasePeak(DataPoint dataPoints[], Range<Double> mzRange) {
+
+    final double lower = mzRange.lowerEndpoint();
+    int low = 0, high = dataPoints.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (dataPoints[middle].getMZ() < lower)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+
+    DataPoint basePeak = null;
+    for (int i = low; (i < dataPoints.length)
+        && (dataPoints[i].getMZ() <= mzRange.upperEndpoint()); i++) {
+      if ((basePeak == null) || (dataPoints[i].getIntensity() > basePeak.getIntensity()))
+        basePeak = dataPoints[i];
+    }
+    return basePeak;
+
+  }
+
+}
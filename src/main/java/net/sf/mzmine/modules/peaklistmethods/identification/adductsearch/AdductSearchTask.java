@@ -24,9 +24,17 @@ import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.RT_TOLERANCE;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
+import com.google.common.collect.Range;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
@@ -38,6 +46,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZRTRangeIndex;
 import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
@@ -47,7 +56,7 @@ public class AdductSearchTask extends AbstractTask {
   // Logger.
   private static final Logger LOG = Logger.getLogger(AdductSearchTask.class.getName());
 
-  private int finishedRows;
+  private final AtomicInteger finishedRows = new AtomicInteger();
   private int totalRows;
   private final PeakList peakList;
 
@@ -69,7 +78,6 @@ public class AdductSearchTask extends AbstractTask {
     peakList = list;
     parameters = parameterSet;
 
-    finishedRows = 0;
     totalRows = 0;
 
     rtTolerance = parameterSet.getParameter(RT_TOLERANCE).getValue();
@@ -81,7 +89,7 @@ public class AdductSearchTask extends AbstractTask {
   @Override
   public double getFinishedPercentage() {
 
-    return totalRows == 0 ? 0.0 : (double) finishedRows / (double) totalRows;
+    return totalRows == 0 ? 0.0 : (double) finishedRows.get() / (double) totalRows;
   }
 
   @Override
@@ -125,7 +133,8 @@ public class AdductSearchTask extends AbstractTask {
   }
 
   /**
-   * Search peak-list for adducts.
+   * Search peak-list for adducts. The candidates of all main rows are searched in parallel, the
+   * identities are then added in the order of the main rows, as they were by a sequential search.
    */
   private void searchAdducts() {
 
@@ -136,38 +145,67 @@ public class AdductSearchTask extends AbstractTask {
     // Start with the highest peaks.
     Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height, SortingDirection.Descending));
 
-    // Compare each pair of rows against each other.
-    for (int i = 0; !isCanceled() && i < totalRows; i++) {
-      for (int j = 0; !isCanceled() && j < totalRows; j++) {
-
-        if (i == j)
-          continue;
-
-        findAdducts(rows[i], rows[j]);
+    // Index of the rows, positions refer to the sorted array.
+    final MZRTRangeIndex<PeakListRow> index = MZRTRangeIndex.forRows(rows);
+
+    // Find the adducts of each row.
+    final List<long[]> adducts = Arrays.stream(rows).parallel().map(row -> {
+      if (isCanceled())
+        return null;
+      long[] rowAdducts = findAdducts(rows, index, row);
+      finishedRows.incrementAndGet();
+      return rowAdducts;
+    }).collect(Collectors.toList());
+
+    if (isCanceled())
+      return;
+
+    // Add adduct identities and notify GUI.
+    final MZmineProject project = MZmineCore.getProjectManager().getCurrentProject();
+    final int numOfAdducts = selectedAdducts.length;
+    for (int i = 0; i < rows.length; i++) {
+      for (final long match : adducts.get(i)) {
+        final PeakListRow possibleAdduct = rows[(int) (match / numOfAdducts)];
+        final AdductType adduct = selectedAdducts[(int) (match % numOfAdducts)];
+        possibleAdduct.addPeakIdentity(new AdductIdentity(rows[i], adduct), false);
+        project.notifyObjectChanged(possibleAdduct, false);
       }
-
-      finishedRows++;
     }
   }
 
   /**
-   * Check if candidate peak may be a possible adduct of a given main peak.
+   * Find the rows which may be adducts of a given main row. Only the rows inside the RT window of
+   * the main row and around the m/z of each adduct are checked.
    *
+   * @param rows all rows.
+   * @param index index of the rows.
    * @param mainRow main peak.
-   * @param possibleAdduct candidate adduct peak.
+   * @return matches encoded as row position * number of adducts + adduct position, in ascending
+   *         order.
    */
-  private void findAdducts(final PeakListRow mainRow, final PeakListRow possibleAdduct) {
+  private long[] findAdducts(final PeakListRow[] rows, final MZRTRangeIndex<PeakListRow> index,
+      final PeakListRow mainRow) {
+
+    final Range<Double> rtRange = rtTolerance.getToleranceRange(mainRow.getAverageRT());
+    final int numOfAdducts = selectedAdducts.length;
 
-    for (final AdductType adduct : selectedAdducts) {
+    LongArrayList matches = new LongArrayList();
+    for (int a = 0; a < numOfAdducts; a++) {
 
-      if (checkAdduct(mainRow, possibleAdduct, adduct)) {
+      final AdductType adduct = selectedAdducts[a];
+      final Range<Double> mzRange =
+          mzTolerance.getToleranceRange(mainRow.getAverageMZ() + adduct.getMassDifference());
 
-        // Add adduct identity and notify GUI.
-        possibleAdduct.addPeakIdentity(new AdductIdentity(mainRow, adduct), false);
-        MZmineCore.getProjectManager().getCurrentProject().notifyObjectChanged(possibleAdduct,
-            false);
+      for (final int j : index.getPositionsInside(mzRange, rtRange)) {
+        final PeakListRow possibleAdduct = rows[j];
+        if (possibleAdduct != mainRow && checkAdduct(mainRow, possibleAdduct, adduct))
+          matches.add((long) j * numOfAdducts + a);
       }
     }
+
+    long[] matchArray = matches.toLongArray();
+    LongArrays.quickSort(matchArray);
+    return matchArray;
   }
 
   /**
@@ -297,10 +297,9 @@ public class CameraSearchTask extends AbstractTask {
           }
 
           // Copy the data point.
-          final DataPoint dataPoint = peak.getDataPoint(scanNumber);
-          if (dataPoint != null) {
+          if (peak.hasDataPoint(scanNumber)) {
 
-            final double intensity = dataPoint.getIntensity();
+            final double intensity = peak.getDataPointIntensity(scanNumber);
             peakDataPointsByScan.get(scan).add(new SimpleDataPoint(mz, intensity));
             dataPointCount++;
 
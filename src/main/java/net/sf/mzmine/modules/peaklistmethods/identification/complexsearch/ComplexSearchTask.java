@@ -19,7 +19,12 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.complexsearch;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 import net.sf.mzmine.datamodel.IonizationType;
 import net.sf.mzmine.datamodel.PeakList;
@@ -34,6 +39,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZRTRangeIndex;
 import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
@@ -44,7 +50,12 @@ public class ComplexSearchTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private int finishedRows, totalRows;
+  // Slack added to the m/z window of the second row of a complex, so that rounding of the
+  // rearranged mass condition cannot drop a candidate. The exact condition is checked afterwards.
+  private static final double MZ_WINDOW_SLACK = 1e-6;
+
+  private final AtomicInteger finishedRows = new AtomicInteger();
+  private int totalRows;
   private PeakList peakList;
 
   private RTTolerance rtTolerance;
@@ -75,7 +86,7 @@ public class ComplexSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0;
-    return ((double) finishedRows) / totalRows;
+    return ((double) finishedRows.get()) / totalRows;
   }
 
   /**
@@ -101,34 +112,29 @@ public class ComplexSearchTask extends AbstractTask {
     // complex)
     Arrays.sort(rows, new PeakListRowSorter(SortingProperty.MZ, SortingDirection.Descending));
 
-    // Compare each three rows against each other
-    for (int i = 0; i < totalRows; i++) {
-
-      Range<Double> testRTRange = rtTolerance.getToleranceRange(rows[i].getAverageRT());
-      PeakListRow testRows[] = peakList.getRowsInsideScanRange(testRTRange);
-
-      for (int j = 0; j < testRows.length; j++) {
+    // Index of the rows in the feature list order, which is the order the pairs of candidate rows
+    // are tested in
+    final PeakListRow listRows[] = peakList.getRows();
+    final MZRTRangeIndex<PeakListRow> index = MZRTRangeIndex.forRows(listRows);
 
-        for (int k = j; k < testRows.length; k++) {
+    // Find the complexes of each row in parallel
+    final List<long[]> complexes = Arrays.stream(rows).parallel().map(row -> {
+      if (isCanceled())
+        return null;
+      long pairs[] = findComplexes(listRows, index, row);
+      finishedRows.incrementAndGet();
+      return pairs;
+    }).collect(Collectors.toList());
 
-          // Task canceled?
-          if (isCanceled())
-            return;
-
-          // To avoid finding a complex of the peak itself and another
-          // very small m/z peak
-          if ((rows[i] == testRows[j]) || (rows[i] == testRows[k]))
-            continue;
-
-          if (checkComplex(rows[i], testRows[j], testRows[k]))
-            addComplexInfo(rows[i], testRows[j], testRows[k]);
-
-        }
+    // Task canceled?
+    if (isCanceled())
+      return;
 
+    for (int i = 0; i < totalRows; i++) {
+      for (long pair : complexes.get(i)) {
+        addComplexInfo(rows[i], listRows[(int) (pair / listRows.length)],
+            listRows[(int) (pair % listRows.length)]);
       }
-
-      finishedRows++;
-
     }
 
     // Add task description to peakList
@@ -146,6 +152,48 @@ public class ComplexSearchTask extends AbstractTask {
 
   }
 
+  /**
+   * Find all pairs of rows which may form given complex row. For each first row inside the RT
+   * window, only the second rows with the complementary m/z are checked.
+   * 
+   * @return pairs encoded as first row position * number of rows + second row position, in the
+   *         order of the feature list
+   */
+  private long[] findComplexes(PeakListRow listRows[], MZRTRangeIndex<PeakListRow> index,
+      PeakListRow complexRow) {
+
+    final Range<Double> rtRange = rtTolerance.getToleranceRange(complexRow.getAverageRT());
+    final Range<Double> complexMZRange =
+        mzTolerance.getToleranceRange(complexRow.getAverageMZ() - ionType.getAddedMass());
+    final double addedMass = 2 * ionType.getAddedMass();
+
+    LongArrayList pairs = new LongArrayList();
+    for (int j : index.getPositionsInside(Range.all(), rtRange)) {
+
+      // To avoid finding a complex of the peak itself and another
+      // very small m/z peak
+      final PeakListRow row1 = listRows[j];
+      if (row1 == complexRow)
+        continue;
+
+      final double row1MZ = row1.getAverageMZ();
+      final Range<Double> row2MZRange =
+          Range.closed(complexMZRange.lowerEndpoint() - row1MZ + addedMass - MZ_WINDOW_SLACK,
+              complexMZRange.upperEndpoint() - row1MZ + addedMass + MZ_WINDOW_SLACK);
+
+      for (int k : index.getPositionsInside(row2MZRange, rtRange)) {
+        final PeakListRow row2 = listRows[k];
+        if ((k < j) || (row2 == complexRow))
+          continue;
+        if (checkComplex(complexRow, row1, row2))
+          pairs.add((long) j * listRows.length + k);
+      }
+
+    }
+
+    return pairs.toLongArray();
+  }
+
   /**
    * Check if candidate peak may be a possible complex of given two peaks
    * 
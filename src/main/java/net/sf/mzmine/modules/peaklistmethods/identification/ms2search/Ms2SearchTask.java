@@ -19,15 +19,22 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import com.google.common.collect.Range;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
-import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
@@ -38,6 +45,11 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.FragmentIonIndex;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.WorkerPoolUtils;
 
 class Ms2SearchResult {
   private double score;
@@ -79,12 +91,24 @@ class Ms2SearchResult {
 
 }
 
+/**
+ * Matches of one row of the first feature list: the positions of the matched rows of the second
+ * list and their results, in the order of the second list.
+ */
+class RowMatches {
+  final IntArrayList rows = new IntArrayList();
+  final List<Ms2SearchResult> results = new ArrayList<>();
+}
+
 
 class Ms2SearchTask extends AbstractTask {
 
+  private static final int ROWS_PER_BLOCK = 100;
+
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private int finishedRows, totalRows;
+  private final AtomicInteger finishedRows = new AtomicInteger();
+  private int totalRows;
   private PeakList peakList1;
   private PeakList peakList2;
 
@@ -124,7 +148,7 @@ class Ms2SearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0;
-    return ((double) finishedRows) / totalRows;
+    return ((double) finishedRows.get()) / totalRows;
   }
 
   /**
@@ -144,39 +168,61 @@ class Ms2SearchTask extends AbstractTask {
     logger.info("Starting MS2 similarity search between " + peakList1 + " and " + peakList2
         + " with mz tolerance:" + mzTolerance.getPpmTolerance());
 
-    Ms2SearchResult searchResult;
     PeakListRow rows1[] = peakList1.getRows();
     PeakListRow rows2[] = peakList2.getRows();
 
-    int rows1Length = rows1.length;
-    int rows2Length = rows2.length;
-
-    totalRows = rows1Length;
-
-    for (int i = 0; i < rows1Length; i++) {
-      for (int j = 0; j < rows2Length; j++) {
-        Feature featureA = rows1[i].getBestPeak();
-        Feature featureB = rows2[j].getBestPeak();
-        // Complication. The "best" peak, may not have the "best" fragmentation
-        Scan scanA = rows1[i].getBestFragmentation();
-        Scan scanB = rows2[j].getBestFragmentation();
-
-
-
-        searchResult =
-            simpleMS2similarity(scanA, scanB, intensityThreshold, mzTolerance, massListName);
-
-        // Report the final score to the peaklist identity
-        if (searchResult != null && searchResult.getScore() > scoreThreshold
-            && searchResult.getNumIonsMatched() >= minimumIonsMatched)
-          this.addMS2Identity(rows1[i], featureA, featureB, searchResult);
+    totalRows = rows1.length;
+
+    // Fetch the centroided ions of the best fragmentation of each row once
+    final DataPoint ions1[][] = getFragmentIons(rows1);
+    if (ions1 == null)
+      return;
+    final DataPoint ions2[][] = getFragmentIons(rows2);
+    if (ions2 == null)
+      return;
+
+    final FragmentIonIndex ionIndex = new FragmentIonIndex(ions2);
+
+    // Compare the rows of the first list in blocks on the shared worker threads, the matches are
+    // collected in the order of the rows
+    List<Future<List<RowMatches>>> blockMatches = new ArrayList<>();
+    List<RowMatches> allMatches = new ArrayList<>();
+    try {
+      for (int start = 0; start < rows1.length; start += ROWS_PER_BLOCK) {
+        final int blockStart = start;
+        final int blockEnd = Math.min(start + ROWS_PER_BLOCK, rows1.length);
+        blockMatches.add(WorkerPoolUtils.getWorkerPool()
+            .submit(() -> searchRows(ions1, ions2, ionIndex, blockStart, blockEnd)));
+      }
 
+      for (Future<List<RowMatches>> matches : blockMatches) {
         if (isCanceled())
           return;
+        allMatches.addAll(matches.get());
       }
+    } catch (InterruptedException | ExecutionException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not compare the MS2 spectra of " + peakList1 + " and " + peakList2
+          + ": " + e.getCause());
+      return;
+    } finally {
+      for (Future<List<RowMatches>> matches : blockMatches)
+        matches.cancel(false);
+    }
 
-      // Update progress bar
-      finishedRows++;
+    if (isCanceled())
+      return;
+
+    // Report the final scores to the peaklist identities, in the order of both lists
+    for (int i = 0; i < rows1.length; i++) {
+      RowMatches rowMatches = allMatches.get(i);
+      if (rowMatches == null)
+        continue;
+      Feature featureA = rows1[i].getBestPeak();
+      for (int m = 0; m < rowMatches.rows.size(); m++) {
+        Feature featureB = rows2[rowMatches.rows.getInt(m)].getBestPeak();
+        this.addMS2Identity(rows1[i], featureA, featureB, rowMatches.results.get(m));
+      }
     }
 
     // Add task description to peakList
@@ -194,79 +240,137 @@ class Ms2SearchTask extends AbstractTask {
 
   }
 
-  private Ms2SearchResult simpleMS2similarity(Scan scanMS2A, Scan scanMS2B,
-      double intensityThreshold, MZTolerance mzRange, String massList) {
-
-    double runningScoreTotal = 0.0;
-    double mzRangePPM = mzRange.getPpmTolerance();
+  /**
+   * Compares the rows from blockStart to blockEnd of the first list with the rows of the second
+   * list. Unless a comparison without any matched ion can be reported, only the rows of the second
+   * list which share enough ions with the first row are compared.
+   * 
+   * @return the matches of each row, null for rows without ions or if the task was canceled
+   */
+  private List<RowMatches> searchRows(DataPoint ions1[][], DataPoint ions2[][],
+      FragmentIonIndex ionIndex, int blockStart, int blockEnd) {
 
-    List<DataPoint> matchedIons = new ArrayList<DataPoint>();
+    final boolean matchRequired = (minimumIonsMatched > 0) || (scoreThreshold >= 0);
+    final int minimumMatches = Math.max(1, minimumIonsMatched);
+    final double mzRangePPM = mzTolerance.getPpmTolerance();
+    final Range<Integer> allRows2 = Range.closedOpen(0, ions2.length);
 
-    // Fetch 1st feature MS2 scan.
-    // int ms2ScanNumberA = featureA.getMostIntenseFragmentScanNumber();
-    // Scan scanMS2A = featureA.getDataFile().getScan(ms2ScanNumberA);
+    List<RowMatches> blockMatches = new ArrayList<>();
+    for (int i = blockStart; i < blockEnd; i++) {
 
+      if (isCanceled() || ions1[i] == null) {
+        blockMatches.add(null);
+        continue;
+      }
 
-    // Fetch 2nd feature MS2 scan.
-    // int ms2ScanNumberB = featureB.getMostIntenseFragmentScanNumber();
-    // Scan scanMS2B = featureB.getDataFile().getScan(ms2ScanNumberB);
+      // The closed range of the rounded bounds holds every ion within the open tolerance window
+      // of simpleMS2similarity, so no pair is missed
+      int matchCounts[] = null;
+      if (matchRequired)
+        matchCounts = ionIndex.countIonPairs(ions1[i], mz -> {
+          final double mzRangeAbsolute = mz * 1e-6 * mzRangePPM;
+          return Range.closed(mz - mzRangeAbsolute, mz + mzRangeAbsolute);
+        }, allRows2);
+
+      RowMatches rowMatches = new RowMatches();
+      for (int j = 0; j < ions2.length; j++) {
+        if (ions2[j] == null || (matchCounts != null && matchCounts[j] < minimumMatches))
+          continue;
+        Ms2SearchResult searchResult = simpleMS2similarity(ions1[i], ions2[j], mzRangePPM);
+        if (searchResult.getScore() > scoreThreshold
+            && searchResult.getNumIonsMatched() >= minimumIonsMatched) {
+          rowMatches.rows.add(j);
+          rowMatches.results.add(searchResult);
+        }
+      }
+      blockMatches.add(rowMatches);
 
-    if (scanMS2A == null || scanMS2B == null) {
-      return null;
+      // Update progress bar
+      finishedRows.incrementAndGet();
     }
+    return blockMatches;
+  }
 
-    // Fetch centroided data
-    MassList massListA = scanMS2A.getMassList(massListName);
-    MassList massListB = scanMS2B.getMassList(massListName);
+  /**
+   * Fetch the centroided ions of the best fragmentation scan of each row, sorted by m/z. Rows
+   * without a fragmentation scan or without ions get null.
+   * 
+   * @return the ions of each row, or null if a scan does not have the mass list
+   */
+  private DataPoint[][] getFragmentIons(PeakListRow rows[]) {
+
+    DataPoint ions[][] = new DataPoint[rows.length][];
+    for (int i = 0; i < rows.length; i++) {
+
+      // Complication. The "best" peak, may not have the "best" fragmentation
+      Scan scan = rows[i].getBestFragmentation();
+      if (scan == null)
+        continue;
+
+      // Fetch centroided data
+      MassList massList = scan.getMassList(massListName);
+      if (massList == null) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Scan " + scan.getDataFile().getName() + " #" + scan.getScanNumber()
+            + " does not have a mass list " + massListName);
+        return null;
+      }
 
-    if (massListA == null) {
-      // Will this work properly? As this function isn't directly the task?
-      setStatus(TaskStatus.ERROR);
-      setErrorMessage("Scan " + scanMS2A.getDataFile().getName() + " #" + scanMS2A.getScanNumber()
-          + " does not have a mass list " + massListName);
-      return null;
-    }
+      DataPoint rowIons[] = massList.getDataPoints();
+      if (rowIons == null || rowIons.length == 0) {
+        // Fall back to profile data?
+        // Profile / raw data.
+        // ionsA = scanMS2A.getDataPointsOverIntensity(intensityThreshold);
+        // ionsB = scanMS2B.getDataPointsOverIntensity(intensityThreshold);
+        continue;
+      }
 
-    if (massListB == null) {
-      // Will this work properly? As this function isn't directly the task?
-      setStatus(TaskStatus.ERROR);
-      setErrorMessage("Scan " + scanMS2B.getDataFile().getName() + " #" + scanMS2B.getScanNumber()
-          + " does not have a mass list " + massListName);
-      return null;
+      // The ion matching walks both spectra in the order of m/z
+      for (int j = 1; j < rowIons.length; j++) {
+        if (rowIons[j].getMZ() < rowIons[j - 1].getMZ()) {
+          rowIons = rowIons.clone();
+          Arrays.sort(rowIons, new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
+          break;
+        }
+      }
+      ions[i] = rowIons;
     }
+    return ions;
+  }
 
-    DataPoint[] ionsA = null;
-    DataPoint[] ionsB = null;
+  /**
+   * Compares two spectra sorted by m/z. Every pair of ions within the m/z tolerance is a match, the
+   * score is the sum of the intensity products of all matches.
+   */
+  private Ms2SearchResult simpleMS2similarity(DataPoint ionsA[], DataPoint ionsB[],
+      double mzRangePPM) {
 
-    ionsA = massListA.getDataPoints();
-    ionsB = massListB.getDataPoints();
+    double runningScoreTotal = 0.0;
 
-    if (ionsA == null || ionsB == null || ionsA.length == 0 || ionsB.length == 0) {
-      // Fall back to profile data?
-      // Profile / raw data.
-      // ionsA = scanMS2A.getDataPointsOverIntensity(intensityThreshold);
-      // ionsB = scanMS2B.getDataPointsOverIntensity(intensityThreshold);
-      return null;
-    }
+    List<DataPoint> matchedIons = new ArrayList<DataPoint>();
 
-    // Compare every ion peak in MS2 scan A, to every ion peak in MS2 scan B.
+    // Merge the two spectra. The tolerance window of the ions in A only moves up, so the first ion
+    // of B which can still match never moves back.
     double ionsBMaxMZ = ionsB[ionsB.length - 1].getMZ();
+    int firstJ = 0;
     for (int i = 0; i < ionsA.length; i++) {
 
       double iMZ = ionsA[i].getMZ();
       double mzRangeAbsolute = iMZ * 1e-6 * mzRangePPM;
 
       if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
-        break; // Potential speedup heuristic. If any i is greater than the max of j, no more
-               // matches are possible.
+        break; // If any i is greater than the max of j, no more matches are possible.
+
+      // Skip the ions of B below the window
+      while (firstJ < ionsB.length && iMZ - ionsB[firstJ].getMZ() >= mzRangeAbsolute)
+        firstJ++;
 
-      for (int j = 0; j < ionsB.length; j++) {
+      for (int j = firstJ; j < ionsB.length; j++) {
 
         double jMZ = ionsB[j].getMZ();
 
         if (iMZ < jMZ - mzRangeAbsolute)
-          break; // Potential speedup heuristic. iMZ smaller than jMZ. Skip the rest of the j's as
-                 // they can only increase.
+          break; // iMZ smaller than jMZ. Skip the rest of the j's as they can only increase.
 
         if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
           runningScoreTotal += ionsA[i].getIntensity() * ionsB[j].getIntensity();
@@ -34,9 +34,9 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import net.sf.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import net.sf.mzmine.util.FragmentIonIndex;
+import net.sf.mzmine.util.spectraldb.parser.CachedLibraryParser;
+import net.sf.mzmine.util.spectraldb.parser.CompiledSpectralLibrary;
 import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
 
 class LocalSpectralDBSearchTask extends AbstractTask {
@@ -52,6 +52,9 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   private List<RowsSpectralMatchTask> tasks;
 
   private int totalTasks;
+  // Number of sub tasks which are finished, canceled or failed, guarded by this
+  private int finishedTasks;
+  private int count;
   private PeakListRow[] rows;
 
   public LocalSpectralDBSearchTask(PeakList peakList, ParameterSet parameters) {
@@ -60,6 +63,9 @@ class LocalSpectralDBSearchTask extends AbstractTask {
     this.parameters = parameters;
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
+
+    // Wake up run() when this task is canceled
+    addTaskStatusListener((task, newStatus, oldStatus) -> wakeUp());
   }
 
   /**
@@ -69,7 +75,7 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return (double) finishedTasks / totalTasks;
   }
 
   /**
@@ -86,32 +92,25 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   @Override
   public void run() {
     setStatus(TaskStatus.PROCESSING);
-    int count = 0;
     try {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
-              tasks.remove(i);
-              i--;
+        // wait for all sub tasks to finish, the status listeners wake us up
+        synchronized (this) {
+          while (!isCanceled() && (finishedTasks < totalTasks)) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              cancel();
             }
           }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
         }
         // cancelled
         if (isCanceled()) {
-          tasks.stream().forEach(AbstractTask::cancel);
+          tasks.stream().filter(t -> !t.isFinished()).forEach(AbstractTask::cancel);
         }
-      } else {
+      } else if (!isCanceled()) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
@@ -120,7 +119,9 @@ class LocalSpectralDBSearchTask extends AbstractTask {
       setStatus(TaskStatus.ERROR);
       setErrorMessage(e.toString());
     }
-    logger.info("Added " + count + " spectral library matches");
+    synchronized (this) {
+      logger.info("Added " + count + " spectral library matches");
+    }
 
     // Add task description to peakList
     peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
@@ -135,29 +136,43 @@ class LocalSpectralDBSearchTask extends AbstractTask {
 
   }
 
+  private synchronized void subTaskFinished(RowsSpectralMatchTask task) {
+    count += task.getCount();
+    finishedTasks++;
+    notifyAll();
+  }
+
+  private synchronized void wakeUp() {
+    notifyAll();
+  }
+
   /**
-   * Load all library entries from data base file
+   * Load the library once and start one task per chunk of rows, all sharing the library and its
+   * fragment ion index
    * 
    * @param dataBaseFile
-   * @return
+   * @return the started tasks, empty if the library was empty or loading was canceled
    */
   private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
       throws UnsupportedFormatException, IOException {
-    //
     List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task =
-            new RowsSpectralMatchTask(peakList.getName(), rows, parameters, alreadyProcessed + 1, list);
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    CompiledSpectralLibrary library = CachedLibraryParser.loadLibrary(this, dataBaseFile);
+    if (library == null || library.size() == 0 || isCanceled())
+      return tasks;
+    FragmentIonIndex fragmentIndex = RowsSpectralMatchTask.createFragmentIndex(library, parameters);
+
+    for (PeakListRow[] chunk : RowsSpectralMatchTask.splitRows(rows)) {
+      RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakList.getName(), chunk,
+          parameters, library, fragmentIndex);
+      task.addTaskStatusListener((t, newStatus, oldStatus) -> {
+        final boolean wasRunning =
+            (oldStatus == TaskStatus.WAITING) || (oldStatus == TaskStatus.PROCESSING);
+        if (wasRunning && (newStatus != TaskStatus.PROCESSING))
+          subTaskFinished(task);
+      });
+      MZmineCore.getTaskController().addTask(task);
+      tasks.add(task);
+    }
     return tasks;
   }
 
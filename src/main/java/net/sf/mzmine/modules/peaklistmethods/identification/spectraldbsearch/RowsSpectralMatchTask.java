@@ -18,14 +18,19 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.spectraldbsearch;
 
+import com.google.common.collect.Range;
 import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -43,7 +48,9 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FragmentIonIndex;
 import net.sf.mzmine.util.exceptions.MissingMassListException;
+import net.sf.mzmine.util.scans.DataPointArrays;
 import net.sf.mzmine.util.scans.ScanAlignment;
 import net.sf.mzmine.util.scans.ScanUtils;
 import net.sf.mzmine.util.scans.similarity.SpectralSimilarity;
@@ -52,6 +59,8 @@ import net.sf.mzmine.util.scans.sorting.ScanSortMode;
 import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBPeakIdentity;
+import net.sf.mzmine.util.spectraldb.parser.CachedLibraryParser;
+import net.sf.mzmine.util.spectraldb.parser.CompiledSpectralLibrary;
 
 public class RowsSpectralMatchTask extends AbstractTask {
 
@@ -59,6 +68,8 @@ public class RowsSpectralMatchTask extends AbstractTask {
 
   private static final String METHOD = "Spectral DB search";
   private static final int MAX_ERROR = 3;
+  // number of rows searched by one task
+  private static final int ROWS_PER_TASK = 100;
   private int errorCounter = 0;
   private String description;
   private PeakListRow[] rows;
@@ -76,13 +87,13 @@ public class RowsSpectralMatchTask extends AbstractTask {
   private final int msLevel;
   private final double noiseLevel;
   private final int minMatch;
-  private List<SpectralDBEntry> list;
+  // whole library sorted by precursor m/z, shared by all tasks searching it
+  private CompiledSpectralLibrary library;
+  // pre-filter on shared signals, shared by all tasks searching the library, or null
+  private FragmentIonIndex fragmentIndex;
 
   private int count = 0;
 
-  // as this module is started in a series the start entry is saved to track progress
-  private int startEntry;
-  private int listsize;
   private MZmineProcessingStep<SpectralSimilarityFunction> simFunction;
 
   // remove 13C isotopes
@@ -100,21 +111,24 @@ public class RowsSpectralMatchTask extends AbstractTask {
   private boolean needsIsotopePattern;
   private int minMatchedIsoSignals;
 
+  /**
+   * @param library the whole library, see {@link CachedLibraryParser#loadLibrary}
+   * @param fragmentIndex index of the library, see {@link #createFragmentIndex}
+   */
   public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
-      ParameterSet parameters, int startEntry, List<SpectralDBEntry> list) {
-    this(description, rows, parameters, startEntry, list, null);
+      ParameterSet parameters, CompiledSpectralLibrary library, FragmentIonIndex fragmentIndex) {
+    this(description, rows, parameters, library, fragmentIndex, null);
   }
 
   public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
-      ParameterSet parameters, int startEntry, List<SpectralDBEntry> list,
+      ParameterSet parameters, CompiledSpectralLibrary library, FragmentIonIndex fragmentIndex,
       Consumer<SpectralDBPeakIdentity> matchListener) {
     this.description = description;
     this.rows = rows;
     this.parameters = parameters;
-    this.startEntry = startEntry;
-    this.list = list;
+    this.library = library;
+    this.fragmentIndex = fragmentIndex;
     this.matchListener = matchListener;
-    listsize = list.size();
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
     mzToleranceSpectra =
@@ -151,6 +165,39 @@ public class RowsSpectralMatchTask extends AbstractTask {
     totalRows = rows.length;
   }
 
+  /**
+   * Splits the rows into chunks, each searched against the whole library by one task
+   */
+  static List<PeakListRow[]> splitRows(PeakListRow[] rows) {
+    List<PeakListRow[]> chunks = new ArrayList<>();
+    for (int start = 0; start < rows.length; start += ROWS_PER_TASK)
+      chunks.add(Arrays.copyOfRange(rows, start, Math.min(rows.length, start + ROWS_PER_TASK)));
+    return chunks;
+  }
+
+  /**
+   * Builds the index of the fragment ions of the whole library once for all tasks searching it
+   * 
+   * @return the index, or null if no minimum number of matched signals is required
+   */
+  static FragmentIonIndex createFragmentIndex(CompiledSpectralLibrary library,
+      ParameterSet parameters) throws IOException {
+    final int minMatch =
+        parameters.getParameter(LocalSpectralDBSearchParameters.minMatch).getValue();
+    if (minMatch <= 0)
+      return null;
+
+    DoubleArrayList mzValues = new DoubleArrayList();
+    IntArrayList entries = new IntArrayList();
+    for (int e = 0; e < library.size(); e++) {
+      for (DataPoint dp : library.getEntry(e).getDataPoints()) {
+        mzValues.add(dp.getMZ());
+        entries.add(e);
+      }
+    }
+    return new FragmentIonIndex(mzValues.elements(), entries.elements(), mzValues.size());
+  }
+
   /**
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
@@ -166,9 +213,8 @@ public class RowsSpectralMatchTask extends AbstractTask {
    */
   @Override
   public String getTaskDescription() {
-    return MessageFormat.format(
-        "(entry {2}-{3}) spectral database identification in {0} using database {1}", description,
-        dataBaseFile.getName(), startEntry, startEntry + listsize - 1);
+    return MessageFormat.format("Spectral database identification in {0} using database {1}",
+        description, dataBaseFile.getName());
   }
 
   /**
@@ -184,6 +230,13 @@ public class RowsSpectralMatchTask extends AbstractTask {
         return;
       }
 
+      // library entries within the precursor m/z tolerance
+      Range<Integer> candidates = getCandidates(row);
+      if (candidates.isEmpty()) {
+        finishedRows++;
+        continue;
+      }
+
       try {
         // All MS2 or only best MS2 scan
         // best MS1 scan
@@ -197,13 +250,38 @@ public class RowsSpectralMatchTask extends AbstractTask {
             rowMassList = removeIsotopes(rowMassList);
           rowMassLists.add(rowMassList);
         }
+        // values of each row spectrum, read once for all library entries
+        List<DataPointArrays> rowArrays = new ArrayList<>();
+        for (DataPoint[] rowMassList : rowMassLists)
+          rowArrays.add(new DataPointArrays(rowMassList));
+
+        // signals shared with each library entry (upper bound of matched signals)
+        List<int[]> sharedSignals = new ArrayList<>();
+        if (fragmentIndex != null) {
+          for (DataPoint[] rowMassList : rowMassLists)
+            sharedSignals.add(fragmentIndex.countSharedIons(rowMassList,
+                // the tolerance is applied to the library m/z during the alignment, widen the
+                // range so that it covers all library signals which can match
+                mz -> mzToleranceSpectra
+                    .getToleranceRange(mzToleranceSpectra.getToleranceRange(mz)),
+                candidates));
+        }
 
-        // match against all library entries
-        for (SpectralDBEntry ident : list) {
+        // match against all candidate library entries
+        final int first = candidates.lowerEndpoint();
+        for (int e = first; e < candidates.upperEndpoint(); e++) {
+          // the entry is only read from the library if a scan can reach the minimum number of
+          // matched signals
+          SpectralDBEntry ident = null;
           SpectralDBPeakIdentity best = null;
           // match all scans against this ident to find best match
           for (int i = 0; i < scans.size(); i++) {
-            SpectralSimilarity sim = spectraDBMatch(row, rowMassLists.get(i), ident);
+            // cannot reach the minimum number of matched signals
+            if (fragmentIndex != null && sharedSignals.get(i)[e - first] < minMatch)
+              continue;
+            if (ident == null)
+              ident = library.getEntry(e);
+            SpectralSimilarity sim = spectraDBMatch(row, rowArrays.get(i), ident);
             if (sim != null
                 && (!needsIsotopePattern || SpectralMatchTask.checkForIsotopePattern(sim,
                     mzToleranceSpectra, minMatchedIsoSignals))
@@ -222,13 +300,21 @@ public class RowsSpectralMatchTask extends AbstractTask {
       } catch (MissingMassListException e) {
         logger.log(Level.WARNING, "No mass list in spectrum for rowID=" + row.getID(), e);
         errorCounter++;
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Cannot read compiled spectral library of " + dataBaseFile, e);
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Cannot read compiled spectral library of " + dataBaseFile + ": " + e);
+        library = null;
+        fragmentIndex = null;
+        return;
       }
       // check for max error (missing masslist)
       if (errorCounter > MAX_ERROR) {
         logger.log(Level.WARNING, "Data base matching failed. To many missing mass lists ");
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Data base matching failed. To many missing mass lists ");
-        list = null;
+        library = null;
+        fragmentIndex = null;
         return;
       }
       // next row
@@ -240,7 +326,8 @@ public class RowsSpectralMatchTask extends AbstractTask {
     // Repaint the window to reflect the change in the feature list
     repaintWindow();
 
-    list = null;
+    library = null;
+    fragmentIndex = null;
 
     setStatus(TaskStatus.FINISHED);
   }
@@ -267,22 +354,24 @@ public class RowsSpectralMatchTask extends AbstractTask {
    * @param ident
    * @return spectral similarity or null if no match
    */
-  private SpectralSimilarity spectraDBMatch(PeakListRow row, DataPoint[] rowMassList,
+  private SpectralSimilarity spectraDBMatch(PeakListRow row, DataPointArrays rowMassList,
       SpectralDBEntry ident) {
     // retention time
     // MS level 1 or check precursorMZ
     if (checkRT(row, ident) && (msLevel == 1 || checkPrecursorMZ(row, ident))) {
-      DataPoint[] library = ident.getDataPoints();
+      // the values of the entry are only read again if the spectrum is modified
+      DataPointArrays library = ident.getDataPointArrays();
       if (removeIsotopes)
-        library = removeIsotopes(library);
+        library = new DataPointArrays(removeIsotopes(ident.getDataPoints()));
 
       // crop the spectra to their overlapping mz range
       // helpful when comparing spectra, acquired with different fragmentation energy
-      DataPoint[] query = rowMassList;
+      DataPointArrays query = rowMassList;
       if (cropSpectraToOverlap) {
-        DataPoint[][] cropped = ScanAlignment.cropToOverlap(mzToleranceSpectra, library, query);
-        library = cropped[0];
-        query = cropped[1];
+        DataPoint[][] cropped = ScanAlignment.cropToOverlap(mzToleranceSpectra,
+            library.getDataPoints(), query.getDataPoints());
+        library = new DataPointArrays(cropped[0]);
+        query = new DataPointArrays(cropped[1]);
       }
 
       // check spectra similarity
@@ -301,11 +390,28 @@ public class RowsSpectralMatchTask extends AbstractTask {
    * @param b
    * @return positive match with similarity or null if criteria was not met
    */
-  private SpectralSimilarity createSimilarity(DataPoint[] library, DataPoint[] query) {
+  private SpectralSimilarity createSimilarity(DataPointArrays library, DataPointArrays query) {
     return simFunction.getModule().getSimilarity(simFunction.getParameterSet(), mzToleranceSpectra,
         minMatch, library, query);
   }
 
+  /**
+   * Library entries which can match the precursor m/z of this row. Binary search in the library,
+   * which is sorted by precursor m/z.
+   * 
+   * @param row
+   * @return range of library indices, all entries for MS1
+   */
+  private Range<Integer> getCandidates(PeakListRow row) {
+    if (mzTolerancePrecursor == null)
+      return Range.closedOpen(0, library.size());
+    // the tolerance is applied to the library precursor m/z in checkPrecursorMZ, widen the range
+    // so that it covers all entries which can pass this check
+    Range<Double> range = mzTolerancePrecursor
+        .getToleranceRange(mzTolerancePrecursor.getToleranceRange(row.getAverageMZ()));
+    return library.getEntriesInPrecursorRange(range);
+  }
+
   private boolean checkPrecursorMZ(PeakListRow row, SpectralDBEntry ident) {
     if (ident.getPrecursorMZ() == null)
       return false;
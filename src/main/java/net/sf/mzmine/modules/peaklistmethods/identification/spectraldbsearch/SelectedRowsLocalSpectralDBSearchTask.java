@@ -34,9 +34,9 @@ import net.sf.mzmine.modules.visualization.spectra.spectralmatchresults.SpectraI
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import net.sf.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import net.sf.mzmine.util.FragmentIonIndex;
+import net.sf.mzmine.util.spectraldb.parser.CachedLibraryParser;
+import net.sf.mzmine.util.spectraldb.parser.CompiledSpectralLibrary;
 import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
 
 public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
@@ -125,7 +125,7 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
-      } else {
+      } else if (!isCanceled()) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
@@ -154,35 +154,33 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
   }
 
   /**
-   * Load all library entries from data base file
+   * Load the library once and start one task per chunk of rows, all sharing the library and its
+   * fragment ion index
    * 
    * @param dataBaseFile
-   * @return
+   * @return the started tasks, empty if the library was empty or loading was canceled
    */
   private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
       throws UnsupportedFormatException, IOException {
-    //
     List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakListRows.length + " rows",
-            peakListRows, parameters, alreadyProcessed + 1, list, (match) -> {
-              // one selected row -> show in dialog
-              if (resultWindow != null) {
-                resultWindow.addMatches(match);
-                resultWindow.revalidate();
-                resultWindow.repaint();
-              }
-            });
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    CompiledSpectralLibrary library = CachedLibraryParser.loadLibrary(this, dataBaseFile);
+    if (library == null || library.size() == 0 || isCanceled())
+      return tasks;
+    FragmentIonIndex fragmentIndex = RowsSpectralMatchTask.createFragmentIndex(library, parameters);
+
+    for (PeakListRow[] chunk : RowsSpectralMatchTask.splitRows(peakListRows)) {
+      RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakListRows.length + " rows", chunk,
+          parameters, library, fragmentIndex, (match) -> {
+            // one selected row -> show in dialog
+            if (resultWindow != null) {
+              resultWindow.addMatches(match);
+              resultWindow.revalidate();
+              resultWindow.repaint();
+            }
+          });
+      MZmineCore.getTaskController().addTask(task);
+      tasks.add(task);
+    }
     return tasks;
   }
 
@@ -18,14 +18,26 @@
 
 package net.sf.mzmine.modules.peaklistmethods.io.csvexport;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakIdentity;
@@ -39,12 +51,21 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
+import net.sf.mzmine.util.WorkerPoolUtils;
 
+/**
+ * Exports feature lists to CSV files. The rows are formatted in blocks on the shared worker threads
+ * and written in their original order through a large buffer, optionally gzip-compressed. Only a
+ * limited number of formatted blocks is kept in memory at a time.
+ */
 public class CSVExportTask extends AbstractTask {
 
+  // Number of rows formatted together by one worker thread
+  private static final int ROWS_PER_BLOCK = 500;
 
   private PeakList[] peakLists;
-  private int processedRows = 0, totalRows = 0;
+  private volatile int processedRows = 0;
+  private int totalRows = 0;
 
   // parameter values
   private File fileName;
@@ -55,6 +76,10 @@ public class CSVExportTask extends AbstractTask {
   private Boolean exportAllPeakInfo;
   private String idSeparator;
   private RowFilter filter;
+  private boolean compress = false;
+
+  // Formats the blocks of rows, the shared worker pool if not set
+  private ExecutorService executor = null;
 
   public CSVExportTask(ParameterSet parameters) {
     this.peakLists =
@@ -66,6 +91,7 @@ public class CSVExportTask extends AbstractTask {
     exportAllPeakInfo = parameters.getParameter(CSVExportParameters.exportAllPeakInfo).getValue();
     idSeparator = parameters.getParameter(CSVExportParameters.idSeparator).getValue();
     this.filter = parameters.getParameter(CSVExportParameters.filter).getValue();
+    this.compress = parameters.getParameter(CSVExportParameters.compress).getValue();
 
   }
 
@@ -94,6 +120,13 @@ public class CSVExportTask extends AbstractTask {
     this.filter = filter;
   }
 
+  /**
+   * Formats the blocks of rows with the given executor instead of the shared worker pool
+   */
+  void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
   @Override
   public double getFinishedPercentage() {
     if (totalRows == 0) {
@@ -120,6 +153,15 @@ public class CSVExportTask extends AbstractTask {
       totalRows += peakList.getNumberOfRows();
     }
 
+    exportPeakLists(substitute);
+
+    if (getStatus() == TaskStatus.PROCESSING)
+      setStatus(TaskStatus.FINISHED);
+
+  }
+
+  private void exportPeakLists(boolean substitute) {
+
     // Process feature lists
     for (PeakList peakList : peakLists) {
 
@@ -133,11 +175,17 @@ public class CSVExportTask extends AbstractTask {
             fileName.getPath().replaceAll(Pattern.quote(plNamePattern), cleanPlName);
         curFile = new File(newFilename);
       }
+      if (compress && !curFile.getName().endsWith(".gz")) {
+        curFile = new File(curFile.getPath() + ".gz");
+      }
 
       // Open file
-      FileWriter writer;
+      Writer writer;
       try {
-        writer = new FileWriter(curFile);
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(curFile), 1 << 20);
+        if (compress)
+          stream = new GZIPOutputStream(stream, 1 << 16);
+        writer = new OutputStreamWriter(stream);
       } catch (Exception e) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Could not open file " + curFile + " for writing.");
@@ -147,7 +195,12 @@ public class CSVExportTask extends AbstractTask {
       exportPeakList(peakList, writer, curFile);
 
       // Cancel?
-      if (isCanceled()) {
+      if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          // The export failed already
+        }
         return;
       }
 
@@ -166,17 +219,13 @@ public class CSVExportTask extends AbstractTask {
         break;
     }
 
-    if (getStatus() == TaskStatus.PROCESSING)
-      setStatus(TaskStatus.FINISHED);
-
   }
 
-  private void exportPeakList(PeakList peakList, FileWriter writer, File fileName) {
-    NumberFormat mzForm = MZmineCore.getConfiguration().getMZFormat();
+  private void exportPeakList(PeakList peakList, Writer writer, File fileName) {
     RawDataFile rawDataFiles[] = peakList.getRawDataFiles();
 
     // Buffer for writing
-    StringBuffer line = new StringBuffer();
+    StringBuilder line = new StringBuilder();
 
     // Write column headers
 
@@ -190,18 +239,21 @@ public class CSVExportTask extends AbstractTask {
       line.append(name + fieldSeparator);
     }
 
-    // peak Information
-    Set<String> peakInformationFields = new HashSet<>();
+    // Select the exported rows and collect the peak information fields in one pass
+    Set<String> peakInformationFields = new LinkedHashSet<>();
+    List<PeakListRow> exportedRows = new ArrayList<>();
 
     for (PeakListRow row : peakList.getRows()) {
-      if (!filter.filter(row))
+      if (!filter.filter(row)) {
+        processedRows++;
         continue;
-      if (row.getPeakInformation() != null) {
-        for (String key : row.getPeakInformation().getAllProperties().keySet()) {
-          peakInformationFields.add(key);
-        }
+      }
+      exportedRows.add(row);
+      if (exportAllPeakInfo && (row.getPeakInformation() != null)) {
+        peakInformationFields.addAll(row.getPeakInformation().getAllProperties().keySet());
       }
     }
+    final String informationFields[] = peakInformationFields.toArray(new String[0]);
 
     if (exportAllPeakInfo)
       for (String field : peakInformationFields)
@@ -228,38 +280,81 @@ public class CSVExportTask extends AbstractTask {
       return;
     }
 
-    // Write data rows
-    for (PeakListRow peakListRow : peakList.getRows()) {
+    // Write data rows. Blocks of rows are formatted in parallel and written in their order.
+    final ExecutorService executor =
+        this.executor != null ? this.executor : WorkerPoolUtils.getWorkerPool();
+    final int maxPendingBlocks = 2 * WorkerPoolUtils.getNumberOfWorkers();
+    ArrayDeque<Future<String>> pendingBlocks = new ArrayDeque<>();
+    ArrayDeque<Integer> pendingBlockSizes = new ArrayDeque<>();
+    try {
+      for (int start = 0; start < exportedRows.size(); start += ROWS_PER_BLOCK) {
 
-      if (!filter.filter(peakListRow)) {
-        processedRows++;
-        continue;
-      }
+        // Cancel?
+        if (isCanceled()) {
+          return;
+        }
 
-      // Cancel?
-      if (isCanceled()) {
-        return;
+        final List<PeakListRow> block =
+            exportedRows.subList(start, Math.min(start + ROWS_PER_BLOCK, exportedRows.size()));
+        pendingBlocks.add(
+            executor.submit(() -> formatRows(block, rawDataFiles, informationFields)));
+        pendingBlockSizes.add(block.size());
+
+        if (pendingBlocks.size() >= maxPendingBlocks) {
+          writer.write(pendingBlocks.poll().get());
+          processedRows += pendingBlockSizes.poll();
+        }
       }
+      while (!pendingBlocks.isEmpty()) {
+        if (isCanceled()) {
+          return;
+        }
+        writer.write(pendingBlocks.poll().get());
+        processedRows += pendingBlockSizes.poll();
+      }
+    } catch (IOException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not write to file " + fileName);
+      return;
+    } catch (InterruptedException | ExecutionException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not export feature list " + peakList + ": " + e.getCause());
+      return;
+    } finally {
+      for (Future<String> pendingBlock : pendingBlocks)
+        pendingBlock.cancel(false);
+    }
+  }
 
-      // Reset the buffer
-      line.setLength(0);
+  /**
+   * Formats the lines of the given rows. This runs on the worker threads, so the number formats of
+   * the configuration, which are not thread-safe, are copied on first use.
+   */
+  private String formatRows(List<PeakListRow> rows, RawDataFile rawDataFiles[],
+      String informationFields[]) {
+
+    NumberFormat mzFormat = null, rtFormat = null;
+    int length;
+
+    StringBuilder line = new StringBuilder();
+    for (PeakListRow row : rows) {
 
       // Common elements
       length = commonElements.length;
       for (int i = 0; i < length; i++) {
         switch (commonElements[i]) {
           case ROW_ID:
-            line.append(peakListRow.getID() + fieldSeparator);
+            line.append(row.getID() + fieldSeparator);
             break;
           case ROW_MZ:
-            line.append(peakListRow.getAverageMZ() + fieldSeparator);
+            line.append(row.getAverageMZ() + fieldSeparator);
             break;
           case ROW_RT:
-            line.append(peakListRow.getAverageRT() + fieldSeparator);
+            line.append(row.getAverageRT() + fieldSeparator);
             break;
           case ROW_IDENTITY:
             // Identity elements
-            PeakIdentity peakId = peakListRow.getPreferredPeakIdentity();
+            PeakIdentity peakId = row.getPreferredPeakIdentity();
             if (peakId == null) {
               line.append(fieldSeparator);
               break;
@@ -270,7 +365,7 @@ public class CSVExportTask extends AbstractTask {
             break;
           case ROW_IDENTITY_ALL:
             // Identity elements
-            PeakIdentity[] peakIdentities = peakListRow.getPeakIdentities();
+            PeakIdentity[] peakIdentities = row.getPeakIdentities();
             propertyValue = "";
             for (int x = 0; x < peakIdentities.length; x++) {
               if (x > 0)
@@ -281,7 +376,7 @@ public class CSVExportTask extends AbstractTask {
             line.append(propertyValue + fieldSeparator);
             break;
           case ROW_IDENTITY_DETAILS:
-            peakId = peakListRow.getPreferredPeakIdentity();
+            peakId = row.getPreferredPeakIdentity();
             if (peakId == null) {
               line.append(fieldSeparator);
               break;
@@ -293,12 +388,12 @@ public class CSVExportTask extends AbstractTask {
             line.append(propertyValue + fieldSeparator);
             break;
           case ROW_COMMENT:
-            String comment = escapeStringForCSV(peakListRow.getComment());
+            String comment = escapeStringForCSV(row.getComment());
             line.append(comment + fieldSeparator);
             break;
           case ROW_PEAK_NUMBER:
             int numDetected = 0;
-            for (Feature p : peakListRow.getPeaks()) {
+            for (Feature p : row.getPeaks()) {
               if (p.getFeatureStatus() == FeatureStatus.DETECTED) {
                 numDetected++;
               }
@@ -310,16 +405,14 @@ public class CSVExportTask extends AbstractTask {
 
       // peak Information
       if (exportAllPeakInfo) {
-        if (peakListRow.getPeakInformation() != null) {
-          Map<String, String> allPropertiesMap =
-              peakListRow.getPeakInformation().getAllProperties();
-
-          for (String key : peakInformationFields) {
-            String value = allPropertiesMap.get(key);
-            if (value == null)
-              value = "";
-            line.append(value + fieldSeparator);
-          }
+        Map<String, String> allPropertiesMap = row.getPeakInformation() == null ? Map.of()
+            : row.getPeakInformation().getAllProperties();
+
+        for (String key : informationFields) {
+          String value = allPropertiesMap.get(key);
+          if (value == null)
+            value = "";
+          line.append(value + fieldSeparator);
         }
       }
 
@@ -327,14 +420,18 @@ public class CSVExportTask extends AbstractTask {
       length = dataFileElements.length;
       for (RawDataFile dataFile : rawDataFiles) {
         for (int i = 0; i < length; i++) {
-          Feature peak = peakListRow.getPeak(dataFile);
+          Feature peak = row.getPeak(dataFile);
           if (peak != null) {
             switch (dataFileElements[i]) {
               case PEAK_STATUS:
                 line.append(peak.getFeatureStatus() + fieldSeparator);
                 break;
               case PEAK_NAME:
-                line.append(PeakUtils.peakToString(peak) + fieldSeparator);
+                if (mzFormat == null) {
+                  mzFormat = (NumberFormat) MZmineCore.getConfiguration().getMZFormat().clone();
+                  rtFormat = (NumberFormat) MZmineCore.getConfiguration().getRTFormat().clone();
+                }
+                line.append(PeakUtils.peakToString(peak, mzFormat, rtFormat) + fieldSeparator);
                 break;
               case PEAK_MZ:
                 line.append(peak.getMZ() + fieldSeparator);
@@ -394,17 +491,9 @@ public class CSVExportTask extends AbstractTask {
       }
 
       line.append("\n");
-
-      try {
-        writer.write(line.toString());
-      } catch (Exception e) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Could not write to file " + fileName);
-        return;
-      }
-
-      processedRows++;
     }
+
+    return line.toString();
   }
 
   private String escapeStringForCSV(final String inputString) {
@@ -21,6 +21,7 @@ package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 
@@ -41,8 +42,17 @@ public class SQLExportParameters extends SimpleParameterSet {
   public static final BooleanParameter emptyExport = new BooleanParameter("Export empty feature list",
       "If selected, an empty feature list will be exported with null values for all column other than the rawdatafile and any constant values.");
 
+  public static final IntegerParameter batchSize = new IntegerParameter("Batch size",
+      "Number of table rows which are sent to the database together", 1000, 1, null);
+
+  public static final IntegerParameter numberOfConnections = new IntegerParameter(
+      "Database connections",
+      "Number of database connections used in parallel. Each connection exports its own part of the feature list into a staging table, and all parts are copied into the table together at the end.",
+      1, 1, null);
+
   public SQLExportParameters() {
-    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport});
+    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport,
+        batchSize, numberOfConnections});
   }
 
 }
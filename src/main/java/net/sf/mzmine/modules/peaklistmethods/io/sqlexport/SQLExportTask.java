@@ -23,7 +23,16 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
@@ -41,17 +50,30 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
 
+/**
+ * Exports a feature list into a database table. The insert statement is prepared once per
+ * connection and the rows are sent in JDBC batches. The rows can be split over several
+ * connections, each exporting its own part of the feature list into a staging table on its own
+ * thread. The staging tables are copied into the target table in a single transaction at the end,
+ * so the target table receives either all rows or none.
+ */
 class SQLExportTask extends AbstractTask {
 
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
   private final PeakList peakList;
   private final String connectionString;
   private final String tableName;
   private final SQLColumnSettings exportColumns;
   private final boolean emptyExport;
+  private final int batchSize;
+  private final int numberOfConnections;
 
-  private int processedRows = 0, totalRows = 0;
+  // Whether any column holds feature values, so one database row is inserted per raw data file
+  private final boolean loopDataFiles;
 
-  private Connection dbConnection;
+  private final AtomicInteger processedRows = new AtomicInteger();
+  private int totalRows = 0;
 
   SQLExportTask(ParameterSet parameters) {
 
@@ -63,6 +85,35 @@ class SQLExportTask extends AbstractTask {
     this.tableName = parameters.getParameter(SQLExportParameters.tableName).getValue();
     this.exportColumns = parameters.getParameter(SQLExportParameters.exportColumns).getValue();
     this.emptyExport = parameters.getParameter(SQLExportParameters.emptyExport).getValue();
+    this.batchSize = parameters.getParameter(SQLExportParameters.batchSize).getValue();
+    this.numberOfConnections =
+        parameters.getParameter(SQLExportParameters.numberOfConnections).getValue();
+
+    boolean featureColumns = false;
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
+      switch (dataType) {
+        case PEAKCHARGE:
+        case PEAKDURATION:
+        case PEAKSTATUS:
+        case PEAKMZ:
+        case PEAKRT:
+        case PEAKRT_START:
+        case PEAKRT_END:
+        case PEAKHEIGHT:
+        case PEAKAREA:
+        case DATAPOINTS:
+        case FWHM:
+        case TAILINGFACTOR:
+        case ASYMMETRYFACTOR:
+        case RAWFILE:
+          featureColumns = true;
+          break;
+        default:
+          break;
+      }
+    }
+    this.loopDataFiles = featureColumns;
 
   }
 
@@ -70,7 +121,7 @@ class SQLExportTask extends AbstractTask {
     if (totalRows == 0) {
       return 0;
     }
-    return (double) processedRows / (double) totalRows;
+    return (double) processedRows.get() / (double) totalRows;
   }
 
   public String getTaskDescription() {
@@ -80,77 +131,188 @@ class SQLExportTask extends AbstractTask {
   public void run() {
     setStatus(TaskStatus.PROCESSING);
 
+    PeakListRow rows[] = peakList.getRows();
+
     // Get number of rows
-    totalRows = peakList.getNumberOfRows();
+    totalRows = rows.length;
 
+    // Each connection exports a contiguous part of the rows
+    final int numberOfParts = Math.max(1, Math.min(numberOfConnections, rows.length));
+    List<Connection> dbConnections = new ArrayList<>();
     try {
-      this.dbConnection = DriverManager.getConnection(connectionString);
+      for (int i = 0; i < numberOfParts; i++) {
+        Connection dbConnection = DriverManager.getConnection(connectionString);
+        dbConnections.add(dbConnection);
+        dbConnection.setAutoCommit(false);
+      }
     } catch (SQLException e) {
+      closeConnections(dbConnections);
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Error connecting to the SQL database: " + e.toString());
       return;
     }
 
-    PeakListRow rows[] = peakList.getRows();
-
-    try {
-      dbConnection.setAutoCommit(false);
-
-      // If select, an empty row with just the raw data file
-      // information will be exported
-      if (rows.length < 1 && emptyExport) {
-        exportPeakListRow(null);
-      } else {
-        for (PeakListRow row : rows) {
-          if (getStatus() != TaskStatus.PROCESSING)
-            break;
-          exportPeakListRow(row);
-          processedRows++;
-        }
-      }
-      dbConnection.commit();
-      dbConnection.close();
-    } catch (SQLException e) {
-      setStatus(TaskStatus.ERROR);
-      setErrorMessage("Error running SQL query: " + e.toString());
-      return;
+    // If select, an empty row with just the raw data file
+    // information will be exported
+    if (rows.length < 1 && emptyExport) {
+      exportEmptyPeakList(dbConnections.get(0));
+    } else if (numberOfParts == 1) {
+      exportPeakListRows(dbConnections.get(0), tableName, rows, 0, rows.length, false);
+    } else {
+      exportParts(dbConnections, rows);
     }
 
+    closeConnections(dbConnections);
+
     if (getStatus() == TaskStatus.PROCESSING)
       setStatus(TaskStatus.FINISHED);
 
   }
 
-  private void exportPeakListRow(PeakListRow row) throws SQLException {
+  /**
+   * Exports each part of the rows into its own staging table, using one connection per part, and
+   * then copies all staging tables into the target table in one transaction. The staging tables
+   * are dropped at the end, also if the export failed or was canceled.
+   */
+  private void exportParts(List<Connection> dbConnections, PeakListRow rows[]) {
+
+    final int numberOfParts = dbConnections.size();
+    final Connection mainConnection = dbConnections.get(0);
 
-    // Cancel?
-    if (isCanceled()) {
+    // The staging tables have the exported columns of the target table, but no rows
+    final String suffix = Long.toString(System.currentTimeMillis(), 36);
+    final List<String> stagingTables = new ArrayList<>();
+    try (Statement statement = mainConnection.createStatement()) {
+      for (int i = 0; i < numberOfParts; i++) {
+        final String stagingTable = tableName + "_part" + i + "_" + suffix;
+        statement.executeUpdate("CREATE TABLE " + stagingTable + " AS SELECT " + getColumnList()
+            + " FROM " + tableName + " WHERE 1 = 0");
+        stagingTables.add(stagingTable);
+      }
+      mainConnection.commit();
+    } catch (SQLException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Error creating the staging tables: " + e.toString());
+      rollback(mainConnection);
+      dropTables(mainConnection, stagingTables);
       return;
     }
 
-    // Value for looping through raw data files
-    boolean loopDataFiles = false;
+    // The parts wait for the database most of the time, so they run on their own threads instead
+    // of the shared worker pool, which is sized for computations
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(numberOfParts, runnable -> {
+      Thread thread = new Thread(runnable, "SQL export thread " + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> parts = new ArrayList<>();
+      for (int i = 0; i < numberOfParts; i++) {
+        final Connection dbConnection = dbConnections.get(i);
+        final String stagingTable = stagingTables.get(i);
+        final int fromRow = (int) ((long) rows.length * i / numberOfParts);
+        final int toRow = (int) ((long) rows.length * (i + 1) / numberOfParts);
+        parts.add(executor.submit(
+            () -> exportPeakListRows(dbConnection, stagingTable, rows, fromRow, toRow, true)));
+      }
+      // Wait for all parts, the others stop on the status if one of them fails
+      for (Future<?> part : parts) {
+        try {
+          part.get();
+        } catch (ExecutionException e) {
+          setError("Error running SQL query: " + e.getCause().toString());
+        }
+      }
+    } catch (InterruptedException e) {
+      setError("Export interrupted");
+    } finally {
+      executor.shutdown();
+    }
 
-    StringBuilder sql = new StringBuilder();
-    sql.append("INSERT INTO ");
-    sql.append(tableName);
-    sql.append(" (");
-    for (int i = 0; i < exportColumns.getRowCount(); i++) {
-      sql.append(exportColumns.getValueAt(i, 0));
-      if (i < exportColumns.getRowCount() - 1)
-        sql.append(",");
+    // Copy all parts in one transaction
+    if (getStatus() == TaskStatus.PROCESSING) {
+      try (Statement statement = mainConnection.createStatement()) {
+        for (String stagingTable : stagingTables) {
+          statement.executeUpdate("INSERT INTO " + tableName + " (" + getColumnList() + ") SELECT "
+              + getColumnList() + " FROM " + stagingTable);
+        }
+        if (getStatus() == TaskStatus.PROCESSING)
+          mainConnection.commit();
+        else
+          mainConnection.rollback();
+      } catch (SQLException e) {
+        setError("Error running SQL query: " + e.toString());
+        rollback(mainConnection);
+      }
     }
-    sql.append(" ) VALUES (");
-    for (int i = 0; i < exportColumns.getRowCount(); i++) {
-      sql.append("?");
-      if (i < exportColumns.getRowCount() - 1)
-        sql.append(",");
+
+    dropTables(mainConnection, stagingTables);
+  }
+
+  /**
+   * Inserts the given rows into the given table using one prepared statement, sending a batch
+   * every batchSize database rows. The rows are committed at the end, or after each batch if
+   * commitBatches is set. If the task is canceled or another part fails meanwhile, the uncommitted
+   * rows are rolled back. SQL errors stop the whole task.
+   */
+  private void exportPeakListRows(Connection dbConnection, String table, PeakListRow rows[],
+      int fromRow, int toRow, boolean commitBatches) {
+
+    try (PreparedStatement statement =
+        dbConnection.prepareStatement(createInsertStatement(table))) {
+
+      int batchedRows = 0;
+      for (int i = fromRow; i < toRow; i++) {
+        if (getStatus() != TaskStatus.PROCESSING)
+          break;
+
+        PeakListRow row = rows[i];
+        for (RawDataFile rawDataFile : row.getRawDataFiles()) {
+          setStatementValues(statement, row, rawDataFile);
+          statement.addBatch();
+          batchedRows++;
+
+          // If no data file elements are selected then don't loop through
+          // all
+          // data files in feature list
+          if (!loopDataFiles) {
+            break;
+          }
+        }
+
+        if (batchedRows >= batchSize) {
+          statement.executeBatch();
+          if (commitBatches)
+            dbConnection.commit();
+          batchedRows = 0;
+        }
+        processedRows.incrementAndGet();
+      }
+
+      if (getStatus() != TaskStatus.PROCESSING) {
+        dbConnection.rollback();
+        return;
+      }
+
+      if (batchedRows > 0)
+        statement.executeBatch();
+      dbConnection.commit();
+
+    } catch (SQLException e) {
+      setError("Error running SQL query: " + e.toString());
+      rollback(dbConnection);
     }
-    sql.append(")");
+  }
 
-    PreparedStatement statement = dbConnection.prepareStatement(sql.toString());
+  /**
+   * Inserts a single row with just the raw data file information and any constant values
+   */
+  private void exportEmptyPeakList(Connection dbConnection) {
+
+    try (PreparedStatement statement =
+        dbConnection.prepareStatement(createInsertStatement(tableName))) {
 
-    if (row == null) {
       for (int i = 0; i < exportColumns.getRowCount(); i++) {
         SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
         String dataValue = (String) exportColumns.getValueAt(i, 2);
@@ -168,144 +330,196 @@ class SQLExportTask extends AbstractTask {
         }
       }
       statement.executeUpdate();
+      dbConnection.commit();
+
+    } catch (SQLException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Error running SQL query: " + e.toString());
+      rollback(dbConnection);
     }
+  }
 
-    else {
-      for (RawDataFile rawDataFile : row.getRawDataFiles()) {
-        Feature peak = row.getPeak(rawDataFile);
-
-        for (int i = 0; i < exportColumns.getRowCount(); i++) {
-          SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
-          String dataValue = (String) exportColumns.getValueAt(i, 2);
-          switch (dataType) {
-            case CONSTANT:
-              statement.setString(i + 1, dataValue);
-              break;
-            case MZ:
-              statement.setDouble(i + 1, row.getAverageMZ());
-              break;
-            case RT:
-              statement.setDouble(i + 1, row.getAverageRT());
-              break;
-            case ID:
-              statement.setInt(i + 1, row.getID());
-              break;
-            case PEAKCHARGE:
-              statement.setDouble(i + 1, peak.getCharge());
-              loopDataFiles = true;
-              break;
-            case PEAKDURATION:
-              statement.setDouble(i + 1, RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
-              loopDataFiles = true;
-              break;
-            case PEAKSTATUS:
-              statement.setString(i + 1, peak.getFeatureStatus().name());
-              loopDataFiles = true;
-              break;
-            case PEAKMZ:
-              statement.setDouble(i + 1, peak.getMZ());
-              loopDataFiles = true;
-              break;
-            case PEAKRT:
-              statement.setDouble(i + 1, peak.getRT());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_START:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().lowerEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_END:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().upperEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKHEIGHT:
-              statement.setDouble(i + 1, peak.getHeight());
-              loopDataFiles = true;
-              break;
-            case PEAKAREA:
-              statement.setDouble(i + 1, peak.getArea());
-              loopDataFiles = true;
-              break;
-            case DATAPOINTS:
-              statement.setDouble(i + 1, peak.getScanNumbers().length);
-              loopDataFiles = true;
-              break;
-            case FWHM:
-              statement.setDouble(i + 1, peak.getFWHM());
-              loopDataFiles = true;
-              break;
-            case TAILINGFACTOR:
-              statement.setDouble(i + 1, peak.getTailingFactor());
-              loopDataFiles = true;
-              break;
-            case ASYMMETRYFACTOR:
-              statement.setDouble(i + 1, peak.getAsymmetryFactor());
-              loopDataFiles = true;
-              break;
-            case RAWFILE:
-              statement.setString(i + 1, rawDataFile.getName());
-              loopDataFiles = true;
-              break;
-            case HEIGHT:
-              statement.setDouble(i + 1, row.getAverageHeight());
-              break;
-            case AREA:
-              statement.setDouble(i + 1, row.getAverageArea());
-              break;
-            case COMMENT:
-              statement.setString(i + 1, row.getComment());
-              break;
-            case IDENTITY:
-              PeakIdentity id = row.getPreferredPeakIdentity();
-              if (id != null) {
-                statement.setString(i + 1, id.getName());
-              } else {
-                statement.setNull(i + 1, Types.VARCHAR);
-              }
-              break;
-            case ISOTOPEPATTERN:
-              IsotopePattern isotopes = row.getBestIsotopePattern();
-              if (isotopes == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              DataPoint dataPoints[] = isotopes.getDataPoints();
-              byte bytes[] = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
-              break;
-            case MSMS:
-              int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
-              // Check if there is any MS/MS scan
-              if (msmsScanNum <= 0) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              RawDataFile dataFile = row.getBestPeak().getDataFile();
-              Scan msmsScan = dataFile.getScan(msmsScanNum);
-              MassList msmsMassList = msmsScan.getMassList(dataValue);
-              // Check if there is a masslist for the scan
-              if (msmsMassList == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              dataPoints = msmsMassList.getDataPoints();
-              bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
-              break;
-            default:
-              break;
-          }
-        }
-        statement.executeUpdate();
+  private String createInsertStatement(String table) {
 
-        // If no data file elements are selected then don't loop through
-        // all
-        // data files in feature list
-        if (!loopDataFiles) {
+    StringBuilder sql = new StringBuilder();
+    sql.append("INSERT INTO ");
+    sql.append(table);
+    sql.append(" (");
+    sql.append(getColumnList());
+    sql.append(" ) VALUES (");
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      sql.append("?");
+      if (i < exportColumns.getRowCount() - 1)
+        sql.append(",");
+    }
+    sql.append(")");
+
+    return sql.toString();
+  }
+
+  private String getColumnList() {
+    StringBuilder columns = new StringBuilder();
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      columns.append(exportColumns.getValueAt(i, 0));
+      if (i < exportColumns.getRowCount() - 1)
+        columns.append(",");
+    }
+    return columns.toString();
+  }
+
+  private void setStatementValues(PreparedStatement statement, PeakListRow row,
+      RawDataFile rawDataFile) throws SQLException {
+
+    Feature peak = row.getPeak(rawDataFile);
+
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
+      String dataValue = (String) exportColumns.getValueAt(i, 2);
+      switch (dataType) {
+        case CONSTANT:
+          statement.setString(i + 1, dataValue);
           break;
-        }
+        case MZ:
+          statement.setDouble(i + 1, row.getAverageMZ());
+          break;
+        case RT:
+          statement.setDouble(i + 1, row.getAverageRT());
+          break;
+        case ID:
+          statement.setInt(i + 1, row.getID());
+          break;
+        case PEAKCHARGE:
+          statement.setDouble(i + 1, peak.getCharge());
+          break;
+        case PEAKDURATION:
+          statement.setDouble(i + 1, RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
+          break;
+        case PEAKSTATUS:
+          statement.setString(i + 1, peak.getFeatureStatus().name());
+          break;
+        case PEAKMZ:
+          statement.setDouble(i + 1, peak.getMZ());
+          break;
+        case PEAKRT:
+          statement.setDouble(i + 1, peak.getRT());
+          break;
+        case PEAKRT_START:
+          statement.setDouble(i + 1, peak.getRawDataPointsRTRange().lowerEndpoint());
+          break;
+        case PEAKRT_END:
+          statement.setDouble(i + 1, peak.getRawDataPointsRTRange().upperEndpoint());
+          break;
+        case PEAKHEIGHT:
+          statement.setDouble(i + 1, peak.getHeight());
+          break;
+        case PEAKAREA:
+          statement.setDouble(i + 1, peak.getArea());
+          break;
+        case DATAPOINTS:
+          statement.setDouble(i + 1, peak.getScanNumbers().length);
+          break;
+        case FWHM:
+          statement.setDouble(i + 1, peak.getFWHM());
+          break;
+        case TAILINGFACTOR:
+          statement.setDouble(i + 1, peak.getTailingFactor());
+          break;
+        case ASYMMETRYFACTOR:
+          statement.setDouble(i + 1, peak.getAsymmetryFactor());
+          break;
+        case RAWFILE:
+          statement.setString(i + 1, rawDataFile.getName());
+          break;
+        case HEIGHT:
+          statement.setDouble(i + 1, row.getAverageHeight());
+          break;
+        case AREA:
+          statement.setDouble(i + 1, row.getAverageArea());
+          break;
+        case COMMENT:
+          statement.setString(i + 1, row.getComment());
+          break;
+        case IDENTITY:
+          PeakIdentity id = row.getPreferredPeakIdentity();
+          if (id != null) {
+            statement.setString(i + 1, id.getName());
+          } else {
+            statement.setNull(i + 1, Types.VARCHAR);
+          }
+          break;
+        case ISOTOPEPATTERN:
+          IsotopePattern isotopes = row.getBestIsotopePattern();
+          if (isotopes == null) {
+            statement.setNull(i + 1, Types.BLOB);
+            break;
+          }
+          DataPoint dataPoints[] = isotopes.getDataPoints();
+          byte bytes[] = ScanUtils.encodeDataPointsToBytes(dataPoints);
+          ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+          statement.setBlob(i + 1, is);
+          break;
+        case MSMS:
+          int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
+          // Check if there is any MS/MS scan
+          if (msmsScanNum <= 0) {
+            statement.setNull(i + 1, Types.BLOB);
+            break;
+          }
+          RawDataFile dataFile = row.getBestPeak().getDataFile();
+          Scan msmsScan = dataFile.getScan(msmsScanNum);
+          MassList msmsMassList = msmsScan.getMassList(dataValue);
+          // Check if there is a masslist for the scan
+          if (msmsMassList == null) {
+            statement.setNull(i + 1, Types.BLOB);
+            break;
+          }
+          dataPoints = msmsMassList.getDataPoints();
+          bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
+          is = new ByteArrayInputStream(bytes);
+          statement.setBlob(i + 1, is);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Reports the first error of all parts
+   */
+  private synchronized void setError(String message) {
+    if (getStatus() == TaskStatus.PROCESSING) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage(message);
+    }
+  }
+
+  private void dropTables(Connection dbConnection, List<String> tables) {
+    for (String table : tables) {
+      try (Statement statement = dbConnection.createStatement()) {
+        statement.executeUpdate("DROP TABLE " + table);
+        dbConnection.commit();
+      } catch (SQLException e) {
+        logger.warning("Could not drop the staging table " + table + ": " + e);
+        rollback(dbConnection);
+      }
+    }
+  }
+
+  private void rollback(Connection dbConnection) {
+    try {
+      dbConnection.rollback();
+    } catch (SQLException e) {
+      // The connection is closed anyway, which discards the uncommitted rows
+    }
+  }
+
+  private void closeConnections(List<Connection> dbConnections) {
+    for (Connection dbConnection : dbConnections) {
+      try {
+        dbConnection.close();
+      } catch (SQLException e) {
+        // The export is finished or failed already
       }
     }
   }
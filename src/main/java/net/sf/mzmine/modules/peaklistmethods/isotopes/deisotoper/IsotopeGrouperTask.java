@@ -19,9 +19,11 @@
 package net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper;
 
 import java.util.Arrays;
-import java.util.Vector;
 import java.util.logging.Logger;
 
+import com.google.common.collect.Range;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
@@ -41,6 +43,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZRTRangeIndex;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.SortingDirection;
@@ -62,6 +65,12 @@ class IsotopeGrouperTask extends AbstractTask {
    */
   private static final double isotopeDistance = 1.0033;
 
+  /**
+   * Slack added to the m/z window of the isotope candidates, so that rounding of the shifted m/z
+   * values cannot drop a candidate. The exact tolerance is checked afterwards.
+   */
+  private static final double mzWindowSlack = 1e-6;
+
   private final MZmineProject project;
   private PeakList peakList, deisotopedPeakList;
 
@@ -76,6 +85,14 @@ class IsotopeGrouperTask extends AbstractTask {
   private int maximumCharge;
   private ParameterSet parameters;
 
+  // Index of the sorted peaks by m/z
+  private MZRTRangeIndex<Feature> mzIndex;
+
+  // Fitted peaks of the current pattern are marked with the current fit number, so the marks never
+  // need to be cleared
+  private int fittedMarks[];
+  private int fitNumber;
+
   /**
    * @param rawDataFile
    * @param parameters
@@ -140,6 +157,12 @@ class IsotopeGrouperTask extends AbstractTask {
     // Loop through all peaks
     totalPeaks = sortedPeaks.length;
 
+    // Index the m/z values of the peaks. Candidate isotopes are looked up by their expected m/z and
+    // then checked for the exact m/z and RT tolerances.
+    mzIndex = new MZRTRangeIndex<>(Arrays.asList(sortedPeaks), Feature::getMZ, Feature::getRT);
+    fittedMarks = new int[totalPeaks];
+    fitNumber = 0;
+
     for (int ind = 0; ind < totalPeaks; ind++) {
 
       if (isCanceled())
@@ -156,11 +179,14 @@ class IsotopeGrouperTask extends AbstractTask {
       // Check which charge state fits best around this peak
       int bestFitCharge = 0;
       int bestFitScore = -1;
-      Vector<Feature> bestFitPeaks = null;
+      IntArrayList bestFitPeaks = null;
       for (int charge : charges) {
 
-        Vector<Feature> fittedPeaks = new Vector<Feature>();
-        fittedPeaks.add(aPeak);
+        // Positions of the fitted peaks in the sortedPeaks array
+        IntArrayList fittedPeaks = new IntArrayList();
+        fitNumber++;
+        fittedPeaks.add(ind);
+        fittedMarks[ind] = fitNumber;
         fitPattern(fittedPeaks, aPeak, charge, sortedPeaks);
 
         int score = fittedPeaks.size();
@@ -185,7 +211,9 @@ class IsotopeGrouperTask extends AbstractTask {
       }
 
       // Convert the peak pattern to array
-      Feature originalPeaks[] = bestFitPeaks.toArray(new Feature[0]);
+      Feature originalPeaks[] = new Feature[bestFitPeaks.size()];
+      for (int i = 0; i < originalPeaks.length; i++)
+        originalPeaks[i] = sortedPeaks[bestFitPeaks.getInt(i)];
 
       // Create a new SimpleIsotopePattern
       DataPoint isotopes[] = new DataPoint[bestFitPeaks.size()];
@@ -218,10 +246,8 @@ class IsotopeGrouperTask extends AbstractTask {
       deisotopedPeakList.addRow(newRow);
 
       // Remove all peaks already assigned to isotope pattern
-      for (int i = 0; i < sortedPeaks.length; i++) {
-        if (bestFitPeaks.contains(sortedPeaks[i]))
-          sortedPeaks[i] = null;
-      }
+      for (int i = 0; i < bestFitPeaks.size(); i++)
+        sortedPeaks[bestFitPeaks.getInt(i)] = null;
 
       // Update completion rate
       processedPeaks++;
@@ -252,10 +278,11 @@ class IsotopeGrouperTask extends AbstractTask {
   /**
    * Fits isotope pattern around one peak.
    * 
+   * @param fittedPeaks Positions of the fitted peaks in the sortedPeaks array
    * @param p Pattern is fitted around this peak
    * @param charge Charge state of the fitted pattern
    */
-  private void fitPattern(Vector<Feature> fittedPeaks, Feature p, int charge,
+  private void fitPattern(IntArrayList fittedPeaks, Feature p, int charge,
       Feature[] sortedPeaks) {
 
     if (charge == 0) {
@@ -279,15 +306,20 @@ class IsotopeGrouperTask extends AbstractTask {
    * @param charge Charge state of the fitted pattern
    * @param direction Defines which half to fit: -1=fit to peaks before start M/Z, +1=fit to peaks
    *        after start M/Z
-   * @param fittedPeaks All matching peaks will be added to this set
+   * @param fittedPeaks Positions of all matching peaks will be added to this list
    */
-  private void fitHalfPattern(Feature p, int charge, int direction, Vector<Feature> fittedPeaks,
+  private void fitHalfPattern(Feature p, int charge, int direction, IntArrayList fittedPeaks,
       Feature[] sortedPeaks) {
 
     // Use M/Z and RT of the strongest peak of the pattern (peak 'p')
     double mainMZ = p.getMZ();
     double mainRT = p.getRT();
 
+    // The tolerance is taken at the m/z of the candidate, which is within twice the tolerance at
+    // the main m/z
+    Range<Double> mainMZRange =
+        mzTolerance.getToleranceRange(mzTolerance.getToleranceRange(mainMZ));
+
     // Variable n is the number of peak we are currently searching. 1=first
     // peak before/after start peak, 2=peak before/after previous, 3=...
     boolean followingPeakFound;
@@ -298,10 +330,16 @@ class IsotopeGrouperTask extends AbstractTask {
       // will end the loop)
       followingPeakFound = false;
 
-      // Loop through all peaks, and collect candidates for the n:th peak
-      // in the pattern
-      Vector<Feature> goodCandidates = new Vector<Feature>();
-      for (int ind = 0; ind < sortedPeaks.length; ind++) {
+      // Loop through the peaks around the expected m/z, and collect
+      // candidates for the n:th peak in the pattern
+      double expectedShift = isotopeDistance * direction * n / (double) charge;
+      Range<Double> candidateMZRange =
+          Range.closed(mainMZRange.lowerEndpoint() + expectedShift - mzWindowSlack,
+              mainMZRange.upperEndpoint() + expectedShift + mzWindowSlack);
+      int candidates[] = mzIndex.getPositionsInside(candidateMZRange, Range.all());
+
+      IntArrayList goodCandidates = new IntArrayList();
+      for (int ind : candidates) {
 
         Feature candidatePeak = sortedPeaks[ind];
 
@@ -320,8 +358,8 @@ class IsotopeGrouperTask extends AbstractTask {
 
         if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
             && rtTolerance.checkWithinTolerance(candidatePeakRT, mainRT)
-            && (!fittedPeaks.contains(candidatePeak))) {
-          goodCandidates.add(candidatePeak);
+            && (fittedMarks[ind] != fitNumber)) {
+          goodCandidates.add(ind);
 
         }
 
@@ -332,6 +370,8 @@ class IsotopeGrouperTask extends AbstractTask {
       if (!goodCandidates.isEmpty()) {
 
         fittedPeaks.addAll(goodCandidates);
+        for (int i = 0; i < goodCandidates.size(); i++)
+          fittedMarks[goodCandidates.getInt(i)] = fitNumber;
 
         // n:th peak was found, so let's move on to n+1
         n++;
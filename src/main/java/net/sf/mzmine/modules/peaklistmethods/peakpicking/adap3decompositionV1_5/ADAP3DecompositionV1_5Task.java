@@ -264,10 +264,9 @@ public class ADAP3DecompositionV1_5Task extends AbstractTask {
       // Build chromatogram
       NavigableMap<Double, Double> chromatogram = new TreeMap<>();
       for (int scanNumber : scanNumbers) {
-        DataPoint dataPoint = peak.getDataPoint(scanNumber);
-        if (dataPoint != null)
+        if (peak.hasDataPoint(scanNumber))
           chromatogram.put(dataFile.getScan(scanNumber).getRetentionTime(),
-              dataPoint.getIntensity());
+              peak.getDataPointIntensity(scanNumber));
       }
 
       if (chromatogram.size() <= 1)
@@ -283,7 +282,7 @@ public class ADAP3DecompositionV1_5Task extends AbstractTask {
 
         double height = -Double.MIN_VALUE;
         for (int scan : scanNumbers) {
-          double intensity = peak.getDataPoint(scan).getIntensity();
+          double intensity = peak.getDataPointIntensity(scan);
 
           if (intensity > height) {
             height = intensity;
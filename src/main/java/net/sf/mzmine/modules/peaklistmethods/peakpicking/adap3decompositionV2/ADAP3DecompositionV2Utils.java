@@ -49,9 +49,7 @@ public class ADAP3DecompositionV2Utils {
       for (int i = 0; i < scanNumbers.length; ++i) {
         int scan = scanNumbers[i];
         retTimes[i] = getRetTime(dataFile, scan);
-        DataPoint dataPoint = peak.getDataPoint(scan);
-        if (dataPoint != null)
-          intensities[i] = dataPoint.getIntensity();
+        intensities[i] = peak.getDataPointIntensity(scan);
       }
       Chromatogram chromatogram = new Chromatogram(retTimes, intensities);
 
@@ -68,12 +66,10 @@ public class ADAP3DecompositionV2Utils {
 
         double height = -Double.MIN_VALUE;
         for (int scan : scanNumbers) {
-          DataPoint dataPoint = peak.getDataPoint(scan);
-
-          if (dataPoint == null)
+          if (!peak.hasDataPoint(scan))
             continue;
 
-          double intensity = dataPoint.getIntensity();
+          double intensity = peak.getDataPointIntensity(scan);
 
           if (intensity > height) {
             height = intensity;
@@ -44,7 +44,6 @@ import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
 import dulab.adap.datamodel.PeakInfo;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
@@ -122,11 +121,7 @@ public class ADAPDetector implements PeakResolver {
     for (int i = 0; i < scanCount; i++) {
       final int scanNum = scanNumbers[i];
       retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = chromatogram.getDataPoint(scanNum);
-      if (dp != null)
-        intensities[i] = dp.getIntensity();
-      else
-        intensities[i] = 0.0;
+      intensities[i] = chromatogram.getDataPointIntensity(scanNum);
     }
 
     // List<PeakInfo> ADAPPeaks = new ArrayList<PeakInfo>();
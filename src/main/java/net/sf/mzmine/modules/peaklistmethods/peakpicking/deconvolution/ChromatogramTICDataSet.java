@@ -18,7 +18,6 @@
 
 package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 
@@ -53,10 +52,9 @@ public class ChromatogramTICDataSet extends AbstractXYDataset {
   }
 
   public Number getY(int series, int index) {
-    DataPoint mzPeak = chromatogram.getDataPoint(scanNumbers[index]);
-    if (mzPeak == null)
+    if (!chromatogram.hasDataPoint(scanNumbers[index]))
       return 0;
-    return mzPeak.getIntensity();
+    return chromatogram.getDataPointIntensity(scanNumbers[index]);
   }
 
   public int getSeriesCount() {
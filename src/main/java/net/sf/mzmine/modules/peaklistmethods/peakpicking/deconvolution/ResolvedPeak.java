@@ -107,8 +107,7 @@ public class ResolvedPeak implements Feature {
 
       dataPointMZValues[i] = mzValue;
 
-      DataPoint dp = chromatogram.getDataPoint(scanNumbers[i]);
-      if (dp == null) {
+      if (!chromatogram.hasDataPoint(scanNumbers[i])) {
         continue;
         /*
          * String error =
@@ -120,23 +119,25 @@ public class ResolvedPeak implements Feature {
          */
       }
 
-      dataPointMZValues[i] = dp.getMZ();
-      dataPointIntensityValues[i] = dp.getIntensity();
+      final double dpMZ = chromatogram.getDataPointMZ(scanNumbers[i]);
+      final double dpIntensity = chromatogram.getDataPointIntensity(scanNumbers[i]);
+      dataPointMZValues[i] = dpMZ;
+      dataPointIntensityValues[i] = dpIntensity;
 
       if (rawDataPointsIntensityRange == null) {
-        rawDataPointsIntensityRange = Range.singleton(dp.getIntensity());
+        rawDataPointsIntensityRange = Range.singleton(dpIntensity);
         rawDataPointsRTRange = Range.singleton(dataFile.getScan(scanNumbers[i]).getRetentionTime());
-        rawDataPointsMZRange = Range.singleton(dp.getMZ());
+        rawDataPointsMZRange = Range.singleton(dpMZ);
       } else {
         rawDataPointsRTRange = rawDataPointsRTRange
             .span(Range.singleton(dataFile.getScan(scanNumbers[i]).getRetentionTime()));
         rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(dp.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(dp.getMZ()));
+            rawDataPointsIntensityRange.span(Range.singleton(dpIntensity));
+        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(dpMZ));
       }
 
-      if (height < dp.getIntensity()) {
-        height = dp.getIntensity();
+      if (height < dpIntensity) {
+        height = dpIntensity;
         rt = dataFile.getScan(scanNumbers[i]).getRetentionTime();
         representativeScan = scanNumbers[i];
 
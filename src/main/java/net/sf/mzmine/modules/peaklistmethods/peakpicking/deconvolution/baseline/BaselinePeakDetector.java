@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.List;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
@@ -59,11 +58,7 @@ public class BaselinePeakDetector implements PeakResolver {
     for (int i = 0; i < scanCount; i++) {
       final int scanNum = scanNumbers[i];
       retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = chromatogram.getDataPoint(scanNum);
-      if (dp != null)
-        intensities[i] = dp.getIntensity();
-      else
-        intensities[i] = 0.0;
+      intensities[i] = chromatogram.getDataPointIntensity(scanNum);
     }
 
     // Get parameters.
@@ -78,23 +73,26 @@ public class BaselinePeakDetector implements PeakResolver {
     for (int currentRegionStart = 0; currentRegionStart < scanCount; currentRegionStart++) {
 
       // Find a start of the region.
-      final DataPoint startPeak = chromatogram.getDataPoint(scanNumbers[currentRegionStart]);
-      if (startPeak != null && startPeak.getIntensity() >= baselineLevel) {
+      final int startScan = scanNumbers[currentRegionStart];
+      if (chromatogram.hasDataPoint(startScan)
+          && chromatogram.getDataPointIntensity(startScan) >= baselineLevel) {
 
-        double currentRegionHeight = startPeak.getIntensity();
+        double currentRegionHeight = chromatogram.getDataPointIntensity(startScan);
 
         // Search for end of the region
         int currentRegionEnd;
         for (currentRegionEnd =
             currentRegionStart + 1; currentRegionEnd < scanCount; currentRegionEnd++) {
 
-          final DataPoint endPeak = chromatogram.getDataPoint(scanNumbers[currentRegionEnd]);
-          if (endPeak == null || endPeak.getIntensity() < baselineLevel) {
+          final int endScan = scanNumbers[currentRegionEnd];
+          if (!chromatogram.hasDataPoint(endScan)
+              || chromatogram.getDataPointIntensity(endScan) < baselineLevel) {
 
             break;
           }
 
-          currentRegionHeight = Math.max(currentRegionHeight, endPeak.getIntensity());
+          currentRegionHeight =
+              Math.max(currentRegionHeight, chromatogram.getDataPointIntensity(endScan));
         }
 
         // Subtract one index, so the end index points at the last data
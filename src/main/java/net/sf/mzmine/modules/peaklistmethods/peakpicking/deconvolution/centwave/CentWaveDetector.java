@@ -34,7 +34,6 @@ import java.util.List;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
@@ -110,11 +109,7 @@ public class CentWaveDetector implements PeakResolver {
     for (int i = 0; i < scanCount; i++) {
       final int scanNum = scanNumbers[i];
       retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = chromatogram.getDataPoint(scanNum);
-      if (dp != null)
-        intensities[i] = dp.getIntensity();
-      else
-        intensities[i] = 0.0;
+      intensities[i] = chromatogram.getDataPointIntensity(scanNum);
     }
 
     // Call findPeaks.centWave.
@@ -149,11 +144,11 @@ public class CentWaveDetector implements PeakResolver {
         // a peak for each.
         for (int start = peakLeft; start < peakRight; start++) {
 
-          if (chromatogram.getDataPoint(scanNumbers[start]) != null) {
+          if (chromatogram.hasDataPoint(scanNumbers[start])) {
 
             int end = start;
 
-            while (end < peakRight && chromatogram.getDataPoint(scanNumbers[end + 1]) != null) {
+            while (end < peakRight && chromatogram.hasDataPoint(scanNumbers[end + 1])) {
 
               end++;
             }
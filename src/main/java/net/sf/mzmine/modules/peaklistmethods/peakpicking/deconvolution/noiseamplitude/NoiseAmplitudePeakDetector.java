@@ -26,7 +26,6 @@ import java.util.List;
 import java.util.TreeMap;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
@@ -63,11 +62,7 @@ public class NoiseAmplitudePeakDetector implements PeakResolver {
     for (int i = 0; i < scanCount; i++) {
       final int scanNum = scanNumbers[i];
       retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = chromatogram.getDataPoint(scanNum);
-      if (dp != null)
-        intensities[i] = dp.getIntensity();
-      else
-        intensities[i] = 0.0;
+      intensities[i] = chromatogram.getDataPointIntensity(scanNum);
     }
 
     final double amplitudeOfNoise = parameters.getParameter(NOISE_AMPLITUDE).getValue();
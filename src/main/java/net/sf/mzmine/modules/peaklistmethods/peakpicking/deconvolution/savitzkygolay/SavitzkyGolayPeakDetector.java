@@ -26,7 +26,6 @@ import java.util.Arrays;
 import java.util.List;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
@@ -67,11 +66,7 @@ public class SavitzkyGolayPeakDetector implements PeakResolver {
     for (int i = 0; i < scanCount; i++) {
       final int scanNum = scanNumbers[i];
       retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = chromatogram.getDataPoint(scanNum);
-      if (dp != null)
-        intensities[i] = dp.getIntensity();
-      else
-        intensities[i] = 0.0;
+      intensities[i] = chromatogram.getDataPointIntensity(scanNum);
     }
 
     // Calculate intensity statistics.
@@ -234,7 +229,7 @@ public class SavitzkyGolayPeakDetector implements PeakResolver {
       // start to the first available data point.
       while (currentPeakStart < scanNumbers.length - 1) {
 
-        if (chromatogram.getDataPoint(scanNumbers[currentPeakStart]) == null) {
+        if (!chromatogram.hasDataPoint(scanNumbers[currentPeakStart])) {
 
           currentPeakStart++;
 
@@ -249,7 +244,7 @@ public class SavitzkyGolayPeakDetector implements PeakResolver {
       // peak there.
       for (int newEnd = currentPeakStart; newEnd <= currentPeakEnd; newEnd++) {
 
-        if (chromatogram.getDataPoint(scanNumbers[newEnd]) == null) {
+        if (!chromatogram.hasDataPoint(scanNumbers[newEnd])) {
 
           currentPeakEnd = newEnd - 1;
           break;
@@ -21,7 +21,6 @@ package net.sf.mzmine.modules.peaklistmethods.peakpicking.shapemodeler;
 import java.lang.reflect.Constructor;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -127,11 +126,7 @@ class ShapeModelerTask extends AbstractTask {
 
           intensities = new double[scanNumbers.length];
           for (int i = 0; i < scanNumbers.length; i++) {
-            DataPoint dp = peak.getDataPoint(scanNumbers[i]);
-            if (dp != null)
-              intensities[i] = dp.getIntensity();
-            else
-              intensities[i] = 0;
+            intensities[i] = peak.getDataPointIntensity(scanNumbers[i]);
           }
 
           Feature shapePeak = (Feature) shapeModelConstruct.newInstance(peak, scanNumbers,
@@ -131,8 +131,7 @@ public class SmoothingTask extends AbstractTask {
               final double[] intensities = new double[numScans];
               for (int i = 0; i < numScans; i++) {
 
-                final DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
-                intensities[i] = dataPoint == null ? 0.0 : dataPoint.getIntensity();
+                intensities[i] = peak.getDataPointIntensity(scanNumbers[i]);
               }
 
               // Smooth peak.
@@ -149,12 +148,11 @@ public class SmoothingTask extends AbstractTask {
               for (int i = 0; i < numScans; i++) {
 
                 final int scanNumber = scanNumbers[i];
-                final DataPoint dataPoint = peak.getDataPoint(scanNumber);
                 final double intensity = smoothed[i];
-                if (dataPoint != null && intensity > 0.0) {
+                if (intensity > 0.0 && peak.hasDataPoint(scanNumber)) {
 
                   // Create a new data point.
-                  final double mz = dataPoint.getMZ();
+                  final double mz = peak.getDataPointMZ(scanNumber);
                   final double rt = dataFile.getScan(scanNumber).getRetentionTime();
                   final DataPoint newDataPoint = new SimpleDataPoint(mz, intensity);
                   newDataPoints[i] = newDataPoint;
@@ -82,22 +82,22 @@ public class QualityParameters {
     // peak apex
     for (int i = 1; i < scanNumbers.length - 1; i++) {
 
-      if (peak.getDataPoint(scanNumbers[i]) != null) {
-        currentDiff = Math.abs(intensity - peak.getDataPoint(scanNumbers[i]).getIntensity());
+      if (peak.hasDataPoint(scanNumbers[i])) {
+        currentDiff = Math.abs(intensity - peak.getDataPointIntensity(scanNumbers[i]));
         currentRT = dataFile.getScan(scanNumbers[i]).getRetentionTime();
         if (currentDiff < lastDiff1 & currentDiff > 0 & currentRT <= rt
-            & peak.getDataPoint(scanNumbers[i + 1]) != null) {
+            & peak.hasDataPoint(scanNumbers[i + 1])) {
           x1 = dataFile.getScan(scanNumbers[i]).getRetentionTime();
-          y1 = peak.getDataPoint(scanNumbers[i]).getIntensity();
+          y1 = peak.getDataPointIntensity(scanNumbers[i]);
           x2 = dataFile.getScan(scanNumbers[i + 1]).getRetentionTime();
-          y2 = peak.getDataPoint(scanNumbers[i + 1]).getIntensity();
+          y2 = peak.getDataPointIntensity(scanNumbers[i + 1]);
           lastDiff1 = currentDiff;
         } else if (currentDiff < lastDiff2 & currentDiff > 0 & currentRT >= rt
-            & peak.getDataPoint(scanNumbers[i - 1]) != null) {
+            & peak.hasDataPoint(scanNumbers[i - 1])) {
           x3 = dataFile.getScan(scanNumbers[i - 1]).getRetentionTime();
-          y3 = peak.getDataPoint(scanNumbers[i - 1]).getIntensity();
+          y3 = peak.getDataPointIntensity(scanNumbers[i - 1]);
           x4 = dataFile.getScan(scanNumbers[i]).getRetentionTime();
-          y4 = peak.getDataPoint(scanNumbers[i]).getIntensity();
+          y4 = peak.getDataPointIntensity(scanNumbers[i]);
           lastDiff2 = currentDiff;
         }
       }
@@ -24,8 +24,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -45,9 +48,12 @@ import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.PeakListOpen
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.RawDataFileOpenHandler_2_3;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.UserParameterOpenHandler_2_3;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.PeakListOpenHandler_2_5;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_53.PeakListOpenHandler_2_53;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.RawDataFileOpenHandler_2_5;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.UserParameterOpenHandler_2_5;
 import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSavingTask;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter.ArchiveEntry;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.ProjectManager;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
@@ -67,6 +73,7 @@ public class ProjectOpeningTask extends AbstractTask {
 
   private RawDataFileOpenHandler rawDataFileOpenHandler;
   private PeakListOpenHandler peakListOpenHandler;
+  private PeakListOpenHandler_2_53 binaryPeakListOpenHandler;
   private UserParameterOpenHandler userParameterOpenHandler;
   private StreamCopy copyMachine;
 
@@ -77,6 +84,11 @@ public class ProjectOpeningTask extends AbstractTask {
   // This hashtable maps stored IDs to raw data file objects
   private final Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<>();
   private final Hashtable<String, File> scanFilesIDMap = new Hashtable<>();
+  private final Hashtable<String, String> scanEntriesIDMap = new Hashtable<>();
+  private final Hashtable<String, ArchiveEntry> scanLocationsIDMap = new Hashtable<>();
+
+  // Central directory of the project file, read only when scan data can be mapped directly
+  private Map<String, ArchiveEntry> archiveEntries;
 
   public ProjectOpeningTask(ParameterSet parameters) {
     this.openFile = parameters.getParameter(ProjectLoaderParameters.projectFile).getValue();
@@ -206,14 +218,30 @@ public class ProjectOpeningTask extends AbstractTask {
         if (scansFileMatcher.matches()) {
           final String fileID = scansFileMatcher.group(1);
           final String fileName = scansFileMatcher.group(2);
-          loadScansFile(cis, fileID, fileName);
+          if ((entry.getMethod() == ZipEntry.STORED)
+              && (rawDataFileOpenHandler instanceof RawDataFileOpenHandler_2_5)) {
+            // Uncompressed scan data is read directly from the project file
+            locateScansFile(entryName, fileID);
+          } else {
+            loadScansFile(cis, fileID, fileName);
+          }
+          scanEntriesIDMap.put(fileID, entryName);
         }
 
         // Load a feature list
         final Matcher peakListMatcher = peakListPattern.matcher(entryName);
         if (peakListMatcher.matches()) {
           final String peakListName = peakListMatcher.group(2);
-          loadPeakList(cis, peakListName);
+          // Since MZmine 2.53 the features are saved in a binary entry next to the XML file
+          final ZipEntry featuresEntry = zipFile.getEntry(
+              entryName.substring(0, entryName.length() - ".xml".length()) + ".features");
+          if ((featuresEntry != null) && (binaryPeakListOpenHandler != null)) {
+            try (InputStream featuresStream = zipFile.getInputStream(featuresEntry)) {
+              loadPeakList(cis, featuresStream, peakListName);
+            }
+          } else {
+            loadPeakList(cis, peakListName);
+          }
         }
 
         // Close the ZIP entry
@@ -275,6 +303,9 @@ public class ProjectOpeningTask extends AbstractTask {
     if (peakListOpenHandler != null)
       peakListOpenHandler.cancel();
 
+    if (binaryPeakListOpenHandler != null)
+      binaryPeakListOpenHandler.cancel();
+
     if (userParameterOpenHandler != null)
       userParameterOpenHandler.cancel();
 
@@ -346,6 +377,7 @@ public class ProjectOpeningTask extends AbstractTask {
     // Default opening handler for MZmine 2.5 and higher
     rawDataFileOpenHandler = new RawDataFileOpenHandler_2_5();
     peakListOpenHandler = new PeakListOpenHandler_2_5(dataFilesIDMap);
+    binaryPeakListOpenHandler = new PeakListOpenHandler_2_53(dataFilesIDMap);
     userParameterOpenHandler = new UserParameterOpenHandler_2_5(newProject, dataFilesIDMap);
 
   }
@@ -382,17 +414,45 @@ public class ProjectOpeningTask extends AbstractTask {
 
     currentLoadedObjectName = fileName;
 
-    File scansFile = scanFilesIDMap.get(fileID);
-    if (scansFile == null) {
-      throw new IOException("Missing scans data for file ID " + fileID);
+    RawDataFile newFile;
+    ArchiveEntry scansLocation = scanLocationsIDMap.get(fileID);
+    if (scansLocation != null) {
+      newFile = ((RawDataFileOpenHandler_2_5) rawDataFileOpenHandler).readRawDataFile(is, openFile,
+          scansLocation.getDataOffset(), scansLocation.getSize());
+    } else {
+      File scansFile = scanFilesIDMap.get(fileID);
+      if (scansFile == null) {
+        throw new IOException("Missing scans data for file ID " + fileID);
+      }
+      newFile = rawDataFileOpenHandler.readRawDataFile(is, scansFile);
     }
-
-    RawDataFile newFile = rawDataFileOpenHandler.readRawDataFile(is, scansFile);
     newProject.addFile(newFile);
+
+    // Saving the project can copy the scan data from this file, until it is modified
+    if (newFile instanceof RawDataFileImpl) {
+      ProjectSavingTask.registerSavedScans((RawDataFileImpl) newFile, openFile,
+          scanEntriesIDMap.get(fileID));
+    }
     dataFilesIDMap.put(fileID, newFile);
 
   }
 
+  private void locateScansFile(String entryName, String fileID) throws IOException {
+
+    if (archiveEntries == null) {
+      try (FileChannel channel = FileChannel.open(openFile.toPath(), StandardOpenOption.READ)) {
+        archiveEntries = ProjectZipWriter.readEntries(channel);
+      }
+    }
+
+    ArchiveEntry archiveEntry = archiveEntries.get(entryName);
+    if ((archiveEntry == null) || !archiveEntry.isStored()) {
+      throw new IOException("Cannot locate scans data for file ID " + fileID);
+    }
+    scanLocationsIDMap.put(fileID, archiveEntry);
+
+  }
+
   private void loadScansFile(InputStream is, String fileID, String fileName) throws IOException {
 
     logger.info("Loading scans data #" + fileID + ": " + fileName);
@@ -425,6 +485,21 @@ public class ProjectOpeningTask extends AbstractTask {
     QualityParameters.calculateQualityParameters(newPeakList);
   }
 
+  private void loadPeakList(InputStream is, InputStream featuresStream, String peakListName)
+      throws IOException, ParserConfigurationException, SAXException {
+
+    logger.info("Loading feature list " + peakListName);
+
+    currentLoadedObjectName = peakListName;
+
+    PeakList newPeakList = binaryPeakListOpenHandler.readPeakList(is, featuresStream);
+
+    newProject.addPeakList(newPeakList);
+
+    // Add quality parameters to peaks
+    QualityParameters.calculateQualityParameters(newPeakList);
+  }
+
   private void loadUserParameters(InputStream is) throws IOException, ParserConfigurationException,
       SAXException, InstantiationException, IllegalAccessException {
 
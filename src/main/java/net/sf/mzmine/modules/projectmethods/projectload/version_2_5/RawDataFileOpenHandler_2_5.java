@@ -22,7 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.NavigableMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -62,8 +62,8 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
   private int currentStorageID;
   private int storedDataID;
   private int storedDataNumDP;
-  private TreeMap<Integer, Long> dataPointsOffsets;
-  private TreeMap<Integer, Integer> dataPointsLengths;
+  private NavigableMap<Integer, Long> dataPointsOffsets;
+  private NavigableMap<Integer, Integer> dataPointsLengths;
   private ArrayList<StorableMassList> massLists;
   private PolarityType polarity = PolarityType.UNKNOWN;
   private String scanDescription = "";
@@ -82,11 +82,37 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
   public RawDataFile readRawDataFile(InputStream is, File scansFile)
       throws IOException, ParserConfigurationException, SAXException {
 
-    charBuffer = new StringBuffer();
-    massLists = new ArrayList<StorableMassList>();
-
     newRawDataFile = (RawDataFileImpl) MZmineCore.createNewFile(null);
     newRawDataFile.openDataPointsFile(scansFile);
+    return readRawDataDescription(is);
+
+  }
+
+  /**
+   * Create a new raw data file using the information from the XML raw data description file. The
+   * scan data is not extracted, it is read directly from the project file, where it is stored
+   * uncompressed.
+   * 
+   * @param projectFile project file
+   * @param scansOffset position of the scan data in the project file
+   * @param scansSize size of the scan data
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public RawDataFile readRawDataFile(InputStream is, File projectFile, long scansOffset,
+      long scansSize) throws IOException, ParserConfigurationException, SAXException {
+
+    newRawDataFile = (RawDataFileImpl) MZmineCore.createNewFile(null);
+    newRawDataFile.openDataPointsFile(projectFile, scansOffset, scansSize);
+    return readRawDataDescription(is);
+
+  }
+
+  private RawDataFile readRawDataDescription(InputStream is)
+      throws IOException, ParserConfigurationException, SAXException {
+
+    charBuffer = new StringBuffer();
+    massLists = new ArrayList<StorableMassList>();
 
     dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
     dataPointsLengths = newRawDataFile.getDataPointsLengths();
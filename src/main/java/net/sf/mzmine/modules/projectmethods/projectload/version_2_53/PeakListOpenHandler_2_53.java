@@ -0,0 +1,494 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload.version_2_53;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import com.google.common.collect.Range;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakInformation;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.PeakListElementName_2_5;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListFeaturesWriter;
+
+/**
+ * Loads a feature list saved as an XML description and binary feature columns. The XML document
+ * uses the elements of MZmine 2.5, but holds only the feature list information and the rows which
+ * have identities, information or a comment. The rows and features are read from the binary
+ * columns, see PeakListFeaturesWriter for the layout.
+ */
+public class PeakListOpenHandler_2_53 extends DefaultHandler {
+
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private SimplePeakListRow buildingRow;
+  private SimplePeakList buildingPeakList;
+
+  private String peakListName, identityPropertyName;
+  private Hashtable<String, String> identityProperties;
+  private boolean preferred;
+  private String dateCreated;
+
+  private Map<String, String> informationProperties;
+  private String infoPropertyName;
+
+  private StringBuffer charBuffer;
+
+  private Vector<String> appliedMethods, appliedMethodParameters;
+  private Vector<RawDataFile> currentPeakListDataFiles;
+
+  // Rows described in the XML document, by row ID
+  private Map<Integer, SimplePeakListRow> describedRows;
+
+  private Hashtable<String, RawDataFile> dataFilesIDMap;
+
+  private volatile int parsedRows, totalRows;
+
+  private volatile boolean canceled = false;
+
+  public PeakListOpenHandler_2_53(Hashtable<String, RawDataFile> dataFilesIDMap) {
+    this.dataFilesIDMap = dataFilesIDMap;
+  }
+
+  /**
+   * Load the feature list from the zip file reading the XML description and the binary features
+   */
+  public PeakList readPeakList(InputStream peakListStream, InputStream featuresStream)
+      throws IOException, ParserConfigurationException, SAXException {
+
+    totalRows = 0;
+    parsedRows = 0;
+
+    charBuffer = new StringBuffer();
+    appliedMethods = new Vector<String>();
+    appliedMethodParameters = new Vector<String>();
+    currentPeakListDataFiles = new Vector<RawDataFile>();
+    describedRows = new HashMap<>();
+
+    // Parse the XML file
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    SAXParser saxParser = factory.newSAXParser();
+    saxParser.parse(peakListStream, this);
+
+    buildingPeakList = new SimplePeakList(peakListName,
+        currentPeakListDataFiles.toArray(new RawDataFile[0]));
+    for (int i = 0; i < appliedMethods.size(); i++) {
+      String methodName = appliedMethods.elementAt(i);
+      String methodParams = appliedMethodParameters.elementAt(i);
+      PeakListAppliedMethod pam = new SimplePeakListAppliedMethod(methodName, methodParams);
+      buildingPeakList.addDescriptionOfAppliedTask(pam);
+    }
+    buildingPeakList.setDateCreated(dateCreated);
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(featuresStream, 1 << 16));
+    readFeatures(in);
+
+    return buildingPeakList;
+
+  }
+
+  private void readFeatures(DataInputStream in) throws IOException {
+
+    if (in.readInt() != PeakListFeaturesWriter.MAGIC)
+      throw new IOException("Invalid feature data of feature list " + peakListName);
+    int formatVersion = in.readInt();
+    if (formatVersion != PeakListFeaturesWriter.FORMAT_VERSION)
+      throw new IOException("Unsupported format " + formatVersion + " of feature list "
+          + peakListName + ", it was saved with a newer version of MZmine");
+
+    final int numOfRows = in.readInt();
+    final int numOfFeatures = in.readInt();
+    totalRows = numOfRows;
+
+    // Rows
+    final int rowIDs[] = readInts(in, numOfRows);
+    final int rowFeatureCounts[] = readInts(in, numOfRows);
+
+    // Features
+    final int dataFileIDs[] = readInts(in, numOfFeatures);
+    final double mzValues[] = readDoubles(in, numOfFeatures);
+    final double rtValues[] = readDoubles(in, numOfFeatures);
+    final double heights[] = readDoubles(in, numOfFeatures);
+    final double areas[] = readDoubles(in, numOfFeatures);
+    final FeatureStatus statusNames[] = readConstants(in, FeatureStatus.class);
+    final byte statuses[] = new byte[numOfFeatures];
+    in.readFully(statuses);
+    final int charges[] = readInts(in, numOfFeatures);
+    final int parentRowIDs[] = readInts(in, numOfFeatures);
+    final int representativeScans[] = readInts(in, numOfFeatures);
+    final int fragmentScans[] = readInts(in, numOfFeatures);
+    final int scanCounts[] = readInts(in, numOfFeatures);
+    final int ms2ScanCounts[] = readInts(in, numOfFeatures);
+
+    // Isotope patterns
+    final int numOfPatterns = in.readInt();
+    final int patternFeatures[] = readInts(in, numOfPatterns);
+    final IsotopePatternStatus patternStatusNames[] = readConstants(in, IsotopePatternStatus.class);
+    final byte patternStatuses[] = new byte[numOfPatterns];
+    in.readFully(patternStatuses);
+    final String patternDescriptions[] = new String[numOfPatterns];
+    for (int i = 0; i < numOfPatterns; i++)
+      patternDescriptions[i] = in.readUTF();
+    final int isotopeCounts[] = readInts(in, numOfPatterns);
+    final int numOfIsotopes = sum(isotopeCounts);
+    final double isotopeMZValues[] = readDoubles(in, numOfIsotopes);
+    final double isotopeIntensities[] = readDoubles(in, numOfIsotopes);
+
+    // Scan data
+    final int numOfScans = sum(scanCounts);
+    final int scanNumbers[] = readInts(in, numOfScans);
+    final float scanMZValues[] = readFloats(in, numOfScans);
+    final float scanHeights[] = readFloats(in, numOfScans);
+
+    // MS2 scans
+    int numOfMS2Scans = 0;
+    for (int count : ms2ScanCounts)
+      numOfMS2Scans += Math.max(count, 0);
+    final int ms2ScanNumbers[] = readInts(in, numOfMS2Scans);
+
+    int featureIndex = 0, scanIndex = 0, ms2ScanIndex = 0;
+    int patternIndex = 0, isotopeIndex = 0;
+    for (int i = 0; i < numOfRows; i++) {
+
+      if (canceled)
+        throw new IOException("Loading canceled");
+
+      SimplePeakListRow row = describedRows.remove(rowIDs[i]);
+      if (row == null)
+        row = new SimplePeakListRow(rowIDs[i]);
+
+      for (int j = 0; j < rowFeatureCounts[i]; j++, featureIndex++) {
+
+        RawDataFile dataFile = dataFilesIDMap.get(String.valueOf(dataFileIDs[featureIndex]));
+        if (dataFile == null)
+          throw new IOException(
+              "Error in project: data file " + dataFileIDs[featureIndex] + " not found");
+
+        // Data points and their boundaries
+        final int numOfMZpeaks = scanCounts[featureIndex];
+        final int peakScanNumbers[] = new int[numOfMZpeaks];
+        final DataPoint mzPeaks[] = new DataPoint[numOfMZpeaks];
+        Range<Double> peakRTRange = null, peakMZRange = null, peakIntensityRange = null;
+        for (int k = 0; k < numOfMZpeaks; k++, scanIndex++) {
+
+          peakScanNumbers[k] = scanNumbers[scanIndex];
+          Scan sc = dataFile.getScan(peakScanNumbers[k]);
+          double retentionTime = sc.getRetentionTime();
+
+          double mz = scanMZValues[scanIndex];
+          double intensity = scanHeights[scanIndex];
+
+          if (peakIntensityRange == null) {
+            peakIntensityRange = Range.singleton(intensity);
+          } else {
+            peakIntensityRange = peakIntensityRange.span(Range.singleton(intensity));
+          }
+          if (intensity > 0) {
+            if (peakRTRange == null) {
+              peakRTRange = Range.singleton(retentionTime);
+            } else {
+              peakRTRange = peakRTRange.span(Range.singleton(retentionTime));
+            }
+          }
+
+          if (mz > 0.0) {
+            mzPeaks[k] = new SimpleDataPoint(mz, intensity);
+            if (peakMZRange == null)
+              peakMZRange = Range.singleton(mz);
+            else
+              peakMZRange = peakMZRange.span(Range.singleton(mz));
+          }
+        }
+
+        int allMS2FragmentScanNumbers[] = null;
+        if (ms2ScanCounts[featureIndex] >= 0) {
+          allMS2FragmentScanNumbers = new int[ms2ScanCounts[featureIndex]];
+          System.arraycopy(ms2ScanNumbers, ms2ScanIndex, allMS2FragmentScanNumbers, 0,
+              allMS2FragmentScanNumbers.length);
+          ms2ScanIndex += allMS2FragmentScanNumbers.length;
+        }
+
+        SimpleFeature peak = new SimpleFeature(dataFile, mzValues[featureIndex],
+            rtValues[featureIndex], heights[featureIndex], areas[featureIndex], peakScanNumbers,
+            mzPeaks, getConstant(statusNames, statuses[featureIndex]),
+            representativeScans[featureIndex], fragmentScans[featureIndex],
+            allMS2FragmentScanNumbers, peakRTRange, peakMZRange, peakIntensityRange);
+
+        peak.setCharge(charges[featureIndex]);
+
+        if ((patternIndex < numOfPatterns) && (patternFeatures[patternIndex] == featureIndex)) {
+          DataPoint isotopes[] = new DataPoint[isotopeCounts[patternIndex]];
+          for (int k = 0; k < isotopes.length; k++, isotopeIndex++) {
+            isotopes[k] =
+                new SimpleDataPoint(isotopeMZValues[isotopeIndex], isotopeIntensities[isotopeIndex]);
+          }
+          peak.setIsotopePattern(new SimpleIsotopePattern(isotopes,
+              getConstant(patternStatusNames, patternStatuses[patternIndex]),
+              patternDescriptions[patternIndex]));
+          patternIndex++;
+        }
+
+        if (parentRowIDs[featureIndex] >= 0)
+          peak.setParentChromatogramRowID(parentRowIDs[featureIndex]);
+
+        row.addPeak(dataFile, peak);
+      }
+
+      buildingPeakList.addRow(row);
+      parsedRows++;
+    }
+
+  }
+
+  private static int[] readInts(DataInputStream in, int length) throws IOException {
+    int values[] = new int[length];
+    for (int i = 0; i < length; i++)
+      values[i] = in.readInt();
+    return values;
+  }
+
+  private static float[] readFloats(DataInputStream in, int length) throws IOException {
+    float values[] = new float[length];
+    for (int i = 0; i < length; i++)
+      values[i] = in.readFloat();
+    return values;
+  }
+
+  private static double[] readDoubles(DataInputStream in, int length) throws IOException {
+    double values[] = new double[length];
+    for (int i = 0; i < length; i++)
+      values[i] = in.readDouble();
+    return values;
+  }
+
+  private static int sum(int values[]) {
+    int sum = 0;
+    for (int value : values)
+      sum += value;
+    return sum;
+  }
+
+  /**
+   * Reads a table of enum constant names, so the saved indexes do not depend on the order of the
+   * constants
+   */
+  private static <E extends Enum<E>> E[] readConstants(DataInputStream in, Class<E> enumClass)
+      throws IOException {
+    final int numOfNames = in.readInt();
+    @SuppressWarnings("unchecked")
+    E names[] = (E[]) Array.newInstance(enumClass, numOfNames);
+    for (int i = 0; i < numOfNames; i++) {
+      String name = in.readUTF();
+      try {
+        names[i] = Enum.valueOf(enumClass, name);
+      } catch (IllegalArgumentException e) {
+        // Saved by a newer version of MZmine, reported when it is used
+        names[i] = null;
+      }
+    }
+    return names;
+  }
+
+  private static <E> E getConstant(E names[], byte index) throws IOException {
+    if ((index < 0) || (index >= names.length) || (names[index] == null))
+      throw new IOException("Unknown status " + index + " in the feature data");
+    return names[index];
+  }
+
+  /**
+   * @return the progress of these functions loading the feature list from the zip file.
+   */
+  public double getProgress() {
+    if (totalRows == 0)
+      return 0;
+    return (double) parsedRows / totalRows;
+  }
+
+  public void cancel() {
+    canceled = true;
+  }
+
+  /**
+   * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String, java.lang.String,
+   *      java.lang.String, org.xml.sax.Attributes)
+   */
+  @Override
+  public void startElement(String namespaceURI, String lName, String qName, Attributes attrs)
+      throws SAXException {
+
+    if (canceled)
+      throw new SAXException("Parsing canceled");
+
+    // This will remove any remaining characters from previous elements
+    getTextOfElement();
+
+    // <ROW>
+    if (qName.equals(PeakListElementName_2_5.ROW.getElementName())) {
+      int rowID = Integer.parseInt(attrs.getValue(PeakListElementName_2_5.ID.getElementName()));
+      buildingRow = new SimplePeakListRow(rowID);
+      String comment = attrs.getValue(PeakListElementName_2_5.COMMENT.getElementName());
+      buildingRow.setComment(comment);
+    }
+
+    // <PEAK_IDENTITY>
+    if (qName.equals(PeakListElementName_2_5.PEAK_IDENTITY.getElementName())) {
+      identityProperties = new Hashtable<String, String>();
+      preferred =
+          Boolean.parseBoolean(attrs.getValue(PeakListElementName_2_5.PREFERRED.getElementName()));
+    }
+
+    // <IDENTITY_PROPERTY>
+    if (qName.equals(PeakListElementName_2_5.IDPROPERTY.getElementName())) {
+      identityPropertyName = attrs.getValue(PeakListElementName_2_5.NAME.getElementName());
+    }
+
+    // <PEAK_INFORMATION>
+    if (qName.equals(PeakListElementName_2_5.PEAK_INFORMATION.getElementName())) {
+      informationProperties = new HashMap<>();
+    }
+
+    // <INFO_PROPERTY>
+    if (qName.equals(PeakListElementName_2_5.INFO_PROPERTY.getElementName())) {
+      infoPropertyName = attrs.getValue(PeakListElementName_2_5.NAME.getElementName());
+    }
+
+  }
+
+  /**
+   * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String, java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  public void endElement(String namespaceURI, String sName, String qName) throws SAXException {
+
+    if (canceled)
+      throw new SAXException("Parsing canceled");
+
+    // <NAME>
+    if (qName.equals(PeakListElementName_2_5.PEAKLIST_NAME.getElementName())) {
+      peakListName = getTextOfElement();
+      logger.info("Loading feature list: " + peakListName);
+    }
+
+    // <PEAKLIST_DATE>
+    if (qName.equals(PeakListElementName_2_5.PEAKLIST_DATE.getElementName())) {
+      dateCreated = getTextOfElement();
+    }
+
+    // <RAW_FILE>
+    if (qName.equals(PeakListElementName_2_5.RAWFILE.getElementName())) {
+      String rawDataFileID = getTextOfElement();
+      RawDataFile dataFile = dataFilesIDMap.get(rawDataFileID);
+      if (dataFile == null) {
+        throw new SAXException(
+            "Cannot open feature list, because raw data file " + rawDataFileID + " is missing.");
+      }
+      currentPeakListDataFiles.add(dataFile);
+    }
+
+    // <IDENTITY_PROPERTY>
+    if (qName.equals(PeakListElementName_2_5.IDPROPERTY.getElementName())) {
+      identityProperties.put(identityPropertyName, getTextOfElement());
+    }
+
+    // <INFO_PROPERTY>
+    if (qName.equals(PeakListElementName_2_5.INFO_PROPERTY.getElementName())) {
+      informationProperties.put(infoPropertyName, getTextOfElement());
+    }
+
+    // <PEAK_IDENTITY>
+    if (qName.equals(PeakListElementName_2_5.PEAK_IDENTITY.getElementName())) {
+      SimplePeakIdentity identity = new SimplePeakIdentity(identityProperties);
+      buildingRow.addPeakIdentity(identity, preferred);
+    }
+
+    if (qName.equals(PeakListElementName_2_5.PEAK_INFORMATION.getElementName())) {
+      PeakInformation information = new SimplePeakInformation(informationProperties);
+      buildingRow.setPeakInformation(information);
+    }
+
+    // <ROW>
+    if (qName.equals(PeakListElementName_2_5.ROW.getElementName())) {
+      describedRows.put(buildingRow.getID(), buildingRow);
+      buildingRow = null;
+    }
+
+    if (qName.equals(PeakListElementName_2_5.METHOD_NAME.getElementName())) {
+      String appliedMethod = getTextOfElement();
+      appliedMethods.add(appliedMethod);
+    }
+
+    if (qName.equals(PeakListElementName_2_5.METHOD_PARAMETERS.getElementName())) {
+      String appliedMethodParam = getTextOfElement();
+      appliedMethodParameters.add(appliedMethodParam);
+    }
+
+  }
+
+  /**
+   * Return a string without tab an EOF characters
+   * 
+   * @return String element text
+   */
+  private String getTextOfElement() {
+    String text = charBuffer.toString();
+    text = text.replaceAll("[\n\r\t]+", "");
+    text = text.replaceAll("^\\s+", "");
+    charBuffer.setLength(0);
+    return text;
+  }
+
+  /**
+   * characters()
+   * 
+   * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+   */
+  @Override
+  public void characters(char buf[], int offset, int len) throws SAXException {
+    charBuffer = charBuffer.append(buf, offset, len);
+  }
+
+}
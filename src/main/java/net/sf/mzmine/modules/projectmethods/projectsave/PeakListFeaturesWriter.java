@@ -0,0 +1,247 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Writes the rows and features of a feature list as columnar binary blocks. Each block holds one
+ * value of every row, feature, isotope or scan data point, one column after another. All values
+ * are big-endian, as written by DataOutputStream.
+ * 
+ * <pre>
+ * header:    int MAGIC, int FORMAT_VERSION, int rows, int features
+ * rows:      int[rows] ID, int[rows] number of features
+ * features:  int[] raw data file ID, double[] m/z, double[] RT (minutes), double[] height,
+ *            double[] area, status names, byte[] status, int[] charge,
+ *            int[] parent chromatogram row ID (-1 if none), int[] representative scan,
+ *            int[] fragment scan, int[] number of scans, int[] number of MS2 scans (-1 if none)
+ * isotopes:  int patterns, int[] feature index, status names, byte[] status,
+ *            UTF[] description, int[] number of isotopes, double[] m/z, double[] intensity
+ * scans:     int[] scan number, float[] m/z, float[] height (0 if the scan has no data point)
+ * MS2 scans: int[] scan number
+ * </pre>
+ * 
+ * The features are listed in the order of the rows, the isotopes and scans in the order of the
+ * features. Status names are written as an int count followed by UTF strings, the status columns
+ * hold indexes into that table.
+ */
+public class PeakListFeaturesWriter {
+
+  public static final int MAGIC = 0x4D5A464C;
+  public static final int FORMAT_VERSION = 1;
+
+  private final PeakList peakList;
+  private final Hashtable<RawDataFile, String> dataFilesIDMap;
+  private final int numberOfRows;
+  private volatile int finishedRows;
+  private volatile boolean canceled = false;
+
+  PeakListFeaturesWriter(PeakList peakList, Hashtable<RawDataFile, String> dataFilesIDMap) {
+    this.peakList = peakList;
+    this.dataFilesIDMap = dataFilesIDMap;
+    this.numberOfRows = peakList.getNumberOfRows();
+  }
+
+  /**
+   * Writes all blocks into the given stream. The stream is flushed, but not closed.
+   */
+  void write(OutputStream outputStream) throws IOException {
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+
+    // Each column is written in one pass over the rows, so the features do not have to be
+    // collected in memory. The feature array of each row is fetched once.
+    final Feature features[][] = new Feature[numberOfRows][];
+    int numberOfFeatures = 0;
+    for (int i = 0; i < numberOfRows; i++) {
+      features[i] = peakList.getRow(i).getPeaks();
+      numberOfFeatures += features[i].length;
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(numberOfRows);
+    out.writeInt(numberOfFeatures);
+
+    // Rows
+    for (int i = 0; i < numberOfRows; i++)
+      out.writeInt(peakList.getRow(i).getID());
+    for (Feature rowFeatures[] : features)
+      out.writeInt(rowFeatures.length);
+
+    // Features
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeInt(Integer.parseInt(dataFilesIDMap.get(feature.getDataFile())));
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeDouble(feature.getMZ());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeDouble(feature.getRT());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeDouble(feature.getHeight());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeDouble(feature.getArea());
+    writeNames(out, FeatureStatus.values());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeByte(feature.getFeatureStatus().ordinal());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeInt(feature.getCharge());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        Integer parentRowID = feature.getParentChromatogramRowID();
+        out.writeInt(parentRowID == null ? -1 : parentRowID);
+      }
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeInt(feature.getRepresentativeScanNumber());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeInt(feature.getMostIntenseFragmentScanNumber());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        out.writeInt(feature.getScanNumbers().length);
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        int ms2ScanNumbers[] = feature.getAllMS2FragmentScanNumbers();
+        out.writeInt(ms2ScanNumbers == null ? -1 : ms2ScanNumbers.length);
+      }
+
+    if (canceled)
+      return;
+
+    writeIsotopePatterns(out, features);
+
+    // Scan data, the most expensive part, is used for the progress
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        for (int scan : feature.getScanNumbers())
+          out.writeInt(scan);
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        for (int scan : feature.getScanNumbers()) {
+          out.writeFloat((float) feature.getDataPointMZ(scan));
+        }
+    for (int i = 0; i < numberOfRows; i++) {
+      if (canceled)
+        return;
+      for (Feature feature : features[i])
+        for (int scan : feature.getScanNumbers()) {
+          out.writeFloat((float) feature.getDataPointIntensity(scan));
+        }
+      finishedRows = i + 1;
+    }
+
+    // MS2 scans
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        int ms2ScanNumbers[] = feature.getAllMS2FragmentScanNumbers();
+        if (ms2ScanNumbers != null)
+          for (int scan : ms2ScanNumbers)
+            out.writeInt(scan);
+      }
+
+    out.flush();
+  }
+
+  private void writeIsotopePatterns(DataOutputStream out, Feature features[][])
+      throws IOException {
+
+    int numberOfPatterns = 0;
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        if (feature.getIsotopePattern() != null)
+          numberOfPatterns++;
+    out.writeInt(numberOfPatterns);
+
+    int featureIndex = 0;
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        if (feature.getIsotopePattern() != null)
+          out.writeInt(featureIndex);
+        featureIndex++;
+      }
+    writeNames(out, IsotopePatternStatus.values());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        if (feature.getIsotopePattern() != null)
+          out.writeByte(feature.getIsotopePattern().getStatus().ordinal());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        if (feature.getIsotopePattern() != null) {
+          String description = feature.getIsotopePattern().getDescription();
+          out.writeUTF(description == null ? "" : description);
+        }
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures)
+        if (feature.getIsotopePattern() != null)
+          out.writeInt(feature.getIsotopePattern().getNumberOfDataPoints());
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        IsotopePattern isotopePattern = feature.getIsotopePattern();
+        if (isotopePattern != null)
+          for (DataPoint isotope : isotopePattern.getDataPoints())
+            out.writeDouble(isotope.getMZ());
+      }
+    for (Feature rowFeatures[] : features)
+      for (Feature feature : rowFeatures) {
+        IsotopePattern isotopePattern = feature.getIsotopePattern();
+        if (isotopePattern != null)
+          for (DataPoint isotope : isotopePattern.getDataPoints())
+            out.writeDouble(isotope.getIntensity());
+      }
+  }
+
+  private static void writeNames(DataOutputStream out, Enum<?> values[]) throws IOException {
+    out.writeInt(values.length);
+    for (Enum<?> value : values)
+      out.writeUTF(value.name());
+  }
+
+  /**
+   * @return the progress of writing the features
+   */
+  double getProgress() {
+    if (numberOfRows == 0)
+      return 0;
+    return (double) finishedRows / numberOfRows;
+  }
+
+  void cancel() {
+    canceled = true;
+  }
+
+}
@@ -55,13 +55,26 @@ public class PeakListSaveHandler {
   private Hashtable<RawDataFile, String> dataFilesIDMap;
 
   private int numberOfRows, finishedRows;
-  private boolean canceled = false;
+  private volatile boolean canceled = false;
 
-  private OutputStream finalStream;
+  private OutputStream finalStream, featuresStream;
+  private volatile PeakListFeaturesWriter featuresWriter;
 
   public PeakListSaveHandler(OutputStream finalStream,
       Hashtable<RawDataFile, String> dataFilesIDMap) {
+    this(finalStream, null, dataFilesIDMap);
+  }
+
+  /**
+   * @param featuresStream stream for the rows and features in the binary format of
+   *        PeakListFeaturesWriter, or null to save them as XML. If it is given, the XML document
+   *        holds only the feature list information and the rows which have identities, information
+   *        or a comment.
+   */
+  public PeakListSaveHandler(OutputStream finalStream, OutputStream featuresStream,
+      Hashtable<RawDataFile, String> dataFilesIDMap) {
     this.finalStream = finalStream;
+    this.featuresStream = featuresStream;
     this.dataFilesIDMap = dataFilesIDMap;
   }
 
@@ -105,7 +118,10 @@ public class PeakListSaveHandler {
       dateText = ((SimplePeakList) peakList).getDateCreated();
     } else {
       Date date = new Date();
-      dateText = dateFormat.format(date);
+      // Feature lists are saved in parallel, and SimpleDateFormat is not thread-safe
+      synchronized (dateFormat) {
+        dateText = dateFormat.format(date);
+      }
     }
     hd.startElement("", "", PeakListElementName.PEAKLIST_DATE.getElementName(), atts);
     hd.characters(dateText.toCharArray(), 0, dateText.length());
@@ -161,6 +177,13 @@ public class PeakListSaveHandler {
 
       atts.clear();
       row = peakList.getRow(i);
+
+      // The features are saved in the binary stream
+      if ((featuresStream != null) && !hasRowMetadata(row)) {
+        finishedRows++;
+        continue;
+      }
+
       atts.addAttribute("", "", PeakListElementName.ID.getElementName(), "CDATA",
           String.valueOf(row.getID()));
       if (row.getComment() != null) {
@@ -177,6 +200,19 @@ public class PeakListSaveHandler {
 
     hd.endElement("", "", PeakListElementName.PEAKLIST.getElementName());
     hd.endDocument();
+
+    if ((featuresStream != null) && !canceled) {
+      featuresWriter = new PeakListFeaturesWriter(peakList, dataFilesIDMap);
+      if (canceled)
+        featuresWriter.cancel();
+      featuresWriter.write(featuresStream);
+    }
+  }
+
+  private boolean hasRowMetadata(PeakListRow row) {
+    PeakInformation information = row.getPeakInformation();
+    return (row.getComment() != null) || (row.getPeakIdentities().length > 0)
+        || ((information != null) && !information.getAllProperties().isEmpty());
   }
 
   /**
@@ -222,6 +258,8 @@ public class PeakListSaveHandler {
     hd.endElement("", "", PeakListElementName.PEAK_INFORMATION.getElementName());
 
     // <PEAK>
+    if (featuresStream != null)
+      return;
     Feature[] peaks = row.getPeaks();
     for (Feature p : peaks) {
       if (canceled)
@@ -366,14 +404,8 @@ public class PeakListSaveHandler {
     for (int scan : scanNumbers) {
       dataScanStream.writeInt(scan);
       dataScanStream.flush();
-      DataPoint mzPeak = peak.getDataPoint(scan);
-      if (mzPeak != null) {
-        mass = (float) mzPeak.getMZ();
-        height = (float) mzPeak.getIntensity();
-      } else {
-        mass = 0f;
-        height = 0f;
-      }
+      mass = (float) peak.getDataPointMZ(scan);
+      height = (float) peak.getDataPointIntensity(scan);
       dataMassStream.writeFloat(mass);
       dataMassStream.flush();
       dataHeightStream.writeFloat(height);
@@ -434,11 +466,18 @@ public class PeakListSaveHandler {
   public double getProgress() {
     if (numberOfRows == 0)
       return 0;
-    return (double) finishedRows / numberOfRows;
+    if (featuresStream == null)
+      return (double) finishedRows / numberOfRows;
+    // The XML document is small compared to the binary features
+    final PeakListFeaturesWriter writer = featuresWriter;
+    return 0.1 * finishedRows / numberOfRows + (writer == null ? 0 : 0.9 * writer.getProgress());
   }
 
   public void cancel() {
     canceled = true;
+    final PeakListFeaturesWriter writer = featuresWriter;
+    if (writer != null)
+      writer.cancel();
   }
 
 }
@@ -20,12 +20,20 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 import javax.xml.transform.TransformerConfigurationException;
 import org.xml.sax.SAXException;
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -34,6 +42,8 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.desktop.impl.MainWindow;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.ProjectLoaderParameters;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter.ArchiveEntry;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter.EntryData;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
@@ -41,13 +51,29 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.StreamCopy;
-
+import net.sf.mzmine.util.WorkerPoolUtils;
+
+/**
+ * Saves the project into a ZIP file. The raw data files and feature lists are prepared (checksums
+ * computed, XML descriptions compressed) in parallel on a pool of worker threads, while this task
+ * writes the prepared entries into the ZIP file in the order of the project. The scan data is
+ * stored uncompressed. Scan data which has not changed since the raw data file was saved or loaded
+ * is copied from the previous project file. The features of each feature list are saved in a
+ * binary entry next to its XML description, see PeakListFeaturesWriter.
+ */
 public class ProjectSavingTask extends AbstractTask {
 
   public static final String VERSION_FILENAME = "MZMINE_VERSION";
   public static final String CONFIG_FILENAME = "configuration.xml";
   public static final String PARAMETERS_FILENAME = "User parameters.xml";
 
+  /*
+   * For each raw data file, the project file and the ZIP entry which hold its scan data, as long as
+   * the scan data has not changed since.
+   */
+  private static final Map<RawDataFile, SavedScans> savedScans =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private File saveFile;
@@ -57,6 +83,9 @@ public class ProjectSavingTask extends AbstractTask {
   private PeakListSaveHandler peakListSaveHandler;
   private UserParameterSaveHandler userParameterSaveHandler;
 
+  private final RawDataFileSaveHandler rawDataFileSaveHandlers[];
+  private final PeakListSaveHandler peakListSaveHandlers[];
+
   private final int totalSaveItems;
   private int currentStage, finishedSaveItems = 0;
   private String currentSavedObjectName;
@@ -64,11 +93,50 @@ public class ProjectSavingTask extends AbstractTask {
   // This hashtable maps raw data files to their ID within the saved project
   private Hashtable<RawDataFile, String> dataFilesIDMap;
 
+  // Previously saved project files opened to copy unchanged scan data
+  private final Map<File, PreviousProjectFile> previousProjectFiles = new HashMap<>();
+
   public ProjectSavingTask(MZmineProject project, ParameterSet parameters) {
     this.savedProject = (MZmineProjectImpl) project;
     this.saveFile = parameters.getParameter(ProjectLoaderParameters.projectFile).getValue();
     dataFilesIDMap = new Hashtable<RawDataFile, String>();
     this.totalSaveItems = project.getDataFiles().length + project.getPeakLists().length;
+    this.rawDataFileSaveHandlers = new RawDataFileSaveHandler[project.getDataFiles().length];
+    this.peakListSaveHandlers = new PeakListSaveHandler[project.getPeakLists().length];
+  }
+
+  /**
+   * Remembers that the scan data of the given raw data file is stored in the given entry of a
+   * project file, e.g. after the project has been opened. Until the data points of the file are
+   * modified, saving the project copies the scan data from there.
+   */
+  public static void registerSavedScans(RawDataFileImpl rawDataFile, File projectFile,
+      String entryName) {
+
+    // Snapshot of the data points, the lock is only held while copying it
+    final Map<Integer, Long> offsets;
+    final Map<Integer, Integer> lengths;
+    final long storageSize, modCount;
+    synchronized (rawDataFile) {
+      offsets = new TreeMap<>(rawDataFile.getDataPointsOffsets());
+      lengths = new HashMap<>(rawDataFile.getDataPointsLengths());
+      storageSize = rawDataFile.getDataPointStorage() == null ? -1
+          : rawDataFile.getDataPointStorage().getSize();
+      modCount = rawDataFile.getDataPointsModCount();
+    }
+
+    // The entry can only be copied if it holds exactly the data points referenced by the file, in
+    // the order of their storage IDs. Later modifications change the modification count, so the
+    // entry is not copied then.
+    long expectedOffset = 0;
+    for (Map.Entry<Integer, Long> offset : offsets.entrySet()) {
+      if (offset.getValue() != expectedOffset)
+        return;
+      expectedOffset += lengths.get(offset.getKey()) * 4L * 2L;
+    }
+    if (storageSize >= 0 && storageSize != expectedOffset)
+      return;
+    savedScans.put(rawDataFile, new SavedScans(projectFile, entryName, modCount));
   }
 
   /**
@@ -123,11 +191,15 @@ public class ProjectSavingTask extends AbstractTask {
 
     setStatus(TaskStatus.CANCELED);
 
-    if (rawDataFileSaveHandler != null)
-      rawDataFileSaveHandler.cancel();
+    for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers) {
+      if (handler != null)
+        handler.cancel();
+    }
 
-    if (peakListSaveHandler != null)
-      peakListSaveHandler.cancel();
+    for (PeakListSaveHandler handler : peakListSaveHandlers) {
+      if (handler != null)
+        handler.cancel();
+    }
 
     if (userParameterSaveHandler != null)
       userParameterSaveHandler.cancel();
@@ -139,6 +211,12 @@ public class ProjectSavingTask extends AbstractTask {
    */
   @Override
   public void run() {
+
+    File tempFile = null;
+    ProjectZipWriter zipWriter = null;
+    List<Future<?>> rawDataFilePreparations = new ArrayList<>();
+    List<Future<EntryData[]>> peakListEntries = new ArrayList<>();
+
     try {
       logger.info("Saving project to " + saveFile);
       setStatus(TaskStatus.PROCESSING);
@@ -146,71 +224,77 @@ public class ProjectSavingTask extends AbstractTask {
       // Prepare a temporary ZIP file. We create this file in the same
       // directory as the final saveFile to avoid moving between
       // filesystems in the last stage (renameTo)
-      File tempFile = File.createTempFile(saveFile.getName(), ".tmp", saveFile.getParentFile());
+      tempFile = File.createTempFile(saveFile.getName(), ".tmp", saveFile.getParentFile());
       tempFile.deleteOnExit();
 
-      // Create a ZIP stream writing to the temporary file
-      FileOutputStream tempStream = new FileOutputStream(tempFile);
-      ZipOutputStream zipStream = new ZipOutputStream(tempStream);
+      // Create a ZIP writer writing to the temporary file
+      zipWriter = new ProjectZipWriter(tempFile);
+
+      // Start preparing the raw data files and feature lists in parallel
+      rawDataFilePreparations = prepareRawDataFiles();
+      peakListEntries = preparePeakLists();
 
       // Stage 1 - save version and configuration
       currentStage++;
-      saveVersion(zipStream);
-      saveConfiguration(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
+      saveVersion(zipWriter);
+      saveConfiguration(zipWriter);
+      if (isCanceled())
         return;
-      }
 
       // Stage 2 - save RawDataFile objects
       currentStage++;
-      saveRawDataFiles(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
+      saveRawDataFiles(zipWriter, rawDataFilePreparations);
+      if (isCanceled())
         return;
-      }
 
       // Stage 3 - save PeakList objects
       currentStage++;
-      savePeakLists(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
+      savePeakLists(zipWriter, peakListEntries);
+      if (isCanceled())
         return;
-      }
 
       // Stage 4 - save user parameters
       currentStage++;
-      saveUserParameters(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
+      saveUserParameters(zipWriter);
+      if (isCanceled())
         return;
-      }
 
       // Stage 5 - finish and close the temporary ZIP file
       currentStage++;
       currentSavedObjectName = null;
-      zipStream.close();
+      zipWriter.close();
+      zipWriter = null;
+      closePreviousProjectFiles();
 
       // Final check for cancel
-      if (isCanceled()) {
-        tempFile.delete();
+      if (isCanceled())
         return;
-      }
 
       // Move the temporary ZIP file to the final location
-      if (saveFile.exists() && !saveFile.delete()) {
-        throw new IOException("Could not delete old file " + saveFile);
-      }
+      List<RawDataFileSaveHandler> mappedHandlers = deleteOldProjectFile();
 
       boolean renameOK = tempFile.renameTo(saveFile);
       if (!renameOK) {
         throw new IOException(
             "Could not move the temporary file " + tempFile + " to the final location " + saveFile);
       }
+      tempFile = null;
+
+      // Raw data files which were reading the old project file read the new one
+      for (RawDataFileSaveHandler handler : mappedHandlers) {
+        ArchiveEntry scansEntry = handler.getScansEntry();
+        if (scansEntry == null)
+          continue;
+        handler.getRawDataFile().switchDataPointsFile(saveFile, scansEntry.getDataOffset(),
+            scansEntry.getSize(), handler.getDataPointsModCount(),
+            handler.getConsolidatedDataPointsOffsets());
+      }
+
+      // The scan data in the new project file can be copied on the next save
+      for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers) {
+        savedScans.put(handler.getRawDataFile(), new SavedScans(saveFile,
+            handler.getScansEntryName(), handler.getDataPointsModCount()));
+      }
 
       // Update the location of the project
       savedProject.setProjectFile(saveFile);
@@ -240,7 +324,77 @@ public class ProjectSavingTask extends AbstractTask {
             + ": " + ExceptionUtils.exceptionToString(e));
       }
 
+    } finally {
+
+      // Clean up after cancel or error. The worker pool is shared, so only the jobs of this task
+      // are canceled, and those already running are stopped through their handlers
+      for (Future<?> preparation : rawDataFilePreparations)
+        preparation.cancel(false);
+      for (Future<EntryData[]> entry : peakListEntries)
+        entry.cancel(false);
+      for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers) {
+        if (handler != null) {
+          handler.cancel();
+          handler.discard();
+        }
+      }
+      for (PeakListSaveHandler handler : peakListSaveHandlers) {
+        if (handler != null)
+          handler.cancel();
+      }
+      for (Future<EntryData[]> entry : peakListEntries) {
+        if (entry.isDone() && !entry.isCancelled()) {
+          try {
+            for (EntryData data : entry.get())
+              data.delete();
+          } catch (InterruptedException | ExecutionException e) {
+            // Nothing to delete
+          }
+        }
+      }
+      if (zipWriter != null) {
+        try {
+          zipWriter.close();
+        } catch (IOException e) {
+          logger.warning("Could not close " + tempFile + ": " + e);
+        }
+      }
+      closePreviousProjectFiles();
+      if (tempFile != null)
+        tempFile.delete();
+    }
+  }
+
+  /**
+   * Deletes the project file which is about to be replaced. Some systems do not allow deleting a
+   * file which is memory-mapped, so if that fails, the raw data files reading their scan data
+   * directly from it are moved to temporary files first.
+   * 
+   * @return handlers of the raw data files which were reading the old project file
+   */
+  private List<RawDataFileSaveHandler> deleteOldProjectFile() throws IOException {
+
+    List<RawDataFileSaveHandler> mappedHandlers = new ArrayList<>();
+    for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers) {
+      if (saveFile.equals(handler.getRawDataFile().getDataPointsProjectFile()))
+        mappedHandlers.add(handler);
+    }
+
+    if (!saveFile.exists() || saveFile.delete())
+      return mappedHandlers;
+
+    for (RawDataFileSaveHandler handler : mappedHandlers) {
+      handler.getRawDataFile().compactDataPointsFile();
+    }
+
+    // Mapped segments are only released when they are garbage collected
+    System.gc();
+
+    if (!saveFile.delete()) {
+      throw new IOException("Could not delete old file " + saveFile);
     }
+    return mappedHandlers;
+
   }
 
   /**
@@ -248,13 +402,15 @@ public class ProjectSavingTask extends AbstractTask {
    * 
    * @throws java.io.IOException
    */
-  private void saveVersion(ZipOutputStream zipStream) throws IOException {
+  private void saveVersion(ProjectZipWriter zipWriter) throws IOException {
 
-    zipStream.putNextEntry(new ZipEntry(VERSION_FILENAME));
+    EntryData data = new EntryData(VERSION_FILENAME, true);
 
     String MZmineVersion = MZmineCore.getMZmineVersion();
 
-    zipStream.write(MZmineVersion.getBytes());
+    data.write(MZmineVersion.getBytes());
+
+    zipWriter.addEntry(data);
 
   }
 
@@ -263,13 +419,13 @@ public class ProjectSavingTask extends AbstractTask {
    * 
    * @throws java.io.IOException
    */
-  private void saveConfiguration(ZipOutputStream zipStream) throws IOException {
+  private void saveConfiguration(ProjectZipWriter zipWriter) throws IOException {
 
     logger.info("Saving configuration file");
 
     currentSavedObjectName = "configuration";
 
-    zipStream.putNextEntry(new ZipEntry(CONFIG_FILENAME));
+    EntryData data = new EntryData(CONFIG_FILENAME, true);
 
     try {
       File tempConfigFile = File.createTempFile("mzmineconfig", ".tmp");
@@ -277,7 +433,7 @@ public class ProjectSavingTask extends AbstractTask {
       FileInputStream fileStream = new FileInputStream(tempConfigFile);
 
       StreamCopy copyMachine = new StreamCopy();
-      copyMachine.copy(fileStream, zipStream);
+      copyMachine.copy(fileStream, data);
 
       fileStream.close();
       tempConfigFile.delete();
@@ -286,6 +442,83 @@ public class ProjectSavingTask extends AbstractTask {
       logger.warning("Could not save configuration" + ExceptionUtils.exceptionToString(e));
     }
 
+    zipWriter.addEntry(data);
+
+  }
+
+  /**
+   * Starts preparing the raw data files on the shared worker threads
+   */
+  private List<Future<?>> prepareRawDataFiles() {
+
+    RawDataFile rawDataFiles[] = savedProject.getDataFiles();
+    List<Future<?>> preparations = new ArrayList<>();
+
+    for (int i = 0; i < rawDataFiles.length; i++) {
+
+      dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
+
+      final RawDataFileImpl rawDataFile = (RawDataFileImpl) rawDataFiles[i];
+      final RawDataFileSaveHandler handler = new RawDataFileSaveHandler(rawDataFile, i + 1);
+      rawDataFileSaveHandlers[i] = handler;
+
+      // Unchanged scan data is copied from the previous project file
+      SavedScans previous = savedScans.get(rawDataFile);
+      final PreviousProjectFile previousFile = findPreviousProjectFile(rawDataFile, previous);
+      final ArchiveEntry previousScans =
+          previousFile == null ? null : previousFile.entries.get(previous.entryName);
+
+      preparations.add(WorkerPoolUtils.getWorkerPool().submit(() -> {
+        handler.prepare(previousScans, previousScans == null ? null : previousFile.channel);
+        return null;
+      }));
+    }
+
+    return preparations;
+  }
+
+  /**
+   * Starts saving the feature lists into compressed temporary files on the shared worker threads.
+   * Each feature list is saved as an XML description and a binary entry holding its features.
+   */
+  private List<Future<EntryData[]>> preparePeakLists() {
+
+    PeakList peakLists[] = savedProject.getPeakLists();
+    List<Future<EntryData[]>> entries = new ArrayList<>();
+
+    for (int i = 0; i < peakLists.length; i++) {
+
+      final PeakList peakList = peakLists[i];
+      final String peakListSavedName = "Peak list #" + (i + 1) + " " + peakList.getName();
+      final int index = i;
+
+      entries.add(WorkerPoolUtils.getWorkerPool().submit(() -> {
+
+        logger.info("Saving feature list: " + peakList.getName());
+
+        EntryData data = new EntryData(peakListSavedName + ".xml", true);
+        EntryData featuresData = null;
+        try {
+          featuresData = new EntryData(peakListSavedName + ".features", true);
+          PeakListSaveHandler handler =
+              new PeakListSaveHandler(data, featuresData, dataFilesIDMap);
+          peakListSaveHandlers[index] = handler;
+          if (isCanceled())
+            handler.cancel();
+          handler.savePeakList(peakList);
+          data.close();
+          featuresData.close();
+        } catch (Throwable e) {
+          data.delete();
+          if (featuresData != null)
+            featuresData.delete();
+          throw e;
+        }
+        return new EntryData[] {data, featuresData};
+      }));
+    }
+
+    return entries;
   }
 
   /**
@@ -294,21 +527,18 @@ public class ProjectSavingTask extends AbstractTask {
    * @throws SAXException
    * @throws TransformerConfigurationException
    */
-  private void saveRawDataFiles(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
-
-    rawDataFileSaveHandler = new RawDataFileSaveHandler(zipStream);
+  private void saveRawDataFiles(ProjectZipWriter zipWriter, List<Future<?>> preparations)
+      throws Exception {
 
-    RawDataFile rawDataFiles[] = savedProject.getDataFiles();
-
-    for (int i = 0; i < rawDataFiles.length; i++) {
+    for (int i = 0; i < rawDataFileSaveHandlers.length; i++) {
 
       if (isCanceled())
         return;
 
-      currentSavedObjectName = rawDataFiles[i].getName();
-      rawDataFileSaveHandler.writeRawDataFile((RawDataFileImpl) rawDataFiles[i], i + 1);
-      dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
+      rawDataFileSaveHandler = rawDataFileSaveHandlers[i];
+      currentSavedObjectName = rawDataFileSaveHandler.getRawDataFile().getName();
+      waitFor(preparations.get(i));
+      rawDataFileSaveHandler.write(zipWriter);
       finishedSaveItems++;
     }
   }
@@ -319,26 +549,20 @@ public class ProjectSavingTask extends AbstractTask {
    * @throws SAXException
    * @throws TransformerConfigurationException
    */
-  private void savePeakLists(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
+  private void savePeakLists(ProjectZipWriter zipWriter, List<Future<EntryData[]>> entries)
+      throws Exception {
 
     PeakList peakLists[] = savedProject.getPeakLists();
 
-    for (int i = 0; i < peakLists.length; i++) {
+    for (int i = 0; i < entries.size(); i++) {
 
       if (isCanceled())
         return;
 
-      logger.info("Saving feature list: " + peakLists[i].getName());
-
-      String peakListSavedName = "Peak list #" + (i + 1) + " " + peakLists[i].getName();
-
-      zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".xml"));
-
-      peakListSaveHandler = new PeakListSaveHandler(zipStream, dataFilesIDMap);
-
       currentSavedObjectName = peakLists[i].getName();
-      peakListSaveHandler.savePeakList(peakLists[i]);
+      peakListSaveHandler = peakListSaveHandlers[i];
+      for (EntryData data : waitFor(entries.get(i)))
+        zipWriter.addEntry(data);
       finishedSaveItems++;
     }
   }
@@ -349,7 +573,7 @@ public class ProjectSavingTask extends AbstractTask {
    * @throws SAXException
    * @throws TransformerConfigurationException
    */
-  private void saveUserParameters(ZipOutputStream zipStream)
+  private void saveUserParameters(ProjectZipWriter zipWriter)
       throws IOException, TransformerConfigurationException, SAXException {
 
     if (isCanceled())
@@ -357,14 +581,107 @@ public class ProjectSavingTask extends AbstractTask {
 
     logger.info("Saving user parameters");
 
-    zipStream.putNextEntry(new ZipEntry(PARAMETERS_FILENAME));
+    EntryData data = new EntryData(PARAMETERS_FILENAME, true);
 
-    userParameterSaveHandler =
-        new UserParameterSaveHandler(zipStream, savedProject, dataFilesIDMap);
+    userParameterSaveHandler = new UserParameterSaveHandler(data, savedProject, dataFilesIDMap);
 
     currentSavedObjectName = "User parameters";
     userParameterSaveHandler.saveParameters();
 
+    zipWriter.addEntry(data);
+
+  }
+
+  /**
+   * Finds the project file the raw data file was last saved to or loaded from.
+   * 
+   * @return the opened project file, or null if the scan data changed since or the project file is
+   *         gone
+   */
+  private PreviousProjectFile findPreviousProjectFile(RawDataFileImpl rawDataFile,
+      SavedScans previous) {
+
+    if ((previous == null) || (previous.dataPointsModCount != rawDataFile.getDataPointsModCount()))
+      return null;
+
+    // The project file must not have been modified since
+    if ((previous.projectFile.length() != previous.projectFileLength)
+        || (previous.projectFile.lastModified() != previous.projectFileModified))
+      return null;
+
+    PreviousProjectFile previousFile = previousProjectFiles.get(previous.projectFile);
+    if (previousFile == null) {
+      try {
+        previousFile = new PreviousProjectFile(previous.projectFile);
+      } catch (IOException e) {
+        logger.warning("Cannot read the scan data from " + previous.projectFile + ": " + e);
+        return null;
+      }
+      previousProjectFiles.put(previous.projectFile, previousFile);
+    }
+    return previousFile;
+  }
+
+  private void closePreviousProjectFiles() {
+    for (PreviousProjectFile previousFile : previousProjectFiles.values()) {
+      try {
+        previousFile.channel.close();
+      } catch (IOException e) {
+        logger.warning("Could not close " + previousFile + ": " + e);
+      }
+    }
+    previousProjectFiles.clear();
+  }
+
+  /**
+   * Waits for a job of the worker threads and passes on its exception
+   */
+  private static <T> T waitFor(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Location of the scan data of a raw data file in a project file
+   */
+  private static class SavedScans {
+
+    private final File projectFile;
+    private final long projectFileLength, projectFileModified;
+    private final String entryName;
+    private final long dataPointsModCount;
+
+    SavedScans(File projectFile, String entryName, long dataPointsModCount) {
+      this.projectFile = projectFile;
+      this.projectFileLength = projectFile.length();
+      this.projectFileModified = projectFile.lastModified();
+      this.entryName = entryName;
+      this.dataPointsModCount = dataPointsModCount;
+    }
+  }
+
+  /**
+   * Project file opened for copying scan data, together with its ZIP entries
+   */
+  private static class PreviousProjectFile {
+
+    private final FileChannel channel;
+    private final Map<String, ArchiveEntry> entries;
+
+    PreviousProjectFile(File projectFile) throws IOException {
+      channel = FileChannel.open(projectFile.toPath(), StandardOpenOption.READ);
+      try {
+        entries = ProjectZipWriter.readEntries(channel);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
   }
 
 }
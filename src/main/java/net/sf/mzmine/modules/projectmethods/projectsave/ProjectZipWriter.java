@@ -0,0 +1,574 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writer of project ZIP files. Unlike ZipOutputStream, it writes entries whose data is already
+ * compressed, either prepared by an EntryData on any thread (so the entries of a project can be
+ * compressed in parallel) or copied unchanged from a previously saved project file. The sizes of
+ * each entry are known before its data is written, and the CRC of data streamed by the caller is
+ * filled into the local header afterwards, so no data descriptors are needed.
+ * ZIP64 extensions are used where sizes or offsets exceed 4 GB. The data of uncompressed entries
+ * starts at a page boundary (padded by an extra field of the local header), so the scan data can be
+ * memory-mapped directly from the project file when it is opened.
+ */
+public class ProjectZipWriter implements Closeable {
+
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+
+  // General purpose flag: names are encoded in UTF-8
+  private static final int FLAG_UTF8 = 0x0800;
+
+  // Alignment of the data of uncompressed entries and the ID of the extra field padding the local
+  // header for it (the same as used by the Android zipalign tools)
+  private static final int STORED_DATA_ALIGNMENT = 4096;
+  private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+
+  /**
+   * Header values and location of an entry in a project file
+   */
+  public static class ArchiveEntry {
+
+    private final String name;
+    private final int method;
+    private long crc;
+    private final long size, compressedSize;
+    private final long headerOffset, dataOffset;
+
+    private ArchiveEntry(String name, int method, long crc, long size, long compressedSize,
+        long headerOffset, long dataOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.headerOffset = headerOffset;
+      this.dataOffset = dataOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return true if the data is stored uncompressed
+     */
+    public boolean isStored() {
+      return method == ZipEntry.STORED;
+    }
+
+    /**
+     * @return uncompressed size of the data
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return position of the data in the project file
+     */
+    public long getDataOffset() {
+      return dataOffset;
+    }
+  }
+
+  /**
+   * Data of one entry, compressed (or stored) into a temporary file while it is written. Any thread
+   * may write an EntryData, the ProjectZipWriter copies it into the project file afterwards.
+   */
+  static class EntryData extends OutputStream {
+
+    private final String name;
+    private final int method;
+    private final File tempFile;
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * @param compress true to deflate the data, false to store it uncompressed
+     */
+    EntryData(String name, boolean compress) throws IOException {
+      this.name = name;
+      this.method = compress ? ZipEntry.DEFLATED : ZipEntry.STORED;
+      this.tempFile = File.createTempFile("mzmineproject", ".tmp");
+      tempFile.deleteOnExit();
+      OutputStream bufferedStream =
+          new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16);
+      if (compress) {
+        this.out = new DeflaterOutputStream(bufferedStream,
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true), 1 << 16);
+      } else {
+        this.out = bufferedStream;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      crc.update(b);
+      size++;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+      out.write(b, off, len);
+      crc.update(b, off, len);
+      size += len;
+    }
+
+    /**
+     * Finishes the compression, no more data can be written afterwards
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+      closed = true;
+      if (out instanceof DeflaterOutputStream) {
+        DeflaterOutputStream deflaterStream = (DeflaterOutputStream) out;
+        deflaterStream.finish();
+      }
+      out.close();
+    }
+
+    /**
+     * Deletes the temporary file
+     */
+    void delete() {
+      try {
+        close();
+      } catch (IOException e) {
+        // Nothing to do, the file is deleted anyway
+      }
+      tempFile.delete();
+    }
+  }
+
+  private final FileOutputStream fileStream;
+  private final OutputStream out;
+  private long position = 0;
+  // CRC of the data of the last entry, if the caller streams it into getOutputStream()
+  private CRC32 streamedCRC;
+  private final List<ArchiveEntry> entries = new ArrayList<>();
+  private final long dosTime = currentDosTime();
+
+  ProjectZipWriter(File zipFile) throws IOException {
+    this.fileStream = new FileOutputStream(zipFile);
+    this.out = new BufferedOutputStream(fileStream, 1 << 16);
+  }
+
+  /**
+   * Writes the entry data into the project file and deletes its temporary file
+   */
+  ArchiveEntry addEntry(EntryData data) throws IOException {
+    try {
+      data.close();
+      long compressedSize = data.tempFile.length();
+      ArchiveEntry entry =
+          putEntry(data.name, data.method, data.crc.getValue(), data.size, compressedSize);
+      try (InputStream in = new FileInputStream(data.tempFile)) {
+        copy(in, compressedSize);
+      }
+      return entry;
+    } finally {
+      data.delete();
+    }
+  }
+
+  /**
+   * Copies the (compressed) data of an entry of another project file unchanged, under a new name
+   */
+  ArchiveEntry copyEntry(String name, ArchiveEntry source, FileChannel sourceFile)
+      throws IOException {
+    ArchiveEntry entry =
+        putEntry(name, source.method, source.crc, source.size, source.compressedSize);
+    sourceFile.position(source.dataOffset);
+    copy(new BufferedInputStream(Channels.newInputStream(sourceFile), 1 << 16),
+        source.compressedSize);
+    return entry;
+  }
+
+  /**
+   * Starts an uncompressed entry whose data the caller writes into getOutputStream(). The size must
+   * be known in advance, the CRC is computed while the data is written.
+   */
+  ArchiveEntry putStoredEntry(String name, long size) throws IOException {
+    ArchiveEntry entry = putEntry(name, ZipEntry.STORED, 0, size, size);
+    streamedCRC = new CRC32();
+    return entry;
+  }
+
+  /**
+   * @return the stream to write the data of an entry started by putStoredEntry()
+   */
+  OutputStream getOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        streamedCRC.update(b);
+        position++;
+      }
+
+      @Override
+      public void write(byte b[], int off, int len) throws IOException {
+        out.write(b, off, len);
+        streamedCRC.update(b, off, len);
+        position += len;
+      }
+    };
+  }
+
+  /**
+   * Writes the central directory and closes the file
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      checkLastEntry();
+
+      final long centralDirectoryOffset = position;
+      for (ArchiveEntry entry : entries)
+        writeCentralHeader(entry);
+      final long centralDirectorySize = position - centralDirectoryOffset;
+
+      final boolean zip64 = (entries.size() >= 0xFFFF) || (centralDirectoryOffset >= ZIP64_LIMIT)
+          || (centralDirectorySize >= ZIP64_LIMIT);
+      ByteBuffer end = newBuffer(56 + 20 + 22);
+      if (zip64) {
+        final long zip64EndOffset = position;
+        end.putInt(ZIP64_END_SIGNATURE);
+        end.putLong(44);
+        end.putShort((short) 45);
+        end.putShort((short) 45);
+        end.putInt(0);
+        end.putInt(0);
+        end.putLong(entries.size());
+        end.putLong(entries.size());
+        end.putLong(centralDirectorySize);
+        end.putLong(centralDirectoryOffset);
+        end.putInt(ZIP64_LOCATOR_SIGNATURE);
+        end.putInt(0);
+        end.putLong(zip64EndOffset);
+        end.putInt(1);
+      }
+      end.putInt(END_SIGNATURE);
+      end.putShort((short) 0);
+      end.putShort((short) 0);
+      end.putShort((short) Math.min(entries.size(), 0xFFFF));
+      end.putShort((short) Math.min(entries.size(), 0xFFFF));
+      end.putInt((int) Math.min(centralDirectorySize, ZIP64_LIMIT));
+      end.putInt((int) Math.min(centralDirectoryOffset, ZIP64_LIMIT));
+      end.putShort((short) 0);
+      write(end);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the central directory of a project file
+   * 
+   * @return the entries by name
+   */
+  public static Map<String, ArchiveEntry> readEntries(FileChannel zipFile) throws IOException {
+
+    // Find the end of central directory record, followed by a comment of at most 64 kB
+    final long fileSize = zipFile.size();
+    final int tailSize = (int) Math.min(fileSize, 22 + 0xFFFF);
+    ByteBuffer tail = read(zipFile, fileSize - tailSize, tailSize);
+    int endPosition = -1;
+    for (int i = tailSize - 22; i >= 0; i--) {
+      if (tail.getInt(i) == END_SIGNATURE) {
+        endPosition = i;
+        break;
+      }
+    }
+    if (endPosition < 0)
+      throw new IOException("Not a ZIP file, the end of central directory is missing");
+
+    long numOfEntries = tail.getShort(endPosition + 10) & 0xFFFF;
+    long centralDirectorySize = tail.getInt(endPosition + 12) & ZIP64_LIMIT;
+    long centralDirectoryOffset = tail.getInt(endPosition + 16) & ZIP64_LIMIT;
+
+    // ZIP64 end of central directory, found through the locator preceding the end record
+    final long locatorOffset = fileSize - tailSize + endPosition - 20;
+    if (locatorOffset >= 0) {
+      ByteBuffer locator = read(zipFile, locatorOffset, 20);
+      if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+        ByteBuffer zip64End = read(zipFile, locator.getLong(8), 56);
+        if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+          throw new IOException("Invalid ZIP64 end of central directory");
+        numOfEntries = zip64End.getLong(32);
+        centralDirectorySize = zip64End.getLong(40);
+        centralDirectoryOffset = zip64End.getLong(48);
+      }
+    }
+
+    if (centralDirectorySize > Integer.MAX_VALUE)
+      throw new IOException("Central directory too large");
+    ByteBuffer directory = read(zipFile, centralDirectoryOffset, (int) centralDirectorySize);
+
+    Map<String, ArchiveEntry> result = new HashMap<>();
+    for (long i = 0; i < numOfEntries; i++) {
+      if (directory.getInt() != CENTRAL_HEADER_SIGNATURE)
+        throw new IOException("Invalid central directory header");
+      directory.position(directory.position() + 6);
+      final int method = directory.getShort() & 0xFFFF;
+      directory.getInt(); // Time and date
+      final long crc = directory.getInt() & ZIP64_LIMIT;
+      long compressedSize = directory.getInt() & ZIP64_LIMIT;
+      long size = directory.getInt() & ZIP64_LIMIT;
+      final int nameLength = directory.getShort() & 0xFFFF;
+      final int extraLength = directory.getShort() & 0xFFFF;
+      final int commentLength = directory.getShort() & 0xFFFF;
+      directory.position(directory.position() + 8);
+      long headerOffset = directory.getInt() & ZIP64_LIMIT;
+
+      byte nameBytes[] = new byte[nameLength];
+      directory.get(nameBytes);
+      final String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+      // ZIP64 extra field holds the values which did not fit in the header, in this order
+      final int extraEnd = directory.position() + extraLength;
+      while (directory.position() + 4 <= extraEnd) {
+        final int headerId = directory.getShort() & 0xFFFF;
+        final int dataSize = directory.getShort() & 0xFFFF;
+        final int dataEnd = directory.position() + dataSize;
+        if (headerId == 0x0001) {
+          if (size == ZIP64_LIMIT)
+            size = directory.getLong();
+          if (compressedSize == ZIP64_LIMIT)
+            compressedSize = directory.getLong();
+          if (headerOffset == ZIP64_LIMIT)
+            headerOffset = directory.getLong();
+        }
+        directory.position(dataEnd);
+      }
+      directory.position(extraEnd + commentLength);
+
+      // The data follows the local header, whose extra field may differ from the central one
+      ByteBuffer localHeader = read(zipFile, headerOffset, 30);
+      if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+        throw new IOException("Invalid local header of " + name);
+      final long dataOffset = headerOffset + 30 + (localHeader.getShort(26) & 0xFFFF)
+          + (localHeader.getShort(28) & 0xFFFF);
+
+      result.put(name,
+          new ArchiveEntry(name, method, crc, size, compressedSize, headerOffset, dataOffset));
+    }
+
+    return result;
+  }
+
+  private ArchiveEntry putEntry(String name, int method, long crc, long size, long compressedSize)
+      throws IOException {
+
+    checkLastEntry();
+
+    final byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+    final boolean zip64 = (size >= ZIP64_LIMIT) || (compressedSize >= ZIP64_LIMIT);
+
+    int extraLength = zip64 ? 20 : 0;
+    int padding = 0;
+    if (method == ZipEntry.STORED) {
+      final long dataStart = position + 30 + nameBytes.length + extraLength + 6;
+      padding = (int) ((STORED_DATA_ALIGNMENT - dataStart % STORED_DATA_ALIGNMENT)
+          % STORED_DATA_ALIGNMENT);
+      extraLength += 6 + padding;
+    }
+
+    ByteBuffer header = newBuffer(30 + nameBytes.length + extraLength);
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort((short) (zip64 ? 45 : 20));
+    header.putShort((short) FLAG_UTF8);
+    header.putShort((short) method);
+    header.putInt((int) dosTime);
+    header.putInt((int) crc);
+    header.putInt((int) (zip64 ? ZIP64_LIMIT : compressedSize));
+    header.putInt((int) (zip64 ? ZIP64_LIMIT : size));
+    header.putShort((short) nameBytes.length);
+    header.putShort((short) extraLength);
+    header.put(nameBytes);
+    if (zip64) {
+      header.putShort((short) 0x0001);
+      header.putShort((short) 16);
+      header.putLong(size);
+      header.putLong(compressedSize);
+    }
+    if (method == ZipEntry.STORED) {
+      header.putShort((short) ALIGNMENT_EXTRA_ID);
+      header.putShort((short) (2 + padding));
+      header.putShort((short) STORED_DATA_ALIGNMENT);
+      header.put(new byte[padding]);
+    }
+
+    final long headerOffset = position;
+    write(header);
+
+    ArchiveEntry entry =
+        new ArchiveEntry(name, method, crc, size, compressedSize, headerOffset, position);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Verifies that all data of the last entry has been written and fills in the CRC of streamed data
+   */
+  private void checkLastEntry() throws IOException {
+    if (entries.isEmpty())
+      return;
+    ArchiveEntry last = entries.get(entries.size() - 1);
+    if (position != last.dataOffset + last.compressedSize)
+      throw new IOException("Wrong size of the data of entry " + last.name);
+    if (streamedCRC == null)
+      return;
+
+    // The CRC field is at offset 14 of the local header, overwritten without moving the position
+    last.crc = streamedCRC.getValue();
+    streamedCRC = null;
+    out.flush();
+    ByteBuffer crcField = newBuffer(4);
+    crcField.putInt((int) last.crc);
+    ((Buffer) crcField).flip();
+    FileChannel channel = fileStream.getChannel();
+    while (crcField.hasRemaining())
+      channel.write(crcField, last.headerOffset + 14 + crcField.position());
+  }
+
+  private void writeCentralHeader(ArchiveEntry entry) throws IOException {
+
+    final byte nameBytes[] = entry.name.getBytes(StandardCharsets.UTF_8);
+
+    // ZIP64 extra field with the values which do not fit in the header
+    ByteBuffer extra = newBuffer(28);
+    if (entry.size >= ZIP64_LIMIT)
+      extra.putLong(entry.size);
+    if (entry.compressedSize >= ZIP64_LIMIT)
+      extra.putLong(entry.compressedSize);
+    if (entry.headerOffset >= ZIP64_LIMIT)
+      extra.putLong(entry.headerOffset);
+    final int extraLength = extra.position() == 0 ? 0 : extra.position() + 4;
+
+    ByteBuffer header = newBuffer(46 + nameBytes.length + extraLength);
+    header.putInt(CENTRAL_HEADER_SIGNATURE);
+    header.putShort((short) 45);
+    header.putShort((short) (extraLength > 0 ? 45 : 20));
+    header.putShort((short) FLAG_UTF8);
+    header.putShort((short) entry.method);
+    header.putInt((int) dosTime);
+    header.putInt((int) entry.crc);
+    header.putInt((int) Math.min(entry.compressedSize, ZIP64_LIMIT));
+    header.putInt((int) Math.min(entry.size, ZIP64_LIMIT));
+    header.putShort((short) nameBytes.length);
+    header.putShort((short) extraLength);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt(0);
+    header.putInt((int) Math.min(entry.headerOffset, ZIP64_LIMIT));
+    header.put(nameBytes);
+    if (extraLength > 0) {
+      header.putShort((short) 0x0001);
+      header.putShort((short) (extraLength - 4));
+      ((Buffer) extra).flip();
+      header.put(extra);
+    }
+    write(header);
+  }
+
+  private void copy(InputStream in, long length) throws IOException {
+    byte buffer[] = new byte[1 << 16];
+    long remaining = length;
+    while (remaining > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (n < 0)
+        throw new IOException("Unexpected end of entry data");
+      out.write(buffer, 0, n);
+      position += n;
+      remaining -= n;
+    }
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    out.write(buffer.array(), 0, buffer.position());
+    position += buffer.position();
+  }
+
+  private static ByteBuffer newBuffer(int capacity) {
+    return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+    ByteBuffer buffer = newBuffer(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0)
+        throw new IOException("Unexpected end of ZIP file");
+    }
+    ((Buffer) buffer).flip();
+    return buffer;
+  }
+
+  /**
+   * @return current time in the MS-DOS format of ZIP headers (time in the low, date in the high 16
+   *         bits)
+   */
+  private static long currentDosTime() {
+    Calendar c = Calendar.getInstance();
+    int year = c.get(Calendar.YEAR);
+    if (year < 1980)
+      return (1 << 21) | (1 << 16);
+    return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21)
+        | (c.get(Calendar.DAY_OF_MONTH) << 16) | (c.get(Calendar.HOUR_OF_DAY) << 11)
+        | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+  }
+
+}
@@ -20,13 +20,14 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
+import javax.annotation.Nullable;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -36,6 +37,9 @@ import javax.xml.transform.stream.StreamResult;
 
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter.ArchiveEntry;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectZipWriter.EntryData;
+import net.sf.mzmine.project.impl.DataPointStorage;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
@@ -45,84 +49,137 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import com.google.common.collect.Range;
 
+/**
+ * Saves one raw data file in two steps. prepare() may run on any thread, in parallel with the
+ * other files: it takes a snapshot of the structure of the data points file and compresses the XML
+ * description. write() then copies the scan data uncompressed (the float values hardly compress),
+ * computing its checksum on the way, and the description into the project file. If the scan data
+ * did not change since the file was saved into the previous project file, it is copied from there
+ * instead.
+ */
 class RawDataFileSaveHandler {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
-  private int numOfScans, completedScans;
-  private ZipOutputStream zipOutputStream;
-  private boolean canceled = false;
+  private final RawDataFileImpl rawDataFile;
+  private final String rawDataSavedName;
+  private StorableScan scans[];
+  private DataPointStorage dataPointStorage;
+  private volatile boolean canceled = false;
   private Map<Integer, Long> dataPointsOffsets;
   private Map<Integer, Long> consolidatedDataPointsOffsets;
   private Map<Integer, Integer> dataPointsLengths;
-  private double progress = 0;
+  private long dataPointsModCount, scansSize;
+  private ArchiveEntry previousScans, scansEntry;
+  private FileChannel previousFile;
+  private EntryData description;
+  private volatile double progress = 0;
+
+  /**
+   * @param rawDataFile raw data file to be saved
+   * @param number number of the raw data inside the zip file
+   */
+  RawDataFileSaveHandler(RawDataFileImpl rawDataFile, int number) {
+    this.rawDataFile = rawDataFile;
+    this.rawDataSavedName = "Raw data file #" + number + " " + rawDataFile.getName();
+  }
+
+  RawDataFileImpl getRawDataFile() {
+    return rawDataFile;
+  }
+
+  /**
+   * @return name of the entry which holds the scan data inside the zip file
+   */
+  String getScansEntryName() {
+    return rawDataSavedName + ".scans";
+  }
+
+  /**
+   * @return the modification count of the data points at the time of the snapshot taken by
+   *         prepare()
+   */
+  long getDataPointsModCount() {
+    return dataPointsModCount;
+  }
+
+  /**
+   * @return the entry of the scan data written by write(), or null if it was not written
+   */
+  @Nullable
+  ArchiveEntry getScansEntry() {
+    return scansEntry;
+  }
 
-  RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
-    this.zipOutputStream = zipOutputStream;
+  /**
+   * @return offsets of the data points inside the scan data entry, keyed by storage ID
+   */
+  Map<Integer, Long> getConsolidatedDataPointsOffsets() {
+    return consolidatedDataPointsOffsets;
   }
 
   /**
-   * Copy the data points file of the raw data file from the temporary folder to the zip file.
-   * Create an XML file which contains the description of the same raw data file an copy it into the
-   * same zip file.
+   * Takes a snapshot of the structure of the data points file and prepares the XML description of
+   * the raw data file.
    * 
-   * @param rawDataFile raw data file to be copied
-   * @param rawDataSavedName name of the raw data inside the zip file
+   * @param previousScans the scan data of this file in the previous project file, or null. If it
+   *        is given, the caller has verified that the scan data did not change since then. It is
+   *        copied by write() instead of the data points file.
+   * @param previousFile the previous project file
    * @throws java.io.IOException
    * @throws TransformerConfigurationException
    * @throws SAXException
    */
-  void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
+  void prepare(@Nullable ArchiveEntry previousScans, @Nullable FileChannel previousFile)
       throws IOException, TransformerConfigurationException, SAXException {
 
-    numOfScans = rawDataFile.getNumOfScans();
-
-    // Get the structure of the data points file
-    dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-    dataPointsLengths = rawDataFile.getDataPointsLengths();
-    consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
-
-    // step 1 - save data file
-    logger.info("Saving data points of: " + rawDataFile.getName());
-
-    String rawDataSavedName = "Raw data file #" + number + " " + rawDataFile.getName();
-
-    zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
+    // step 1 - snapshot of the data points
+    logger.info("Preparing data points of: " + rawDataFile.getName());
+
+    // Lock the raw data file only while copying its structure, so the data points and scans are not
+    // modified meanwhile. Everything else works on the snapshot.
+    synchronized (rawDataFile) {
+      dataPointsModCount = rawDataFile.getDataPointsModCount();
+      dataPointStorage = rawDataFile.getDataPointStorage();
+      dataPointsOffsets = new TreeMap<Integer, Long>(rawDataFile.getDataPointsOffsets());
+      dataPointsLengths = new TreeMap<Integer, Integer>(rawDataFile.getDataPointsLengths());
+      final int scanNumbers[] = rawDataFile.getScanNumbers();
+      scans = new StorableScan[scanNumbers.length];
+      for (int i = 0; i < scanNumbers.length; i++)
+        scans[i] = (StorableScan) rawDataFile.getScan(scanNumbers[i]);
+    }
 
     // We save only those data points that still have a reference in the
     // dataPointsOffset table. Some deleted mass lists may still be present
     // in the data points file, we don't want to copy those.
     long newOffset = 0;
-    byte buffer[] = new byte[1 << 20];
-    RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
+    consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
     for (Integer storageID : dataPointsOffsets.keySet()) {
-
-      if (canceled)
-        return;
-
-      final long offset = dataPointsOffsets.get(storageID);
-      dataPointsFile.seek(offset);
-
       final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
       consolidatedDataPointsOffsets.put(storageID, newOffset);
-      if (buffer.length < bytes) {
-        buffer = new byte[bytes * 2];
-      }
-      dataPointsFile.read(buffer, 0, bytes);
-      zipOutputStream.write(buffer, 0, bytes);
       newOffset += bytes;
-      progress = 0.9 * ((double) offset / dataPointsFile.length());
     }
 
+    // The previous entry must hold exactly the data points referenced now
+    if ((previousScans != null) && (previousScans.getSize() != newOffset)) {
+      prepare(null, null);
+      return;
+    }
+
+    this.previousScans = previousScans;
+    this.previousFile = previousFile;
+    scansSize = newOffset;
+
     if (canceled)
       return;
 
-    // step 2 - save raw data description
-    logger.info("Saving raw data description of: " + rawDataFile.getName());
+    // step 2 - prepare raw data description
+    logger.info("Preparing raw data description of: " + rawDataFile.getName());
 
-    zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".xml"));
-    OutputStream finalStream = zipOutputStream;
+    if (description != null)
+      description.delete();
+    description = new EntryData(rawDataSavedName + ".xml", true);
 
-    StreamResult streamResult = new StreamResult(finalStream);
+    StreamResult streamResult = new StreamResult(description);
     SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
 
     TransformerHandler hd = tf.newTransformerHandler();
@@ -134,6 +191,108 @@ class RawDataFileSaveHandler {
     hd.startDocument();
     saveRawDataInformation(rawDataFile, hd);
     hd.endDocument();
+    description.close();
+  }
+
+  /**
+   * Writes the scan data and the description prepared by prepare() into the zip file.
+   * 
+   * @throws java.io.IOException
+   * @throws TransformerConfigurationException
+   * @throws SAXException
+   */
+  void write(ProjectZipWriter zipWriter)
+      throws IOException, TransformerConfigurationException, SAXException {
+
+    // The data points were modified after the snapshot, e.g. by removing a mass list
+    if (rawDataFile.getDataPointsModCount() != dataPointsModCount)
+      prepare(null, null);
+
+    if (canceled)
+      return;
+
+    logger.info("Saving data points of: " + rawDataFile.getName());
+
+    if (previousScans != null) {
+      scansEntry = zipWriter.copyEntry(getScansEntryName(), previousScans, previousFile);
+    } else {
+      scansEntry = zipWriter.putStoredEntry(getScansEntryName(), scansSize);
+      OutputStream scansStream = zipWriter.getOutputStream();
+      byte buffer[] = new byte[1 << 20];
+
+      // The data points are streamed without holding the lock. Removed data points stay in the
+      // storage until it is compacted, so the snapshot taken by prepare() remains readable until
+      // a compaction closes the storage.
+      StorageSnapshot snapshot = new StorageSnapshot(dataPointStorage, dataPointsOffsets);
+      for (Integer storageID : dataPointsOffsets.keySet()) {
+
+        if (canceled)
+          return;
+
+        final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
+        if (buffer.length < bytes) {
+          buffer = new byte[bytes * 2];
+        }
+        ByteBuffer storedData;
+        try {
+          storedData = snapshot.read(storageID, bytes);
+        } catch (IOException e) {
+          // The storage was replaced and closed by a compaction, which keeps the data points that
+          // are still referenced
+          StorageSnapshot compacted = StorageSnapshot.current(rawDataFile);
+          if (compacted.storage == snapshot.storage)
+            throw e;
+          snapshot = compacted;
+          storedData = snapshot.read(storageID, bytes);
+        }
+        storedData.get(buffer, 0, bytes);
+        scansStream.write(buffer, 0, bytes);
+        progress = 0.9 * (double) consolidatedDataPointsOffsets.get(storageID) / scansSize;
+      }
+    }
+
+    logger.info("Saving raw data description of: " + rawDataFile.getName());
+    zipWriter.addEntry(description);
+    description = null;
+    progress = 1.0;
+  }
+
+  /**
+   * The storage of the data points file and the offsets of the data points in it, taken together
+   * under the lock of the raw data file
+   */
+  private static class StorageSnapshot {
+
+    private final DataPointStorage storage;
+    private final Map<Integer, Long> offsets;
+
+    StorageSnapshot(DataPointStorage storage, Map<Integer, Long> offsets) {
+      this.storage = storage;
+      this.offsets = offsets;
+    }
+
+    static StorageSnapshot current(RawDataFileImpl rawDataFile) {
+      synchronized (rawDataFile) {
+        return new StorageSnapshot(rawDataFile.getDataPointStorage(),
+            new HashMap<Integer, Long>(rawDataFile.getDataPointsOffsets()));
+      }
+    }
+
+    ByteBuffer read(int storageID, int bytes) throws IOException {
+      final Long offset = offsets.get(storageID);
+      if (offset == null)
+        throw new IOException("Data points #" + storageID
+            + " were removed and compacted while saving the project");
+      return storage.read(offset, bytes);
+    }
+  }
+
+  /**
+   * Deletes the temporary files of this handler
+   */
+  void discard() {
+    if (description != null)
+      description.delete();
   }
 
   /**
@@ -180,16 +339,16 @@ class RawDataFileSaveHandler {
 
     // <QUANTITY>
     hd.startElement("", "", RawDataElementName.QUANTITY_SCAN.getElementName(), atts);
-    hd.characters(String.valueOf(numOfScans).toCharArray(), 0, String.valueOf(numOfScans).length());
+    final String numOfScans = String.valueOf(scans.length);
+    hd.characters(numOfScans.toCharArray(), 0, numOfScans.length());
     hd.endElement("", "", RawDataElementName.QUANTITY_SCAN.getElementName());
 
     // <SCAN>
-    for (int scanNumber : rawDataFile.getScanNumbers()) {
+    for (StorableScan scan : scans) {
 
       if (canceled)
         return;
 
-      StorableScan scan = (StorableScan) rawDataFile.getScan(scanNumber);
       int storageID = scan.getStorageID();
       atts.addAttribute("", "", RawDataElementName.STORAGE_ID.getElementName(), "CDATA",
           String.valueOf(storageID));
@@ -197,8 +356,6 @@ class RawDataFileSaveHandler {
       fillScanElement(scan, hd);
       hd.endElement("", "", RawDataElementName.SCAN.getElementName());
       atts.clear();
-      completedScans++;
-      progress = 0.9 + (0.1 * ((double) completedScans / numOfScans));
     }
 
     hd.endElement("", "", RawDataElementName.RAWDATA.getElementName());
@@ -29,13 +29,11 @@ import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTable;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.scans.ScanUtils;
 import com.google.common.collect.Range;
 
 class ManualPickerTask extends AbstractTask {
@@ -96,25 +94,24 @@ class ManualPickerTask extends AbstractTask {
 
       int[] scanNumbers = dataFile.getScanNumbers(1, rtRange);
 
-      for (int scanNumber : scanNumbers) {
+      // Most intense m/z peak of each scan
+      DataPoint[] xic = dataFile.getXIC(1, mzRange, rtRange);
+
+      for (int i = 0; i < scanNumbers.length; i++) {
 
         if (isCanceled())
           return;
 
-        // Get next scan
-        Scan scan = dataFile.getScan(scanNumber);
-
-        // Find most intense m/z peak
-        DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+        DataPoint basePeak = xic[i];
 
         if (basePeak != null) {
           if (basePeak.getIntensity() > 0)
             dataPointFound = true;
-          newPeak.addDatapoint(scan.getScanNumber(), basePeak);
+          newPeak.addDatapoint(scanNumbers[i], basePeak);
         } else {
           final double mzCenter = (mzRange.lowerEndpoint() + mzRange.upperEndpoint()) / 2.0;
           DataPoint fakeDataPoint = new SimpleDataPoint(mzCenter, 0);
-          newPeak.addDatapoint(scan.getScanNumber(), fakeDataPoint);
+          newPeak.addDatapoint(scanNumbers[i], fakeDataPoint);
         }
 
         processedScans++;
@@ -19,12 +19,12 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive;
 
 import java.util.TreeSet;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.util.DataPointSorter;
@@ -34,10 +34,26 @@ import net.sf.mzmine.util.SortingProperty;
 public class RecursiveMassDetector implements MassDetector {
 
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+    // Read the scan into primitive arrays, DataPoints are only created for the detected masses
+    final int numOfDataPoints = scan.getNumberOfDataPoints();
+    double mzValues[] = new double[numOfDataPoints];
+    double intensityValues[] = new double[numOfDataPoints];
+    scan.getDataPoints(mzValues, intensityValues);
+    return getMassValues(mzValues, intensityValues, numOfDataPoints, parameters);
   }
   
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
+    double mzValues[] = new double[dataPoints.length];
+    double intensityValues[] = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return getMassValues(mzValues, intensityValues, dataPoints.length, parameters);
+  }
+
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[],
+      int numOfDataPoints, ParameterSet parameters) {
 
     double noiseLevel =
         parameters.getParameter(RecursiveMassDetectorParameters.noiseLevel).getValue();
@@ -50,7 +66,7 @@ public class RecursiveMassDetector implements MassDetector {
         new TreeSet<DataPoint>(new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
 
     // Find MzPeaks
-    recursiveThreshold(mzPeaks, dataPoints, 1, dataPoints.length - 1, noiseLevel,
+    recursiveThreshold(mzPeaks, mzValues, intensityValues, 1, numOfDataPoints - 1, noiseLevel,
         minimumMZPeakWidth, maximumMZPeakWidth, 0);
     return mzPeaks.toArray(new DataPoint[0]);
   }
@@ -58,19 +74,18 @@ public class RecursiveMassDetector implements MassDetector {
   /**
    * This function searches for maxima from given part of a spectrum
    */
-  private int recursiveThreshold(TreeSet<DataPoint> mzPeaks, DataPoint dataPoints[], int startInd,
-      int stopInd, double curentNoiseLevel, double minimumMZPeakWidth, double maximumMZPeakWidth,
-      int recuLevel) {
+  private int recursiveThreshold(TreeSet<DataPoint> mzPeaks, double mzValues[],
+      double intensityValues[], int startInd, int stopInd, double curentNoiseLevel,
+      double minimumMZPeakWidth, double maximumMZPeakWidth, int recuLevel) {
 
     // logger.finest(" Level of recursion " + recuLevel);
 
-    Vector<DataPoint> RawDataPointsInds = new Vector<DataPoint>();
     int peakStartInd, peakStopInd, peakMaxInd;
     double peakWidthMZ;
 
     for (int ind = startInd; ind < stopInd; ind++) {
 
-      boolean currentIsBiggerNoise = dataPoints[ind].getIntensity() > curentNoiseLevel;
+      boolean currentIsBiggerNoise = intensityValues[ind] > curentNoiseLevel;
       double localMinimum = Double.MAX_VALUE;
 
       // Ignore intensities below curentNoiseLevel
@@ -83,50 +98,46 @@ public class RecursiveMassDetector implements MassDetector {
       peakMaxInd = peakStartInd;
 
       // While peak is on
-      while ((ind < stopInd) && (dataPoints[ind].getIntensity() > curentNoiseLevel)) {
+      while ((ind < stopInd) && (intensityValues[ind] > curentNoiseLevel)) {
 
-        boolean isLocalMinimum =
-            (dataPoints[ind - 1].getIntensity() > dataPoints[ind].getIntensity())
-                && (dataPoints[ind].getIntensity() < dataPoints[ind + 1].getIntensity());
+        boolean isLocalMinimum = (intensityValues[ind - 1] > intensityValues[ind])
+            && (intensityValues[ind] < intensityValues[ind + 1]);
 
         // Check if this is the minimum point of the peak
-        if (isLocalMinimum && (dataPoints[ind].getIntensity() < localMinimum))
-          localMinimum = dataPoints[ind].getIntensity();
+        if (isLocalMinimum && (intensityValues[ind] < localMinimum))
+          localMinimum = intensityValues[ind];
 
         // Check if this is the maximum point of the peak
-        if (dataPoints[ind].getIntensity() > dataPoints[peakMaxInd].getIntensity())
+        if (intensityValues[ind] > intensityValues[peakMaxInd])
           peakMaxInd = ind;
 
-        // Forming the DataPoint array that defines this peak
-        RawDataPointsInds.add(dataPoints[ind]);
         ind++;
       }
 
       // Add ending point of the peak
       peakStopInd = ind;
 
-      peakWidthMZ = dataPoints[peakStopInd].getMZ() - dataPoints[peakStartInd].getMZ();
+      peakWidthMZ = mzValues[peakStopInd] - mzValues[peakStartInd];
 
       // Verify width of the peak
       if ((peakWidthMZ >= minimumMZPeakWidth) && (peakWidthMZ <= maximumMZPeakWidth)) {
 
         // Declare a new MzPeak with intensity equal to max intensity
         // data point
-        mzPeaks.add(dataPoints[peakMaxInd]);
+        mzPeaks.add(new SimpleDataPoint(mzValues[peakMaxInd], intensityValues[peakMaxInd]));
 
         if (recuLevel > 0) {
           // return stop index and beginning of the next peak
           return ind;
         }
       }
-      RawDataPointsInds.clear();
 
       // If the peak is still too big applies the same method until find a
       // peak of the right size
       if (peakWidthMZ > maximumMZPeakWidth) {
         if (localMinimum < Double.MAX_VALUE) {
-          ind = recursiveThreshold(mzPeaks, dataPoints, peakStartInd, peakStopInd, localMinimum,
-              minimumMZPeakWidth, maximumMZPeakWidth, recuLevel + 1);
+          ind = recursiveThreshold(mzPeaks, mzValues, intensityValues, peakStartInd, peakStopInd,
+              localMinimum, minimumMZPeakWidth, maximumMZPeakWidth, recuLevel + 1);
         }
 
       }
@@ -25,7 +25,6 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.scans.ScanUtils;
@@ -59,9 +58,19 @@ class Gap {
     this.noiseLevel = noiseLevel;
   }
 
-  void offerNextScan(Scan scan) {
+  Range<Double> getMZRange() {
+    return mzRange;
+  }
+
+  Range<Double> getRTRange() {
+    return rtRange;
+  }
 
-    double scanRT = scan.getRetentionTime();
+  /**
+   * Offers the most intense data point within the m/z range of the next scan, or null if the scan
+   * has no data point in this range
+   */
+  void offerNextDataPoint(int scanNumber, double scanRT, DataPoint basePeak) {
 
     // If not yet inside the RT range
     if (scanRT < rtRange.lowerEndpoint()) {
@@ -73,16 +82,13 @@ class Gap {
       return;
     }
 
-    // Find top m/z peak in our range
-    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
-
     GapDataPoint currentDataPoint;
     if (basePeak != null) {
       currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), basePeak.getMZ(), scanRT, basePeak.getIntensity());
+          new GapDataPoint(scanNumber, basePeak.getMZ(), scanRT, basePeak.getIntensity());
     } else {
       final double mzCenter = (mzRange.lowerEndpoint() + mzRange.upperEndpoint()) / 2.0;
-      currentDataPoint = new GapDataPoint(scan.getScanNumber(), mzCenter, scanRT, 0);
+      currentDataPoint = new GapDataPoint(scanNumber, mzCenter, scanRT, 0);
     }
 
     // If we have not yet started, just create a new peak
@@ -19,11 +19,13 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.targetedpeakdetection;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -40,6 +42,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.scans.ScanUtils;
 
 import com.Ostermiller.util.CSVParser;
 import com.google.common.collect.Range;
@@ -57,7 +60,8 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
   private RTTolerance rtTolerance;
   private double intTolerance;
   private ParameterSet parameters;
-  private int processedScans, totalScans;
+  // gaps, or scans if the scans are read in one pass
+  private int processedItems, totalItems;
   private File peakListFile;
   private String fieldSeparator;
   private boolean ignoreFirstLine;
@@ -91,9 +95,6 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 
     setStatus(TaskStatus.PROCESSING);
 
-    // Calculate total number of scans in all files
-    totalScans = dataFile.getNumOfScans(1);
-
     // Create new feature list
     processedPeakList = new SimplePeakList(dataFile.getName() + " " + suffix, dataFile);
 
@@ -134,10 +135,79 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
       gaps.add(newGap);
     }
 
-    // Stop processing this file if there are no gaps
-    if (gaps.isEmpty()) {
-      processedScans += dataFile.getNumOfScans();
+    // Index the data points by m/z, so each gap only reads its own m/z slice instead of all scans
+    boolean indexed;
+    try {
+      dataFile.createIonIndex(msLevel);
+      indexed = true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not create ion index of " + dataFile
+          + ", reading all scans in one pass instead", e);
+      indexed = false;
+    }
+
+    try {
+      if (indexed)
+        processGaps(gaps);
+      else
+        processScans(gaps);
+    } finally {
+      if (indexed)
+        dataFile.releaseIonIndex(msLevel);
+    }
+
+    if (getStatus() != TaskStatus.PROCESSING)
+      return;
+
+    // Append processed feature list to the project
+    project.addPeakList(processedPeakList);
+
+    // Add quality parameters to peaks
+    QualityParameters.calculateQualityParameters(processedPeakList);
+
+    // Add task description to peakList
+    processedPeakList.addDescriptionOfAppliedTask(
+        new SimplePeakListAppliedMethod("Targeted feature detection ", parameters));
+
+    logger.log(Level.INFO, "Finished targeted feature detection on {0}", this.dataFile);
+    setStatus(TaskStatus.FINISHED);
+  }
+
+  /**
+   * Feeds the extracted ion chromatogram of each gap from the ion index
+   */
+  private void processGaps(List<Gap> gaps) {
+
+    totalItems = gaps.size();
+
+    for (Gap gap : gaps) {
+
+      // Canceled?
+      if (isCanceled()) {
+        return;
+      }
+
+      // A peak may continue after the end of the RT range of the gap
+      Range<Double> rtRange = Range.atLeast(gap.getRTRange().lowerEndpoint());
+      int scanNumbers[] = dataFile.getScanNumbers(msLevel, rtRange);
+      DataPoint xic[] = dataFile.getXIC(msLevel, gap.getMZRange(), rtRange);
+
+      // Feed the extracted ion chromatogram to the gap
+      for (int i = 0; i < scanNumbers.length; i++) {
+        Scan scan = dataFile.getScan(scanNumbers[i]);
+        gap.offerNextDataPoint(scan.getScanNumber(), scan.getRetentionTime(), xic[i]);
+      }
+
+      gap.noMoreOffers();
+
+      processedItems++;
     }
+  }
+
+  /**
+   * Feeds every scan to all gaps, used when the ion index could not be created
+   */
+  private void processScans(List<Gap> gaps) {
 
     // Get all scans of this data file
     int scanNumbers[] = dataFile.getScanNumbers(msLevel);
@@ -146,6 +216,7 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
       setStatus(TaskStatus.ERROR);
       return;
     }
+    totalItems = scanNumbers.length;
 
     // Process each scan
     for (int scanNumber : scanNumbers) {
@@ -160,29 +231,17 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 
       // Feed this scan to all gaps
       for (Gap gap : gaps) {
-        gap.offerNextScan(scan);
+        gap.offerNextDataPoint(scan.getScanNumber(), scan.getRetentionTime(),
+            ScanUtils.findBasePeak(scan, gap.getMZRange()));
       }
 
-      processedScans++;
+      processedItems++;
     }
 
     // Finalize gaps
     for (Gap gap : gaps) {
       gap.noMoreOffers();
     }
-
-    // Append processed feature list to the project
-    project.addPeakList(processedPeakList);
-
-    // Add quality parameters to peaks
-    QualityParameters.calculateQualityParameters(processedPeakList);
-
-    // Add task description to peakList
-    processedPeakList.addDescriptionOfAppliedTask(
-        new SimplePeakListAppliedMethod("Targeted feature detection ", parameters));
-
-    logger.log(Level.INFO, "Finished targeted feature detection on {0}", this.dataFile);
-    setStatus(TaskStatus.FINISHED);
   }
 
   public List<PeakInformation> readFile() {
@@ -224,10 +283,10 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
   }
 
   public double getFinishedPercentage() {
-    if (totalScans == 0) {
+    if (totalItems == 0) {
       return 0;
     }
-    return (double) processedScans / (double) totalScans;
+    return (double) processedItems / (double) totalItems;
   }
 
   public String getTaskDescription() {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decoder of the MS-Numpress compressions of mzML binary data arrays (Teleman et al., Mol. Cell.
+ * Proteomics 2014): linear prediction (MS:1002312), positive integers (MS:1002313) and short
+ * logged floats (MS:1002314). The zlib variants (MS:1002746 - MS:1002748) must be inflated before.
+ * 
+ * Linear prediction and positive integers store values as variable length integers in half bytes:
+ * a head half byte with the number of leading zero half bytes (0-8), or 8 + the number of leading
+ * 0xf half bytes, followed by the remaining half bytes, least significant first.
+ */
+class MSNumpressDecoder {
+
+  static final String LINEAR = "MS:1002312", PIC = "MS:1002313", SLOF = "MS:1002314";
+
+  private MSNumpressDecoder() {}
+
+  /**
+   * Decodes the bytes compressed with the given Numpress method
+   * 
+   * @param accession one of LINEAR, PIC or SLOF
+   */
+  static double[] decode(String accession, byte data[]) throws IOException {
+    switch (accession) {
+      case LINEAR:
+        return decodeLinear(data);
+      case PIC:
+        return decodePic(data);
+      case SLOF:
+        return decodeSlof(data);
+      default:
+        throw new IOException("Unknown MS-Numpress compression " + accession);
+    }
+  }
+
+  /**
+   * Fixed point values, each predicted from the two previous ones. The first 8 bytes are the
+   * fixed point (big endian double), followed by the first two values as little endian 4-byte
+   * integers and the differences to the predictions.
+   */
+  static double[] decodeLinear(byte data[]) throws IOException {
+    if (data.length < 8)
+      throw new IOException("Corrupt MS-Numpress linear data");
+    if (data.length == 8)
+      return new double[0];
+    if (data.length != 12 && data.length < 16)
+      throw new IOException("Corrupt MS-Numpress linear data");
+
+    final double fixedPoint = decodeFixedPoint(data);
+    // at most two values per byte after the first two values
+    double result[] = new double[2 + 2 * Math.max(0, data.length - 16)];
+
+    long previous = decodeInt32(data, 8);
+    result[0] = previous / fixedPoint;
+    if (data.length == 12)
+      return Arrays.copyOf(result, 1);
+    long current = decodeInt32(data, 12);
+    result[1] = current / fixedPoint;
+
+    final HalfByteReader reader = new HalfByteReader(data, 16);
+    int count = 2;
+    while (reader.hasNextValue()) {
+      long extrapolation = current + (current - previous);
+      long value = extrapolation + reader.nextValue();
+      result[count++] = value / fixedPoint;
+      previous = current;
+      current = value;
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Values rounded to non-negative integers, e.g. ion counts
+   */
+  static double[] decodePic(byte data[]) throws IOException {
+    double result[] = new double[2 * data.length];
+    final HalfByteReader reader = new HalfByteReader(data, 0);
+    int count = 0;
+    while (reader.hasNextValue())
+      result[count++] = reader.nextValue() & 0xffffffffL;
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Logarithms of the values + 1 as fixed point unsigned little endian 2-byte integers, after the
+   * fixed point (big endian double)
+   */
+  static double[] decodeSlof(byte data[]) throws IOException {
+    if (data.length < 8 || (data.length - 8) % 2 != 0)
+      throw new IOException("Corrupt MS-Numpress short logged float data");
+    final double fixedPoint = decodeFixedPoint(data);
+    double result[] = new double[(data.length - 8) / 2];
+    for (int i = 0; i < result.length; i++) {
+      int x = (data[8 + 2 * i] & 0xff) | ((data[9 + 2 * i] & 0xff) << 8);
+      result[i] = Math.exp(x / fixedPoint) - 1;
+    }
+    return result;
+  }
+
+  private static double decodeFixedPoint(byte data[]) {
+    long bits = 0;
+    for (int i = 0; i < 8; i++)
+      bits = (bits << 8) | (data[i] & 0xff);
+    return Double.longBitsToDouble(bits);
+  }
+
+  private static long decodeInt32(byte data[], int offset) {
+    long value = 0;
+    for (int i = 0; i < 4; i++)
+      value |= (data[offset + i] & 0xffL) << (8 * i);
+    return value;
+  }
+
+  /**
+   * Reads the variable length integers, high half byte of each byte first
+   */
+  private static class HalfByteReader {
+
+    private final byte data[];
+    private int halfByte;
+
+    HalfByteReader(byte data[], int offset) {
+      this.data = data;
+      this.halfByte = 2 * offset;
+    }
+
+    private int remaining() {
+      return 2 * data.length - halfByte;
+    }
+
+    private int next() {
+      final int b = data[halfByte / 2];
+      final int value = (halfByte % 2 == 0) ? (b >> 4) & 0xf : b & 0xf;
+      halfByte++;
+      return value;
+    }
+
+    /**
+     * A single remaining half byte is padding, unless it encodes a zero on its own
+     */
+    boolean hasNextValue() {
+      final int remaining = remaining();
+      if (remaining == 0)
+        return false;
+      if (remaining == 1)
+        return (data[data.length - 1] & 0xf) == 8;
+      return true;
+    }
+
+    int nextValue() throws IOException {
+      final int head = next();
+      final int leading = head <= 8 ? head : head - 8;
+      if (remaining() < 8 - leading)
+        throw new IOException("Corrupt MS-Numpress data, value exceeds the array");
+      // negative values have leading 0xf half bytes
+      int value = (head > 8) ? -1 << (4 * (8 - leading)) : 0;
+      for (int i = 0; i < 8 - leading; i++)
+        value |= next() << (4 * i);
+      return value;
+    }
+  }
+
+}
@@ -20,38 +20,27 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLStreamReader.MzMLSpectrum;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
-import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 /**
  * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using the
- * jmzml library (http://code.google.com/p/jmzml/).
+ * streaming MzMLStreamReader.
  */
 public class MzMLReadTask extends AbstractTask {
 
@@ -67,6 +56,9 @@ public class MzMLReadTask extends AbstractTask {
 
   private int lastScanNumber = 0;
 
+  // Highest scan number in scanIdTable, see getScanNumber()
+  private int maxScanNumber = 0;
+
   private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
 
   /*
@@ -79,6 +71,14 @@ public class MzMLReadTask extends AbstractTask {
   private static final int PARENT_STACK_SIZE = 20;
   private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
 
+  /*
+   * The binary data arrays of the spectra are decoded by the worker threads of this pipeline, which
+   * also writes the scans to the RawDataFile in order. decodingScans holds the decoding of the
+   * scans in the stack.
+   */
+  private ScanDecodingPipeline pipeline;
+  private final Map<SimpleScan, Future<?>> decodingScans = new IdentityHashMap<>();
+
   public MzMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
@@ -89,7 +89,7 @@ public class MzMLReadTask extends AbstractTask {
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
   public double getFinishedPercentage() {
-    return totalScans == 0 ? 0 : (double) parsedScans / totalScans;
+    return totalScans == 0 ? 0 : Math.min(1.0, (double) parsedScans / totalScans);
   }
 
   /**
@@ -100,51 +100,51 @@ public class MzMLReadTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Started parsing file " + file);
 
-    MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
-
-    totalScans = unmarshaller.getObjectCountForXpath("/run/spectrumList/spectrum");
-
-    fillScanIdTable(
-            unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class),
-            totalScans);
+    // Progress is counted while parsing, so nothing to do when a scan is written
+    pipeline = new ScanDecodingPipeline(newMZmineFile, () -> {});
+    try (MzMLStreamReader reader = new MzMLStreamReader(file)) {
 
-    MzMLObjectIterator<Spectrum> spectrumIterator =
-        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class);
-    try {
+      List<String> spectrumIds = MzMLStreamReader.readSpectrumIds(file);
+      totalScans = spectrumIds.size();
+      fillScanIdTable(spectrumIds, totalScans);
 
-      while (spectrumIterator.hasNext()) {
+      MzMLSpectrum spectrum;
+      while ((spectrum = reader.nextSpectrum()) != null) {
 
-        if (isCanceled())
+        if (isCanceled()) {
+          pipeline.cancel();
           return;
-
-        Spectrum spectrum = spectrumIterator.next();
+        }
 
         // Ignore scans that are not MS, e.g. UV
-        if (!isMsSpectrum(spectrum)) {
+        if (!spectrum.isMsSpectrum()) {
           parsedScans++;
           continue;
         }
 
-        String scanId = spectrum.getId();
-        Integer scanNumber = scanIdTable.get(scanId);
-        if (scanNumber == null)
-          throw new IllegalStateException("Cannot determine scan number: " + scanId);
+        int scanNumber = getScanNumber(spectrum.getId());
 
         // Extract scan data
-        int msLevel = extractMSLevel(spectrum);
-        double retentionTime = extractRetentionTime(spectrum);
-        PolarityType polarity = extractPolarity(spectrum);
+        int msLevel = spectrum.getMsLevel();
+        double retentionTime = spectrum.getRetentionTime();
+        PolarityType polarity = spectrum.getPolarity();
         int parentScan = extractParentScanNumber(spectrum);
-        double precursorMz = extractPrecursorMz(spectrum);
-        int precursorCharge = extractPrecursorCharge(spectrum);
-        String scanDefinition = extractScanDefinition(spectrum);
-        DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+        double precursorMz = spectrum.getPrecursorMz();
+        int precursorCharge = spectrum.getPrecursorCharge();
+        String scanDefinition = spectrum.getScanDefinition();
 
         SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
-            precursorCharge, null, dataPoints, spectrumType, polarity, scanDefinition, null);
+            precursorCharge, null, new DataPoint[0], null, polarity, scanDefinition, null);
+
+        // Decode the data points on a worker thread, the parser continues with the next spectrum
+        final MzMLSpectrum decodedSpectrum = spectrum;
+        decodingScans.put(scan, pipeline.decode(() -> {
+          DataPoint dataPoints[] = decodedSpectrum.decodeDataPoints();
+
+          // Auto-detect whether this scan is centroided
+          scan.setSpectrumType(ScanUtils.detectSpectrumType(dataPoints));
+          scan.setDataPoints(dataPoints);
+        }, spectrum.getEncodedLength()));
 
         for (SimpleScan s : parentStack) {
           if (s.getScanNumber() == parentScan) {
@@ -158,7 +158,7 @@ public class MzMLReadTask extends AbstractTask {
          */
         if (parentStack.size() > PARENT_STACK_SIZE) {
           SimpleScan firstScan = parentStack.removeLast();
-          newMZmineFile.addScan(firstScan);
+          pipeline.addScan(firstScan, decodingScans.remove(firstScan));
         }
 
         parentStack.addFirst(scan);
@@ -169,14 +169,18 @@ public class MzMLReadTask extends AbstractTask {
 
       while (!parentStack.isEmpty()) {
         SimpleScan scan = parentStack.removeLast();
-        newMZmineFile.addScan(scan);
+        pipeline.addScan(scan, decodingScans.remove(scan));
 
       }
 
+      // Write the scans which are still being decoded
+      pipeline.finish();
+
       finalRawDataFile = newMZmineFile.finishWriting();
       project.addFile(finalRawDataFile);
 
     } catch (Throwable e) {
+      pipeline.cancel();
       e.printStackTrace();
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Error parsing mzML: " + ExceptionUtils.exceptionToString(e));
@@ -200,13 +204,13 @@ public class MzMLReadTask extends AbstractTask {
    *
    * If retrieved scan numbers are not unique, we replace them with new scan numbers.
    *
-   * @param iterator iterator from MzMLUnmarshaller
+   * @param spectrumIds IDs of all spectra in the file
    */
-  private void fillScanIdTable(MzMLObjectIterator<Spectrum> iterator, int totalScans) {
+  private void fillScanIdTable(List<String> spectrumIds, int totalScans) {
 
     Map<String, Integer> alternativeScanIdTable = new HashMap<>();
-    for (int i = 1; iterator.hasNext(); ++i) {
-      String id = iterator.next().getId();
+    for (int i = 1; i <= spectrumIds.size(); ++i) {
+      String id = spectrumIds.get(i - 1);
       saveScanNumberToTable(id);
       alternativeScanIdTable.put(id, i);
     }
@@ -216,6 +220,26 @@ public class MzMLReadTask extends AbstractTask {
     if (scanNumberSet.size() != totalScans)
       // Scan Numbers are not unique! We replace them with numbers 1, 2, 3, ...
       scanIdTable = alternativeScanIdTable;
+
+    for (int scanNumber : scanIdTable.values())
+      maxScanNumber = Math.max(maxScanNumber, scanNumber);
+  }
+
+  /**
+   * Returns the scan number of the spectrum. Spectra which are not in the table get the next free
+   * numbers in the order they are read, e.g. if the index of the file is stale or was written for
+   * another file.
+   */
+  private int getScanNumber(String scanId) {
+    Integer scanNumber = scanIdTable.get(scanId);
+    if (scanNumber != null)
+      return scanNumber;
+
+    logger.warning("Spectrum " + scanId + " is missing in the index of " + file
+        + ", numbering it after the indexed spectra");
+    scanNumber = ++maxScanNumber;
+    scanIdTable.put(scanId, scanNumber);
+    return scanNumber;
   }
 
   private void saveScanNumberToTable(String scanId) {
@@ -240,271 +264,19 @@ public class MzMLReadTask extends AbstractTask {
     scanIdTable.put(scanId, scanNumber);
   }
 
-  private int extractMSLevel(Spectrum spectrum) {
-    // Browse the spectrum parameters
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams == null)
-      return 1;
-    for (CVParam param : cvParams) {
-      String accession = param.getAccession();
-      String value = param.getValue();
-      if ((accession == null) || (value == null))
-        continue;
-
-      // MS level MS:1000511
-      if (accession.equals("MS:1000511")) {
-        int msLevel = Integer.parseInt(value);
-        return msLevel;
-      }
-    }
-    return 1;
-  }
-
-  private double extractRetentionTime(Spectrum spectrum) {
-
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement == null)
-      return 0;
-    List<Scan> scanElements = scanListElement.getScan();
-    if (scanElements == null)
-      return 0;
-
-    for (Scan scan : scanElements) {
-      List<CVParam> cvParams = scan.getCvParam();
-      if (cvParams == null)
-        continue;
-
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        String unitAccession = param.getUnitAccession();
-        String value = param.getValue();
-        if ((accession == null) || (value == null))
-          continue;
-
-        // Retention time (actually "Scan start time") MS:1000016
-        if (accession.equals("MS:1000016")) {
-          // MS:1000038 is used in mzML 1.0, while UO:0000031
-          // is used in mzML 1.1.0 :-/
-          double retentionTime;
-          if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
-              || unitAccession.equals("UO:0000031")) {
-            retentionTime = Double.parseDouble(value);
-          } else {
-            retentionTime = Double.parseDouble(value) / 60d;
-          }
-          return retentionTime;
-
-        }
-      }
-    }
-
-    return 0;
-  }
-
-  private DataPoint[] extractDataPoints(Spectrum spectrum) {
-    BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-
-    if ((dataList == null) || (dataList.getCount().equals(0)))
-      return new DataPoint[0];
-
-    BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-    BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-    Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-    Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-    DataPoint dataPoints[] = new DataPoint[mzValues.length];
-    for (int i = 0; i < dataPoints.length; i++) {
-      double mz = mzValues[i].doubleValue();
-      double intensity = intensityValues[i].doubleValue();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
-    }
-    return dataPoints;
-
-  }
-
-  private int extractParentScanNumber(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
+  private int extractParentScanNumber(MzMLSpectrum spectrum) {
+    // Get the precursor scan number
+    String precursorScanId = spectrum.getPrecursorRef();
+    if (precursorScanId == null)
       return -1;
-
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-      // Get the precursor scan number
-      String precursorScanId = parent.getSpectrumRef();
-      if (precursorScanId == null) {
-        return -1;
-      }
-      Integer parentScan = scanIdTable.get(precursorScanId);
-      if (parentScan == null)
-        return -1;
-
-      return parentScan;
-    }
-    return -1;
-  }
-
-  private double extractPrecursorMz(Spectrum spectrum) {
-
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
-
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
-
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          // MS:1000040 is used in mzML 1.0,
-          // MS:1000744 is used in mzML 1.1.0
-          if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
-            double precursorMz = Double.parseDouble(value);
-            return precursorMz;
-          }
-        }
-
-      }
-    }
-    return 0;
-  }
-
-  private int extractPrecursorCharge(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
-
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
-
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          if (accession.equals("MS:1000041")) {
-            int precursorCharge = Integer.parseInt(value);
-            return precursorCharge;
-          }
-
-        }
-
-      }
-    }
-    return 0;
-  }
-
-  private PolarityType extractPolarity(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000130"))
-          return PolarityType.POSITIVE;
-        if (accession.equals("MS:1000129"))
-          return PolarityType.NEGATIVE;
-      }
-    }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000130"))
-              return PolarityType.POSITIVE;
-            if (accession.equals("MS:1000129"))
-              return PolarityType.NEGATIVE;
-          }
-
-        }
-      }
-    }
-    return PolarityType.UNKNOWN;
-
-  }
-
-  private String extractScanDefinition(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000512"))
-          return param.getValue();
-      }
-    }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000512"))
-              return param.getValue();
-          }
-
-        }
-      }
-    }
-    return spectrum.getId();
+    Integer parentScan = scanIdTable.get(precursorScanId);
+    if (parentScan == null)
+      return -1;
+    return parentScan;
   }
 
   public String getTaskDescription() {
     return "Opening file " + file;
   }
 
-  boolean isMsSpectrum(Spectrum spectrum) {
-
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        if (accession == null)
-          continue;
-
-        if (accession.equals("MS:1000804"))
-          return false;
-      }
-    }
-
-    // By default, let's assume unidentified spectra are MS spectra
-    return true;
-  }
-
 }
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.CompressionUtils;
+
+/**
+ * Streaming (StAX) reader of mzML 1.0 and 1.1.0 files. Unlike a JAXB unmarshaller it does not build
+ * an object model of the spectra, it only picks up the values MZmine uses: spectrum ID, MS level,
+ * retention time, polarity, scan definition, precursor and the binary data arrays. The data arrays
+ * are kept Base64-encoded, so they can be decoded later on another thread by decodeDataPoints().
+ * 
+ * The spectrum IDs are read from the index of indexed mzML files (indexListOffset at the end of the
+ * file), so the file does not need to be parsed twice to number the scans.
+ */
+class MzMLStreamReader implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(MzMLStreamReader.class.getName());
+
+  private static final Pattern INDEX_LIST_OFFSET_PATTERN =
+      Pattern.compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+  /**
+   * Size of the tail of the file searched for indexListOffset
+   */
+  private static final int INDEX_LIST_OFFSET_SEARCH = 4096;
+
+  private final InputStream inputStream;
+  private final XMLStreamReader reader;
+
+  private final Map<String, List<CvParam>> paramGroups = new HashMap<>();
+
+  MzMLStreamReader(File file) throws IOException {
+    inputStream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+    try {
+      reader = createInputFactory().createXMLStreamReader(inputStream);
+    } catch (XMLStreamException e) {
+      inputStream.close();
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the next spectrum of the spectrumList, or null at the end of the file
+   */
+  MzMLSpectrum nextSpectrum() throws IOException {
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT)
+          continue;
+        switch (reader.getLocalName()) {
+          case "referenceableParamGroup":
+            readParamGroup();
+            break;
+          case "spectrum":
+            return readSpectrum();
+          case "chromatogramList":
+            // Chromatograms are not imported
+            return null;
+        }
+      }
+      return null;
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Returns the IDs of all spectra in the order of their appearance in the file. The spectrum index
+   * of indexed mzML files is used if it is present and valid, otherwise the IDs are collected by a
+   * quick pass over the spectrum elements.
+   */
+  static List<String> readSpectrumIds(File file) throws IOException {
+    try {
+      List<String> ids = readSpectrumIndex(file);
+      if (ids != null)
+        return ids;
+    } catch (IOException | XMLStreamException | RuntimeException e) {
+      logger.info("Could not read the index of " + file + ", scanning the spectra instead: " + e);
+    }
+
+    List<String> ids = new ArrayList<>();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+      XMLStreamReader idReader = createInputFactory().createXMLStreamReader(in);
+      try {
+        while (idReader.hasNext()) {
+          if (idReader.next() != XMLStreamConstants.START_ELEMENT)
+            continue;
+          String name = idReader.getLocalName();
+          if (name.equals("spectrum"))
+            ids.add(idReader.getAttributeValue(null, "id"));
+          else if (name.equals("chromatogramList"))
+            break;
+        }
+      } finally {
+        idReader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    return ids;
+  }
+
+  /**
+   * @return the spectrum IDs from the index of an indexed mzML file, or null if there is no index
+   */
+  private static List<String> readSpectrumIndex(File file) throws IOException, XMLStreamException {
+
+    long indexListOffset;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      int tailLength = (int) Math.min(raf.length(), INDEX_LIST_OFFSET_SEARCH);
+      byte tail[] = new byte[tailLength];
+      raf.seek(raf.length() - tailLength);
+      raf.readFully(tail);
+      Matcher matcher =
+          INDEX_LIST_OFFSET_PATTERN.matcher(new String(tail, StandardCharsets.ISO_8859_1));
+      if (!matcher.find())
+        return null;
+      indexListOffset = Long.parseLong(matcher.group(1));
+      if (indexListOffset <= 0 || indexListOffset >= raf.length())
+        return null;
+    }
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+      long skipped = 0;
+      while (skipped < indexListOffset) {
+        long n = in.skip(indexListOffset - skipped);
+        if (n <= 0)
+          return null;
+        skipped += n;
+      }
+
+      XMLStreamReader indexReader = createInputFactory().createXMLStreamReader(in);
+      try {
+        // The offset must point to the indexList element, otherwise the index is broken
+        if (indexReader.nextTag() != XMLStreamConstants.START_ELEMENT
+            || !indexReader.getLocalName().equals("indexList"))
+          return null;
+
+        List<String> ids = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        boolean spectrumIndex = false;
+        while (indexReader.hasNext()) {
+          int event = indexReader.next();
+          if (event == XMLStreamConstants.END_ELEMENT) {
+            String name = indexReader.getLocalName();
+            if (name.equals("index"))
+              spectrumIndex = false;
+            else if (name.equals("indexList"))
+              break;
+            continue;
+          }
+          if (event != XMLStreamConstants.START_ELEMENT)
+            continue;
+          String name = indexReader.getLocalName();
+          if (name.equals("index")) {
+            spectrumIndex = "spectrum".equals(indexReader.getAttributeValue(null, "name"));
+          } else if (spectrumIndex && name.equals("offset")) {
+            ids.add(indexReader.getAttributeValue(null, "idRef"));
+            offsets.add(Long.parseLong(indexReader.getElementText().trim()));
+          }
+        }
+
+        // Scans are numbered in the order of the file
+        List<Integer> order = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++)
+          order.add(i);
+        order.sort(Comparator.comparing(offsets::get));
+        List<String> sortedIds = new ArrayList<>(ids.size());
+        for (int i : order)
+          sortedIds.add(ids.get(i));
+        return sortedIds;
+      } finally {
+        indexReader.close();
+      }
+    }
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
+  }
+
+  private void readParamGroup() throws XMLStreamException {
+    String id = reader.getAttributeValue(null, "id");
+    List<CvParam> params = new ArrayList<>();
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT
+          && reader.getLocalName().equals("referenceableParamGroup"))
+        break;
+      if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("cvParam"))
+        params.add(readCvParam());
+    }
+    if (id != null)
+      paramGroups.put(id, params);
+  }
+
+  private CvParam readCvParam() {
+    return new CvParam(reader.getAttributeValue(null, "accession"),
+        reader.getAttributeValue(null, "value"), reader.getAttributeValue(null, "unitAccession"));
+  }
+
+  private MzMLSpectrum readSpectrum() throws XMLStreamException {
+
+    MzMLSpectrum spectrum = new MzMLSpectrum(reader.getAttributeValue(null, "id"));
+
+    // Names of the open elements, to know where a cvParam belongs to
+    Deque<String> elements = new ArrayDeque<>();
+    elements.push("spectrum");
+    BinaryArray binaryArray = null;
+    int precursors = 0;
+
+    while (!elements.isEmpty()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        if (elements.pop().equals("binaryDataArray"))
+          binaryArray = null;
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+
+      String name = reader.getLocalName();
+      switch (name) {
+        case "cvParam":
+          spectrum.addParam(elements.peek(), precursors, binaryArray, readCvParam());
+          break;
+        case "referenceableParamGroupRef":
+          List<CvParam> group = paramGroups.get(reader.getAttributeValue(null, "ref"));
+          if (group != null) {
+            for (CvParam param : group)
+              spectrum.addParam(elements.peek(), precursors, binaryArray, param);
+          }
+          break;
+        case "precursor":
+          precursors++;
+          if (precursors == 1)
+            spectrum.precursorRef = reader.getAttributeValue(null, "spectrumRef");
+          break;
+        case "binaryDataArray":
+          binaryArray = new BinaryArray();
+          spectrum.binaryArrays.add(binaryArray);
+          break;
+        case "binary":
+          String text = reader.getElementText();
+          if (binaryArray != null)
+            binaryArray.encoded = text;
+          // getElementText() consumed the end of the element
+          continue;
+      }
+      elements.push(name);
+    }
+
+    return spectrum;
+  }
+
+  private static class CvParam {
+
+    private final String accession, value, unitAccession;
+
+    CvParam(String accession, String value, String unitAccession) {
+      this.accession = accession;
+      this.value = value;
+      this.unitAccession = unitAccession;
+    }
+  }
+
+  private enum Precision {
+    FLOAT32, FLOAT64, INT32, INT64
+  }
+
+  /**
+   * One binaryDataArray element, its data still encoded
+   */
+  private static class BinaryArray {
+
+    private String encoded = "";
+    private boolean zlibCompressed;
+    // MS-Numpress compression applied after zlib inflating, see MSNumpressDecoder
+    private String numpressCompression;
+    private Precision precision = Precision.FLOAT64;
+    private boolean mzArray, intensityArray;
+
+    private void addParam(CvParam param) {
+      switch (param.accession) {
+        case "MS:1000574":
+          zlibCompressed = true;
+          break;
+        case "MS:1000576":
+          // No compression
+          break;
+        case "MS:1000521":
+          precision = Precision.FLOAT32;
+          break;
+        case "MS:1000523":
+          precision = Precision.FLOAT64;
+          break;
+        case "MS:1000519":
+          precision = Precision.INT32;
+          break;
+        case "MS:1000522":
+          precision = Precision.INT64;
+          break;
+        case "MS:1000514":
+          mzArray = true;
+          break;
+        case "MS:1000515":
+          intensityArray = true;
+          break;
+        case MSNumpressDecoder.LINEAR:
+        case MSNumpressDecoder.PIC:
+        case MSNumpressDecoder.SLOF:
+          numpressCompression = param.accession;
+          break;
+        case "MS:1002746":
+          // MS-Numpress linear prediction followed by zlib
+          numpressCompression = MSNumpressDecoder.LINEAR;
+          zlibCompressed = true;
+          break;
+        case "MS:1002747":
+          // MS-Numpress positive integer followed by zlib
+          numpressCompression = MSNumpressDecoder.PIC;
+          zlibCompressed = true;
+          break;
+        case "MS:1002748":
+          // MS-Numpress short logged float followed by zlib
+          numpressCompression = MSNumpressDecoder.SLOF;
+          zlibCompressed = true;
+          break;
+      }
+    }
+
+    private double[] decode() throws IOException {
+      byte bytes[] = Base64.getMimeDecoder().decode(encoded);
+      if (zlibCompressed) {
+        try {
+          bytes = CompressionUtils.decompress(bytes);
+        } catch (DataFormatException e) {
+          throw new IOException(e);
+        }
+      }
+
+      // MS-Numpress stores the values in its own format, regardless of the precision
+      if (numpressCompression != null)
+        return MSNumpressDecoder.decode(numpressCompression, bytes);
+
+      // Binary data in mzML is always little endian
+      ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      double values[];
+      switch (precision) {
+        case FLOAT32:
+          values = new double[bytes.length / 4];
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getFloat();
+          break;
+        case INT32:
+          values = new double[bytes.length / 4];
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getInt();
+          break;
+        case INT64:
+          values = new double[bytes.length / 8];
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getLong();
+          break;
+        default:
+          values = new double[bytes.length / 8];
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getDouble();
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Values of one spectrum element. The parameters are taken from the same places as in the mzML
+   * specification: the spectrum itself, its first scan and the selected ions of its first
+   * precursor.
+   */
+  static class MzMLSpectrum {
+
+    private final String id;
+    private int msLevel = 1;
+    private boolean msSpectrum = true;
+    private Double retentionTime;
+    private PolarityType spectrumPolarity, scanPolarity;
+    private String spectrumScanDefinition, scanScanDefinition;
+    private String precursorRef;
+    private Double precursorMz;
+    private Integer precursorCharge;
+    private final List<BinaryArray> binaryArrays = new ArrayList<>(2);
+
+    private MzMLSpectrum(String id) {
+      this.id = id;
+    }
+
+    private void addParam(String parent, int precursors, BinaryArray binaryArray, CvParam param) {
+      if (param.accession == null)
+        return;
+
+      switch (parent) {
+        case "spectrum":
+          switch (param.accession) {
+            case "MS:1000511":
+              // MS level
+              if (param.value != null)
+                msLevel = Integer.parseInt(param.value);
+              break;
+            case "MS:1000804":
+              // Electromagnetic radiation spectrum, e.g. UV
+              msSpectrum = false;
+              break;
+            case "MS:1000130":
+              if (spectrumPolarity == null)
+                spectrumPolarity = PolarityType.POSITIVE;
+              break;
+            case "MS:1000129":
+              if (spectrumPolarity == null)
+                spectrumPolarity = PolarityType.NEGATIVE;
+              break;
+            case "MS:1000512":
+              if (spectrumScanDefinition == null)
+                spectrumScanDefinition = param.value;
+              break;
+          }
+          break;
+
+        case "scan":
+          switch (param.accession) {
+            case "MS:1000016":
+              // Retention time (actually "Scan start time"). MS:1000038 is used in mzML 1.0, while
+              // UO:0000031 is used in mzML 1.1.0
+              if (retentionTime == null && param.value != null) {
+                double value = Double.parseDouble(param.value);
+                if ((param.unitAccession == null) || param.unitAccession.equals("MS:1000038")
+                    || param.unitAccession.equals("UO:0000031"))
+                  retentionTime = value;
+                else
+                  retentionTime = value / 60d;
+              }
+              break;
+            case "MS:1000130":
+              if (scanPolarity == null)
+                scanPolarity = PolarityType.POSITIVE;
+              break;
+            case "MS:1000129":
+              if (scanPolarity == null)
+                scanPolarity = PolarityType.NEGATIVE;
+              break;
+            case "MS:1000512":
+              if (scanScanDefinition == null)
+                scanScanDefinition = param.value;
+              break;
+          }
+          break;
+
+        case "selectedIon":
+          if (precursors != 1 || param.value == null)
+            break;
+          switch (param.accession) {
+            case "MS:1000040":
+            case "MS:1000744":
+              // MS:1000040 is used in mzML 1.0, MS:1000744 is used in mzML 1.1.0
+              if (precursorMz == null)
+                precursorMz = Double.parseDouble(param.value);
+              break;
+            case "MS:1000041":
+              if (precursorCharge == null)
+                precursorCharge = Integer.parseInt(param.value);
+              break;
+          }
+          break;
+
+        case "binaryDataArray":
+          if (binaryArray != null)
+            binaryArray.addParam(param);
+          break;
+      }
+    }
+
+    String getId() {
+      return id;
+    }
+
+    /**
+     * @return false for spectra which are not MS spectra, e.g. UV
+     */
+    boolean isMsSpectrum() {
+      return msSpectrum;
+    }
+
+    int getMsLevel() {
+      return msLevel;
+    }
+
+    double getRetentionTime() {
+      return retentionTime == null ? 0 : retentionTime;
+    }
+
+    PolarityType getPolarity() {
+      if (spectrumPolarity != null)
+        return spectrumPolarity;
+      if (scanPolarity != null)
+        return scanPolarity;
+      return PolarityType.UNKNOWN;
+    }
+
+    String getScanDefinition() {
+      if (spectrumScanDefinition != null)
+        return spectrumScanDefinition;
+      if (scanScanDefinition != null)
+        return scanScanDefinition;
+      return id;
+    }
+
+    /**
+     * @return ID of the spectrum of the first precursor, or null
+     */
+    String getPrecursorRef() {
+      return precursorRef;
+    }
+
+    double getPrecursorMz() {
+      return precursorMz == null ? 0 : precursorMz;
+    }
+
+    int getPrecursorCharge() {
+      return precursorCharge == null ? 0 : precursorCharge;
+    }
+
+    /**
+     * @return Number of characters of the encoded binary data arrays
+     */
+    long getEncodedLength() {
+      long length = 0;
+      for (BinaryArray array : binaryArrays)
+        length += array.encoded.length();
+      return length;
+    }
+
+    /**
+     * Decodes the m/z and intensity arrays. Safe to call from any thread.
+     */
+    DataPoint[] decodeDataPoints() throws IOException {
+      if (binaryArrays.size() < 2)
+        return new DataPoint[0];
+
+      BinaryArray mzArray = null, intensityArray = null;
+      for (BinaryArray array : binaryArrays) {
+        if (array.mzArray && mzArray == null)
+          mzArray = array;
+        else if (array.intensityArray && intensityArray == null)
+          intensityArray = array;
+      }
+      // Without the array types, the first array holds the m/z values
+      if (mzArray == null)
+        mzArray = binaryArrays.get(0);
+      if (intensityArray == null)
+        intensityArray = binaryArrays.get(1);
+
+      double mzValues[] = mzArray.decode();
+      double intensityValues[] = intensityArray.decode();
+      DataPoint dataPoints[] = new DataPoint[Math.min(mzValues.length, intensityValues.length)];
+      for (int i = 0; i < dataPoints.length; i++)
+        dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+      return dataPoints;
+    }
+  }
+
+}
@@ -24,7 +24,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Base64;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -93,6 +96,13 @@ public class MzXMLReadTask extends AbstractTask {
    */
   private SimpleScan buildingScan;
 
+  /*
+   * The peaks of the scans are decoded by the worker threads of this pipeline, which also writes
+   * the scans to the RawDataFile in order. The decoding of the scans in the stack is still running.
+   */
+  private ScanDecodingPipeline pipeline;
+  private final Map<SimpleScan, Future<?>> decodingScans = new IdentityHashMap<>();
+
   public MzXMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     // 256 kilo-chars buffer
     charBuffer = new StringBuilder(1 << 18);
@@ -124,15 +134,22 @@ public class MzXMLReadTask extends AbstractTask {
 
       dataTypeFactory = DatatypeFactory.newInstance();
 
+      pipeline = new ScanDecodingPipeline(newMZmineFile, () -> parsedScans++);
+
       SAXParser saxParser = factory.newSAXParser();
       saxParser.parse(file, handler);
 
+      // Write the scans which are still being decoded
+      pipeline.finish();
+
       // Close file
       finalRawDataFile = newMZmineFile.finishWriting();
       project.addFile(finalRawDataFile);
 
     } catch (Throwable e) {
       e.printStackTrace();
+      if (pipeline != null)
+        pipeline.cancel();
       /* we may already have set the status to CANCELED */
       if (getStatus() == TaskStatus.PROCESSING) {
         setStatus(TaskStatus.ERROR);
@@ -296,14 +313,13 @@ public class MzXMLReadTask extends AbstractTask {
           while (!parentStack.isEmpty()) {
             SimpleScan currentScan = parentStack.removeLast();
             try {
-              newMZmineFile.addScan(currentScan);
+              pipeline.addScan(currentScan, decodingScans.remove(currentScan));
             } catch (IOException e) {
               e.printStackTrace();
               setStatus(TaskStatus.ERROR);
               setErrorMessage("IO error: " + e);
               throw new SAXException("Parsing error: " + e);
             }
-            parsedScans++;
           }
 
           /*
@@ -330,56 +346,23 @@ public class MzXMLReadTask extends AbstractTask {
       // <peaks>
       if (qName.equalsIgnoreCase("peaks")) {
 
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString());
-
-        if (compressFlag) {
-          try {
-            peakBytes = CompressionUtils.decompress(peakBytes);
-          } catch (DataFormatException e) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Corrupt compressed peak: " + e.toString());
-            throw new SAXException("Parsing Cancelled");
-          }
-        }
-
-        // make a data input stream
-        DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
-
-        DataPoint dataPoints[] = new DataPoint[peaksCount];
-
+        // Decode the peaks on a worker thread, the parser continues with the next element
+        final SimpleScan scan = buildingScan;
+        final String encodedPeaks = charBuffer.toString();
+        final boolean compressed = compressFlag;
+        final boolean doublePrecision = "64".equals(precision);
+        final int numOfPeaks = peaksCount;
         try {
-          for (int i = 0; i < dataPoints.length; i++) {
-
-            // Always respect this order pairOrder="m/z-int"
-            double massOverCharge;
-            double intensity;
-            if ("64".equals(precision)) {
-              massOverCharge = peakStream.readDouble();
-              intensity = peakStream.readDouble();
-            } else {
-              massOverCharge = (double) peakStream.readFloat();
-              intensity = (double) peakStream.readFloat();
-            }
-
-            // Copy m/z and intensity data
-            dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
-
-          }
-        } catch (IOException eof) {
+          decodingScans.put(scan,
+              pipeline.decode(() -> decodePeaks(scan, encodedPeaks, compressed, doublePrecision,
+                  numOfPeaks), encodedPeaks.length()));
+        } catch (IOException e) {
+          e.printStackTrace();
           setStatus(TaskStatus.ERROR);
-          setErrorMessage("Corrupt mzXML file");
-          throw new SAXException("Parsing Cancelled");
+          setErrorMessage("IO error: " + e);
+          throw new SAXException("Parsing error: " + e);
         }
 
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
-
-        // Set the centroided tag
-        buildingScan.setSpectrumType(spectrumType);
-
-        // Set the final data points to the scan
-        buildingScan.setDataPoints(dataPoints);
-
         return;
       }
     }
@@ -394,4 +377,59 @@ public class MzXMLReadTask extends AbstractTask {
     }
   }
 
+  /**
+   * Decodes the content of a peaks element and sets the data points of the scan. Called on a
+   * worker thread of the pipeline.
+   */
+  private static void decodePeaks(SimpleScan scan, String encodedPeaks, boolean compressed,
+      boolean doublePrecision, int numOfPeaks) throws IOException {
+
+    byte[] peakBytes = Base64.getDecoder().decode(encodedPeaks);
+
+    if (compressed) {
+      try {
+        peakBytes = CompressionUtils.decompress(peakBytes);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed peak: " + e.toString(), e);
+      }
+    }
+
+    // make a data input stream
+    DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
+
+    DataPoint dataPoints[] = new DataPoint[numOfPeaks];
+
+    try {
+      for (int i = 0; i < dataPoints.length; i++) {
+
+        // Always respect this order pairOrder="m/z-int"
+        double massOverCharge;
+        double intensity;
+        if (doublePrecision) {
+          massOverCharge = peakStream.readDouble();
+          intensity = peakStream.readDouble();
+        } else {
+          massOverCharge = (double) peakStream.readFloat();
+          intensity = (double) peakStream.readFloat();
+        }
+
+        // Copy m/z and intensity data
+        dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
+
+      }
+    } catch (IOException eof) {
+      throw new IOException("Corrupt mzXML file", eof);
+    }
+
+    // Auto-detect whether this scan is centroided
+    MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+
+    // Set the centroided tag
+    scan.setSpectrumType(spectrumType);
+
+    // Set the final data points to the scan
+    scan.setDataPoints(dataPoints);
+
+  }
+
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.util.WorkerPoolUtils;
+
+/**
+ * Import pipeline which decodes the data points of scans on the shared worker pool, while the
+ * parser thread keeps reading the file. The parser thread submits the decoding (Base64, inflating,
+ * conversion to data points) of each scan with decode() and hands the scan over with addScan(). The
+ * scans are written to the raw data file in the order of addScan(), each as soon as its decoding is
+ * finished. The encoded bytes waiting to be decoded and the number of scans waiting to be written
+ * are bounded, so the parser cannot run away from the workers, even if several files are imported
+ * at the same time.
+ */
+class ScanDecodingPipeline {
+
+  /**
+   * Decoding job of one scan
+   */
+  interface Decoder {
+    void decode() throws Exception;
+  }
+
+  // Maximum size of the encoded data submitted to the workers and not decoded yet
+  private static final long MAX_DECODING_BYTES = 64L * 1024 * 1024;
+
+  private final RawDataFileWriter newMZmineFile;
+  private final Runnable scanWritten;
+  private final int maxPendingScans;
+
+  // Encoded bytes of the submitted scans which are not decoded yet, guarded by decodingLock
+  private final Object decodingLock = new Object();
+  private long decodingBytes = 0;
+
+  private volatile boolean canceled = false;
+
+  private final ArrayDeque<Scan> pendingScans = new ArrayDeque<>();
+  private final ArrayDeque<Future<?>> pendingDecoders = new ArrayDeque<>();
+
+  /**
+   * @param newMZmineFile the file the scans are written to
+   * @param scanWritten called on the parser thread after each written scan
+   */
+  ScanDecodingPipeline(RawDataFileWriter newMZmineFile, Runnable scanWritten) {
+    this.newMZmineFile = newMZmineFile;
+    this.scanWritten = scanWritten;
+    this.maxPendingScans = WorkerPoolUtils.getNumberOfWorkers() * 16;
+  }
+
+  /**
+   * Starts decoding on a worker thread. Waits until enough of the previously submitted scans are
+   * decoded if their encoded data exceed the limit.
+   * 
+   * @param encodedBytes size of the encoded data of the scan
+   * @return Future to pass to addScan() together with the decoded scan
+   */
+  Future<?> decode(Decoder decoder, long encodedBytes) throws IOException {
+    synchronized (decodingLock) {
+      // a single scan larger than the limit is decoded alone
+      while (decodingBytes > 0 && decodingBytes + encodedBytes > MAX_DECODING_BYTES) {
+        try {
+          decodingLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the decoding of scans", e);
+        }
+      }
+      decodingBytes += encodedBytes;
+    }
+    return WorkerPoolUtils.getWorkerPool().submit(() -> {
+      try {
+        // the scans of a canceled import are not needed anymore
+        if (!canceled)
+          decoder.decode();
+        return null;
+      } finally {
+        synchronized (decodingLock) {
+          decodingBytes -= encodedBytes;
+          decodingLock.notifyAll();
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues the scan for writing once its decoding is finished. Writes all finished scans at the
+   * head of the queue, and waits for the head if too many scans are pending.
+   * 
+   * @param decoding the decoding of the scan, or null if the scan is complete already
+   */
+  void addScan(Scan scan, @Nullable Future<?> decoding) throws IOException {
+    pendingScans.addLast(scan);
+    pendingDecoders.addLast(decoding != null ? decoding : CompletableFuture.completedFuture(null));
+    while (!pendingScans.isEmpty()
+        && (pendingDecoders.peekFirst().isDone() || pendingScans.size() > maxPendingScans)) {
+      writeFirstScan();
+    }
+  }
+
+  /**
+   * Writes all remaining scans
+   */
+  void finish() throws IOException {
+    while (!pendingScans.isEmpty())
+      writeFirstScan();
+  }
+
+  /**
+   * Drops all pending scans and skips the decoding of the scans which are not started yet, e.g. when
+   * the import failed or was canceled. The shared worker threads keep running.
+   */
+  void cancel() {
+    canceled = true;
+    pendingScans.clear();
+    pendingDecoders.clear();
+  }
+
+  private void writeFirstScan() throws IOException {
+    final Scan scan = pendingScans.removeFirst();
+    final Future<?> decoding = pendingDecoders.removeFirst();
+    try {
+      decoding.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decoding scan #" + scan.getScanNumber(), e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new IOException(
+          "Could not decode scan #" + scan.getScanNumber() + ": " + cause.getMessage(), cause);
+    }
+    newMZmineFile.addScan(scan);
+    scanWritten.run();
+  }
+
+}
@@ -35,6 +35,7 @@ import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.scans.ScanRasterPyramid;
 import net.sf.mzmine.util.scans.ScanUtils;
 import net.sf.mzmine.util.scans.ScanUtils.BinningType;
 
@@ -117,61 +118,25 @@ class Fx3DSamplingTask extends AbstractTask {
                     * rtResolution];
             boolean rtDataSet[] = new boolean[rtResolution];
 
-            // load scans
-            for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
-
-                if (isCanceled())
-                    return;
-
-                Scan scan = scans[scanIndex];
-                final Desktop desktop = MZmineCore.getDesktop();
-
-                // Check scan numbers.
-                if (scans.length == 0) {
-                    desktop.displayErrorMessage(
-                            MZmineCore.getDesktop().getMainWindow(),
-                            "No scans found");
+            final double mzStep = (mzRange.upperEndpoint()
+                    - mzRange.lowerEndpoint()) / mzResolution;
+
+            // The raster of the scans is reused when its cells are not wider
+            // than our bins, otherwise all scans are binned directly
+            ScanRasterPyramid raster = null;
+            double finestCell[] = ScanRasterPyramid.getFinestCellWidth(scans);
+            if ((finestCell[0] <= rtStep) && (finestCell[1] <= mzStep)) {
+                raster = ScanRasterPyramid.getOrBuild(dataFile, scans,
+                        this::isCanceled, () -> retrievedScans++);
+                if (raster == null)
                     return;
-                }
-
-                DataPoint dataPoints[] = scan.getDataPoints();
-                double[] scanMZValues = new double[dataPoints.length];
-                double[] scanIntensityValues = new double[dataPoints.length];
-                for (int dp = 0; dp < dataPoints.length; dp++) {
-                    scanMZValues[dp] = dataPoints[dp].getMZ();
-                    scanIntensityValues[dp] = dataPoints[dp].getIntensity();
-                }
-
-                double[] binnedIntensities = ScanUtils.binValues(scanMZValues,
-                        scanIntensityValues, mzRange, mzResolution,
-                        scan.getSpectrumType() != MassSpectrumType.CENTROIDED,
-                        BinningType.MAX);
-
-                int scanBinIndex;
-
-                double rt = scan.getRetentionTime();
-                scanBinIndex = (int) ((rt - rtRange.lowerEndpoint()) / rtStep);
-
-                // last scan falls into last bin
-                if (scanBinIndex == rtResolution) {
-                    scanBinIndex--;
-                }
-
-                for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
-
-                    int intensityValuesIndex = (rtResolution * mzIndex)
-                            + scanBinIndex;
-                    if (binnedIntensities[mzIndex] > intensityValues[0][intensityValuesIndex]) {
-                        intensityValues[0][intensityValuesIndex] = (float) binnedIntensities[mzIndex];
-                    }
-                    if (intensityValues[0][intensityValuesIndex] > maxBinnedIntensity)
-                        maxBinnedIntensity = (double) binnedIntensities[mzIndex];
-                }
-
-                rtDataSet[scanBinIndex] = true;
-
-                retrievedScans++;
+            }
 
+            if (raster != null) {
+                sampleRaster(raster, rtStep, mzStep, intensityValues,
+                        rtDataSet);
+            } else if (!sampleScans(rtStep, intensityValues, rtDataSet)) {
+                return;
             }
 
             // Interpolate missing values on the RT-axis
@@ -242,4 +207,101 @@ class Fx3DSamplingTask extends AbstractTask {
 
     }
 
+    /**
+     * Bins the data points of all scans, returns false if the task was
+     * canceled
+     */
+    private boolean sampleScans(double rtStep, float[][] intensityValues,
+            boolean rtDataSet[]) {
+
+        for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+
+            if (isCanceled())
+                return false;
+
+            Scan scan = scans[scanIndex];
+            final Desktop desktop = MZmineCore.getDesktop();
+
+            // Check scan numbers.
+            if (scans.length == 0) {
+                desktop.displayErrorMessage(
+                        MZmineCore.getDesktop().getMainWindow(),
+                        "No scans found");
+                return false;
+            }
+
+            DataPoint dataPoints[] = scan.getDataPoints();
+            double[] scanMZValues = new double[dataPoints.length];
+            double[] scanIntensityValues = new double[dataPoints.length];
+            for (int dp = 0; dp < dataPoints.length; dp++) {
+                scanMZValues[dp] = dataPoints[dp].getMZ();
+                scanIntensityValues[dp] = dataPoints[dp].getIntensity();
+            }
+
+            double[] binnedIntensities = ScanUtils.binValues(scanMZValues,
+                    scanIntensityValues, mzRange, mzResolution,
+                    scan.getSpectrumType() != MassSpectrumType.CENTROIDED,
+                    BinningType.MAX);
+
+            int scanBinIndex;
+
+            double rt = scan.getRetentionTime();
+            scanBinIndex = (int) ((rt - rtRange.lowerEndpoint()) / rtStep);
+
+            // last scan falls into last bin
+            if (scanBinIndex == rtResolution) {
+                scanBinIndex--;
+            }
+
+            for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
+
+                int intensityValuesIndex = (rtResolution * mzIndex)
+                        + scanBinIndex;
+                if (binnedIntensities[mzIndex] > intensityValues[0][intensityValuesIndex]) {
+                    intensityValues[0][intensityValuesIndex] = (float) binnedIntensities[mzIndex];
+                }
+                if (intensityValues[0][intensityValuesIndex] > maxBinnedIntensity)
+                    maxBinnedIntensity = (double) binnedIntensities[mzIndex];
+            }
+
+            rtDataSet[scanBinIndex] = true;
+
+            retrievedScans++;
+
+        }
+        return true;
+    }
+
+    /**
+     * Reads the bins from the precomputed raster of the scans
+     */
+    private void sampleRaster(ScanRasterPyramid raster, double rtStep,
+            double mzStep, float[][] intensityValues, boolean rtDataSet[]) {
+
+        final int level = raster.findLevel(rtStep, mzStep);
+
+        for (int rtIndex = 0; rtIndex < rtResolution; rtIndex++) {
+
+            double rtMin = rtRange.lowerEndpoint() + (rtIndex * rtStep);
+            Range<Double> rtBinRange = Range.closed(rtMin, rtMin + rtStep);
+
+            for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
+
+                double mzMin = mzRange.lowerEndpoint() + (mzIndex * mzStep);
+                double intensity = raster.getMaxIntensity(level, rtBinRange,
+                        Range.closed(mzMin, mzMin + mzStep));
+
+                // No scan in this bin, it will be interpolated
+                if (intensity < 0)
+                    break;
+
+                intensityValues[0][(rtResolution * mzIndex)
+                        + rtIndex] = (float) intensity;
+                if (intensity > maxBinnedIntensity)
+                    maxBinnedIntensity = intensity;
+                rtDataSet[rtIndex] = true;
+            }
+        }
+    }
+
 }
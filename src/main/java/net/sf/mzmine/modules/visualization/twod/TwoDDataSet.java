@@ -34,6 +34,7 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.DataPointSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.scans.ScanRasterPyramid;
 
 class TwoDDataSet extends AbstractXYDataset implements Task {
 
@@ -49,6 +50,9 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
   private int totalScans, processedScans;
   private final Scan scans[];
 
+  // precomputed image of all scans, null until it is built
+  private volatile ScanRasterPyramid raster;
+
   private TaskStatus status = TaskStatus.WAITING;
 
   public double curMaxIntensity;
@@ -72,6 +76,14 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     retentionTimes = new double[totalScans];
     basePeaks = new double[totalScans];
 
+    // scan metadata is enough to answer queries until the raster is built, data points are loaded
+    // on demand
+    for (int index = 0; index < totalScans; index++) {
+      DataPoint scanBasePeak = scans[index].getHighestDataPoint();
+      retentionTimes[index] = scans[index].getRetentionTime();
+      basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak.getIntensity());
+    }
+
     MZmineCore.getTaskController().addTask(this, TaskPriority.HIGH);
 
 
@@ -82,20 +94,15 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     status = TaskStatus.PROCESSING;
 
-    for (int index = 0; index < totalScans; index++) {
+    ScanRasterPyramid pyramid = ScanRasterPyramid.getOrBuild(rawDataFile, scans,
+        () -> status == TaskStatus.CANCELED, () -> processedScans++);
 
-      // Cancel?
-      if (status == TaskStatus.CANCELED)
-        return;
+    // Cancel?
+    if (pyramid == null || status == TaskStatus.CANCELED)
+      return;
 
-      Scan scan = scans[index];
-      DataPoint scanBasePeak = scan.getHighestDataPoint();
-      retentionTimes[index] = scan.getRetentionTime();
-      basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak.getIntensity());
-      DataPoint scanDataPoints[] = scan.getDataPoints();
-      dataPointMatrix[index] = new SoftReference<DataPoint[]>(scanDataPoints);
-      processedScans++;
-    }
+    raster = pyramid;
+    processedScans = totalScans;
 
     fireDatasetChanged();
 
@@ -149,15 +156,48 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
       return totalMZRange.upperEndpoint();
   }
 
+  /**
+   * Stops building the raster, called when the window is closed. A built raster stays cached until
+   * the raw data file is removed.
+   */
+  void dispose() {
+    if (status == TaskStatus.WAITING || status == TaskStatus.PROCESSING)
+      status = TaskStatus.CANCELED;
+  }
+
+  /**
+   * Returns true when the raster is built. Until then, the plots only show scans whose data points
+   * are already loaded and must not keep the image.
+   */
+  boolean isRasterReady() {
+    return raster != null;
+  }
+
+  /**
+   * Returns the level of the raster whose cells are at most half the given pixel size, or -1 if
+   * the raster is not built yet or too coarse for this zoom.
+   */
+  int findRasterLevel(double rtStep, double mzStep) {
+    ScanRasterPyramid pyramid = raster;
+    if (pyramid == null)
+      return -1;
+    return pyramid.findLevel(rtStep / 2, mzStep / 2);
+  }
+
+  /**
+   * Same as {@link #upperEndpointIntensity(Range, Range, PlotMode)}, but reads the given raster
+   * level. The raster is only used when its cells are smaller than the pixels, so pixels without
+   * data stay empty in all plot modes, and no scans are read.
+   */
+  double upperEndpointIntensity(int rasterLevel, Range<Double> rtRange, Range<Double> mzRange) {
+    return raster.getMaxIntensity(rasterLevel, rtRange, mzRange);
+  }
+
   double upperEndpointIntensity(Range<Double> rtRange, Range<Double> mzRange, PlotMode plotMode) {
 
     double maxIntensity = 0;
 
     double searchRetentionTimes[] = retentionTimes;
-    if (processedScans < totalScans) {
-      searchRetentionTimes = new double[processedScans];
-      System.arraycopy(retentionTimes, 0, searchRetentionTimes, 0, searchRetentionTimes.length);
-    }
 
     int startScanIndex = Arrays.binarySearch(searchRetentionTimes, rtRange.lowerEndpoint());
 
@@ -218,11 +258,6 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     double searchRetentionTimes[] = retentionTimes;
 
-    if (processedScans < totalScans) {
-      searchRetentionTimes = new double[processedScans];
-      System.arraycopy(retentionTimes, 0, searchRetentionTimes, 0, searchRetentionTimes.length);
-    }
-
     // Find the rt of the scan at the bottom of our rtRange
     int startScanIndex = Arrays.binarySearch(searchRetentionTimes, rtRange.lowerEndpoint());
 
@@ -243,7 +278,9 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     for (int scanIndex = startScanIndex; ((scanIndex < searchRetentionTimes.length)
         && (searchRetentionTimes[scanIndex] <= rtRange.upperEndpoint())); scanIndex++) {
       // get the list of data points
-      DataPoint dataPoints[] = dataPointMatrix[scanIndex].get();
+      DataPoint dataPoints[] = getLoadedDataPoints(scanIndex);
+      if (dataPoints == null)
+        continue;
       // Binary search for the mz values in the range you want
 
       DataPoint searchMZ = new SimpleDataPoint(mzRange.lowerEndpoint(), 0);
@@ -285,13 +322,26 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
   private double upperEndpointIntensity(int dataPointMatrixIndex, Range<Double> mzRange,
       PlotMode plotMode) {
-    DataPoint dataPoints[] = dataPointMatrix[dataPointMatrixIndex].get();
-    if (dataPoints == null) {
+    DataPoint dataPoints[] = getLoadedDataPoints(dataPointMatrixIndex);
+    if (dataPoints == null)
+      return 0;
+    return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+  }
+
+  /**
+   * Returns the data points of a scan, or null if they are not loaded and the raster is still
+   * built. The plots call this on the event dispatch thread, which must not read the scans of the
+   * whole file before the raster is ready. Afterwards only the scans of deep zooms are read.
+   */
+  private DataPoint[] getLoadedDataPoints(int dataPointMatrixIndex) {
+    SoftReference<DataPoint[]> reference = dataPointMatrix[dataPointMatrixIndex];
+    DataPoint dataPoints[] = (reference == null ? null : reference.get());
+    if (dataPoints == null && raster != null) {
       Scan scan = scans[dataPointMatrixIndex];
       dataPoints = scan.getDataPoints();
       dataPointMatrix[dataPointMatrixIndex] = new SoftReference<DataPoint[]>(dataPoints);
     }
-    return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+    return dataPoints;
   }
 
   private double upperEndpointIntensity(DataPoint dataPoints[], Range<Double> mzRange,
@@ -86,6 +86,9 @@ class TwoDXYPlot extends BaseXYPlot {
     double values[][] = new double[width][height];
     maxValue = 0; // now this is an instance variable
 
+    // use the precomputed raster when its cells are small enough for this zoom
+    final int rasterLevel = dataset.findRasterLevel(imageRTStep, imageMZStep);
+
     for (int i = 0; i < width; i++)
       for (int j = 0; j < height; j++) {
 
@@ -94,8 +97,11 @@ class TwoDXYPlot extends BaseXYPlot {
         double pointMZMin = imageMZMin + (j * imageMZStep);
         double pointMZMax = pointMZMin + imageMZStep;
 
-        double lv = dataset.upperEndpointIntensity(Range.closed(pointRTMin, pointRTMax),
-            Range.closed(pointMZMin, pointMZMax), plotMode);
+        Range<Double> pointRTRange = Range.closed(pointRTMin, pointRTMax);
+        Range<Double> pointMZRange = Range.closed(pointMZMin, pointMZMax);
+        double lv = rasterLevel >= 0
+            ? dataset.upperEndpointIntensity(rasterLevel, pointRTRange, pointMZRange)
+            : dataset.upperEndpointIntensity(pointRTRange, pointMZRange, plotMode);
 
         if (logScale) {
           lv = Math.log10(lv);
@@ -133,7 +139,7 @@ class TwoDXYPlot extends BaseXYPlot {
       }
 
     // if we are zoomed out, save the values
-    if ((imageRTMin == totalRTRange.lowerEndpoint()) && (imageRTMax == totalRTRange.upperEndpoint())
+    if (dataset.isRasterReady() && (imageRTMin == totalRTRange.lowerEndpoint()) && (imageRTMax == totalRTRange.upperEndpoint())
         && (imageMZMin == totalMZRange.lowerEndpoint())
         && (imageMZMax == totalMZRange.upperEndpoint())) {
       zoomOutBitmap = image;
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * DataPointStorage which reads the scan data stored uncompressed inside a project file. The stored
+ * region is memory-mapped read-only straight from the project file, so opening a project does not
+ * extract the scan data, the spectra are paged in as they are read. Data points appended later (new
+ * mass lists etc.) go to a temporary file, at offsets following the stored region. The project file
+ * must not be modified while it is mapped.
+ */
+class ArchivedDataPointStorage implements DataPointStorage {
+
+  private static final int SEGMENT_SIZE = MemoryMappedDataPointStorage.SEGMENT_SIZE;
+
+  private final File projectFile;
+  private final RandomAccessFile archive;
+  private final long archivedSize;
+
+  // Mapped segments of the stored region
+  private volatile MappedByteBuffer segments[];
+
+  // Storage of the appended data points, created by the first append
+  private final Object appendLock = new Object();
+  private volatile DataPointStorage appendedStorage;
+  private File appendedFile;
+
+  /**
+   * @param projectFile project file
+   * @param dataOffset position of the scan data in the project file
+   * @param dataSize size of the scan data
+   */
+  ArchivedDataPointStorage(File projectFile, long dataOffset, long dataSize) throws IOException {
+    this.projectFile = projectFile;
+    this.archive = new RandomAccessFile(projectFile, "r");
+    this.archivedSize = dataSize;
+    try {
+      FileChannel channel = archive.getChannel();
+      if (dataOffset + dataSize > channel.size())
+        throw new IOException("Scan data at offset " + dataOffset + " exceeds the size of "
+            + projectFile);
+      final int numOfSegments = (int) ((dataSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      MappedByteBuffer newSegments[] = new MappedByteBuffer[numOfSegments];
+      for (int i = 0; i < numOfSegments; i++) {
+        final long segmentStart = (long) i * SEGMENT_SIZE;
+        newSegments[i] = channel.map(MapMode.READ_ONLY, dataOffset + segmentStart,
+            Math.min(SEGMENT_SIZE, dataSize - segmentStart));
+      }
+      segments = newSegments;
+    } catch (IOException e) {
+      archive.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the project file
+   */
+  @Override
+  public File getFile() {
+    return projectFile;
+  }
+
+  @Override
+  public long getSize() {
+    final DataPointStorage appended = appendedStorage;
+    return archivedSize + (appended == null ? 0 : appended.getSize());
+  }
+
+  @Override
+  public long append(ByteBuffer data) throws IOException {
+    synchronized (appendLock) {
+      if (appendedStorage == null) {
+        appendedFile = RawDataFileImpl.createNewDataPointsFile();
+        appendedFile.deleteOnExit();
+        appendedStorage =
+            new MemoryMappedDataPointStorage(appendedFile, new RandomAccessFile(appendedFile, "rw"));
+      }
+      return archivedSize + appendedStorage.append(data);
+    }
+  }
+
+  @Override
+  public ByteBuffer read(long offset, int length) throws IOException {
+
+    if (offset >= archivedSize) {
+      final DataPointStorage appended = appendedStorage;
+      if (appended == null)
+        throw new IOException("Cannot read " + length + " bytes at offset " + offset + " from "
+            + projectFile + ", size is " + archivedSize);
+      return appended.read(offset - archivedSize, length);
+    }
+
+    if ((offset < 0) || (offset + length > archivedSize))
+      throw new IOException("Cannot read " + length + " bytes at offset " + offset + " from "
+          + projectFile + ", size is " + archivedSize);
+
+    final MappedByteBuffer currentSegments[] = segments;
+    int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    int segmentOffset = (int) (offset % SEGMENT_SIZE);
+
+    // Fast path - the data points are completely inside one segment
+    if (segmentOffset + length <= SEGMENT_SIZE) {
+      ByteBuffer view = currentSegments[segmentIndex].duplicate();
+      // JDK 9 breaks compatibility with JRE8: need to cast
+      ((Buffer) view).position(segmentOffset);
+      ((Buffer) view).limit(segmentOffset + length);
+      return view.slice();
+    }
+
+    // Data crossing a segment boundary
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      ByteBuffer view = currentSegments[segmentIndex].duplicate();
+      ((Buffer) view).position(segmentOffset);
+      ((Buffer) view).limit(Math.min(view.capacity(), segmentOffset + buffer.remaining()));
+      buffer.put(view);
+      segmentIndex++;
+      segmentOffset = 0;
+    }
+    ((Buffer) buffer).flip();
+    return buffer;
+
+  }
+
+  /**
+   * Closes the project file and deletes the temporary file of the appended data points.
+   */
+  @Override
+  public void close() throws IOException {
+    // The mapped memory is released once the buffers are garbage collected
+    segments = new MappedByteBuffer[0];
+    archive.close();
+    synchronized (appendLock) {
+      if (appendedStorage != null) {
+        appendedStorage.close();
+        appendedFile.delete();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Backend of the temporary data points file (.scans) of a RawDataFileImpl. Data points are only
+ * ever appended to the storage, so implementations may serve reads of already written regions
+ * concurrently with a running append.
+ */
+public interface DataPointStorage {
+
+  /**
+   * @return File backing this storage
+   */
+  public File getFile();
+
+  /**
+   * @return Number of bytes written to this storage so far
+   */
+  public long getSize();
+
+  /**
+   * Appends the remaining bytes of the given buffer at the end of the storage.
+   * 
+   * @return Offset at which the data were written
+   */
+  public long append(ByteBuffer data) throws IOException;
+
+  /**
+   * Reads the given number of bytes, starting at the given offset. The returned buffer is
+   * positioned at 0 and may be a view of memory shared with other readers, therefore it must not
+   * be modified by the caller.
+   */
+  public ByteBuffer read(long offset, int length) throws IOException;
+
+  /**
+   * Closes the storage. The backing file is not deleted.
+   */
+  public void close() throws IOException;
+
+}
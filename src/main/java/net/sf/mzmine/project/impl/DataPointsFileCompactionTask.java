@@ -0,0 +1,68 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Reclaims the space of removed scans and mass lists in the temporary data points file of a raw
+ * data file, see RawDataFileImpl.compactDataPointsFile()
+ */
+class DataPointsFileCompactionTask extends AbstractTask {
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final RawDataFileImpl dataFile;
+
+  DataPointsFileCompactionTask(RawDataFileImpl dataFile) {
+    this.dataFile = dataFile;
+  }
+
+  @Override
+  public String getTaskDescription() {
+    return "Compacting temporary scan data of " + dataFile;
+  }
+
+  @Override
+  public double getFinishedPercentage() {
+    return isFinished() ? 1.0 : 0.0;
+  }
+
+  @Override
+  public void run() {
+
+    setStatus(TaskStatus.PROCESSING);
+
+    try {
+      dataFile.compactDataPointsFile();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Could not compact the temporary scan data of " + dataFile, e);
+      setErrorMessage(e.toString());
+      setStatus(TaskStatus.ERROR);
+      return;
+    }
+
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+}
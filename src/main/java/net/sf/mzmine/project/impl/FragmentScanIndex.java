@@ -0,0 +1,96 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Fragmentation scans of a raw data file sorted by precursor m/z, each with its retention time. A
+ * lookup of the MS2 scans of a feature selects the precursor m/z window by binary search and checks
+ * only the retention times inside it, instead of reading every scan of the file.
+ */
+class FragmentScanIndex {
+
+  private final double precursorMZValues[], rtValues[];
+  private final int scanNumbers[];
+
+  /**
+   * @param fragmentScans indexed scans
+   */
+  FragmentScanIndex(Scan fragmentScans[]) {
+    final int n = fragmentScans.length;
+    int order[] = new int[n];
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+    IntArrays.mergeSort(order, (a, b) -> Double.compare(fragmentScans[a].getPrecursorMZ(),
+        fragmentScans[b].getPrecursorMZ()));
+
+    precursorMZValues = new double[n];
+    rtValues = new double[n];
+    scanNumbers = new int[n];
+    for (int i = 0; i < n; i++) {
+      Scan scan = fragmentScans[order[i]];
+      precursorMZValues[i] = scan.getPrecursorMZ();
+      rtValues[i] = scan.getRetentionTime();
+      scanNumbers[i] = scan.getScanNumber();
+    }
+  }
+
+  /**
+   * Returns sorted array of the numbers of all indexed scans in given ranges.
+   */
+  int[] getScanNumbers(Range<Double> rtRange, Range<Double> precursorMZRange) {
+
+    int from = 0, to = precursorMZValues.length;
+    if (precursorMZRange.hasLowerBound())
+      from = firstAbove(precursorMZRange.lowerEndpoint(), false);
+    if (precursorMZRange.hasUpperBound())
+      to = firstAbove(precursorMZRange.upperEndpoint(), true);
+
+    IntArrayList matches = new IntArrayList();
+    for (int i = from; i < to; i++) {
+      if (precursorMZRange.contains(precursorMZValues[i]) && rtRange.contains(rtValues[i]))
+        matches.add(scanNumbers[i]);
+    }
+
+    int matchArray[] = matches.toIntArray();
+    Arrays.sort(matchArray);
+    return matchArray;
+  }
+
+  /**
+   * Index of the first precursor m/z above the value, or not below it if inclusive is false.
+   */
+  private int firstAbove(double value, boolean inclusive) {
+    int low = 0, high = precursorMZValues.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int comparison = Double.compare(precursorMZValues[mid], value);
+      if ((comparison < 0) || (inclusive && comparison == 0))
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+}
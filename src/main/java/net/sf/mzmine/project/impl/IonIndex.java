@@ -0,0 +1,276 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.Arrays;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * All data points of a set of scans (usually all scans of one MS level) sorted by m/z, each with
+ * the index of its scan. An extracted ion chromatogram only reads the slice of its m/z range
+ * instead of every scan. The entries are stored in a temporary file (mzmine*.ions) which is mapped
+ * into memory in segments, so reads do not take any lock.
+ * 
+ * The index is created with a counting sort: the first pass over the scans counts the data points
+ * per m/z bucket, the second pass writes every data point to the next free position of its bucket,
+ * and finally each bucket is sorted on its own.
+ * 
+ * The index is reference counted: the data file holds one reference until it releases the index,
+ * and every reader holds one while it reads. The file is closed when the last reference is
+ * released, so a reader never sees a closed index.
+ */
+class IonIndex {
+
+  // float m/z, float intensity (as in the data points file) and int scan index
+  private static final int ENTRY_SIZE = 12;
+
+  private static final int ENTRIES_PER_SEGMENT =
+      MemoryMappedDataPointStorage.SEGMENT_SIZE / ENTRY_SIZE;
+
+  private static final int BUCKETS = 1 << 16;
+
+  private final File file;
+  private final RandomAccessFile indexFile;
+  private final MappedByteBuffer segments[];
+
+  private final double mzMin, bucketWidth;
+  // first entry of each bucket, bucketStart[BUCKETS] is the number of entries
+  private final long bucketStart[];
+
+  // references of the data file and the current readers, guarded by this
+  private int references = 1;
+
+  private IonIndex(File file, RandomAccessFile indexFile, MappedByteBuffer segments[], double mzMin,
+      double bucketWidth, long bucketStart[]) {
+    this.file = file;
+    this.indexFile = indexFile;
+    this.segments = segments;
+    this.mzMin = mzMin;
+    this.bucketWidth = bucketWidth;
+    this.bucketStart = bucketStart;
+  }
+
+  /**
+   * Creates the index of the data points of the given scans. The scan index of each entry is the
+   * position of its scan in the given array.
+   */
+  static IonIndex create(Scan scans[]) throws IOException {
+
+    Range<Double> mzRange = null;
+    int maxDataPoints = 0;
+    for (Scan scan : scans) {
+      if (scan.getNumberOfDataPoints() == 0)
+        continue;
+      mzRange = (mzRange == null) ? scan.getDataPointMZRange()
+          : mzRange.span(scan.getDataPointMZRange());
+      maxDataPoints = Math.max(maxDataPoints, scan.getNumberOfDataPoints());
+    }
+    if (mzRange == null)
+      mzRange = Range.singleton(0.0);
+
+    final double mzMin = mzRange.lowerEndpoint();
+    final double span = mzRange.upperEndpoint() - mzMin;
+    final double bucketWidth = span > 0 ? span / BUCKETS : 1;
+    final double mzValues[] = new double[maxDataPoints];
+    final double intensityValues[] = new double[maxDataPoints];
+
+    // Count the data points of each bucket
+    final long bucketStart[] = new long[BUCKETS + 1];
+    for (Scan scan : scans) {
+      final int numOfDataPoints = scan.getDataPoints(mzValues, intensityValues);
+      for (int i = 0; i < numOfDataPoints; i++)
+        bucketStart[getBucket(mzValues[i], mzMin, bucketWidth) + 1]++;
+    }
+    for (int b = 0; b < BUCKETS; b++)
+      bucketStart[b + 1] += bucketStart[b];
+    final long numOfEntries = bucketStart[BUCKETS];
+
+    final File file = File.createTempFile("mzmine", ".ions");
+    file.deleteOnExit();
+    final RandomAccessFile indexFile = new RandomAccessFile(file, "rw");
+    try {
+      indexFile.setLength(numOfEntries * ENTRY_SIZE);
+      final int numOfSegments =
+          (int) ((numOfEntries + ENTRIES_PER_SEGMENT - 1) / ENTRIES_PER_SEGMENT);
+      final MappedByteBuffer segments[] = new MappedByteBuffer[numOfSegments];
+      for (int s = 0; s < numOfSegments; s++) {
+        final long firstEntry = (long) s * ENTRIES_PER_SEGMENT;
+        final long entries = Math.min(ENTRIES_PER_SEGMENT, numOfEntries - firstEntry);
+        segments[s] = indexFile.getChannel().map(MapMode.READ_WRITE, firstEntry * ENTRY_SIZE,
+            entries * ENTRY_SIZE);
+      }
+      final IonIndex index =
+          new IonIndex(file, indexFile, segments, mzMin, bucketWidth, bucketStart);
+
+      // Write each data point to the next free position of its bucket
+      final long nextEntry[] = bucketStart.clone();
+      for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+        final int numOfDataPoints = scans[scanIndex].getDataPoints(mzValues, intensityValues);
+        for (int i = 0; i < numOfDataPoints; i++) {
+          final int bucket = getBucket(mzValues[i], mzMin, bucketWidth);
+          index.put(nextEntry[bucket]++, (float) mzValues[i], (float) intensityValues[i],
+              scanIndex);
+        }
+      }
+
+      // Sort the buckets
+      for (int b = 0; b < BUCKETS; b++)
+        index.sortBucket(b);
+
+      return index;
+    } catch (IOException | RuntimeException e) {
+      indexFile.close();
+      file.delete();
+      throw e;
+    }
+
+  }
+
+  /**
+   * Returns the most intense data point within the m/z range for each scan. scanSlots maps the
+   * scan index of an entry to the position in the returned array, or -1 to ignore the scan.
+   */
+  DataPoint[] getBasePeaks(Range<Double> mzRange, int scanSlots[], int numOfSlots) {
+
+    final DataPoint basePeaks[] = new DataPoint[numOfSlots];
+    final float intensities[] = new float[numOfSlots];
+
+    final double lower = mzRange.lowerEndpoint(), upper = mzRange.upperEndpoint();
+    final long end = bucketStart[getBucket(upper, mzMin, bucketWidth) + 1];
+
+    for (long entry = findFirst(lower); entry < end; entry++) {
+      final MappedByteBuffer segment = segments[(int) (entry / ENTRIES_PER_SEGMENT)];
+      final int offset = (int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+      final float mz = segment.getFloat(offset);
+      if (mz > upper)
+        break;
+      final int slot = scanSlots[segment.getInt(offset + 8)];
+      if (slot < 0)
+        continue;
+      final float intensity = segment.getFloat(offset + 4);
+      if ((basePeaks[slot] == null) || (intensity > intensities[slot])) {
+        basePeaks[slot] = new SimpleDataPoint(mz, intensity);
+        intensities[slot] = intensity;
+      }
+    }
+
+    return basePeaks;
+
+  }
+
+  /**
+   * Adds a reference for a reader. Returns false if the index is already closed.
+   */
+  synchronized boolean retain() {
+    if (references == 0)
+      return false;
+    references++;
+    return true;
+  }
+
+  /**
+   * Releases a reference, closing and deleting the index file with the last one
+   */
+  synchronized void release() throws IOException {
+    if (references == 0)
+      return;
+    references--;
+    if (references == 0) {
+      indexFile.close();
+      file.delete();
+    }
+  }
+
+  private static int getBucket(double mz, double mzMin, double bucketWidth) {
+    final int bucket = (int) ((mz - mzMin) / bucketWidth);
+    return Math.max(0, Math.min(BUCKETS - 1, bucket));
+  }
+
+  /**
+   * Returns the first entry whose m/z is at least the given value (or the end of its bucket)
+   */
+  private long findFirst(double mz) {
+    final int bucket = getBucket(mz, mzMin, bucketWidth);
+    long low = bucketStart[bucket], high = bucketStart[bucket + 1];
+    while (low < high) {
+      final long middle = (low + high) >>> 1;
+      if (getMZ(middle) < mz)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private float getMZ(long entry) {
+    return segments[(int) (entry / ENTRIES_PER_SEGMENT)]
+        .getFloat((int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE);
+  }
+
+  private void put(long entry, float mz, float intensity, int scanIndex) {
+    final MappedByteBuffer segment = segments[(int) (entry / ENTRIES_PER_SEGMENT)];
+    final int offset = (int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+    segment.putFloat(offset, mz);
+    segment.putFloat(offset + 4, intensity);
+    segment.putInt(offset + 8, scanIndex);
+  }
+
+  private void sortBucket(int bucket) {
+
+    final long first = bucketStart[bucket];
+    final int size = (int) (bucketStart[bucket + 1] - first);
+    if (size < 2)
+      return;
+
+    final float mzValues[] = new float[size];
+    final float intensityValues[] = new float[size];
+    final int scanIndexes[] = new int[size];
+    for (int i = 0; i < size; i++) {
+      final MappedByteBuffer segment = segments[(int) ((first + i) / ENTRIES_PER_SEGMENT)];
+      final int offset = (int) ((first + i) % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+      mzValues[i] = segment.getFloat(offset);
+      intensityValues[i] = segment.getFloat(offset + 4);
+      scanIndexes[i] = segment.getInt(offset + 8);
+    }
+
+    Arrays.quickSort(0, size, (a, b) -> Float.compare(mzValues[a], mzValues[b]), (a, b) -> {
+      float mz = mzValues[a];
+      mzValues[a] = mzValues[b];
+      mzValues[b] = mz;
+      float intensity = intensityValues[a];
+      intensityValues[a] = intensityValues[b];
+      intensityValues[b] = intensity;
+      int scanIndex = scanIndexes[a];
+      scanIndexes[a] = scanIndexes[b];
+      scanIndexes[b] = scanIndex;
+    });
+
+    for (int i = 0; i < size; i++)
+      put(first + i, mzValues[i], intensityValues[i], scanIndexes[i]);
+
+  }
+
+}
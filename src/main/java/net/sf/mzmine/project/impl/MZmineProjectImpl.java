@@ -37,6 +37,7 @@ import net.sf.mzmine.desktop.impl.projecttree.ProjectTree;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.UserParameter;
+import net.sf.mzmine.util.scans.ScanRasterPyramid;
 
 /**
  * This class represents a MZmine project. That includes raw data files, feature lists and parameters.
@@ -179,6 +180,9 @@ public class MZmineProjectImpl implements MZmineProject {
     // Close the data file, which also removed the temporary data
     file.close();
 
+    // Delete the cached images of the data file
+    ScanRasterPyramid.release(file);
+
   }
 
   public RawDataFile[] getDataFiles() {
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * DataPointStorage which maps the temporary file into memory in fixed-size segments. A segment is
+ * mapped (read-only) as soon as it has been completely written, the unfinished tail of the file is
+ * read using positional reads. Neither path uses a lock or a shared file pointer, so any number of
+ * threads can read concurrently. Appends are serialized and use positional writes.
+ */
+class MemoryMappedDataPointStorage implements DataPointStorage {
+
+  // 256 MB per mapped segment
+  static final int SEGMENT_SIZE = 1 << 28;
+
+  private final File file;
+  private final RandomAccessFile dataPointsFile;
+  private final FileChannel channel;
+
+  private final Object appendLock = new Object();
+  private final Object mapLock = new Object();
+
+  // Number of bytes completely written to the file
+  private volatile long size;
+
+  // Mapped segments, replaced by a larger copy when a new segment is mapped
+  private volatile MappedByteBuffer segments[] = new MappedByteBuffer[0];
+
+  MemoryMappedDataPointStorage(File file, RandomAccessFile dataPointsFile) throws IOException {
+    this.file = file;
+    this.dataPointsFile = dataPointsFile;
+    this.channel = dataPointsFile.getChannel();
+    this.size = channel.size();
+  }
+
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public long append(ByteBuffer data) throws IOException {
+    synchronized (appendLock) {
+      final long currentOffset = size;
+      long position = currentOffset;
+      while (data.hasRemaining()) {
+        position += channel.write(data, position);
+      }
+      size = position;
+      return currentOffset;
+    }
+  }
+
+  @Override
+  public ByteBuffer read(long offset, int length) throws IOException {
+
+    if ((offset < 0) || (offset + length > size))
+      throw new IOException("Cannot read " + length + " bytes at offset " + offset + " from "
+          + file + ", size is " + size);
+
+    final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    final int segmentOffset = (int) (offset % SEGMENT_SIZE);
+
+    // Fast path - the data points are completely inside one mapped segment
+    if (segmentOffset + length <= SEGMENT_SIZE) {
+      MappedByteBuffer segment = getSegment(segmentIndex);
+      if (segment != null) {
+        ByteBuffer view = segment.duplicate();
+        // JDK 9 breaks compatibility with JRE8: need to cast
+        ((Buffer) view).position(segmentOffset);
+        ((Buffer) view).limit(segmentOffset + length);
+        return view.slice();
+      }
+    }
+
+    // Unfinished tail of the file or data crossing a segment boundary
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("Unexpected end of file " + file);
+      position += read;
+    }
+    ((Buffer) buffer).flip();
+    return buffer;
+
+  }
+
+  /**
+   * Returns the mapped segment with given index, mapping it if it has already been completely
+   * written. Returns null if the segment is not finished yet.
+   */
+  private MappedByteBuffer getSegment(int index) throws IOException {
+
+    MappedByteBuffer currentSegments[] = segments;
+    if ((index < currentSegments.length) && (currentSegments[index] != null))
+      return currentSegments[index];
+
+    final long segmentStart = (long) index * SEGMENT_SIZE;
+    if (segmentStart + SEGMENT_SIZE > size)
+      return null;
+
+    synchronized (mapLock) {
+      currentSegments = segments;
+      if ((index < currentSegments.length) && (currentSegments[index] != null))
+        return currentSegments[index];
+      MappedByteBuffer newSegment = channel.map(MapMode.READ_ONLY, segmentStart, SEGMENT_SIZE);
+      MappedByteBuffer newSegments[] =
+          Arrays.copyOf(currentSegments, Math.max(currentSegments.length, index + 1));
+      newSegments[index] = newSegment;
+      segments = newSegments;
+      return newSegment;
+    }
+
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (mapLock) {
+      // The mapped memory is released once the buffers are garbage collected
+      segments = new MappedByteBuffer[0];
+    }
+    dataPointsFile.close();
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * DataPointStorage which accesses the temporary file through a single RandomAccessFile. All reads
+ * and writes are serialized by seek() and read()/write() on the shared file pointer.
+ */
+class RandomAccessDataPointStorage implements DataPointStorage {
+
+  private final File file;
+  private final RandomAccessFile dataPointsFile;
+
+  RandomAccessDataPointStorage(File file, RandomAccessFile dataPointsFile) {
+    this.file = file;
+    this.dataPointsFile = dataPointsFile;
+  }
+
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public synchronized long getSize() {
+    try {
+      return dataPointsFile.length();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public synchronized long append(ByteBuffer data) throws IOException {
+    final long currentOffset = dataPointsFile.length();
+    final int numOfBytes = data.remaining();
+    dataPointsFile.seek(currentOffset);
+    if (data.hasArray()) {
+      dataPointsFile.write(data.array(), data.arrayOffset() + data.position(), numOfBytes);
+    } else {
+      byte bytes[] = new byte[numOfBytes];
+      data.duplicate().get(bytes);
+      dataPointsFile.write(bytes);
+    }
+    return currentOffset;
+  }
+
+  @Override
+  public synchronized ByteBuffer read(long offset, int length) throws IOException {
+    byte bytes[] = new byte[length];
+    dataPointsFile.seek(offset);
+    dataPointsFile.readFully(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    dataPointsFile.close();
+  }
+
+}
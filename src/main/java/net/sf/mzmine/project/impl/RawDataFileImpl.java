@@ -25,14 +25,18 @@ import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
@@ -45,16 +49,29 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and mass lists using the
  * storeDataPoints() and readDataPoints() methods. The data points are stored in a temporary file
- * (dataPointsFile) and the structure of the file is stored in two TreeMaps. The dataPointsOffsets
+ * (dataPointsFile) and the structure of the file is stored in two sorted maps. The dataPointsOffsets
  * maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
  * the number of data points stored under this ID. When stored data points are deleted using
  * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is just deleted from
- * the two TreeMaps. When the project is saved, the contents of the dataPointsFile are consolidated
- * - only data points referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * the two maps. When the project is saved, the contents of the dataPointsFile are consolidated -
+ * only data points referenced by the maps are saved (see the RawDataFileSaveHandler class). The
+ * space of deleted data points can also be reclaimed at runtime by compactDataPointsFile(), which
+ * is started in the background once the amount of deleted data exceeds the threshold set in the
+ * preferences.
+ * 
+ * The dataPointsFile is accessed through a DataPointStorage. With the memory-mapped storage
+ * (default), readDataPoints() does not take any lock, so many tasks can read scans and mass lists of
+ * the same file in parallel. Writing is still serialized by storeDataPoints(). Scan data of an
+ * opened project can also be mapped directly from the project file, without extracting it into a
+ * temporary file (see ArchivedDataPointStorage).
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -67,13 +84,27 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   private final Hashtable<Integer, Double> dataMaxBasePeakIntensity, dataMaxTIC;
   private final Hashtable<Integer, int[]> scanNumbersCache;
 
+  // Indexes of the data points sorted by m/z, see createIonIndex()
+  private final Hashtable<Integer, IonIndex> ionIndexes;
+  // Number of callers of createIonIndex() per MS level, which did not release the index yet
+  private final Hashtable<Integer, Integer> ionIndexUsers;
+
+  // MS2 scans sorted by precursor m/z, see getFragmentScanNumbers()
+  private volatile FragmentScanIndex fragmentScanIndex;
+
+  // Write buffer, only used inside storeDataPoints()
   private ByteBuffer buffer = ByteBuffer.allocate(20000);
-  private final TreeMap<Integer, Long> dataPointsOffsets;
-  private final TreeMap<Integer, Integer> dataPointsLengths;
+  private final NavigableMap<Integer, Integer> dataPointsLengths;
 
-  // Temporary file for scan data storage
-  private File dataPointsFileName;
-  private RandomAccessFile dataPointsFile;
+  // Temporary file for scan data storage, replaced as a whole by compactDataPointsFile()
+  private volatile DataPointsFile dataPointsFile;
+
+  // Number of bytes in the data points file which belong to removed storage IDs
+  private long removedDataPointsBytes = 0;
+  private boolean compactionScheduled = false;
+
+  // Incremented whenever data points are stored or removed, see getDataPointsModCount()
+  private long dataPointsModCount = 0;
 
   // To store mass lists that have been added but not yet reflected in the GUI by the
   // notifyUpdatedMassLists() method
@@ -90,13 +121,16 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     // Prepare the hashtables for scan numbers and data limits.
     scanNumbersCache = new Hashtable<Integer, int[]>();
+    ionIndexes = new Hashtable<Integer, IonIndex>();
+    ionIndexUsers = new Hashtable<Integer, Integer>();
     dataMZRange = new Hashtable<Integer, Range<Double>>();
     dataRTRange = new Hashtable<Integer, Range<Double>>();
     dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
     dataMaxTIC = new Hashtable<Integer, Double>();
     scans = new Hashtable<Integer, StorableScan>();
-    dataPointsOffsets = new TreeMap<Integer, Long>();
-    dataPointsLengths = new TreeMap<Integer, Integer>();
+    dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
+    dataPointsFile =
+        new DataPointsFile(null, null, new ConcurrentSkipListMap<Integer, Long>());
 
   }
 
@@ -113,32 +147,115 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   }
 
   /**
-   * Returns the (already opened) data points file. Warning: may return null in case no scans have
-   * been added yet to this RawDataFileImpl instance
+   * Returns the storage of the (already opened) data points file. Warning: may return null in case
+   * no scans have been added yet to this RawDataFileImpl instance
    */
-  public RandomAccessFile getDataPointsFile() {
-    return dataPointsFile;
+  public DataPointStorage getDataPointStorage() {
+    return dataPointsFile.storage;
   }
 
   /**
    * Opens the given file as a data points file for this RawDataFileImpl instance. If the file is
-   * not empty, the TreeMaps supplied as parameters have to describe the mapping of storage IDs to
-   * data points in the file.
+   * not empty, the maps returned by getDataPointsOffsets() and getDataPointsLengths() have to be
+   * filled to describe the mapping of storage IDs to data points in the file.
    */
   public synchronized void openDataPointsFile(File dataPointsFileName) throws IOException {
 
-    if (this.dataPointsFile != null) {
+    if (dataPointsFile.storage != null) {
+      throw new IOException("Cannot open another data points file, because one is already open");
+    }
+
+    DataPointStorage storage = openDataPointStorage(dataPointsFileName);
+    dataPointsFile = new DataPointsFile(dataPointsFileName, storage, dataPointsFile.offsets);
+
+  }
+
+  /**
+   * Opens scan data stored uncompressed inside a project file as the data points file, without
+   * extracting it (see ArchivedDataPointStorage). The maps returned by getDataPointsOffsets() and
+   * getDataPointsLengths() have to be filled as for openDataPointsFile(File). If memory-mapped
+   * storage is disabled in the preferences, the scan data is copied into a temporary file.
+   * 
+   * @param projectFile project file
+   * @param dataOffset position of the scan data in the project file
+   * @param dataSize size of the scan data
+   */
+  public synchronized void openDataPointsFile(File projectFile, long dataOffset, long dataSize)
+      throws IOException {
+
+    if (dataPointsFile.storage != null) {
       throw new IOException("Cannot open another data points file, because one is already open");
     }
 
-    this.dataPointsFileName = dataPointsFileName;
-    this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+    if (!isMemoryMappedStorageEnabled()) {
+      File newFile = RawDataFileImpl.createNewDataPointsFile();
+      try (FileChannel source = FileChannel.open(projectFile.toPath(), StandardOpenOption.READ);
+          FileChannel target = FileChannel.open(newFile.toPath(), StandardOpenOption.WRITE)) {
+        long copied = 0;
+        while (copied < dataSize) {
+          long n = source.transferTo(dataOffset + copied, dataSize - copied, target);
+          if (n <= 0)
+            throw new IOException("Unexpected end of file " + projectFile);
+          copied += n;
+        }
+      }
+      openDataPointsFile(newFile);
+      return;
+    }
+
+    DataPointStorage storage = new ArchivedDataPointStorage(projectFile, dataOffset, dataSize);
+    dataPointsFile = new DataPointsFile(null, storage, dataPointsFile.offsets);
+
+  }
+
+  /**
+   * @return the project file the data points are read from (see openDataPointsFile(File, long,
+   *         long)), or null if they are stored in a temporary file
+   */
+  public synchronized @Nullable File getDataPointsProjectFile() {
+    if (dataPointsFile.storage instanceof ArchivedDataPointStorage)
+      return dataPointsFile.storage.getFile();
+    return null;
+  }
+
+  /**
+   * Switches the data points file to the scan data which has just been saved into a project file.
+   * The scan data holds the data points of all storage IDs one after another, at the given offsets.
+   * This is only possible if the data points were not modified since they were saved.
+   * 
+   * @param dataPointsModCount the value of getDataPointsModCount() at the time of saving
+   * @return false if the data points were modified meanwhile and the data points file stays as it
+   *         is
+   */
+  public synchronized boolean switchDataPointsFile(File projectFile, long dataOffset,
+      long dataSize, long dataPointsModCount, Map<Integer, Long> savedOffsets) throws IOException {
+
+    if ((dataPointsModCount != this.dataPointsModCount)
+        || (!savedOffsets.keySet().equals(dataPointsLengths.keySet())))
+      return false;
+
+    final DataPointsFile oldFile = dataPointsFile;
+    DataPointStorage storage = new ArchivedDataPointStorage(projectFile, dataOffset, dataSize);
+    dataPointsFile = new DataPointsFile(null, storage, new ConcurrentSkipListMap<>(savedOffsets));
+    removedDataPointsBytes = 0;
+
+    if (oldFile.storage != null)
+      oldFile.storage.close();
+    if ((oldFile.fileName != null) && (!oldFile.fileName.delete()))
+      logger.warning("Could not delete the old data points file " + oldFile.fileName);
+
+    return true;
+  }
+
+  private DataPointStorage openDataPointStorage(File dataPointsFileName) throws IOException {
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(dataPointsFileName, "rw");
 
     // Locks the temporary file so it is not removed when another instance
     // of MZmine is starting. Lock will be automatically released when this
     // instance of MZmine exits. Locking may fail on network-mounted filesystems.
     try {
-      FileChannel fileChannel = dataPointsFile.getChannel();
+      FileChannel fileChannel = randomAccessFile.getChannel();
       fileChannel.lock();
     } catch (IOException e) {
       logger.log(Level.WARNING, "Failed to lock the file " + dataPointsFileName, e);
@@ -149,6 +266,20 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     // shutdown hook registered in the main.ShutDownHook class
     dataPointsFileName.deleteOnExit();
 
+    if (isMemoryMappedStorageEnabled())
+      return new MemoryMappedDataPointStorage(dataPointsFileName, randomAccessFile);
+    else
+      return new RandomAccessDataPointStorage(dataPointsFileName, randomAccessFile);
+
+  }
+
+  private static boolean isMemoryMappedStorageEnabled() {
+    if ((MZmineCore.getConfiguration() == null)
+        || (MZmineCore.getConfiguration().getPreferences() == null))
+      return true;
+    Boolean enabled = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.memoryMappedStorage).getValue();
+    return (enabled == null) || enabled;
   }
 
   /**
@@ -321,13 +452,12 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   public synchronized int storeDataPoints(DataPoint dataPoints[]) throws IOException {
 
-    if (dataPointsFile == null) {
+    if (dataPointsFile.storage == null) {
       File newFile = RawDataFileImpl.createNewDataPointsFile();
       openDataPointsFile(newFile);
     }
 
-    final long currentOffset = dataPointsFile.length();
-
+    final NavigableMap<Integer, Long> dataPointsOffsets = dataPointsFile.offsets;
     final int currentID;
     if (!dataPointsOffsets.isEmpty())
       currentID = dataPointsOffsets.lastKey() + 1;
@@ -355,39 +485,27 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
       floatBuffer.put((float) dp.getIntensity());
     }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.write(buffer.array(), 0, numOfBytes);
+    ((Buffer) buffer).limit(numOfBytes);
+    final long currentOffset = dataPointsFile.storage.append(buffer);
 
-    dataPointsOffsets.put(currentID, currentOffset);
+    // Put the length first, so that readDataPoints() never sees an offset without a length
     dataPointsLengths.put(currentID, numOfDataPoints);
+    dataPointsOffsets.put(currentID, currentOffset);
+    dataPointsModCount++;
 
     return currentID;
 
   }
 
-  public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+  public DataPoint[] readDataPoints(int ID) throws IOException {
 
-    final Long currentOffset = dataPointsOffsets.get(ID);
     final Integer numOfDataPoints = dataPointsLengths.get(ID);
 
-    if ((currentOffset == null) || (numOfDataPoints == null)) {
+    if (numOfDataPoints == null) {
       throw new IllegalArgumentException("Unknown storage ID " + ID);
     }
 
-    final int numOfBytes = numOfDataPoints * 2 * 4;
-
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
-    }
-
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.read(buffer.array(), 0, numOfBytes);
-
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    FloatBuffer floatBuffer = readStoredFloats(ID, numOfDataPoints);
 
     DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
@@ -401,9 +519,179 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
+  /**
+   * Reads the data points stored under given ID into the given m/z and intensity arrays, without
+   * creating DataPoint instances. Both arrays must have at least getNumOfStoredDataPoints(ID)
+   * elements.
+   *
+   * @return Number of data points read
+   */
+  public int readDataPoints(int ID, double mzValues[], double intensityValues[])
+      throws IOException {
+
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+
+    if (numOfDataPoints == null) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+
+    FloatBuffer floatBuffer = readStoredFloats(ID, numOfDataPoints);
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      mzValues[i] = floatBuffer.get();
+      intensityValues[i] = floatBuffer.get();
+    }
+
+    return numOfDataPoints;
+
+  }
+
+  /**
+   * Reads the m/z and intensity floats stored under given ID. The offset and the storage are taken
+   * from the same DataPointsFile, so a concurrent compaction never mixes up the old and the new
+   * file.
+   */
+  private FloatBuffer readStoredFloats(int ID, int numOfDataPoints) throws IOException {
+
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+
+    while (true) {
+      final DataPointsFile currentFile = dataPointsFile;
+      final Long currentOffset = currentFile.offsets.get(ID);
+      if (currentOffset == null) {
+        throw new IllegalArgumentException("Unknown storage ID " + ID);
+      }
+      try {
+        return currentFile.storage.read(currentOffset, numOfBytes).asFloatBuffer();
+      } catch (IOException e) {
+        // The file may have been replaced and closed by compactDataPointsFile(), try again
+        if (currentFile == dataPointsFile)
+          throw e;
+      }
+    }
+
+  }
+
+  /**
+   * @return Number of data points stored under given ID, or 0 if the ID is unknown
+   */
+  public int getNumOfStoredDataPoints(int ID) {
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    return numOfDataPoints == null ? 0 : numOfDataPoints;
+  }
+
   public synchronized void removeStoredDataPoints(int ID) throws IOException {
-    dataPointsOffsets.remove(ID);
-    dataPointsLengths.remove(ID);
+    dataPointsFile.offsets.remove(ID);
+    final Integer numOfDataPoints = dataPointsLengths.remove(ID);
+    if (numOfDataPoints == null)
+      return;
+    dataPointsModCount++;
+
+    // Start a compaction in the background if too much space is wasted by removed data points
+    removedDataPointsBytes += numOfDataPoints * 2L * 4L;
+    final Long compactionThreshold = getCompactionThreshold();
+    if ((compactionThreshold != null) && (removedDataPointsBytes >= compactionThreshold)
+        && (!compactionScheduled) && (MZmineCore.getTaskController() != null)) {
+      compactionScheduled = true;
+      MZmineCore.getTaskController().addTask(new DataPointsFileCompactionTask(this));
+    }
+  }
+
+  /**
+   * @return Counter of the changes of the stored data points, incremented by storeDataPoints() and
+   *         removeStoredDataPoints(). Compaction does not change the counter, because the data
+   *         points stored under each ID stay the same. Used by the project saving to find out
+   *         whether the scan data of this file changed since it was last saved.
+   */
+  public synchronized long getDataPointsModCount() {
+    return dataPointsModCount;
+  }
+
+  /**
+   * @return Number of bytes in the data points file, which belong to removed data points and can
+   *         be reclaimed by compactDataPointsFile()
+   */
+  public synchronized long getRemovedDataPointsBytes() {
+    return removedDataPointsBytes;
+  }
+
+  /**
+   * Rewrites all data points which are still referenced by a storage ID into a new temporary file,
+   * replaces the current data points file with it and deletes the old one. Readers are never
+   * blocked, they keep reading from the old file until the new one is swapped in. Storing and
+   * removing data points waits until the compaction is finished.
+   * 
+   * @return Number of reclaimed bytes
+   */
+  public synchronized long compactDataPointsFile() throws IOException {
+
+    compactionScheduled = false;
+
+    final DataPointsFile oldFile = dataPointsFile;
+    if (oldFile.storage == null)
+      return 0;
+
+    final File newFileName = RawDataFileImpl.createNewDataPointsFile();
+    final DataPointStorage newStorage = openDataPointStorage(newFileName);
+    final NavigableMap<Integer, Long> newOffsets = new ConcurrentSkipListMap<Integer, Long>();
+
+    try {
+      // Copy the data points in the order of their storage IDs, collecting small records in one
+      // buffer to avoid one write per scan
+      ByteBuffer copyBuffer = ByteBuffer.allocate(1 << 20);
+      long copyBufferOffset = 0;
+      for (Entry<Integer, Long> entry : oldFile.offsets.entrySet()) {
+        final int numOfBytes = dataPointsLengths.get(entry.getKey()) * 2 * 4;
+        final ByteBuffer data = oldFile.storage.read(entry.getValue(), numOfBytes);
+        if (copyBuffer.remaining() < numOfBytes) {
+          ((Buffer) copyBuffer).flip();
+          newStorage.append(copyBuffer);
+          ((Buffer) copyBuffer).clear();
+          copyBufferOffset = newStorage.getSize();
+        }
+        if (copyBuffer.capacity() < numOfBytes) {
+          newOffsets.put(entry.getKey(), newStorage.append(data));
+          copyBufferOffset = newStorage.getSize();
+          continue;
+        }
+        newOffsets.put(entry.getKey(), copyBufferOffset + copyBuffer.position());
+        copyBuffer.put(data);
+      }
+      ((Buffer) copyBuffer).flip();
+      newStorage.append(copyBuffer);
+    } catch (IOException e) {
+      newStorage.close();
+      newFileName.delete();
+      throw e;
+    }
+
+    // Swap in the new file
+    dataPointsFile = new DataPointsFile(newFileName, newStorage, newOffsets);
+    removedDataPointsBytes = 0;
+
+    final long reclaimedBytes = oldFile.storage.getSize() - newStorage.getSize();
+
+    oldFile.storage.close();
+    if ((oldFile.fileName != null) && (!oldFile.fileName.delete()))
+      logger.warning("Could not delete the old data points file " + oldFile.fileName);
+
+    logger.info("Compacted data points file of " + dataFileName + ": reclaimed " + reclaimedBytes
+        + " bytes, " + newStorage.getSize() + " bytes in use");
+
+    return reclaimedBytes;
+
+  }
+
+  private static Long getCompactionThreshold() {
+    if ((MZmineCore.getConfiguration() == null)
+        || (MZmineCore.getConfiguration().getPreferences() == null))
+      return null;
+    OptionalParameter<IntegerParameter> compaction = MZmineCore.getConfiguration()
+        .getPreferences().getParameter(MZminePreferences.scanStorageCompaction);
+    Integer thresholdMB = compaction.getEmbeddedParameter().getValue();
+    if ((compaction.getValue() == null) || (!compaction.getValue()) || (thresholdMB == null))
+      return null;
+    return thresholdMB * 1024L * 1024L;
   }
 
   @Override
@@ -413,9 +701,14 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     // and we just need store the reference
     if (newScan instanceof StorableScan) {
       scans.put(newScan.getScanNumber(), (StorableScan) newScan);
+      fragmentScanIndex = null;
       return;
     }
 
+    // Existing ion indexes do not contain the new scan
+    closeIonIndexes();
+    fragmentScanIndex = null;
+
     DataPoint dataPoints[] = newScan.getDataPoints();
     final int storageID = storeDataPoints(dataPoints);
 
@@ -433,7 +726,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     for (StorableScan scan : scans.values()) {
       scan.updateValues();
     }
-    logger.finest("Writing of scans to file " + dataPointsFileName + " finished");
+    logger.finest("Writing of scans to file " + dataPointsFile.fileName + " finished");
     return this;
   }
 
@@ -524,23 +817,126 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return getScanNumbers(msLevel).length;
   }
 
-  public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
-    return dataPointsOffsets;
+  @Override
+  public @Nonnull DataPoint[] getXIC(int msLevel, @Nonnull Range<Double> mzRange,
+      @Nonnull Range<Double> rtRange) {
+
+    // The index may be released meanwhile, the reference keeps it open until we are done
+    final IonIndex ionIndex = ionIndexes.get(msLevel);
+    if (ionIndex == null || !ionIndex.retain())
+      return RawDataFile.super.getXIC(msLevel, mzRange, rtRange);
+
+    try {
+      // The index refers to the scans by their position in getScanNumbers(msLevel), map these
+      // positions to the scans in the retention time range
+      final int scanNumbers[] = getScanNumbers(msLevel);
+      final int scanSlots[] = new int[scanNumbers.length];
+      int numOfSlots = 0;
+      for (int i = 0; i < scanNumbers.length; i++) {
+        if (rtRange.contains(scans.get(scanNumbers[i]).getRetentionTime()))
+          scanSlots[i] = numOfSlots++;
+        else
+          scanSlots[i] = -1;
+      }
+
+      return ionIndex.getBasePeaks(mzRange, scanSlots, numOfSlots);
+    } finally {
+      releaseReference(ionIndex);
+    }
+
+  }
+
+  @Override
+  public synchronized void createIonIndex(int msLevel) throws IOException {
+
+    if (!ionIndexes.containsKey(msLevel)) {
+      final int scanNumbers[] = getScanNumbers(msLevel);
+      final Scan indexedScans[] = new Scan[scanNumbers.length];
+      for (int i = 0; i < scanNumbers.length; i++)
+        indexedScans[i] = scans.get(scanNumbers[i]);
+
+      logger.finest("Creating ion index of MS level " + msLevel + " of " + dataFileName);
+      ionIndexes.put(msLevel, IonIndex.create(indexedScans));
+    }
+
+    ionIndexUsers.merge(msLevel, 1, Integer::sum);
+
+  }
+
+  @Override
+  public synchronized void releaseIonIndex(int msLevel) {
+
+    final Integer users = ionIndexUsers.get(msLevel);
+    if (users == null)
+      return;
+    if (users > 1) {
+      ionIndexUsers.put(msLevel, users - 1);
+      return;
+    }
+
+    ionIndexUsers.remove(msLevel);
+    releaseReference(ionIndexes.remove(msLevel));
+
+  }
+
+  /**
+   * Releases a reference to an ion index, which is closed when no reader uses it anymore
+   */
+  private void releaseReference(IonIndex ionIndex) {
+    try {
+      ionIndex.release();
+    } catch (IOException e) {
+      logger.warning("Could not close ion index of " + dataFileName + ": " + e.toString());
+    }
+  }
+
+  @Override
+  public @Nonnull int[] getFragmentScanNumbers(@Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
+    FragmentScanIndex index = fragmentScanIndex;
+    if (index == null)
+      index = createFragmentScanIndex();
+    return index.getScanNumbers(rtRange, precursorMZRange);
   }
 
-  public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+  private synchronized FragmentScanIndex createFragmentScanIndex() {
+    if (fragmentScanIndex != null)
+      return fragmentScanIndex;
+
+    final int scanNumbers[] = getScanNumbers(2, Range.all());
+    final Scan fragmentScans[] = new Scan[scanNumbers.length];
+    for (int i = 0; i < scanNumbers.length; i++)
+      fragmentScans[i] = scans.get(scanNumbers[i]);
+
+    fragmentScanIndex = new FragmentScanIndex(fragmentScans);
+    return fragmentScanIndex;
+  }
+
+  private synchronized void closeIonIndexes() {
+    for (IonIndex ionIndex : ionIndexes.values())
+      releaseReference(ionIndex);
+    ionIndexes.clear();
+    ionIndexUsers.clear();
+  }
+
+  public NavigableMap<Integer, Long> getDataPointsOffsets() {
+    return dataPointsFile.offsets;
+  }
+
+  public NavigableMap<Integer, Integer> getDataPointsLengths() {
     return dataPointsLengths;
   }
 
   @Override
   public synchronized void close() {
+    closeIonIndexes();
     try {
-      if (dataPointsFileName != null) {
-        dataPointsFile.close();
-        dataPointsFileName.delete();
-      }
+      if (dataPointsFile.storage != null)
+        dataPointsFile.storage.close();
+      if (dataPointsFile.fileName != null)
+        dataPointsFile.fileName.delete();
     } catch (IOException e) {
-      logger.warning("Could not close file " + dataPointsFileName + ": " + e.toString());
+      logger.warning("Could not close file " + dataPointsFile.fileName + ": " + e.toString());
     }
   }
 
@@ -560,4 +956,22 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return dataFileName;
   }
 
+  /**
+   * The data points file together with its storage and the offsets of the stored data points in
+   * it. Replaced as a whole when the file is compacted.
+   */
+  private static class DataPointsFile {
+
+    private final File fileName;
+    private final DataPointStorage storage;
+    private final NavigableMap<Integer, Long> offsets;
+
+    DataPointsFile(File fileName, DataPointStorage storage, NavigableMap<Integer, Long> offsets) {
+      this.fileName = fileName;
+      this.storage = storage;
+      this.offsets = offsets;
+    }
+
+  }
+
 }
@@ -18,12 +18,18 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
@@ -36,9 +42,12 @@ import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks are started as soon as they are submitted or a running
+ * task finishes, on reusable threads of an executor. HIGH priority tasks are started immediately,
+ * NORMAL priority tasks wait in submission order until fewer than the maximum number of concurrent
+ * threads (see the preferences dialog) are running.
  */
-public class TaskControllerImpl implements TaskController, Runnable {
+public class TaskControllerImpl implements TaskController {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -47,17 +56,38 @@ public class TaskControllerImpl implements TaskController, Runnable {
   /**
    * Update the task progress window every 300 ms
    */
-  private final int TASKCONTROLLER_THREAD_SLEEP = 300;
+  private static final int TASK_PROGRESS_UPDATE_INTERVAL = 300;
 
-  private Thread taskControllerThread;
+  /**
+   * Priority of idle worker threads, the same as the task controller thread
+   */
+  static final int WORKER_THREAD_PRIORITY = Thread.MIN_PRIORITY;
 
   private TaskQueue taskQueue;
 
   /**
-   * This vector contains references to all running threads of NORMAL priority. Maximum number of
-   * concurrent threads is specified in the preferences dialog.
+   * Executes the tasks. The threads are reused, the number of concurrently running tasks is limited
+   * by dispatchTasks().
    */
-  private Vector<WorkerThread> runningThreads;
+  private ExecutorService executor;
+
+  /**
+   * Low-priority thread which updates the task progress window while the queue is not empty
+   */
+  private ScheduledExecutorService progressUpdater;
+  private ScheduledFuture<?> progressUpdate;
+  private int previousQueueSize = -1;
+  private int previousPercentDone = -1;
+
+  /**
+   * Tasks of NORMAL priority which have not been started yet, in submission order
+   */
+  private final ArrayDeque<WrappedTask> waitingTasks = new ArrayDeque<WrappedTask>();
+
+  /**
+   * Number of running tasks of NORMAL priority
+   */
+  private int runningTasks = 0;
 
   /**
    * Initialize the task controller
@@ -66,13 +96,19 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
     taskQueue = new TaskQueue();
 
-    runningThreads = new Vector<WorkerThread>();
+    final AtomicInteger workerNumber = new AtomicInteger();
+    executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "Task worker thread " + workerNumber.incrementAndGet());
+      thread.setPriority(WORKER_THREAD_PRIORITY);
+      return thread;
+    });
 
-    // Create a low-priority thread that will manage the queue and start
-    // worker threads for tasks
-    taskControllerThread = new Thread(this, "Task controller thread");
-    taskControllerThread.setPriority(Thread.MIN_PRIORITY);
-    taskControllerThread.start();
+    progressUpdater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Task controller thread");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.setDaemon(true);
+      return thread;
+    });
 
   }
 
@@ -121,6 +157,16 @@ public class TaskControllerImpl implements TaskController, Runnable {
       uniqueTaskClasses.add(taskClassName);
       WrappedTask newQueueEntry = new WrappedTask(task, priority);
       taskQueue.addWrappedTask(newQueueEntry);
+
+      // Start high-priority tasks immediately, others wait for a free thread
+      synchronized (this) {
+        if (priority == TaskPriority.HIGH) {
+          if (task.getStatus() != TaskStatus.CANCELED)
+            startTask(newQueueEntry, false);
+        } else {
+          waitingTasks.add(newQueueEntry);
+        }
+      }
     }
 
     // Track module usage
@@ -132,105 +178,115 @@ public class TaskControllerImpl implements TaskController, Runnable {
       gatThread.start();
     }
 
-    // Wake up the task controller thread
-    synchronized (this) {
-      this.notifyAll();
-    }
+    // Start the tasks and the updates of the task progress window
+    dispatchTasks(false);
+    startProgressUpdates();
   }
 
   /**
-   * Task controller thread main method.
+   * Starts the waiting tasks which may run now. Called whenever tasks are added, a task finishes or
+   * the priority of a task changes.
    * 
-   * @see java.lang.Runnable#run()
+   * @param allTasks If false, stop at the first task which has to keep waiting. This is correct
+   *        as long as all waiting tasks are of NORMAL priority, i.e. if no priorities changed.
    */
-  @Override
-  public void run() {
-
-    int previousQueueSize = -1;
-    int previousPercentDone = -1; 
+  private synchronized void dispatchTasks(boolean allTasks) {
 
-    while (true) {
+    final int maxRunningTasks = getMaxRunningTasks();
 
-      final int waitingTasks = taskQueue.getNumOfWaitingTasks();
-      final int percentDone = taskQueue.getTotalPercentComplete();
-      if ((waitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
-        previousQueueSize = waitingTasks;
-        previousPercentDone = percentDone;
-        for (TaskControlListener listener : listeners)
-          listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
-      }
+    Iterator<WrappedTask> iterator = waitingTasks.iterator();
+    while (iterator.hasNext()) {
+      WrappedTask task = iterator.next();
 
-      // If the queue is empty, we can sleep. When new task is added into
-      // the queue, we will be awaken by notify()
-      synchronized (this) {
-        while (taskQueue.isEmpty()) {
-          try {
-            this.wait();
-          } catch (InterruptedException e) {
-            // Ignore
-          }
-        }
-      }
-
-      // Check if all tasks in the queue are finished
-      if (taskQueue.allTasksFinished()) {
-        taskQueue.clear();
+      // Skip canceled tasks
+      if (task.getActualTask().getStatus() == TaskStatus.CANCELED) {
+        iterator.remove();
         continue;
       }
 
-      // Remove already finished threads from runningThreads
-      Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-      while (threadIterator.hasNext()) {
-        WorkerThread thread = threadIterator.next();
-        if (thread.isFinished())
-          threadIterator.remove();
+      // Start the task if it is high-priority or if we have less then
+      // maximum # of tasks running
+      final boolean limited = (task.getPriority() == TaskPriority.NORMAL);
+      if (limited && (runningTasks >= maxRunningTasks)) {
+        if (allTasks)
+          continue;
+        break;
       }
 
-      // Get a snapshot of the queue
-      WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-      // Obtain the settings of max concurrent threads
-      NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
-          .getParameter(MZminePreferences.numOfThreads);
-      int maxRunningThreads;
-      if (parameter.isAutomatic() || (parameter.getValue() == null))
-        maxRunningThreads = Runtime.getRuntime().availableProcessors();
-      else
-        maxRunningThreads = parameter.getValue();
+      iterator.remove();
+      startTask(task, limited);
+    }
 
-      // Check all tasks in the queue
-      for (WrappedTask task : queueSnapshot) {
+  }
 
-        // Skip assigned and canceled tasks
-        if (task.isAssigned() || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-          continue;
+  private synchronized void startTask(WrappedTask task, boolean limited) {
+    if (limited)
+      runningTasks++;
+    executor.execute(new TaskWorker(this, task, limited));
+  }
 
-        // Create a new thread if the task is high-priority or if we
-        // have less then maximum # of threads running
-        if ((task.getPriority() == TaskPriority.HIGH)
-            || (runningThreads.size() < maxRunningThreads)) {
-          WorkerThread newThread = new WorkerThread(task);
+  /**
+   * Called by the TaskWorker once its task is finished
+   */
+  void taskFinished(TaskWorker worker) {
+    synchronized (this) {
+      if (worker.isLimited())
+        runningTasks--;
+    }
+    dispatchTasks(false);
+  }
 
-          if (task.getPriority() == TaskPriority.NORMAL) {
-            runningThreads.add(newThread);
-          }
+  /**
+   * Obtain the settings of max concurrent threads
+   */
+  private int getMaxRunningTasks() {
+    NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    else
+      return parameter.getValue();
+  }
 
-          newThread.start();
-        }
-      }
+  private synchronized void startProgressUpdates() {
+    if (progressUpdate != null)
+      return;
+    progressUpdate = progressUpdater.scheduleWithFixedDelay(this::updateProgress, 0,
+        TASK_PROGRESS_UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
 
-      // Tell the queue to refresh the Task progress window
-      taskQueue.refresh();
+  /**
+   * Notifies the listeners and refreshes the task progress window. Runs periodically while there
+   * are tasks in the queue.
+   */
+  private void updateProgress() {
+
+    final int waitingTasks = taskQueue.getNumOfWaitingTasks();
+    final int percentDone = taskQueue.getTotalPercentComplete();
+    if ((waitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
+      previousQueueSize = waitingTasks;
+      previousPercentDone = percentDone;
+      for (TaskControlListener listener : listeners)
+        listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
+    }
 
-      // Sleep for a while until next update
-      try {
-        Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-      } catch (InterruptedException e) {
-        // Ignore
+    // If the queue is empty, we can stop the updates. When new task is
+    // added into the queue, they will be started again
+    synchronized (this) {
+      if (taskQueue.isEmpty()) {
+        progressUpdate.cancel(false);
+        progressUpdate = null;
+        return;
       }
-
     }
 
+    // Check if all tasks in the queue are finished
+    if (taskQueue.clearIfAllTasksFinished())
+      return;
+
+    // Tell the queue to refresh the Task progress window
+    taskQueue.refresh();
+
   }
 
   @Override
@@ -252,6 +308,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
         taskQueue.refresh();
       }
     }
+
+    // A waiting task may start now if it became high-priority
+    dispatchTasks(true);
   }
 
   @Override
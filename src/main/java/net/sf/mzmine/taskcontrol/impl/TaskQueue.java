@@ -140,6 +140,18 @@ public class TaskQueue extends AbstractTableModel {
     return size == 0;
   }
 
+  /**
+   * Clears the queue if all tasks in it are finished
+   * 
+   * @return True if the queue was cleared
+   */
+  synchronized boolean clearIfAllTasksFinished() {
+    if (!allTasksFinished())
+      return false;
+    clear();
+    return true;
+  }
+
   synchronized boolean allTasksFinished() {
     for (int i = 0; i < size; i++) {
       TaskStatus status = queue[i].getActualTask().getStatus();
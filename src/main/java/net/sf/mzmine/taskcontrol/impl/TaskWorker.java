@@ -27,19 +27,23 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then finish
+ * Task controller worker, processes one task on a thread of the task controller's executor and then
+ * notifies the controller, so that waiting tasks can be started immediately
  */
-class WorkerThread extends Thread {
+class TaskWorker implements Runnable {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private WrappedTask wrappedTask;
-  private boolean finished = false;
+  private final TaskControllerImpl taskController;
+  private final WrappedTask wrappedTask;
 
-  WorkerThread(WrappedTask wrappedTask) {
-    super("Thread executing task " + wrappedTask);
+  // True if this task counts against the maximum number of concurrent tasks
+  private final boolean limited;
+
+  TaskWorker(TaskControllerImpl taskController, WrappedTask wrappedTask, boolean limited) {
+    this.taskController = taskController;
     this.wrappedTask = wrappedTask;
-    wrappedTask.assignTo(this);
+    this.limited = limited;
   }
 
   /**
@@ -47,6 +51,11 @@ class WorkerThread extends Thread {
    */
   public void run() {
 
+    final Thread thread = Thread.currentThread();
+    final String threadName = thread.getName();
+    thread.setName("Thread executing task " + wrappedTask);
+    wrappedTask.assignTo(thread);
+
     Task actualTask = wrappedTask.getActualTask();
 
     try {
@@ -98,17 +107,22 @@ class WorkerThread extends Thread {
           "Unhandled exception in task " + actualTask.getTaskDescription() + ": "
               + ExceptionUtils.exceptionToString(e));
 
-    }
+    } finally {
 
-    /*
-     * Mark this thread as finished
-     */
-    finished = true;
+      /*
+       * Release the thread for the next task and let the controller start waiting tasks
+       */
+      wrappedTask.assignTo(null);
+      thread.setName(threadName);
+      thread.setPriority(TaskControllerImpl.WORKER_THREAD_PRIORITY);
+      taskController.taskFinished(this);
+
+    }
 
   }
 
-  boolean isFinished() {
-    return finished;
+  boolean isLimited() {
+    return limited;
   }
 
 }
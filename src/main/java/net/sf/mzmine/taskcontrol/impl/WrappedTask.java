@@ -28,7 +28,7 @@ public class WrappedTask {
 
   private Task task;
   private TaskPriority priority;
-  private WorkerThread assignedTo;
+  private Thread assignedTo;
 
   WrappedTask(Task task, TaskPriority priority) {
     this.task = task;
@@ -38,14 +38,14 @@ public class WrappedTask {
   /**
    * @return Returns the priority.
    */
-  TaskPriority getPriority() {
+  synchronized TaskPriority getPriority() {
     return priority;
   }
 
   /**
    * @param priority The priority to set.
    */
-  void setPriority(TaskPriority priority) {
+  synchronized void setPriority(TaskPriority priority) {
     this.priority = priority;
     if (assignedTo != null) {
       switch (priority) {
@@ -60,13 +60,9 @@ public class WrappedTask {
   }
 
   /**
-   * @return Returns the assigned.
+   * @param thread Thread which is executing the task, or null once it finished
    */
-  boolean isAssigned() {
-    return assignedTo != null;
-  }
-
-  void assignTo(WorkerThread thread) {
+  synchronized void assignTo(Thread thread) {
     assignedTo = thread;
   }
 
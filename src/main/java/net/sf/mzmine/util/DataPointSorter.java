@@ -20,6 +20,7 @@ package net.sf.mzmine.util;
 
 import java.util.Comparator;
 
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import net.sf.mzmine.datamodel.DataPoint;
 
 /**
@@ -75,4 +76,43 @@ public class DataPointSorter implements Comparator<DataPoint> {
     }
 
   }
+
+  /**
+   * Sorts data points given as m/z and intensity arrays, without creating DataPoint instances. The
+   * resulting order is the same as sorting the corresponding DataPoints with a DataPointSorter of
+   * the given property and direction (the sort is stable).
+   * 
+   * @return Indices of the first numOfDataPoints data points, in sorted order
+   */
+  public static int[] sortIndices(double mzValues[], double intensityValues[],
+      int numOfDataPoints, SortingProperty property, SortingDirection direction) {
+
+    final double primary[], secondary[];
+    switch (property) {
+      case MZ:
+        primary = mzValues;
+        secondary = intensityValues;
+        break;
+      case Intensity:
+        primary = intensityValues;
+        secondary = mzValues;
+        break;
+      default:
+        throw (new IllegalStateException());
+    }
+    final int sign = direction == SortingDirection.Ascending ? 1 : -1;
+
+    int indices[] = new int[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      indices[i] = i;
+
+    IntArrays.mergeSort(indices, 0, numOfDataPoints, (i1, i2) -> {
+      int result = Double.compare(primary[i1], primary[i2]);
+      if (result == 0)
+        result = Double.compare(secondary[i1], secondary[i2]);
+      return sign * result;
+    });
+
+    return indices;
+  }
 }
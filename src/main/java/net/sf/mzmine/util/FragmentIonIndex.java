@@ -0,0 +1,166 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.function.DoubleFunction;
+
+import com.google.common.collect.Range;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Inverted index of the fragment ions of many spectra: all ions sorted by m/z, each with the index
+ * of its spectrum. For a query spectrum it counts the ions matched in every indexed spectrum at
+ * once, so spectra which cannot reach a minimum number of matched ions are skipped without
+ * comparing them ion by ion.
+ */
+public class FragmentIonIndex {
+
+  private final double sortedMZ[];
+  private final int spectrumOfIon[];
+
+  /**
+   * @param spectra ions of each spectrum, null for spectra without ions
+   */
+  public FragmentIonIndex(DataPoint spectra[][]) {
+    int numberOfIons = 0;
+    for (DataPoint ions[] : spectra) {
+      if (ions != null)
+        numberOfIons += ions.length;
+    }
+
+    final double mzValues[] = new double[numberOfIons];
+    final int spectrumIndexes[] = new int[numberOfIons];
+    int ion = 0;
+    for (int s = 0; s < spectra.length; s++) {
+      if (spectra[s] == null)
+        continue;
+      for (DataPoint dp : spectra[s]) {
+        mzValues[ion] = dp.getMZ();
+        spectrumIndexes[ion] = s;
+        ion++;
+      }
+    }
+
+    sortedMZ = new double[numberOfIons];
+    spectrumOfIon = new int[numberOfIons];
+    sort(mzValues, spectrumIndexes, numberOfIons);
+  }
+
+  /**
+   * @param mzValues m/z values of the ions in any order
+   * @param spectrumIndexes index of the spectrum of each ion
+   * @param numberOfIons number of ions in the arrays, which may be longer
+   */
+  public FragmentIonIndex(double mzValues[], int spectrumIndexes[], int numberOfIons) {
+    sortedMZ = new double[numberOfIons];
+    spectrumOfIon = new int[numberOfIons];
+    sort(mzValues, spectrumIndexes, numberOfIons);
+  }
+
+  private void sort(double mzValues[], int spectrumIndexes[], int numberOfIons) {
+    final int order[] = new int[numberOfIons];
+    for (int i = 0; i < numberOfIons; i++)
+      order[i] = i;
+    IntArrays.mergeSort(order, (a, b) -> Double.compare(mzValues[a], mzValues[b]));
+
+    for (int i = 0; i < numberOfIons; i++) {
+      sortedMZ[i] = mzValues[order[i]];
+      spectrumOfIon[i] = spectrumIndexes[order[i]];
+    }
+  }
+
+  /**
+   * Counts for every candidate spectrum the ions of the query which have at least one ion of the
+   * spectrum within their m/z range. If every query ion is aligned to at most one ion, a
+   * comparison with the spectrum cannot have more matched ions than this count.
+   * 
+   * @param query query spectrum
+   * @param mzRange closed m/z range of the indexed ions which can match a query m/z
+   * @param candidates range of spectrum indexes, lower endpoint inclusive and upper exclusive
+   * @return number of shared ions by spectrum index minus the first candidate index
+   */
+  public int[] countSharedIons(DataPoint query[], DoubleFunction<Range<Double>> mzRange,
+      Range<Integer> candidates) {
+    return countMatches(query, mzRange, candidates, false);
+  }
+
+  /**
+   * Counts for every candidate spectrum the pairs of a query ion and an ion of the spectrum within
+   * the m/z range of the query ion. A query ion matching several ions counts once for each of them.
+   * 
+   * @param query query spectrum
+   * @param mzRange closed m/z range of the indexed ions which can match a query m/z
+   * @param candidates range of spectrum indexes, lower endpoint inclusive and upper exclusive
+   * @return number of matched ion pairs by spectrum index minus the first candidate index
+   */
+  public int[] countIonPairs(DataPoint query[], DoubleFunction<Range<Double>> mzRange,
+      Range<Integer> candidates) {
+    return countMatches(query, mzRange, candidates, true);
+  }
+
+  private int[] countMatches(DataPoint query[], DoubleFunction<Range<Double>> mzRange,
+      Range<Integer> candidates, boolean countPairs) {
+    final int first = candidates.lowerEndpoint();
+    final int end = candidates.upperEndpoint();
+    final int counts[] = new int[end - first];
+    // last query ion counted for each spectrum
+    final int lastIon[] = countPairs ? null : new int[end - first];
+    if (lastIon != null)
+      Arrays.fill(lastIon, -1);
+
+    for (int q = 0; q < query.length; q++) {
+      final Range<Double> range = mzRange.apply(query[q].getMZ());
+      final double upper = range.upperEndpoint();
+      for (int i = indexOfFirst(range.lowerEndpoint()); i < sortedMZ.length
+          && sortedMZ[i] <= upper; i++) {
+        final int spectrum = spectrumOfIon[i];
+        if (spectrum < first || spectrum >= end)
+          continue;
+        final int s = spectrum - first;
+        if (countPairs) {
+          counts[s]++;
+        } else if (lastIon[s] != q) {
+          lastIon[s] = q;
+          counts[s]++;
+        }
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @return index of the first ion with m/z greater or equal than mz
+   */
+  private int indexOfFirst(double mz) {
+    int low = 0;
+    int high = sortedMZ.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sortedMZ[mid] < mz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Immutable m/z x RT index over a list of items, e.g. the rows or peaks of a feature list. The m/z
+ * and RT values are copied when the index is built and kept in two orders, sorted by m/z and sorted
+ * by RT, and each query scans only the narrower of the two windows selected by binary search.
+ * Matches are returned in the original list order, so the results are identical to a linear scan
+ * testing Range.contains() on both values.
+ * 
+ * Like Range.contains(), NaN values (e.g. of rows without a feature in a given file) are above all
+ * other values: they are never inside a range with an upper bound, but they are inside unbounded
+ * ranges such as Range.all().
+ * 
+ * The index does not observe the items it was built from. The indexes of a feature list are kept up
+ * to date by net.sf.mzmine.datamodel.impl.PeakListRangeIndex.
+ */
+public final class MZRTRangeIndex<T> {
+
+  private final T items[];
+  private final double mzValues[], rtValues[];
+
+  private final int mzOrder[], rtOrder[];
+  private final double sortedMZ[], sortedRT[];
+
+  /**
+   * @param items indexed items, in their list order
+   */
+  public MZRTRangeIndex(List<T> items, ToDoubleFunction<? super T> mzFunction,
+      ToDoubleFunction<? super T> rtFunction) {
+    @SuppressWarnings("unchecked")
+    T itemArray[] = (T[]) items.toArray();
+    this.items = itemArray;
+
+    final int n = itemArray.length;
+    mzValues = new double[n];
+    rtValues = new double[n];
+    for (int i = 0; i < n; i++) {
+      mzValues[i] = mzFunction.applyAsDouble(itemArray[i]);
+      rtValues[i] = rtFunction.applyAsDouble(itemArray[i]);
+    }
+
+    mzOrder = sortedOrder(mzValues);
+    rtOrder = sortedOrder(rtValues);
+    sortedMZ = new double[n];
+    sortedRT = new double[n];
+    for (int i = 0; i < n; i++) {
+      sortedMZ[i] = mzValues[mzOrder[i]];
+      sortedRT[i] = rtValues[rtOrder[i]];
+    }
+  }
+
+  /**
+   * Creates an index of the average m/z and RT values of given rows.
+   */
+  public static MZRTRangeIndex<PeakListRow> forRows(PeakListRow rows[]) {
+    return new MZRTRangeIndex<>(Arrays.asList(rows), PeakListRow::getAverageMZ,
+        PeakListRow::getAverageRT);
+  }
+
+  /**
+   * Creates an index of the m/z and RT values of the features of given rows in one raw data file.
+   * Rows without a feature in the file have NaN values, so they are not inside bounded ranges.
+   */
+  public static MZRTRangeIndex<PeakListRow> forFeatures(PeakListRow rows[], RawDataFile dataFile) {
+    return new MZRTRangeIndex<>(Arrays.asList(rows), row -> {
+      Feature peak = row.getPeak(dataFile);
+      return peak == null ? Double.NaN : peak.getMZ();
+    }, row -> {
+      Feature peak = row.getPeak(dataFile);
+      return peak == null ? Double.NaN : peak.getRT();
+    });
+  }
+
+  /**
+   * @return number of indexed items
+   */
+  public int size() {
+    return items.length;
+  }
+
+  /**
+   * @return item at given position in the indexed list
+   */
+  public T getItem(int position) {
+    return items[position];
+  }
+
+  /**
+   * Returns all items inside given ranges, in their list order.
+   */
+  public T[] getItemsInside(Range<Double> mzRange, Range<Double> rtRange, T emptyArray[]) {
+    final int positions[] = getPositionsInside(mzRange, rtRange);
+    T result[] = Arrays.copyOf(emptyArray, positions.length);
+    for (int i = 0; i < positions.length; i++)
+      result[i] = items[positions[i]];
+    return result;
+  }
+
+  /**
+   * Returns the positions in the indexed list of all items inside given ranges, in ascending order.
+   */
+  public int[] getPositionsInside(Range<Double> mzRange, Range<Double> rtRange) {
+
+    final int mzFrom = lowerBound(sortedMZ, mzRange), mzTo = upperBound(sortedMZ, mzRange);
+    final int rtFrom = lowerBound(sortedRT, rtRange), rtTo = upperBound(sortedRT, rtRange);
+    if ((mzFrom >= mzTo) || (rtFrom >= rtTo))
+      return new int[0];
+
+    final int order[];
+    final int from, to;
+    if (mzTo - mzFrom <= rtTo - rtFrom) {
+      order = mzOrder;
+      from = mzFrom;
+      to = mzTo;
+    } else {
+      order = rtOrder;
+      from = rtFrom;
+      to = rtTo;
+    }
+
+    IntArrayList matches = new IntArrayList();
+    for (int i = from; i < to; i++) {
+      final int item = order[i];
+      if (mzRange.contains(mzValues[item]) && rtRange.contains(rtValues[item]))
+        matches.add(item);
+    }
+
+    // Restore the list order of the matches
+    int matchArray[] = matches.toIntArray();
+    IntArrays.quickSort(matchArray);
+    return matchArray;
+  }
+
+  private static int[] sortedOrder(double values[]) {
+    int order[] = new int[values.length];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    // Double.compare() orders like Range.contains() and puts NaN values last
+    IntArrays.mergeSort(order, (a, b) -> Double.compare(values[a], values[b]));
+    return order;
+  }
+
+  /**
+   * Index of the first value which is not below the range.
+   */
+  private static int lowerBound(double sortedValues[], Range<Double> range) {
+    if (!range.hasLowerBound())
+      return 0;
+    final double bound = range.lowerEndpoint();
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (Double.compare(sortedValues[mid], bound) < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * Index following the last value which is not above the range.
+   */
+  private static int upperBound(double sortedValues[], Range<Double> range) {
+    if (!range.hasUpperBound())
+      return sortedValues.length;
+    final double bound = range.upperEndpoint();
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (Double.compare(sortedValues[mid], bound) <= 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+}
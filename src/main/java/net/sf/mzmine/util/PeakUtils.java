@@ -52,9 +52,20 @@ public class PeakUtils {
    * @return String representation of the peak
    */
   public static String peakToString(Feature peak) {
-    StringBuffer buf = new StringBuffer();
     Format mzFormat = MZmineCore.getConfiguration().getMZFormat();
     Format timeFormat = MZmineCore.getConfiguration().getRTFormat();
+    return peakToString(peak, mzFormat, timeFormat);
+  }
+
+  /**
+   * Same as peakToString(Feature), using the given formats instead of those of the configuration,
+   * e.g. copies of them when called from several threads
+   * 
+   * @param peak Peak to be converted to String
+   * @return String representation of the peak
+   */
+  public static String peakToString(Feature peak, Format mzFormat, Format timeFormat) {
+    StringBuffer buf = new StringBuffer();
     buf.append(mzFormat.format(peak.getMZ()));
     buf.append(" m/z @");
     buf.append(timeFormat.format(peak.getRT()));
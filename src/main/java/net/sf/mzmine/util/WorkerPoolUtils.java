@@ -0,0 +1,85 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
+import net.sf.mzmine.main.MZmineCore;
+
+/**
+ * Shared pool of worker threads for the parallel parts of a task, e.g. decoding scans or
+ * formatting rows. The pool has as many threads as the preferences allow concurrently running
+ * tasks (one per processor if set to automatic), no matter how many tasks use it, so tasks running
+ * at the same time do not start their own pools and oversubscribe the processors. Tasks must bound
+ * the work they submit themselves and must not shut the pool down; to stop their work, they cancel
+ * their own futures.
+ */
+public class WorkerPoolUtils {
+
+  private static ThreadPoolExecutor workerPool;
+
+  /**
+   * Returns the shared pool, which is created on first use and resized when the number of threads
+   * in the preferences changed
+   */
+  public static synchronized ExecutorService getWorkerPool() {
+    final int workers = getNumberOfWorkers();
+    if (workerPool == null) {
+      final AtomicInteger workerNumber = new AtomicInteger();
+      workerPool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "Worker thread " + workerNumber.incrementAndGet());
+            // the same priority as the task worker threads
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+          });
+    } else if (workerPool.getCorePoolSize() != workers) {
+      // the core size must never exceed the maximum size
+      if (workers > workerPool.getMaximumPoolSize()) {
+        workerPool.setMaximumPoolSize(workers);
+        workerPool.setCorePoolSize(workers);
+      } else {
+        workerPool.setCorePoolSize(workers);
+        workerPool.setMaximumPoolSize(workers);
+      }
+    }
+    return workerPool;
+  }
+
+  /**
+   * Returns the number of threads of the shared pool, the number of concurrently running tasks set
+   * in the preferences
+   */
+  public static int getNumberOfWorkers() {
+    if (MZmineCore.getConfiguration() == null)
+      return Runtime.getRuntime().availableProcessors();
+    NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    return Math.max(1, parameter.getValue());
+  }
+
+}
@@ -67,9 +67,9 @@ public class ADAPInterface {
     NavigableMap<Double, Double> chromatogram = new TreeMap<>();
 
     for (final int scan : peak.getScanNumbers()) {
-      final DataPoint dataPoint = peak.getDataPoint(scan);
-      if (dataPoint != null)
-        chromatogram.put(dataFile.getScan(scan).getRetentionTime(), dataPoint.getIntensity());
+      if (peak.hasDataPoint(scan))
+        chromatogram.put(dataFile.getScan(scan).getRetentionTime(),
+            peak.getDataPointIntensity(scan));
     }
 
     return new Component(null,
@@ -30,7 +30,6 @@ import javax.swing.border.Border;
 
 import com.google.common.collect.Range;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 
 /**
@@ -119,11 +118,7 @@ public class CombinedXICComponent extends JComponent {
       // find one datapoint with maximum intensity in each scan
       for (int i = 0; i < scanNumbers.length; i++) {
 
-        double dataPointIntensity = 0;
-        DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
-
-        if (dataPoint != null)
-          dataPointIntensity = dataPoint.getIntensity();
+        double dataPointIntensity = peak.getDataPointIntensity(scanNumbers[i]);
 
         // get retention time (X value)
         double retentionTime = peak.getDataFile().getScan(scanNumbers[i]).getRetentionTime();
@@ -30,7 +30,6 @@ import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 import javax.swing.border.Border;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 
@@ -105,11 +104,7 @@ public class PeakXICComponent extends JComponent {
     // find one datapoint with maximum intensity in each scan
     for (int i = 0; i < scanNumbers.length; i++) {
 
-      double dataPointIntensity = 0;
-      DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
-
-      if (dataPoint != null)
-        dataPointIntensity = dataPoint.getIntensity();
+      double dataPointIntensity = peak.getDataPointIntensity(scanNumbers[i]);
 
       // get retention time (X value)
       double retentionTime = dataFile.getScan(scanNumbers[i]).getRetentionTime();
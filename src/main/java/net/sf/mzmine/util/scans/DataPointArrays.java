@@ -0,0 +1,114 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.util.scans;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.MassSpectrum;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * m/z and intensity values of a spectrum as primitive arrays, for comparisons which score many
+ * pairs of spectra. The arrays are created once per spectrum, not once per compared pair. The
+ * DataPoint instances are only created on request, e.g., for the aligned signals of a match, in the
+ * same order as the arrays.
+ */
+public class DataPointArrays {
+
+  private final double mzValues[], intensityValues[];
+  private DataPoint dataPoints[];
+
+  /**
+   * Copies the values of given data points, which are kept for {@link #getDataPoints()}
+   */
+  public DataPointArrays(@Nonnull DataPoint dataPoints[]) {
+    this.dataPoints = dataPoints;
+    mzValues = new double[dataPoints.length];
+    intensityValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+  }
+
+  private DataPointArrays(double mzValues[], double intensityValues[]) {
+    this.mzValues = mzValues;
+    this.intensityValues = intensityValues;
+  }
+
+  /**
+   * Reads the values of a mass list without creating DataPoint instances
+   */
+  public static @Nonnull DataPointArrays of(@Nonnull MassList massList) {
+    final int n = massList.getNumberOfDataPoints();
+    double mzValues[] = new double[n];
+    double intensityValues[] = new double[n];
+    final int read = massList.getDataPoints(mzValues, intensityValues);
+    return new DataPointArrays(trim(mzValues, read), trim(intensityValues, read));
+  }
+
+  /**
+   * Reads the values of a spectrum without creating DataPoint instances
+   */
+  public static @Nonnull DataPointArrays of(@Nonnull MassSpectrum spectrum) {
+    final int n = spectrum.getNumberOfDataPoints();
+    double mzValues[] = new double[n];
+    double intensityValues[] = new double[n];
+    final int read = spectrum.getDataPoints(mzValues, intensityValues);
+    return new DataPointArrays(trim(mzValues, read), trim(intensityValues, read));
+  }
+
+  private static double[] trim(double values[], int length) {
+    return length == values.length ? values : Arrays.copyOf(values, length);
+  }
+
+  public int getNumberOfDataPoints() {
+    return mzValues.length;
+  }
+
+  /**
+   * @return m/z values, must not be modified
+   */
+  public double[] getMZValues() {
+    return mzValues;
+  }
+
+  /**
+   * @return intensity values, must not be modified
+   */
+  public double[] getIntensityValues() {
+    return intensityValues;
+  }
+
+  /**
+   * @return data points in the order of the arrays, created by the first call if this instance
+   *         was not created from data points
+   */
+  public synchronized @Nonnull DataPoint[] getDataPoints() {
+    if (dataPoints == null) {
+      DataPoint newDataPoints[] = new DataPoint[mzValues.length];
+      for (int i = 0; i < newDataPoints.length; i++)
+        newDataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+      dataPoints = newDataPoints;
+    }
+    return dataPoints;
+  }
+
+}
@@ -35,7 +35,8 @@ public class ScanAlignment {
    * @return List of aligned data points
    */
   public static List<DataPoint[]> align(MZTolerance mzTol, DataPoint[] a, DataPoint[] b) {
-    // sort by intensity
+    // sort a copy by intensity, a may be shared (e.g., the data points of a mass list)
+    a = a.clone();
     Arrays.sort(a, sorter);
 
     // sort b
@@ -58,6 +59,49 @@ public class ScanAlignment {
     return list;
   }
 
+  /**
+   * Same alignment as {@link #align(MZTolerance, DataPoint[], DataPoint[])} for spectra given as
+   * m/z and intensity arrays. No DataPoint instances are created and the arrays are not modified.
+   * 
+   * @return Aligned index pairs in the same order as the list returned by align(), flattened:
+   *         element 2*i is the index in a and element 2*i+1 the index in b of the i-th pair, -1
+   *         marks a missing data point
+   */
+  public static int[] alignIndices(MZTolerance mzTol, double[] mzA, double[] intensityA,
+      double[] mzB, double[] intensityB) {
+    // sort both by intensity
+    int[] sortedA = DataPointSorter.sortIndices(mzA, intensityA, mzA.length,
+        SortingProperty.Intensity, SortingDirection.Descending);
+    int[] sortedB = DataPointSorter.sortIndices(mzB, intensityB, mzB.length,
+        SortingProperty.Intensity, SortingDirection.Descending);
+    boolean[] matchedB = new boolean[mzB.length];
+
+    int[] pairs = new int[2 * (mzA.length + mzB.length)];
+    int n = 0;
+    for (int ia : sortedA) {
+      // first unmatched signal of b within mzTol, or -1
+      int match = -1;
+      for (int ib : sortedB) {
+        if (!matchedB[ib] && mzTol.checkWithinTolerance(mzA[ia], mzB[ib])) {
+          matchedB[ib] = true;
+          match = ib;
+          break;
+        }
+      }
+      pairs[n++] = ia;
+      pairs[n++] = match;
+    }
+
+    // all remaining signals of b
+    for (int ib : sortedB) {
+      if (!matchedB[ib]) {
+        pairs[n++] = -1;
+        pairs[n++] = ib;
+      }
+    }
+    return Arrays.copyOf(pairs, n);
+  }
+
   /**
    * get overlapping MZ range (lowerBound - mzTol and upperbound+ mzTol)
    * 
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.util.scans;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Precomputed image of a set of scans: the maximum intensity of all data points in cells of a
+ * retention time x m/z grid. Level 0 has at most {@link #MAX_BINS} cells per axis (and never more
+ * retention time cells than scans), every further level halves both axes by max pooling. Viewers
+ * use the coarsest level that is still finer than their pixels instead of reading every scan.
+ * 
+ * Pyramids are built once per raw data file and scan selection, kept in memory as a soft reference
+ * and stored in a temporary file (mzmine*.raster), so they can be restored without reading the
+ * scans again after the memory was reclaimed. They live as long as the raw data file: closing a
+ * viewer keeps them for the next one, {@link #release(RawDataFile)} deletes them when the file is
+ * removed from the project.
+ * 
+ * The TIC and base peak plots do not use pyramids. A max raster cannot give the summed intensities
+ * of a TIC, and its cells do not end at the m/z range of a base peak plot, so both keep reading
+ * the exact values from the scans (or the scan metadata for the full m/z range).
+ */
+public class ScanRasterPyramid {
+
+  public static final int MAX_BINS = 2048;
+
+  // stop pooling when both axes are at most this small
+  private static final int MIN_BINS = 16;
+
+  private static final int FILE_MAGIC = 0x4D5A5250;
+  private static final int FILE_VERSION = 1;
+
+  private static final Logger logger = Logger.getLogger(ScanRasterPyramid.class.getName());
+
+  private static final Map<RawDataFile, Map<IntArrayList, CacheEntry>> cache = new WeakHashMap<>();
+
+  private static class CacheEntry {
+    SoftReference<ScanRasterPyramid> pyramid;
+    File file;
+  }
+
+  private final Range<Double> rtRange, mzRange;
+  private final int rtBins[], mzBins[];
+  // max intensities per level, index rtBin * mzBins + mzBin
+  private final float intensities[][];
+  // retention time cells which contain at least one scan
+  private final boolean rtOccupied[][];
+
+  private ScanRasterPyramid(Range<Double> rtRange, Range<Double> mzRange, float level0[],
+      boolean occupied0[], int rtBins0, int mzBins0) {
+    this.rtRange = rtRange;
+    this.mzRange = mzRange;
+
+    int levels = 1;
+    for (int r = rtBins0, m = mzBins0; r > MIN_BINS || m > MIN_BINS; levels++) {
+      r = (r + 1) / 2;
+      m = (m + 1) / 2;
+    }
+
+    rtBins = new int[levels];
+    mzBins = new int[levels];
+    intensities = new float[levels][];
+    rtOccupied = new boolean[levels][];
+    rtBins[0] = rtBins0;
+    mzBins[0] = mzBins0;
+    intensities[0] = level0;
+    rtOccupied[0] = occupied0;
+
+    for (int level = 1; level < levels; level++) {
+      final int prevRT = rtBins[level - 1], prevMZ = mzBins[level - 1];
+      final int r = (prevRT + 1) / 2, m = (prevMZ + 1) / 2;
+      final float prev[] = intensities[level - 1];
+      final float cur[] = new float[r * m];
+      final boolean occupied[] = new boolean[r];
+      for (int i = 0; i < prevRT; i++) {
+        occupied[i / 2] |= rtOccupied[level - 1][i];
+        for (int j = 0; j < prevMZ; j++) {
+          int index = (i / 2) * m + (j / 2);
+          cur[index] = Math.max(cur[index], prev[i * prevMZ + j]);
+        }
+      }
+      rtBins[level] = r;
+      mzBins[level] = m;
+      intensities[level] = cur;
+      rtOccupied[level] = occupied;
+    }
+  }
+
+  public int getLevelCount() {
+    return intensities.length;
+  }
+
+  public Range<Double> getRTRange() {
+    return rtRange;
+  }
+
+  public Range<Double> getMZRange() {
+    return mzRange;
+  }
+
+  /**
+   * Returns the coarsest level whose cells are not wider than the given retention time and m/z
+   * widths, or -1 if even level 0 is too coarse.
+   */
+  public int findLevel(double maxRTWidth, double maxMZWidth) {
+    for (int level = getLevelCount() - 1; level >= 0; level--) {
+      if (getCellWidth(rtRange, rtBins[level]) <= maxRTWidth
+          && getCellWidth(mzRange, mzBins[level]) <= maxMZWidth)
+        return level;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the maximum intensity of all cells of the given level which intersect the given
+   * ranges, 0 if there is no data point in these cells, or -1 if none of the cells contains a scan.
+   */
+  public double getMaxIntensity(int level, Range<Double> rt, Range<Double> mz) {
+    if (!rt.isConnected(rtRange))
+      return -1;
+    final int r = rtBins[level], m = mzBins[level];
+    final int rtFirst = getFirstCell(rtRange, r, rt.lowerEndpoint());
+    final int rtLast = getLastCell(rtRange, r, rt.upperEndpoint());
+    final int mzFirst = getFirstCell(mzRange, m, mz.lowerEndpoint());
+    final int mzLast = mz.isConnected(mzRange) ? getLastCell(mzRange, m, mz.upperEndpoint()) : -1;
+
+    final float values[] = intensities[level];
+    boolean scanFound = false;
+    float max = 0;
+    for (int i = rtFirst; i <= rtLast; i++) {
+      if (!rtOccupied[level][i])
+        continue;
+      scanFound = true;
+      for (int j = mzFirst; j <= mzLast; j++) {
+        if (values[i * m + j] > max)
+          max = values[i * m + j];
+      }
+    }
+    return scanFound ? max : -1;
+  }
+
+  private static double getCellWidth(Range<Double> range, int bins) {
+    return (range.upperEndpoint() - range.lowerEndpoint()) / bins;
+  }
+
+  private static int getCell(Range<Double> range, int bins, double value) {
+    double width = getCellWidth(range, bins);
+    if (width <= 0)
+      return 0;
+    int cell = (int) Math.floor((value - range.lowerEndpoint()) / width);
+    return Math.max(0, Math.min(bins - 1, cell));
+  }
+
+  private static int getFirstCell(Range<Double> range, int bins, double value) {
+    return getCell(range, bins, value);
+  }
+
+  private static int getLastCell(Range<Double> range, int bins, double value) {
+    double width = getCellWidth(range, bins);
+    if (width <= 0)
+      return bins - 1;
+    int cell = (int) Math.ceil((value - range.lowerEndpoint()) / width) - 1;
+    return Math.max(0, Math.min(bins - 1, cell));
+  }
+
+  /**
+   * Returns the cell width level 0 of a pyramid of the given scans would have, without reading any
+   * data points. The first element is the retention time width, the second the m/z width.
+   */
+  public static double[] getFinestCellWidth(@Nonnull Scan scans[]) {
+    if (scans.length == 0)
+      return new double[] {0, 0};
+    Range<Double> rt = ScanUtils.findRtRange(scans);
+    Range<Double> mz = findMZRange(scans);
+    return new double[] {getCellWidth(rt, Math.min(MAX_BINS, scans.length)),
+        getCellWidth(mz, MAX_BINS)};
+  }
+
+  private static Range<Double> findMZRange(Scan scans[]) {
+    Range<Double> mz = null;
+    for (Scan scan : scans) {
+      Range<Double> scanRange = scan.getDataPointMZRange();
+      if (scanRange == null)
+        continue;
+      mz = (mz == null) ? scanRange : mz.span(scanRange);
+    }
+    return mz == null ? Range.singleton(0d) : mz;
+  }
+
+  /**
+   * Returns the pyramid of the given scans of the data file if it was built before, otherwise null.
+   */
+  public static @Nullable ScanRasterPyramid getCached(@Nonnull RawDataFile dataFile,
+      @Nonnull Scan scans[]) {
+    final IntArrayList key = getKey(scans);
+    final CacheEntry entry;
+    synchronized (cache) {
+      Map<IntArrayList, CacheEntry> fileCache = cache.get(dataFile);
+      entry = fileCache == null ? null : fileCache.get(key);
+    }
+    if (entry == null)
+      return null;
+
+    ScanRasterPyramid pyramid = entry.pyramid.get();
+    if (pyramid == null && entry.file != null) {
+      try {
+        pyramid = readFile(entry.file);
+        entry.pyramid = new SoftReference<>(pyramid);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not read raster file " + entry.file, e);
+        entry.file.delete();
+        entry.file = null;
+      }
+    }
+    return pyramid;
+  }
+
+  /**
+   * Returns the pyramid of the given scans of the data file, building it from the data points of
+   * all scans if it is not cached yet. The progress runnable is called after each scan. Returns
+   * null if the build was canceled.
+   */
+  public static @Nullable ScanRasterPyramid getOrBuild(@Nonnull RawDataFile dataFile,
+      @Nonnull Scan scans[], @Nonnull BooleanSupplier isCanceled, @Nonnull Runnable progress) {
+    ScanRasterPyramid pyramid = getCached(dataFile, scans);
+    if (pyramid != null)
+      return pyramid;
+
+    pyramid = build(scans, isCanceled, progress);
+    if (pyramid == null)
+      return null;
+
+    CacheEntry entry = new CacheEntry();
+    entry.pyramid = new SoftReference<>(pyramid);
+    try {
+      entry.file = File.createTempFile("mzmine", ".raster");
+      entry.file.deleteOnExit();
+      pyramid.writeFile(entry.file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not store raster of " + dataFile, e);
+      if (entry.file != null)
+        entry.file.delete();
+      entry.file = null;
+    }
+
+    synchronized (cache) {
+      CacheEntry old =
+          cache.computeIfAbsent(dataFile, f -> new HashMap<>()).put(getKey(scans), entry);
+      if (old != null && old.file != null)
+        old.file.delete();
+    }
+    return pyramid;
+  }
+
+  /**
+   * Removes all pyramids of the data file from the cache and deletes their temporary files, called
+   * when the data file is removed from the project. Viewers which still hold a pyramid can keep
+   * using it.
+   */
+  public static void release(@Nonnull RawDataFile dataFile) {
+    final Map<IntArrayList, CacheEntry> fileCache;
+    synchronized (cache) {
+      fileCache = cache.remove(dataFile);
+    }
+    if (fileCache == null)
+      return;
+    for (CacheEntry entry : fileCache.values()) {
+      if (entry.file != null)
+        entry.file.delete();
+    }
+  }
+
+  private static IntArrayList getKey(Scan scans[]) {
+    IntArrayList key = new IntArrayList(scans.length);
+    for (Scan scan : scans)
+      key.add(scan.getScanNumber());
+    return key;
+  }
+
+  private static ScanRasterPyramid build(Scan scans[], BooleanSupplier isCanceled,
+      Runnable progress) {
+    final Range<Double> rt =
+        scans.length == 0 ? Range.singleton(0d) : ScanUtils.findRtRange(scans);
+    final Range<Double> mz = findMZRange(scans);
+    final int r = Math.max(1, Math.min(MAX_BINS, scans.length));
+    final int m = MAX_BINS;
+    final float level0[] = new float[r * m];
+    final boolean occupied[] = new boolean[r];
+
+    for (Scan scan : scans) {
+      if (isCanceled.getAsBoolean())
+        return null;
+      final int i = getCell(rt, r, scan.getRetentionTime());
+      occupied[i] = true;
+      for (DataPoint dp : scan.getDataPoints()) {
+        int index = i * m + getCell(mz, m, dp.getMZ());
+        if (dp.getIntensity() > level0[index])
+          level0[index] = (float) dp.getIntensity();
+      }
+      progress.run();
+    }
+    return new ScanRasterPyramid(rt, mz, level0, occupied, r, m);
+  }
+
+  private void writeFile(File file) throws IOException {
+    final int r = rtBins[0], m = mzBins[0];
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES + 4 * Double.BYTES + r);
+      header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(r).putInt(m);
+      header.putDouble(rtRange.lowerEndpoint()).putDouble(rtRange.upperEndpoint());
+      header.putDouble(mzRange.lowerEndpoint()).putDouble(mzRange.upperEndpoint());
+      for (boolean occupied : rtOccupied[0])
+        header.put((byte) (occupied ? 1 : 0));
+      // cast for Java 8, where flip() is not overridden by ByteBuffer
+      ((Buffer) header).flip();
+      writeFully(channel, header);
+
+      // only level 0 is stored, the coarser levels are pooled again when reading
+      ByteBuffer values = ByteBuffer.allocate(r * m * Float.BYTES);
+      values.asFloatBuffer().put(intensities[0]);
+      writeFully(channel, values);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  private static ScanRasterPyramid readFile(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES + 4 * Double.BYTES);
+      readFully(channel, header);
+      if (header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION)
+        throw new IOException("Unsupported raster file " + file);
+      final int r = header.getInt(), m = header.getInt();
+      Range<Double> rt = Range.closed(header.getDouble(), header.getDouble());
+      Range<Double> mz = Range.closed(header.getDouble(), header.getDouble());
+
+      ByteBuffer occupiedBuffer = ByteBuffer.allocate(r);
+      readFully(channel, occupiedBuffer);
+      boolean occupied[] = new boolean[r];
+      for (int i = 0; i < r; i++)
+        occupied[i] = occupiedBuffer.get() != 0;
+
+      ByteBuffer values = ByteBuffer.allocate(r * m * Float.BYTES);
+      readFully(channel, values);
+      float level0[] = new float[r * m];
+      values.asFloatBuffer().get(level0);
+      return new ScanRasterPyramid(rt, mz, level0, occupied, r, m);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0)
+        throw new IOException("Unexpected end of raster file");
+    }
+    ((Buffer) buffer).flip();
+  }
+
+}
@@ -533,24 +533,21 @@ public class ScanUtils {
     int bestFragmentScan = -1;
     double topBasePeak = 0;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
+    int[] fragmentScanNumbers = dataFile.getFragmentScanNumbers(rtRange, mzRange);
 
     for (int number : fragmentScanNumbers) {
 
       Scan scan = dataFile.getScan(number);
 
-      if (mzRange.contains(scan.getPrecursorMZ())) {
+      DataPoint basePeak = scan.getHighestDataPoint();
 
-        DataPoint basePeak = scan.getHighestDataPoint();
-
-        // If there is no peak in the scan, basePeak can be null
-        if (basePeak == null)
-          continue;
+      // If there is no peak in the scan, basePeak can be null
+      if (basePeak == null)
+        continue;
 
-        if (basePeak.getIntensity() > topBasePeak) {
-          bestFragmentScan = scan.getScanNumber();
-          topBasePeak = basePeak.getIntensity();
-        }
+      if (basePeak.getIntensity() > topBasePeak) {
+        bestFragmentScan = scan.getScanNumber();
+        topBasePeak = basePeak.getIntensity();
       }
 
     }
@@ -571,24 +568,7 @@ public class ScanUtils {
     assert rtRange != null;
     assert mzRange != null;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-    ArrayList<Integer> fragmentScanNumbersInMZRange = new ArrayList<Integer>();
-
-    for (int number : fragmentScanNumbers) {
-
-      Scan scan = dataFile.getScan(number);
-
-      if (mzRange.contains(scan.getPrecursorMZ())) {
-        fragmentScanNumbersInMZRange.add(number);
-      }
-    }
-    int[] resultScans = new int[fragmentScanNumbersInMZRange.size()];
-    if (resultScans.length > 0) {
-      resultScans = fragmentScanNumbersInMZRange.stream().mapToInt(i -> i).toArray();
-    } else {
-      resultScans = new int[] {};
-    }
-    return resultScans;
+    return dataFile.getFragmentScanNumbers(rtRange, mzRange);
   }
 
   /**
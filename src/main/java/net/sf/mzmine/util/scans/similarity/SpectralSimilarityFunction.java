@@ -24,6 +24,7 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.scans.DataPointArrays;
 import net.sf.mzmine.util.scans.ScanAlignment;
 import net.sf.mzmine.util.scans.similarity.impl.composite.CompositeCosineSpectralSimilarity;
 import net.sf.mzmine.util.scans.similarity.impl.cosine.WeightedCosineSpectralSimilarity;
@@ -55,6 +56,25 @@ public abstract class SpectralSimilarityFunction implements MZmineModule {
   public abstract SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol,
       int minMatch, DataPoint[] library, DataPoint[] query);
 
+  /**
+   * Same as {@link #getSimilarity(ParameterSet, MZTolerance, int, DataPoint[], DataPoint[])} for
+   * spectra which are compared many times, so their values are only read once. Override to score
+   * on the primitive arrays.
+   * 
+   * @param parameters
+   * @param mzTol
+   * @param minMatch minimum overlap in signals
+   * @param library
+   * @param query
+   * @return A spectra similarity if all requirements were met - otherwise null
+   */
+  @Nullable
+  public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol,
+      int minMatch, DataPointArrays library, DataPointArrays query) {
+    return getSimilarity(parameters, mzTol, minMatch, library.getDataPoints(),
+        query.getDataPoints());
+  }
+
 
   /**
    * Align two mass lists. Override if alignement is changed in a specific spectral similarity
@@ -18,13 +18,14 @@
 
 package net.sf.mzmine.util.scans.similarity.impl.cosine;
 
+import java.util.ArrayList;
 import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.util.maths.similarity.Similarity;
+import net.sf.mzmine.util.scans.DataPointArrays;
 import net.sf.mzmine.util.scans.ScanAlignment;
 import net.sf.mzmine.util.scans.similarity.SpectralSimilarity;
 import net.sf.mzmine.util.scans.similarity.SpectralSimilarityFunction;
@@ -44,6 +45,17 @@ public class WeightedCosineSpectralSimilarity extends SpectralSimilarityFunction
   @Override
   public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol, int minMatch,
       DataPoint[] library, DataPoint[] query) {
+    return getSimilarity(parameters, mzTol, minMatch, new DataPointArrays(library),
+        new DataPointArrays(query));
+  }
+
+  /**
+   * Scores on the primitive arrays - most pairs of spectra do not match, so the list of aligned
+   * data points is only created for the result, from the already aligned indices
+   */
+  @Override
+  public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol, int minMatch,
+      DataPointArrays library, DataPointArrays query) {
     Weights weights =
         parameters.getParameter(WeightedCosineSpectralSimilarityParameters.weight).getValue();
     double minCos =
@@ -51,22 +63,55 @@ public class WeightedCosineSpectralSimilarity extends SpectralSimilarityFunction
     boolean removeUnmatched = parameters
         .getParameter(WeightedCosineSpectralSimilarityParameters.removeUnmatched).getValue();
 
-    // align
-    List<DataPoint[]> aligned = alignDataPoints(mzTol, library, query);
-    // removes all signals which were not found in both masslists
-    if (removeUnmatched)
-      aligned = removeUnaligned(aligned);
-    // overlapping within mass tolerance
-    int overlap = calcOverlap(aligned);
+    double[] libraryMZ = library.getMZValues();
+    double[] libraryIntensity = library.getIntensityValues();
+    double[] queryMZ = query.getMZValues();
+    double[] queryIntensity = query.getIntensityValues();
+    int[] pairs =
+        ScanAlignment.alignIndices(mzTol, libraryMZ, libraryIntensity, queryMZ, queryIntensity);
+
+    // overlapping within mass tolerance and weighted cosine (same summation order as
+    // ScanAlignment.toIntensityMatrixWeighted and Similarity.COSINE)
+    int overlap = 0;
+    double dot = 0, normLibrary = 0, normQuery = 0;
+    for (int p = 0; p < pairs.length; p += 2) {
+      int ia = pairs[p];
+      int ib = pairs[p + 1];
+      if (ia != -1 && ib != -1)
+        overlap++;
+      else if (removeUnmatched)
+        // removes all signals which were not found in both masslists
+        continue;
+
+      double a = ia == -1 ? 0
+          : Math.pow(libraryIntensity[ia], weights.getIntensity())
+              * Math.pow(libraryMZ[ia], weights.getMz());
+      double b = ib == -1 ? 0
+          : Math.pow(queryIntensity[ib], weights.getIntensity())
+              * Math.pow(queryMZ[ib], weights.getMz());
+      dot += a * b;
+      normLibrary += a * a;
+      normQuery += b * b;
+    }
 
     if (overlap >= minMatch) {
       // weighted cosine
-      double[][] diffArray =
-          ScanAlignment.toIntensityMatrixWeighted(aligned, weights.getIntensity(), weights.getMz());
-      double diffCosine = Similarity.COSINE.calc(diffArray);
-      if (diffCosine >= minCos)
-        return new SpectralSimilarity(getName(), diffCosine, overlap, library, query, aligned);
-      else
+      double diffCosine = dot / (Math.sqrt(normLibrary) * Math.sqrt(normQuery));
+      if (diffCosine >= minCos) {
+        DataPoint[] libraryDPs = library.getDataPoints();
+        DataPoint[] queryDPs = query.getDataPoints();
+        List<DataPoint[]> aligned = new ArrayList<>(pairs.length / 2);
+        for (int p = 0; p < pairs.length; p += 2) {
+          int ia = pairs[p];
+          int ib = pairs[p + 1];
+          if (removeUnmatched && (ia == -1 || ib == -1))
+            continue;
+          aligned.add(new DataPoint[] {ia == -1 ? null : libraryDPs[ia],
+              ib == -1 ? null : queryDPs[ib]});
+        }
+        return new SpectralSimilarity(getName(), diffCosine, overlap, libraryDPs, queryDPs,
+            aligned);
+      } else
         return null;
     }
     return null;
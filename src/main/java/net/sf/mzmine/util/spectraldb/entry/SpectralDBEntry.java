@@ -21,11 +21,13 @@ package net.sf.mzmine.util.spectraldb.entry;
 import java.util.Map;
 import java.util.Optional;
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.util.scans.DataPointArrays;
 
 public class SpectralDBEntry {
 
   private final Map<DBEntryField, Object> fields;
   private final DataPoint[] dps;
+  private volatile DataPointArrays dataPointArrays;
 
   public SpectralDBEntry(Map<DBEntryField, Object> fields, DataPoint[] dps) {
     this.fields = fields;
@@ -44,4 +46,16 @@ public class SpectralDBEntry {
     return dps;
   }
 
+  /**
+   * The data points as primitive arrays, created once for all comparisons with this entry
+   */
+  public DataPointArrays getDataPointArrays() {
+    DataPointArrays arrays = dataPointArrays;
+    if (arrays == null) {
+      arrays = new DataPointArrays(dps);
+      dataPointArrays = arrays;
+    }
+    return arrays;
+  }
+
 }
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.spectraldb.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+
+/**
+ * Parses a spectral library only once and keeps a compiled copy in a subdirectory of the temporary
+ * directory. The compiled file is keyed by the path of the library file and stores the size,
+ * modification time and SHA-256 hash of the library. The hash is only computed if the size matches
+ * but the modification time does not, so unchanged libraries are not read at all. The entries are
+ * sorted by precursor m/z (entries without precursor m/z last) and the peaks are stored as
+ * primitive arrays, so later searches read it through a memory map instead of parsing the library
+ * again. {@link #loadLibrary(AbstractTask, File)} returns the whole sorted library, which searches
+ * share instead of receiving the entries in chunks; parse() pushes the entries to the
+ * {@link LibraryEntryProcessor} in this sorted order.
+ * 
+ * File layout: header (magic, version, library size, modification time and hash, field names), the
+ * entries (field count, fields, peak count, m/z values, intensities, CRC-32 of the entry), the
+ * entry offsets and a trailer (entry count, offset of the entry offsets, magic).
+ * 
+ * The least recently used compiled libraries are deleted when the directory exceeds
+ * {@link #MAX_CACHE_DIRECTORY_SIZE}.
+ */
+public class CachedLibraryParser extends SpectralDBParser {
+
+  private static final Logger logger = Logger.getLogger(CachedLibraryParser.class.getName());
+
+  private static final int MAGIC = 0x4D5A534C; // "MZSL"
+  private static final int VERSION = 2;
+  private static final int HASH_SIZE = 32;
+  private static final int LIBRARY_HEADER_SIZE = 4 + 4 + 8 + 8 + HASH_SIZE;
+  // position of the library modification time in the header
+  private static final long LIBRARY_MODIFIED_POSITION = 4 + 4 + 8;
+  private static final int TRAILER_SIZE = 4 + 8 + 4;
+
+  // value types of the fields
+  private static final byte TYPE_STRING = 0;
+  private static final byte TYPE_DOUBLE = 1;
+  private static final byte TYPE_FLOAT = 2;
+  private static final byte TYPE_INTEGER = 3;
+
+  // entries are read through mapped windows of this size (or larger for huge entries)
+  private static final long MAPPED_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  // entries pushed at once by the parser of the library format while it is compiled
+  private static final int PARSER_BUFFER_ENTRIES = 1000;
+
+  private static final String CACHE_DIRECTORY_NAME = "mzmine_spectral_libraries";
+  private static final String CACHE_FILE_PREFIX = "library_";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final long MAX_CACHE_DIRECTORY_SIZE = 2L * 1024 * 1024 * 1024;
+  // temporary files older than this were left by a crashed run
+  private static final long STALE_TEMP_FILE_AGE = 24L * 60 * 60 * 1000;
+
+  private static final Comparator<SpectralDBEntry> PRECURSOR_MZ_ORDER =
+      Comparator.comparing(SpectralDBEntry::getPrecursorMZ,
+          Comparator.nullsLast(Comparator.naturalOrder()));
+
+  public CachedLibraryParser(int bufferEntries, LibraryEntryProcessor processor) {
+    super(bufferEntries, processor);
+  }
+
+  /**
+   * Pushes the entries of the compiled library, see {@link #loadLibrary(AbstractTask, File)}
+   */
+  @Override
+  public boolean parse(AbstractTask mainTask, File dataBaseFile)
+      throws UnsupportedFormatException, IOException {
+    final CompiledSpectralLibrary library = loadLibrary(mainTask, dataBaseFile);
+    if (library == null)
+      return false;
+    for (int i = 0; i < library.size(); i++) {
+      if (mainTask.isCanceled())
+        return false;
+      addLibraryEntry(library.getEntry(i));
+    }
+    finish();
+    return true;
+  }
+
+  /**
+   * Loads a spectral library, compiling it first if there is no up-to-date compiled file. All
+   * entries of the compiled file are checked once while it is opened, so a damaged file is
+   * compiled again before any entry is used.
+   * 
+   * @return the library, or null if the task was canceled or the library could not be parsed
+   */
+  public static CompiledSpectralLibrary loadLibrary(AbstractTask mainTask, File dataBaseFile)
+      throws UnsupportedFormatException, IOException {
+    final File cacheFile = getCacheFile(dataBaseFile);
+    // size and modification time before the library is read
+    final long librarySize = dataBaseFile.length();
+    final long libraryModified = dataBaseFile.lastModified();
+
+    if (cacheFile.exists()) {
+      try {
+        if (isUpToDate(cacheFile, dataBaseFile, librarySize, libraryModified)) {
+          logger.info("Reading compiled spectral library " + cacheFile);
+          // mark as recently used, see trimCacheDirectory()
+          cacheFile.setLastModified(System.currentTimeMillis());
+          return openCache(mainTask, cacheFile);
+        }
+      } catch (IOException | RuntimeException e) {
+        // damaged, compile it again
+        logger.log(Level.WARNING, "Cannot read compiled spectral library " + cacheFile, e);
+      }
+      cacheFile.delete();
+    }
+
+    final byte[] libraryHash = hashFile(dataBaseFile);
+
+    // parse the library once and collect all entries
+    final List<SpectralDBEntry> entries = new ArrayList<>();
+    AutoLibraryParser parser = new AutoLibraryParser(PARSER_BUFFER_ENTRIES,
+        (list, alreadyProcessed) -> entries.addAll(list));
+    if (!parser.parse(mainTask, dataBaseFile) || mainTask.isCanceled())
+      return null;
+
+    entries.sort(PRECURSOR_MZ_ORDER);
+    try {
+      writeCache(entries, cacheFile, librarySize, libraryModified, libraryHash);
+      logger.info("Compiled spectral library " + dataBaseFile + " to " + cacheFile);
+      trimCacheDirectory(cacheFile);
+      return openCache(mainTask, cacheFile);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot use compiled spectral library " + cacheFile, e);
+    }
+    // keep the parsed entries
+    return mainTask.isCanceled() ? null : new CompiledSpectralLibrary(entries);
+  }
+
+  /**
+   * The compiled library file for a library file, named by the hash of its path
+   */
+  private static File getCacheFile(File dataBaseFile) throws IOException {
+    final String path = dataBaseFile.getCanonicalPath();
+    final String name = CACHE_FILE_PREFIX
+        + toHex(createDigest().digest(path.getBytes(StandardCharsets.UTF_8))) + ".bin";
+    final File directory = new File(System.getProperty("java.io.tmpdir"), CACHE_DIRECTORY_NAME);
+    // a failure shows up when the compiled file is written
+    directory.mkdirs();
+    return new File(directory, name);
+  }
+
+  private static MessageDigest createDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static byte[] hashFile(File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      int read;
+      while ((read = in.read(buffer)) != -1)
+        digest.update(buffer, 0, read);
+    }
+    return digest.digest();
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes)
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  /**
+   * Checks if the compiled file was compiled from the current library content. The library is
+   * only hashed if its size matches and its modification time does not. If the hash matches, the
+   * new modification time is stored, so the next check is fast again.
+   */
+  private static boolean isUpToDate(File cacheFile, File dataBaseFile, long librarySize,
+      long libraryModified) throws IOException {
+    try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(LIBRARY_HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0)
+          throw new IOException("Truncated file");
+      }
+      ((Buffer) header).flip();
+      if (header.getInt() != MAGIC || header.getInt() != VERSION
+          || header.getLong() != librarySize)
+        return false;
+      if (header.getLong() == libraryModified)
+        return true;
+
+      byte[] storedHash = new byte[HASH_SIZE];
+      header.get(storedHash);
+      if (!Arrays.equals(storedHash, hashFile(dataBaseFile)))
+        return false;
+      ByteBuffer modified = ByteBuffer.allocate(8).putLong(libraryModified);
+      ((Buffer) modified).flip();
+      channel.write(modified, LIBRARY_MODIFIED_POSITION);
+      return true;
+    }
+  }
+
+  private static void writeCache(List<SpectralDBEntry> entries, File cacheFile, long librarySize,
+      long libraryModified, byte[] libraryHash) throws IOException {
+    final DBEntryField[] fields = DBEntryField.values();
+    final long[] offsets = new long[entries.size() + 1];
+
+    File tmpFile = File.createTempFile(CACHE_FILE_PREFIX, TEMP_FILE_SUFFIX,
+        cacheFile.getAbsoluteFile().getParentFile());
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+        // header
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(librarySize);
+        out.writeLong(libraryModified);
+        out.write(libraryHash);
+        out.writeInt(fields.length);
+        for (DBEntryField f : fields)
+          out.writeUTF(f.name());
+        long position = out.size();
+
+        // entries are serialized one by one to know their length
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < entries.size(); i++) {
+          offsets[i] = position;
+          entryBytes.reset();
+          writeEntry(entryOut, entries.get(i));
+          entryOut.flush();
+          entryBytes.writeTo(out);
+          crc.reset();
+          crc.update(entryBytes.toByteArray());
+          out.writeInt((int) crc.getValue());
+          position += entryBytes.size() + 4;
+        }
+        offsets[entries.size()] = position;
+
+        // entry offsets and trailer
+        for (long offset : offsets)
+          out.writeLong(offset);
+        out.writeInt(entries.size());
+        out.writeLong(position);
+        out.writeInt(MAGIC);
+      }
+
+      try {
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Deletes the least recently used compiled libraries while the directory is larger than
+   * {@link #MAX_CACHE_DIRECTORY_SIZE}, and temporary files left by crashed runs. The given file is
+   * always kept.
+   */
+  private static void trimCacheDirectory(File keep) {
+    final File[] files = keep.getAbsoluteFile().getParentFile().listFiles();
+    if (files == null)
+      return;
+
+    final long now = System.currentTimeMillis();
+    List<File> compiled = new ArrayList<>();
+    for (File f : files) {
+      if (!f.getName().startsWith(CACHE_FILE_PREFIX))
+        continue;
+      if (!f.getName().endsWith(TEMP_FILE_SUFFIX))
+        compiled.add(f);
+      else if (now - f.lastModified() > STALE_TEMP_FILE_AGE)
+        f.delete();
+    }
+
+    // most recently used first
+    compiled.sort(Comparator.comparingLong(File::lastModified).reversed());
+    long totalSize = 0;
+    for (File f : compiled) {
+      final long length = f.length();
+      if (!f.equals(keep) && totalSize + length > MAX_CACHE_DIRECTORY_SIZE) {
+        logger.info("Deleting least recently used compiled spectral library " + f);
+        f.delete();
+      } else {
+        totalSize += length;
+      }
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, SpectralDBEntry entry) throws IOException {
+    List<DBEntryField> present = new ArrayList<>();
+    for (DBEntryField f : DBEntryField.values())
+      if (entry.getField(f).isPresent())
+        present.add(f);
+
+    out.writeShort(present.size());
+    for (DBEntryField f : present) {
+      Object value = entry.getField(f).get();
+      out.writeShort(f.ordinal());
+      if (value instanceof Double) {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Float) {
+        out.writeByte(TYPE_FLOAT);
+        out.writeFloat((Float) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(TYPE_INTEGER);
+        out.writeInt((Integer) value);
+      } else {
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(TYPE_STRING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+
+    DataPoint[] dps = entry.getDataPoints();
+    out.writeInt(dps.length);
+    for (DataPoint dp : dps)
+      out.writeDouble(dp.getMZ());
+    for (DataPoint dp : dps)
+      out.writeDouble(dp.getIntensity());
+  }
+
+  /**
+   * Maps a compiled file and checks all entries against their CRC-32 and the precursor m/z order.
+   * 
+   * @return the library, or null if the task was canceled
+   */
+  private static CompiledSpectralLibrary openCache(AbstractTask mainTask, File cacheFile)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size < LIBRARY_HEADER_SIZE + TRAILER_SIZE)
+        throw new IOException("Truncated file");
+
+      // trailer
+      ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE,
+          TRAILER_SIZE);
+      final int entryCount = trailer.getInt();
+      final long offsetsPosition = trailer.getLong();
+      if (trailer.getInt() != MAGIC || entryCount < 0
+          || offsetsPosition + 8L * (entryCount + 1) + TRAILER_SIZE != size)
+        throw new IOException("Incomplete file");
+
+      long[] offsets = new long[entryCount + 1];
+      channel.map(FileChannel.MapMode.READ_ONLY, offsetsPosition, 8L * (entryCount + 1))
+          .asLongBuffer().get(offsets);
+      if (offsets[0] < LIBRARY_HEADER_SIZE || offsets[entryCount] != offsetsPosition)
+        throw new IOException("Damaged entry offsets");
+      for (int i = 0; i < entryCount; i++) {
+        if (offsets[i] > offsets[i + 1])
+          throw new IOException("Damaged entry offsets");
+      }
+
+      // header, the field names map the stored ordinals to the current fields
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, offsets[0]);
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        throw new IOException("Unknown file format");
+      ((Buffer) header).position(LIBRARY_HEADER_SIZE);
+      final int fieldCount = header.getInt();
+      if (fieldCount < 0 || fieldCount > Short.MAX_VALUE)
+        throw new IOException("Damaged header");
+      DBEntryField[] fields = new DBEntryField[fieldCount];
+      for (int i = 0; i < fields.length; i++) {
+        String name = readUTF(header);
+        try {
+          fields[i] = DBEntryField.valueOf(name);
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Unknown field " + name);
+        }
+      }
+
+      // entries, each is checked and read within its own bounds. The mappings stay valid after
+      // the channel is closed.
+      List<ByteBuffer> windows = new ArrayList<>();
+      MappedByteBuffer window = null;
+      long windowStart = 0;
+      final int[] entryWindows = new int[entryCount];
+      final int[] entryPositions = new int[entryCount];
+      final int[] entryLengths = new int[entryCount];
+      final double[] precursorMZs = new double[entryCount];
+      CRC32 crc = new CRC32();
+      for (int i = 0; i < entryCount; i++) {
+        if (mainTask.isCanceled())
+          return null;
+        if (window == null || offsets[i + 1] - windowStart > window.capacity()) {
+          windowStart = offsets[i];
+          long length = Math.max(MAPPED_WINDOW_SIZE, offsets[i + 1] - windowStart);
+          window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+              Math.min(length, offsetsPosition - windowStart));
+          windows.add(window);
+        }
+        if (offsets[i + 1] - offsets[i] < 4)
+          throw new IOException("Damaged entry " + i);
+        final int entryStart = (int) (offsets[i] - windowStart);
+        final int entryEnd = (int) (offsets[i + 1] - windowStart) - 4;
+        ((Buffer) window).limit(entryEnd + 4);
+        final int storedCrc = window.getInt(entryEnd);
+        ((Buffer) window).limit(entryEnd);
+        ((Buffer) window).position(entryStart);
+        crc.reset();
+        crc.update(window.duplicate());
+        if ((int) crc.getValue() != storedCrc)
+          throw new IOException("Damaged entry " + i);
+        SpectralDBEntry entry = readEntry(window, fields);
+        if (window.hasRemaining())
+          throw new IOException("Damaged entry " + i);
+
+        Double mz = entry.getPrecursorMZ();
+        precursorMZs[i] = mz == null ? Double.NaN : mz;
+        if (i > 0 && Double.compare(precursorMZs[i - 1], precursorMZs[i]) > 0)
+          throw new IOException("Entry " + i + " is not sorted by precursor m/z");
+        entryWindows[i] = windows.size() - 1;
+        entryPositions[i] = entryStart;
+        entryLengths[i] = entryEnd - entryStart;
+      }
+      return new CompiledSpectralLibrary(windows.toArray(new ByteBuffer[0]), entryWindows,
+          entryPositions, entryLengths, fields, precursorMZs);
+    }
+  }
+
+  /**
+   * Reads one entry. The buffer is limited to the end of the entry, and lengths and field indexes
+   * are checked, so a damaged entry throws an IOException instead of reading beyond its bounds.
+   */
+  static SpectralDBEntry readEntry(ByteBuffer buf, DBEntryField[] fields)
+      throws IOException {
+    Map<DBEntryField, Object> map = new EnumMap<>(DBEntryField.class);
+    int fieldCount = checkLength(buf, buf.getShort(), 3);
+    for (int f = 0; f < fieldCount; f++) {
+      int index = buf.getShort();
+      if (index < 0 || index >= fields.length)
+        throw new IOException("Unknown field index " + index);
+      DBEntryField field = fields[index];
+      byte type = buf.get();
+      switch (type) {
+        case TYPE_DOUBLE:
+          map.put(field, buf.getDouble());
+          break;
+        case TYPE_FLOAT:
+          map.put(field, buf.getFloat());
+          break;
+        case TYPE_INTEGER:
+          map.put(field, buf.getInt());
+          break;
+        case TYPE_STRING:
+          byte[] bytes = new byte[checkLength(buf, buf.getInt(), 1)];
+          buf.get(bytes);
+          map.put(field, new String(bytes, StandardCharsets.UTF_8));
+          break;
+        default:
+          throw new IOException("Unknown value type " + type);
+      }
+    }
+
+    int peaks = checkLength(buf, buf.getInt(), 16);
+    double[] mzs = new double[peaks];
+    buf.asDoubleBuffer().get(mzs);
+    ((Buffer) buf).position(buf.position() + peaks * 8);
+    DataPoint[] dps = new DataPoint[peaks];
+    for (int p = 0; p < peaks; p++)
+      dps[p] = new SimpleDataPoint(mzs[p], buf.getDouble());
+    return new SpectralDBEntry(map, dps);
+  }
+
+  /**
+   * Checks that a stored number of elements of at least given size fits into the rest of the
+   * buffer
+   */
+  private static int checkLength(ByteBuffer buf, int length, int elementSize) throws IOException {
+    if (length < 0 || length > buf.remaining() / elementSize)
+      throw new IOException("Damaged entry, length " + length);
+    return length;
+  }
+
+  /**
+   * Reads a string written by {@link DataOutputStream#writeUTF(String)}. Field names are plain
+   * ASCII.
+   */
+  private static String readUTF(ByteBuffer buf) throws IOException {
+    byte[] bytes = new byte[checkLength(buf, buf.getShort() & 0xFFFF, 1)];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+package net.sf.mzmine.util.spectraldb.parser;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import com.google.common.collect.Range;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+
+/**
+ * All entries of a spectral library, sorted by precursor m/z with the entries without precursor
+ * m/z last, see {@link CachedLibraryParser#loadLibrary(net.sf.mzmine.taskcontrol.AbstractTask,
+ * java.io.File)}. Only the precursor m/z values and the positions of the entries are kept on the
+ * heap. The entries are read from the memory-mapped compiled file when they are requested, so one
+ * instance can be shared by all search tasks without keeping the spectra on the heap. A library
+ * whose compiled file could not be written keeps its entries in memory instead.
+ * 
+ * Instances are immutable and may be read by several threads.
+ */
+public class CompiledSpectralLibrary {
+
+  // precursor m/z of each entry, NaN if missing
+  private final double precursorMZs[];
+
+  // compiled file: each entry lies within one mapped window, followed by its CRC-32
+  private final ByteBuffer windows[];
+  private final int entryWindows[], entryPositions[], entryLengths[];
+  private final DBEntryField fields[];
+
+  // entries of a library which could not be compiled
+  private final List<SpectralDBEntry> entries;
+
+  /**
+   * Entries read from a compiled file, which were already checked against their CRC-32
+   */
+  CompiledSpectralLibrary(ByteBuffer windows[], int entryWindows[], int entryPositions[],
+      int entryLengths[], DBEntryField fields[], double precursorMZs[]) {
+    this.windows = windows;
+    this.entryWindows = entryWindows;
+    this.entryPositions = entryPositions;
+    this.entryLengths = entryLengths;
+    this.fields = fields;
+    this.precursorMZs = precursorMZs;
+    this.entries = null;
+  }
+
+  /**
+   * @param entries entries sorted by precursor m/z, without precursor m/z last
+   */
+  CompiledSpectralLibrary(List<SpectralDBEntry> entries) {
+    this.entries = entries;
+    this.precursorMZs = new double[entries.size()];
+    for (int i = 0; i < precursorMZs.length; i++) {
+      Double mz = entries.get(i).getPrecursorMZ();
+      precursorMZs[i] = mz == null ? Double.NaN : mz;
+    }
+    this.windows = null;
+    this.entryWindows = null;
+    this.entryPositions = null;
+    this.entryLengths = null;
+    this.fields = null;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    return precursorMZs.length;
+  }
+
+  /**
+   * @return precursor m/z of given entry, NaN if it has none
+   */
+  public double getPrecursorMZ(int index) {
+    return precursorMZs[index];
+  }
+
+  /**
+   * Reads an entry. Every call returns a new instance for entries of a compiled file.
+   * 
+   * @throws IOException if the compiled file was modified after it was checked
+   */
+  public SpectralDBEntry getEntry(int index) throws IOException {
+    if (entries != null)
+      return entries.get(index);
+    ByteBuffer entry = windows[entryWindows[index]].duplicate();
+    ((Buffer) entry).limit(entryPositions[index] + entryLengths[index]);
+    ((Buffer) entry).position(entryPositions[index]);
+    return CachedLibraryParser.readEntry(entry, fields);
+  }
+
+  /**
+   * Entries whose precursor m/z is inside given range, found by binary search
+   * 
+   * @return range of entry indexes
+   */
+  public Range<Integer> getEntriesInPrecursorRange(Range<Double> mzRange) {
+    final int first = indexOfFirst(mzRange.lowerEndpoint(), false);
+    final int last = indexOfFirst(mzRange.upperEndpoint(), true);
+    return Range.closedOpen(first, Math.max(first, last));
+  }
+
+  /**
+   * @return index of the first precursor m/z greater (or equal if not exclusive) than mz
+   */
+  private int indexOfFirst(double mz, boolean exclusive) {
+    int low = 0;
+    int high = precursorMZs.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int c = Double.compare(precursorMZs[mid], mz);
+      if (c < 0 || (exclusive && c == 0))
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+}
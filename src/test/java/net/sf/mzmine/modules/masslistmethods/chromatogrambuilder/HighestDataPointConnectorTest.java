@@ -0,0 +1,291 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+/**
+ * Compares HighestDataPointConnector with the previous implementation, which tested every m/z peak
+ * against every building chromatogram, on randomized scans
+ */
+public class HighestDataPointConnectorTest {
+
+  private static final int NUMBER_OF_SCANS = 200;
+  private static final double MINIMUM_TIME_SPAN = 0.05, MINIMUM_HEIGHT = 50;
+
+  @Test
+  public void testAbsoluteTolerance() {
+    for (long seed = 0; seed < 20; seed++)
+      compareWithPreviousImplementation(seed, new MZTolerance(0.002, 0));
+  }
+
+  @Test
+  public void testRelativeTolerance() {
+    for (long seed = 0; seed < 20; seed++)
+      compareWithPreviousImplementation(seed, new MZTolerance(0, 20));
+  }
+
+  @Test
+  public void testCombinedTolerance() {
+    for (long seed = 0; seed < 20; seed++)
+      compareWithPreviousImplementation(seed, new MZTolerance(0.001, 10));
+  }
+
+  private void compareWithPreviousImplementation(long seed, MZTolerance mzTolerance) {
+
+    final Random random = new Random(seed);
+    final RawDataFile dataFile = createDataFile(NUMBER_OF_SCANS);
+    final int allScanNumbers[] = new int[NUMBER_OF_SCANS];
+    for (int i = 0; i < NUMBER_OF_SCANS; i++)
+      allScanNumbers[i] = i + 1;
+
+    final HighestDataPointConnector connector = new HighestDataPointConnector(dataFile,
+        allScanNumbers, MINIMUM_TIME_SPAN, MINIMUM_HEIGHT, mzTolerance);
+    final PreviousConnector previous = new PreviousConnector(dataFile, allScanNumbers,
+        MINIMUM_TIME_SPAN, MINIMUM_HEIGHT, mzTolerance);
+
+    // m/z values of ions which are present in most scans
+    final int ionMzSteps[] = new int[40];
+    for (int i = 0; i < ionMzSteps.length; i++)
+      ionMzSteps[i] = random.nextInt(400);
+
+    for (int scanNumber : allScanNumbers) {
+      // m/z values on a coarse grid and few intensity levels, so the scans contain m/z values on
+      // the tolerance boundaries and chromatograms of the same intensity. The arrays are longer
+      // than numOfDataPoints, like reused buffers.
+      final int numOfNoisePoints = random.nextInt(40);
+      final double mzValues[] = new double[ionMzSteps.length + numOfNoisePoints + 5];
+      final double intensityValues[] = new double[mzValues.length];
+      int numOfDataPoints = 0;
+      for (int ionMzStep : ionMzSteps) {
+        if (random.nextInt(10) < 2)
+          continue;
+        mzValues[numOfDataPoints] = 100.0 + (ionMzStep + random.nextInt(5) - 2) * 0.001;
+        intensityValues[numOfDataPoints] = 10.0 * (1 + random.nextInt(20));
+        numOfDataPoints++;
+      }
+      for (int i = 0; i < numOfNoisePoints; i++) {
+        mzValues[numOfDataPoints] = 100.0 + random.nextInt(400) * 0.001;
+        intensityValues[numOfDataPoints] = 10.0 * (1 + random.nextInt(20));
+        numOfDataPoints++;
+      }
+
+      // Both implementations may reorder the arrays, so each gets its own copy
+      connector.addScan(scanNumber, mzValues.clone(), intensityValues.clone(), numOfDataPoints);
+      previous.addScan(scanNumber, mzValues.clone(), intensityValues.clone(), numOfDataPoints);
+    }
+
+    final Chromatogram expected[] = previous.finishChromatograms();
+    final Chromatogram actual[] = connector.finishChromatograms();
+
+    assertTrue("No chromatograms were built, seed " + seed, expected.length > 0);
+    assertEquals("Number of chromatograms, seed " + seed, expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      final String message = "Chromatogram " + i + ", seed " + seed;
+      assertEquals(message, expected[i].getMZ(), actual[i].getMZ(), 0);
+      assertEquals(message, expected[i].getHeight(), actual[i].getHeight(), 0);
+      assertEquals(message, expected[i].getArea(), actual[i].getArea(), 0);
+      assertEquals(message, expected[i].getRepresentativeScanNumber(),
+          actual[i].getRepresentativeScanNumber());
+      for (int scanNumber : allScanNumbers) {
+        final DataPoint expectedDataPoint = expected[i].getDataPoint(scanNumber);
+        final DataPoint actualDataPoint = actual[i].getDataPoint(scanNumber);
+        if (expectedDataPoint == null) {
+          assertEquals(message + ", scan " + scanNumber, null, actualDataPoint);
+          continue;
+        }
+        assertTrue(message + ", scan " + scanNumber, actualDataPoint != null);
+        assertEquals(message + ", scan " + scanNumber, expectedDataPoint.getMZ(),
+            actualDataPoint.getMZ(), 0);
+        assertEquals(message + ", scan " + scanNumber, expectedDataPoint.getIntensity(),
+            actualDataPoint.getIntensity(), 0);
+      }
+    }
+  }
+
+  /**
+   * Raw data file with scans 1..n, 0.01 min apart and without fragment scans. Only the methods used
+   * by Chromatogram are implemented.
+   */
+  private static RawDataFile createDataFile(int numberOfScans) {
+    final Scan scans[] = new Scan[numberOfScans + 1];
+    for (int i = 1; i <= numberOfScans; i++) {
+      final double rt = i * 0.01;
+      scans[i] = (Scan) Proxy.newProxyInstance(Scan.class.getClassLoader(),
+          new Class<?>[] {Scan.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "getRetentionTime":
+                return rt;
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              case "equals":
+                return proxy == args[0];
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          });
+    }
+    final Range<Double> rtRange = Range.closed(0.01, numberOfScans * 0.01);
+    return (RawDataFile) Proxy.newProxyInstance(RawDataFile.class.getClassLoader(),
+        new Class<?>[] {RawDataFile.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getScan":
+              return scans[(Integer) args[0]];
+            case "getDataRTRange":
+              return rtRange;
+            case "getFragmentScanNumbers":
+              return new int[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * HighestDataPointConnector before the m/z window lookup
+   */
+  private static class PreviousConnector {
+
+    private final MZTolerance mzTolerance;
+    private final double minimumTimeSpan, minimumHeight;
+    private final RawDataFile dataFile;
+    private final int allScanNumbers[];
+
+    private Set<Chromatogram> buildingChromatograms = new LinkedHashSet<Chromatogram>();
+
+    PreviousConnector(RawDataFile dataFile, int allScanNumbers[], double minimumTimeSpan,
+        double minimumHeight, MZTolerance mzTolerance) {
+      this.mzTolerance = mzTolerance;
+      this.minimumHeight = minimumHeight;
+      this.minimumTimeSpan = minimumTimeSpan;
+      this.dataFile = dataFile;
+      this.allScanNumbers = allScanNumbers;
+    }
+
+    void addScan(int scanNumber, double mzValues[], double intensityValues[],
+        int numOfDataPoints) {
+
+      int sortedIndices[] = DataPointSorter.sortIndices(mzValues, intensityValues,
+          numOfDataPoints, SortingProperty.Intensity, SortingDirection.Descending);
+
+      Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+
+      for (int index : sortedIndices) {
+
+        final double mz = mzValues[index];
+
+        Chromatogram bestChromatogram = null;
+
+        for (Chromatogram testChrom : buildingChromatograms) {
+          DataPoint lastMzPeak = testChrom.getLastMzPeak();
+          Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
+          if (toleranceRange.contains(mz)) {
+            if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
+                .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
+              bestChromatogram = testChrom;
+            }
+          }
+        }
+
+        if (bestChromatogram != null) {
+          if (connectedChromatograms.contains(bestChromatogram)) {
+            continue;
+          }
+        } else {
+          bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
+        }
+
+        bestChromatogram.addMzPeak(scanNumber, new SimpleDataPoint(mz, intensityValues[index]));
+        connectedChromatograms.add(bestChromatogram);
+      }
+
+      for (Chromatogram testChrom : buildingChromatograms) {
+
+        if (connectedChromatograms.contains(testChrom)) {
+          continue;
+        }
+
+        if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
+          testChrom.commitBuildingSegment();
+          connectedChromatograms.add(testChrom);
+          continue;
+        }
+
+        if (testChrom.getNumberOfCommittedSegments() > 0) {
+          testChrom.removeBuildingSegment();
+          connectedChromatograms.add(testChrom);
+          continue;
+        }
+      }
+
+      buildingChromatograms = connectedChromatograms;
+    }
+
+    Chromatogram[] finishChromatograms() {
+      Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
+      while (chromIterator.hasNext()) {
+
+        Chromatogram chromatogram = chromIterator.next();
+
+        if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
+          chromatogram.commitBuildingSegment();
+          chromatogram.finishChromatogram();
+        } else {
+          if (chromatogram.getNumberOfCommittedSegments() == 0) {
+            chromIterator.remove();
+            continue;
+          } else {
+            chromatogram.removeBuildingSegment();
+            chromatogram.finishChromatogram();
+          }
+        }
+
+        if (chromatogram.getHeight() < minimumHeight)
+          chromIterator.remove();
+      }
+
+      return buildingChromatograms.toArray(new Chromatogram[0]);
+    }
+  }
+
+}
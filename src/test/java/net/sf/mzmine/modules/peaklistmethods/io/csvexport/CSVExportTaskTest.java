@@ -0,0 +1,169 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.io.csvexport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.io.gnpsexport.fbmn.GnpsFbmnExportAndSubmitParameters.RowFilter;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Checks that the CSV files formatted in parallel blocks are byte-for-byte identical to the files
+ * formatted sequentially, one block after another on a single thread
+ */
+public class CSVExportTaskTest {
+
+  private static final int NUMBER_OF_ROWS = 20000;
+
+  private final RawDataFile dataFiles[] =
+      {createDataFile("a.mzML"), createDataFile("b, \"2\".mzML"), createDataFile("c.mzML")};
+
+  @Test
+  public void testParallelOutput() throws IOException {
+    final PeakList peakList = createPeakList(new Random(1));
+    final File sequentialFile = File.createTempFile("mzmine", ".csv");
+    final File parallelFile = File.createTempFile("mzmine", ".csv");
+    final ExecutorService sequentialExecutor = Executors.newSingleThreadExecutor();
+    final ExecutorService parallelExecutor = Executors.newFixedThreadPool(8);
+    try {
+      export(peakList, sequentialFile, sequentialExecutor);
+      export(peakList, parallelFile, parallelExecutor);
+
+      final byte sequential[] = Files.readAllBytes(sequentialFile.toPath());
+      final byte parallel[] = Files.readAllBytes(parallelFile.toPath());
+      // the header and one line per row
+      assertEquals(NUMBER_OF_ROWS + 1, new String(sequential).split("\n").length);
+      assertArrayEquals(sequential, parallel);
+    } finally {
+      sequentialExecutor.shutdown();
+      parallelExecutor.shutdown();
+      sequentialFile.delete();
+      parallelFile.delete();
+    }
+  }
+
+  private void export(PeakList peakList, File file, ExecutorService executor) {
+    final CSVExportTask task = new CSVExportTask(new PeakList[] {peakList}, file, ",",
+        ExportRowCommonElement.values(), exportedDataFileElements(), true, ";", RowFilter.ALL);
+    task.setExecutor(executor);
+    task.run();
+    assertEquals(task.getErrorMessage(), TaskStatus.FINISHED, task.getStatus());
+  }
+
+  /**
+   * All elements except the feature name, which needs the number formats of the configuration
+   */
+  private static ExportRowDataFileElement[] exportedDataFileElements() {
+    return Arrays.stream(ExportRowDataFileElement.values())
+        .filter(element -> element != ExportRowDataFileElement.PEAK_NAME)
+        .toArray(ExportRowDataFileElement[]::new);
+  }
+
+  /**
+   * Rows with random features, identities, comments and information, some of them holding the
+   * field separator, quotes or line breaks
+   */
+  private PeakList createPeakList(Random random) {
+    final SimplePeakList peakList = new SimplePeakList("Test", dataFiles);
+    final String texts[] = {"plain", "with, separator", "with \"quotes\"", "with\nline break"};
+    for (int i = 0; i < NUMBER_OF_ROWS; i++) {
+      final SimplePeakListRow row = new SimplePeakListRow(i + 1);
+      for (RawDataFile dataFile : dataFiles) {
+        if (random.nextInt(4) > 0)
+          row.addPeak(dataFile, createFeature(random, dataFile));
+      }
+      for (int j = random.nextInt(3); j > 0; j--)
+        row.addPeakIdentity(
+            new SimplePeakIdentity("Compound " + random.nextInt(100) + " " + texts[j]), false);
+      if (random.nextBoolean())
+        row.setComment(texts[random.nextInt(texts.length)]);
+      if (random.nextInt(3) == 0) {
+        final Map<String, String> information = new HashMap<>();
+        // the information values are not escaped
+        information.put("Property " + random.nextInt(5), texts[random.nextInt(3)]);
+        row.setPeakInformation(new SimplePeakInformation(information));
+      }
+      peakList.addRow(row);
+    }
+    return peakList;
+  }
+
+  private static SimpleFeature createFeature(Random random, RawDataFile dataFile) {
+    final int numberOfScans = 1 + random.nextInt(20);
+    final int scanNumbers[] = new int[numberOfScans];
+    final DataPoint dataPoints[] = new DataPoint[numberOfScans];
+    for (int i = 0; i < numberOfScans; i++) {
+      scanNumbers[i] = i + 1;
+      dataPoints[i] = new SimpleDataPoint(100 + random.nextDouble(), random.nextDouble() * 1e6);
+    }
+    final double mz = 100 + random.nextDouble() * 900;
+    final double rt = random.nextDouble() * 60;
+    final FeatureStatus statuses[] = FeatureStatus.values();
+    final SimpleFeature feature = new SimpleFeature(dataFile, mz, rt, random.nextDouble() * 1e6,
+        random.nextDouble() * 1e7, scanNumbers, dataPoints,
+        statuses[random.nextInt(statuses.length)], 1, -1, null, Range.closed(rt - 0.1, rt + 0.1),
+        Range.closed(mz - 0.01, mz + 0.01), Range.closed(0d, 1e6));
+    feature.setCharge(random.nextInt(3));
+    return feature;
+  }
+
+  private static RawDataFile createDataFile(String name) {
+    return (RawDataFile) Proxy.newProxyInstance(RawDataFile.class.getClassLoader(),
+        new Class<?>[] {RawDataFile.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getName":
+            case "toString":
+              return name;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Exports generated feature lists into SQLite databases, with one and with several connections,
+ * and checks that the table receives all rows, or none if a part fails. The export rate is logged.
+ */
+public class SQLExportTaskTest {
+
+  private static final int NUMBER_OF_ROWS = 5000;
+
+  private static final String TABLE = "features";
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final RawDataFile dataFiles[] = {createDataFile("a.mzML"), createDataFile("b.mzML")};
+
+  @Test
+  public void testExport() throws Exception {
+    final PeakList peakList = createPeakList();
+    for (int connections : new int[] {1, 4}) {
+      final File database = createDatabase("");
+      try {
+        final SQLExportTask task = createTask(database, peakList, connections);
+        final long start = System.nanoTime();
+        task.run();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(task.getErrorMessage(), TaskStatus.FINISHED, task.getStatus());
+        logger.info(String.format("%d connections: %.0f rows/s", connections,
+            NUMBER_OF_ROWS * dataFiles.length / seconds));
+
+        try (Connection dbConnection = connect(database);
+            Statement statement = dbConnection.createStatement()) {
+          assertEquals(NUMBER_OF_ROWS * dataFiles.length, count(statement, ""));
+          for (int i = 0; i < dataFiles.length; i++) {
+            // every feature was exported with its own values
+            assertEquals(NUMBER_OF_ROWS, count(statement, " WHERE rawfile = '" + dataFiles[i]
+                + "' AND mz = id + " + i + " AND height = id * 10 AND note = 'test'"));
+          }
+          assertEquals("Staging tables were left", 1, countTables(statement));
+        }
+      } finally {
+        database.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testFailedExport() throws Exception {
+    final PeakList peakList = createPeakList();
+    for (int connections : new int[] {1, 4}) {
+      // the last row conflicts with an existing one, so the export fails at the end
+      final File database = createDatabase(", UNIQUE (id, rawfile)");
+      try {
+        try (Connection dbConnection = connect(database);
+            Statement statement = dbConnection.createStatement()) {
+          statement.executeUpdate("INSERT INTO " + TABLE + " (id, rawfile) VALUES ("
+              + (NUMBER_OF_ROWS - 1) + ", '" + dataFiles[0] + "')");
+        }
+
+        final SQLExportTask task = createTask(database, peakList, connections);
+        task.run();
+        assertEquals(TaskStatus.ERROR, task.getStatus());
+
+        try (Connection dbConnection = connect(database);
+            Statement statement = dbConnection.createStatement()) {
+          assertEquals("Rows of a failed export were committed", 1, count(statement, ""));
+          assertEquals("Staging tables were left", 1, countTables(statement));
+        }
+      } finally {
+        database.delete();
+      }
+    }
+  }
+
+  private SQLExportTask createTask(File database, PeakList peakList, int connections) {
+
+    final SQLColumnSettings columns = new SQLColumnSettings();
+    addColumn(columns, "id", SQLExportDataType.ID, null);
+    addColumn(columns, "rawfile", SQLExportDataType.RAWFILE, null);
+    addColumn(columns, "mz", SQLExportDataType.PEAKMZ, null);
+    addColumn(columns, "height", SQLExportDataType.PEAKHEIGHT, null);
+    addColumn(columns, "note", SQLExportDataType.CONSTANT, "test");
+
+    final ParameterSet parameters = new SQLExportParameters().cloneParameterSet();
+    parameters.getParameter(SQLExportParameters.peakList)
+        .setValue(PeakListsSelectionType.SPECIFIC_PEAKLISTS, new PeakList[] {peakList});
+    parameters.getParameter(SQLExportParameters.connectionString)
+        .setValue("jdbc:sqlite:" + database.getAbsolutePath());
+    parameters.getParameter(SQLExportParameters.tableName).setValue(TABLE);
+    parameters.getParameter(SQLExportParameters.exportColumns).setValue(columns);
+    parameters.getParameter(SQLExportParameters.emptyExport).setValue(false);
+    parameters.getParameter(SQLExportParameters.batchSize).setValue(500);
+    parameters.getParameter(SQLExportParameters.numberOfConnections).setValue(connections);
+    return new SQLExportTask(parameters);
+  }
+
+  private static void addColumn(SQLColumnSettings columns, String name, SQLExportDataType type,
+      String value) {
+    columns.addNewRow();
+    final int row = columns.getRowCount() - 1;
+    columns.setValueAt(name, row, 0);
+    columns.setValueAt(type, row, 1);
+    if (value != null)
+      columns.setValueAt(value, row, 2);
+  }
+
+  private static File createDatabase(String constraints) throws IOException, SQLException {
+    final File database = File.createTempFile("mzmine", ".sqlite");
+    try (Connection dbConnection = connect(database);
+        Statement statement = dbConnection.createStatement()) {
+      statement.executeUpdate("CREATE TABLE " + TABLE
+          + " (id INTEGER, rawfile TEXT, mz DOUBLE, height DOUBLE, note TEXT" + constraints + ")");
+    }
+    return database;
+  }
+
+  private static Connection connect(File database) throws SQLException {
+    return DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+  }
+
+  private static int count(Statement statement, String condition) throws SQLException {
+    try (ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + TABLE + condition)) {
+      result.next();
+      return result.getInt(1);
+    }
+  }
+
+  private static int countTables(Statement statement) throws SQLException {
+    try (ResultSet result =
+        statement.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table'")) {
+      result.next();
+      return result.getInt(1);
+    }
+  }
+
+  /**
+   * Feature list where row i has a feature with m/z i + file index and height 10 i in each file
+   */
+  private PeakList createPeakList() {
+    final List<PeakListRow> rows = new ArrayList<>();
+    for (int i = 0; i < NUMBER_OF_ROWS; i++)
+      rows.add(createRow(i));
+    final PeakListRow rowArray[] = rows.toArray(new PeakListRow[0]);
+    return (PeakList) Proxy.newProxyInstance(PeakList.class.getClassLoader(),
+        new Class<?>[] {PeakList.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getRows":
+              return rowArray.clone();
+            case "getRawDataFiles":
+              return dataFiles.clone();
+            case "toString":
+              return "Test";
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private PeakListRow createRow(int id) {
+    final Feature features[] = new Feature[dataFiles.length];
+    for (int i = 0; i < dataFiles.length; i++)
+      features[i] = createFeature(id + i, id * 10);
+    return (PeakListRow) Proxy.newProxyInstance(PeakListRow.class.getClassLoader(),
+        new Class<?>[] {PeakListRow.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getID":
+              return id;
+            case "getRawDataFiles":
+              return dataFiles.clone();
+            case "getPeak":
+              for (int i = 0; i < dataFiles.length; i++)
+                if (dataFiles[i] == args[0])
+                  return features[i];
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static Feature createFeature(double mz, double height) {
+    return (Feature) Proxy.newProxyInstance(Feature.class.getClassLoader(),
+        new Class<?>[] {Feature.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getMZ":
+              return mz;
+            case "getHeight":
+              return height;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static RawDataFile createDataFile(String name) {
+    return (RawDataFile) Proxy.newProxyInstance(RawDataFile.class.getClassLoader(),
+        new Class<?>[] {RawDataFile.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getName":
+            case "toString":
+              return name;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
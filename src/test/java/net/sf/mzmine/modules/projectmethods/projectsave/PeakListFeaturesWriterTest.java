@@ -0,0 +1,321 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_53.PeakListOpenHandler_2_53;
+
+/**
+ * Writes randomized feature lists with PeakListFeaturesWriter and reads them back with
+ * PeakListOpenHandler_2_53, including rows without features, features without isotope pattern,
+ * parent row or MS2 scans, and scans without data point
+ */
+public class PeakListFeaturesWriterTest {
+
+  private static final int NUMBER_OF_ROWS = 200;
+
+  private final RawDataFile dataFiles[] = {createDataFile("a.mzML"), createDataFile("b.mzML")};
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (long seed = 0; seed < 5; seed++) {
+      final PeakList peakList = createPeakList(new Random(seed));
+      final PeakList loaded = read(write(peakList));
+      assertPeakListEquals("Seed " + seed, peakList, loaded);
+    }
+  }
+
+  @Test
+  public void testEmptyPeakList() throws Exception {
+    final PeakList peakList = new SimplePeakList("Empty", dataFiles);
+    assertEquals(0, read(write(peakList)).getNumberOfRows());
+  }
+
+  @Test
+  public void testFormatVersionMismatch() throws Exception {
+    final byte data[] = write(createPeakList(new Random(0)));
+    ByteBuffer.wrap(data).putInt(4, PeakListFeaturesWriter.FORMAT_VERSION + 1);
+    try {
+      read(data);
+      fail("A newer format version was accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Unsupported format"));
+    }
+  }
+
+  @Test
+  public void testInvalidData() throws Exception {
+    final byte data[] = write(createPeakList(new Random(0)));
+    ByteBuffer.wrap(data).putInt(0, 0);
+    try {
+      read(data);
+      fail("Data without the magic number were accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Invalid feature data"));
+    }
+  }
+
+  private byte[] write(PeakList peakList) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new PeakListFeaturesWriter(peakList, getDataFilesIDMap()).write(out);
+    return out.toByteArray();
+  }
+
+  private PeakList read(byte features[]) throws Exception {
+    final Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<>();
+    getDataFilesIDMap().forEach((dataFile, id) -> dataFilesIDMap.put(id, dataFile));
+    final String xml = "<peaklist><pl_name>Test</pl_name><created>2018/01/01 00:00:00</created>"
+        + "<raw_file>1</raw_file><raw_file>2</raw_file></peaklist>";
+    final InputStream xmlStream = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    return new PeakListOpenHandler_2_53(dataFilesIDMap).readPeakList(xmlStream,
+        new ByteArrayInputStream(features));
+  }
+
+  private Hashtable<RawDataFile, String> getDataFilesIDMap() {
+    final Hashtable<RawDataFile, String> dataFilesIDMap = new Hashtable<>();
+    for (int i = 0; i < dataFiles.length; i++)
+      dataFilesIDMap.put(dataFiles[i], String.valueOf(i + 1));
+    return dataFilesIDMap;
+  }
+
+  private PeakList createPeakList(Random random) {
+    final SimplePeakList peakList = new SimplePeakList("Test", dataFiles);
+    for (int i = 0; i < NUMBER_OF_ROWS; i++) {
+      final SimplePeakListRow row = new SimplePeakListRow(2 * i + random.nextInt(2));
+      // some rows have no features
+      for (RawDataFile dataFile : dataFiles) {
+        if (random.nextInt(3) > 0)
+          row.addPeak(dataFile, createFeature(random, dataFile));
+      }
+      peakList.addRow(row);
+    }
+    return peakList;
+  }
+
+  private static Feature createFeature(Random random, RawDataFile dataFile) {
+
+    // consecutive scans, the first one has a data point and some of the others do not
+    final int numberOfScans = 1 + random.nextInt(30);
+    final int firstScan = 1 + random.nextInt(1000);
+    final int scanNumbers[] = new int[numberOfScans];
+    final DataPoint dataPoints[] = new DataPoint[numberOfScans];
+    Range<Double> rtRange = null, mzRange = null, intensityRange = null;
+    for (int i = 0; i < numberOfScans; i++) {
+      scanNumbers[i] = firstScan + i;
+      if ((i > 0) && (random.nextInt(5) == 0))
+        continue;
+      // the scan data are saved as floats
+      final double mz = (float) (100 + random.nextDouble() * 900);
+      final double intensity = (float) (1 + random.nextDouble() * 1e6);
+      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+      final double rt = getRetentionTime(scanNumbers[i]);
+      rtRange = rtRange == null ? Range.singleton(rt) : rtRange.span(Range.singleton(rt));
+      mzRange = mzRange == null ? Range.singleton(mz) : mzRange.span(Range.singleton(mz));
+      intensityRange = intensityRange == null ? Range.singleton(intensity)
+          : intensityRange.span(Range.singleton(intensity));
+    }
+    // scans without data point have intensity 0
+    if (countDataPoints(dataPoints) < numberOfScans)
+      intensityRange = intensityRange.span(Range.singleton(0d));
+
+    int ms2ScanNumbers[] = null;
+    if (random.nextBoolean()) {
+      ms2ScanNumbers = new int[random.nextInt(4)];
+      for (int i = 0; i < ms2ScanNumbers.length; i++)
+        ms2ScanNumbers[i] = firstScan + random.nextInt(numberOfScans);
+    }
+
+    final FeatureStatus statuses[] = FeatureStatus.values();
+    final SimpleFeature feature = new SimpleFeature(dataFile, random.nextDouble() * 1000,
+        random.nextDouble() * 60, random.nextDouble() * 1e6, random.nextDouble() * 1e7,
+        scanNumbers, dataPoints, statuses[random.nextInt(statuses.length)],
+        scanNumbers[random.nextInt(numberOfScans)],
+        ms2ScanNumbers == null || ms2ScanNumbers.length == 0 ? -1 : ms2ScanNumbers[0],
+        ms2ScanNumbers, rtRange, mzRange, intensityRange);
+    feature.setCharge(random.nextInt(4));
+    if (random.nextBoolean())
+      feature.setParentChromatogramRowID(random.nextInt(NUMBER_OF_ROWS));
+
+    if (random.nextBoolean()) {
+      final DataPoint isotopes[] = new DataPoint[1 + random.nextInt(5)];
+      for (int i = 0; i < isotopes.length; i++)
+        isotopes[i] = new SimpleDataPoint(feature.getMZ() + i, random.nextDouble() * 1e6);
+      final IsotopePatternStatus patternStatuses[] = IsotopePatternStatus.values();
+      feature.setIsotopePattern(new SimpleIsotopePattern(isotopes,
+          patternStatuses[random.nextInt(patternStatuses.length)],
+          random.nextBoolean() ? null : "Pattern " + random.nextInt()));
+    }
+    return feature;
+  }
+
+  private static int countDataPoints(DataPoint dataPoints[]) {
+    int count = 0;
+    for (DataPoint dataPoint : dataPoints)
+      if (dataPoint != null)
+        count++;
+    return count;
+  }
+
+  private void assertPeakListEquals(String message, PeakList expected, PeakList actual) {
+    assertEquals(message, expected.getNumberOfRows(), actual.getNumberOfRows());
+    for (int i = 0; i < expected.getNumberOfRows(); i++) {
+      final PeakListRow expectedRow = expected.getRow(i);
+      final PeakListRow actualRow = actual.getRow(i);
+      final String rowMessage = message + ", row " + expectedRow.getID();
+      assertEquals(rowMessage, expectedRow.getID(), actualRow.getID());
+      assertEquals(rowMessage, expectedRow.getNumberOfPeaks(), actualRow.getNumberOfPeaks());
+      for (RawDataFile dataFile : dataFiles) {
+        final Feature expectedFeature = expectedRow.getPeak(dataFile);
+        final Feature actualFeature = actualRow.getPeak(dataFile);
+        if (expectedFeature == null)
+          assertNull(rowMessage, actualFeature);
+        else
+          assertFeatureEquals(rowMessage + ", " + dataFile, expectedFeature, actualFeature);
+      }
+    }
+  }
+
+  private static void assertFeatureEquals(String message, Feature expected, Feature actual) {
+    assertEquals(message, expected.getDataFile(), actual.getDataFile());
+    assertEquals(message, expected.getMZ(), actual.getMZ(), 0);
+    assertEquals(message, expected.getRT(), actual.getRT(), 0);
+    assertEquals(message, expected.getHeight(), actual.getHeight(), 0);
+    assertEquals(message, expected.getArea(), actual.getArea(), 0);
+    assertEquals(message, expected.getFeatureStatus(), actual.getFeatureStatus());
+    assertEquals(message, expected.getCharge(), actual.getCharge());
+    assertEquals(message, expected.getParentChromatogramRowID(),
+        actual.getParentChromatogramRowID());
+    assertEquals(message, expected.getRepresentativeScanNumber(),
+        actual.getRepresentativeScanNumber());
+    assertEquals(message, expected.getMostIntenseFragmentScanNumber(),
+        actual.getMostIntenseFragmentScanNumber());
+    assertArrayEquals(message, expected.getAllMS2FragmentScanNumbers(),
+        actual.getAllMS2FragmentScanNumbers());
+
+    assertArrayEquals(message, expected.getScanNumbers(), actual.getScanNumbers());
+    for (int scan : expected.getScanNumbers()) {
+      assertEquals(message, expected.getDataPoint(scan) == null, actual.getDataPoint(scan) == null);
+      assertEquals(message, expected.getDataPointMZ(scan), actual.getDataPointMZ(scan), 0);
+      assertEquals(message, expected.getDataPointIntensity(scan),
+          actual.getDataPointIntensity(scan), 0);
+    }
+    assertEquals(message, expected.getRawDataPointsRTRange(), actual.getRawDataPointsRTRange());
+    assertEquals(message, expected.getRawDataPointsMZRange(), actual.getRawDataPointsMZRange());
+    assertEquals(message, expected.getRawDataPointsIntensityRange(),
+        actual.getRawDataPointsIntensityRange());
+
+    final IsotopePattern expectedPattern = expected.getIsotopePattern();
+    final IsotopePattern actualPattern = actual.getIsotopePattern();
+    if (expectedPattern == null) {
+      assertNull(message, actualPattern);
+      return;
+    }
+    assertEquals(message, expectedPattern.getStatus(), actualPattern.getStatus());
+    // a missing description is saved as an empty one
+    assertEquals(message,
+        expectedPattern.getDescription() == null ? "" : expectedPattern.getDescription(),
+        actualPattern.getDescription());
+    final DataPoint expectedIsotopes[] = expectedPattern.getDataPoints();
+    final DataPoint actualIsotopes[] = actualPattern.getDataPoints();
+    assertEquals(message, expectedIsotopes.length, actualIsotopes.length);
+    for (int i = 0; i < expectedIsotopes.length; i++) {
+      assertEquals(message, expectedIsotopes[i].getMZ(), actualIsotopes[i].getMZ(), 0);
+      assertEquals(message, expectedIsotopes[i].getIntensity(), actualIsotopes[i].getIntensity(),
+          0);
+    }
+  }
+
+  private static double getRetentionTime(int scanNumber) {
+    return scanNumber * 0.01;
+  }
+
+  /**
+   * Data file which only knows the retention times of its scans
+   */
+  private static RawDataFile createDataFile(String name) {
+    return (RawDataFile) Proxy.newProxyInstance(RawDataFile.class.getClassLoader(),
+        new Class<?>[] {RawDataFile.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getScan":
+              return createScan((Integer) args[0]);
+            case "getName":
+            case "toString":
+              return name;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static Scan createScan(int scanNumber) {
+    return (Scan) Proxy.newProxyInstance(Scan.class.getClassLoader(), new Class<?>[] {Scan.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getScanNumber":
+              return scanNumber;
+            case "getRetentionTime":
+              return getRetentionTime(scanNumber);
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks MSNumpressDecoder against byte vectors encoded as specified by the MS-Numpress reference
+ * implementation, and against a port of the reference encoders on randomized data
+ */
+public class MSNumpressDecoderTest {
+
+  /**
+   * Linear prediction of 1, 2, 3, 4.5 and 4 with fixed point 1000: the first two values as
+   * integers, then the differences to the predictions 0 (head 8), 500 (head 5, 0x1f4) and -2000
+   * (head 13 for five leading 0xf half bytes, 0x830), half bytes padded with 0
+   */
+  @Test
+  public void testLinearVector() throws IOException {
+    final byte data[] = bytes(0x40, 0x8f, 0x40, 0, 0, 0, 0, 0, // fixed point 1000
+        0xe8, 0x03, 0, 0, // 1000
+        0xd0, 0x07, 0, 0, // 2000
+        0x85, 0x4f, 0x1d, 0x03, 0x80);
+    assertArrayEquals(new double[] {1, 2, 3, 4.5, 4}, MSNumpressDecoder.decodeLinear(data), 0);
+  }
+
+  /**
+   * A zero difference in the high half byte of the last byte is a value, the low half byte is
+   * padding
+   */
+  @Test
+  public void testLinearTrailingZero() throws IOException {
+    final byte data[] = bytes(0x40, 0x8f, 0x40, 0, 0, 0, 0, 0, 0xe8, 0x03, 0, 0, 0xd0, 0x07, 0, 0,
+        0x80);
+    assertArrayEquals(new double[] {1, 2, 3}, MSNumpressDecoder.decodeLinear(data), 0);
+  }
+
+  @Test
+  public void testLinearShortArrays() throws IOException {
+    final byte fixedPoint[] = bytes(0x40, 0x8f, 0x40, 0, 0, 0, 0, 0);
+    assertArrayEquals(new double[0], MSNumpressDecoder.decodeLinear(fixedPoint), 0);
+    assertArrayEquals(new double[] {1}, MSNumpressDecoder.decodeLinear(
+        concat(fixedPoint, bytes(0xe8, 0x03, 0, 0))), 0);
+    assertArrayEquals(new double[] {1, 2}, MSNumpressDecoder.decodeLinear(
+        concat(fixedPoint, bytes(0xe8, 0x03, 0, 0, 0xd0, 0x07, 0, 0))), 0);
+  }
+
+  /**
+   * Positive integers 0 (head 8), 1, 15 (head 7), 16 and 100 (head 6), half bytes padded with 0
+   */
+  @Test
+  public void testPicVector() throws IOException {
+    final byte data[] = bytes(0x87, 0x17, 0xf6, 0x01, 0x64, 0x60);
+    assertArrayEquals(new double[] {0, 1, 15, 16, 100}, MSNumpressDecoder.decodePic(data), 0);
+  }
+
+  /**
+   * Short logged floats of 0, 1 and 99 with fixed point 10000: round(ln(x + 1) * 10000) is 0,
+   * 6931 (0x1b13) and 46052 (0xb3e4), little endian
+   */
+  @Test
+  public void testSlofVector() throws IOException {
+    final byte data[] = bytes(0x40, 0xc3, 0x88, 0, 0, 0, 0, 0, // fixed point 10000
+        0, 0, 0x13, 0x1b, 0xe4, 0xb3);
+    final double expected[] =
+        {0, Math.exp(6931 / 10000d) - 1, Math.exp(46052 / 10000d) - 1};
+    assertArrayEquals(expected, MSNumpressDecoder.decodeSlof(data), 0);
+    assertArrayEquals(new double[] {0, 1, 99}, MSNumpressDecoder.decodeSlof(data), 0.01);
+  }
+
+  @Test
+  public void testDecodeByAccession() throws IOException {
+    assertArrayEquals(new double[] {0, 1, 15, 16, 100},
+        MSNumpressDecoder.decode(MSNumpressDecoder.PIC, bytes(0x87, 0x17, 0xf6, 0x01, 0x64, 0x60)),
+        0);
+    try {
+      MSNumpressDecoder.decode("MS:1000576", new byte[0]);
+      fail("Unknown compression was accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCorruptData() {
+    final byte fixedPoint[] = bytes(0x40, 0x8f, 0x40, 0, 0, 0, 0, 0);
+    // too short for the fixed point, or the second value is incomplete
+    assertCorrupt(() -> MSNumpressDecoder.decodeLinear(bytes(0x40, 0x8f)));
+    assertCorrupt(() -> MSNumpressDecoder.decodeLinear(
+        concat(fixedPoint, bytes(0xe8, 0x03, 0, 0, 0xd0, 0x07))));
+    // a head 0 needs 8 more half bytes
+    assertCorrupt(() -> MSNumpressDecoder.decodePic(bytes(0x01, 0x23)));
+    // odd number of bytes after the fixed point
+    assertCorrupt(() -> MSNumpressDecoder.decodeSlof(concat(fixedPoint, bytes(0x13))));
+  }
+
+  @Test
+  public void testLinearRoundTrip() throws IOException {
+    final Random random = new Random(1);
+    for (int run = 0; run < 100; run++) {
+      // ascending m/z values with random gaps, also larger than the prediction
+      final double values[] = new double[random.nextInt(500)];
+      double mz = 50 + random.nextDouble() * 100;
+      for (int i = 0; i < values.length; i++) {
+        mz += random.nextInt(4) == 0 ? random.nextDouble() * 50 : random.nextDouble() * 0.01;
+        values[i] = mz;
+      }
+      final double fixedPoint = 100000;
+      final double decoded[] = MSNumpressDecoder.decodeLinear(encodeLinear(values, fixedPoint));
+      assertEquals("Run " + run, values.length, decoded.length);
+      assertArrayEquals("Run " + run, values, decoded, 0.5 / fixedPoint + 1e-9);
+    }
+  }
+
+  @Test
+  public void testPicRoundTrip() throws IOException {
+    final Random random = new Random(2);
+    for (int run = 0; run < 100; run++) {
+      final double values[] = new double[random.nextInt(500)];
+      for (int i = 0; i < values.length; i++) {
+        // all lengths of the variable length integers, up to the full 32 bits
+        values[i] =
+            random.nextInt(1 << random.nextInt(31)) + (random.nextInt(50) == 0 ? 1L << 31 : 0);
+      }
+      assertArrayEquals("Run " + run, values, MSNumpressDecoder.decodePic(encodePic(values)), 0);
+    }
+  }
+
+  @Test
+  public void testSlofRoundTrip() throws IOException {
+    final Random random = new Random(3);
+    for (int run = 0; run < 100; run++) {
+      final double values[] = new double[random.nextInt(500)];
+      for (int i = 0; i < values.length; i++)
+        values[i] = random.nextDouble() * 1e6;
+      // the largest value uses the full range of the 2-byte integers
+      final double fixedPoint = 0xffff / Math.log(1e6 + 1);
+      final double decoded[] = MSNumpressDecoder.decodeSlof(encodeSlof(values, fixedPoint));
+      assertEquals("Run " + run, values.length, decoded.length);
+      for (int i = 0; i < values.length; i++) {
+        // the error of the rounded logarithm is at most 0.5 / fixedPoint
+        assertEquals("Run " + run, values[i], decoded[i],
+            (values[i] + 1) * (Math.exp(0.5 / fixedPoint) - 1) + 1e-9);
+      }
+    }
+  }
+
+  private interface Decoding {
+    void decode() throws IOException;
+  }
+
+  private static void assertCorrupt(Decoding decoding) {
+    try {
+      decoding.decode();
+      fail("Corrupt data were accepted");
+    } catch (IOException | RuntimeException e) {
+      // expected, corrupt data must not decode silently
+    }
+  }
+
+  private static byte[] bytes(int... values) {
+    final byte result[] = new byte[values.length];
+    for (int i = 0; i < values.length; i++)
+      result[i] = (byte) values[i];
+    return result;
+  }
+
+  private static byte[] concat(byte a[], byte b[]) {
+    final byte result[] = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  // Port of the encoders of the MS-Numpress reference implementation
+
+  private static byte[] encodeLinear(double values[], double fixedPoint) {
+    final HalfByteWriter writer = new HalfByteWriter();
+    writer.writeFixedPoint(fixedPoint);
+    if (values.length == 0)
+      return writer.toByteArray();
+    long previous = (long) (values[0] * fixedPoint + 0.5);
+    writer.writeInt32(previous);
+    if (values.length == 1)
+      return writer.toByteArray();
+    long current = (long) (values[1] * fixedPoint + 0.5);
+    writer.writeInt32(current);
+    for (int i = 2; i < values.length; i++) {
+      final long next = (long) (values[i] * fixedPoint + 0.5);
+      writer.writeInt((int) (next - (current + (current - previous))));
+      previous = current;
+      current = next;
+    }
+    return writer.toByteArray();
+  }
+
+  private static byte[] encodePic(double values[]) {
+    final HalfByteWriter writer = new HalfByteWriter();
+    for (double value : values)
+      writer.writeInt((int) (long) (value + 0.5));
+    return writer.toByteArray();
+  }
+
+  private static byte[] encodeSlof(double values[], double fixedPoint) {
+    final HalfByteWriter writer = new HalfByteWriter();
+    writer.writeFixedPoint(fixedPoint);
+    for (double value : values) {
+      final int x = (int) (Math.log(value + 1) * fixedPoint + 0.5);
+      writer.writeByte(x & 0xff);
+      writer.writeByte((x >> 8) & 0xff);
+    }
+    return writer.toByteArray();
+  }
+
+  private static class HalfByteWriter {
+
+    private byte data[] = new byte[16];
+    private int length = 0;
+    // half byte waiting for its low half, or -1
+    private int pending = -1;
+
+    void writeByte(int value) {
+      if (length == data.length)
+        data = Arrays.copyOf(data, 2 * length);
+      data[length++] = (byte) value;
+    }
+
+    void writeFixedPoint(double fixedPoint) {
+      final long bits = Double.doubleToLongBits(fixedPoint);
+      for (int i = 7; i >= 0; i--)
+        writeByte((int) (bits >> (8 * i)) & 0xff);
+    }
+
+    void writeInt32(long value) {
+      for (int i = 0; i < 4; i++)
+        writeByte((int) (value >> (8 * i)) & 0xff);
+    }
+
+    private void writeHalfByte(int value) {
+      if (pending < 0) {
+        pending = value & 0xf;
+      } else {
+        writeByte((pending << 4) | (value & 0xf));
+        pending = -1;
+      }
+    }
+
+    /**
+     * Head half byte with the number of leading 0 (or 8 + the number of leading 0xf) half bytes,
+     * then the remaining half bytes, least significant first
+     */
+    void writeInt(int value) {
+      int leading = 0;
+      int head;
+      if ((value & 0xf0000000) == 0) {
+        while (leading < 8 && ((value >>> (4 * (7 - leading))) & 0xf) == 0)
+          leading++;
+        head = leading;
+      } else if ((value & 0xf0000000) == 0xf0000000) {
+        while (leading < 7 && ((value >>> (4 * (7 - leading))) & 0xf) == 0xf)
+          leading++;
+        head = leading + 8;
+      } else {
+        head = 0;
+      }
+      writeHalfByte(head);
+      for (int i = 0; i < 8 - leading; i++)
+        writeHalfByte(value >>> (4 * i));
+    }
+
+    byte[] toByteArray() {
+      if (pending >= 0) {
+        writeByte(pending << 4);
+        pending = -1;
+      }
+      return Arrays.copyOf(data, length);
+    }
+  }
+
+}
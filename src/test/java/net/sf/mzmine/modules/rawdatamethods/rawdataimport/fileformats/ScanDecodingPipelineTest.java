@@ -0,0 +1,158 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Checks that ScanDecodingPipeline writes the scans in the order they were added, each only after
+ * its decoding is finished, while the decoders finish in random order on the worker threads
+ */
+public class ScanDecodingPipelineTest {
+
+  private static final int NUMBER_OF_SCANS = 2000;
+
+  @Test
+  public void testWriteOrder() throws IOException {
+    for (long seed = 0; seed < 5; seed++)
+      decodeScans(seed);
+  }
+
+  @Test
+  public void testDecodingError() {
+    final List<Scan> writtenScans = Collections.synchronizedList(new ArrayList<>());
+    final ScanDecodingPipeline pipeline =
+        new ScanDecodingPipeline(createWriter(writtenScans, null), () -> {
+        });
+    try {
+      for (int i = 1; i <= 100; i++) {
+        final int scanNumber = i;
+        final Future<?> decoding = pipeline.decode(() -> {
+          if (scanNumber == 50)
+            throw new IllegalStateException("Corrupt scan");
+        }, 1);
+        pipeline.addScan(createScan(scanNumber), decoding);
+      }
+      pipeline.finish();
+      fail("The decoding error was not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("#50"));
+    }
+    // the scans before the corrupt one were written in order
+    assertTrue(writtenScans.size() <= 49);
+    for (int i = 0; i < writtenScans.size(); i++)
+      assertEquals(i + 1, writtenScans.get(i).getScanNumber());
+  }
+
+  private void decodeScans(long seed) throws IOException {
+
+    final Random random = new Random(seed);
+    final AtomicBoolean decoded[] = new AtomicBoolean[NUMBER_OF_SCANS + 1];
+    for (int i = 1; i <= NUMBER_OF_SCANS; i++)
+      decoded[i] = new AtomicBoolean();
+
+    final List<Scan> writtenScans = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger writtenCounter = new AtomicInteger();
+    final ScanDecodingPipeline pipeline = new ScanDecodingPipeline(
+        createWriter(writtenScans, decoded), writtenCounter::incrementAndGet);
+
+    for (int i = 1; i <= NUMBER_OF_SCANS; i++) {
+      final int scanNumber = i;
+      // some scans are complete already, the others take a random time to decode
+      if (random.nextInt(10) == 0) {
+        decoded[scanNumber].set(true);
+        pipeline.addScan(createScan(scanNumber), null);
+        continue;
+      }
+      final long decodingNanos = random.nextInt(200_000);
+      final Future<?> decoding = pipeline.decode(() -> {
+        final long end = System.nanoTime() + decodingNanos;
+        while (System.nanoTime() < end)
+          Thread.yield();
+        decoded[scanNumber].set(true);
+      }, random.nextInt(1_000_000));
+      pipeline.addScan(createScan(scanNumber), decoding);
+    }
+    pipeline.finish();
+
+    assertEquals("Seed " + seed, NUMBER_OF_SCANS, writtenScans.size());
+    assertEquals("Seed " + seed, NUMBER_OF_SCANS, writtenCounter.get());
+    for (int i = 0; i < NUMBER_OF_SCANS; i++)
+      assertEquals("Seed " + seed, i + 1, writtenScans.get(i).getScanNumber());
+  }
+
+  /**
+   * Writer which collects the scans and checks that each scan was decoded before it is written
+   *
+   * @param decoded decoding state by scan number, or null to skip the check
+   */
+  private static RawDataFileWriter createWriter(List<Scan> writtenScans, AtomicBoolean decoded[]) {
+    return (RawDataFileWriter) Proxy.newProxyInstance(RawDataFileWriter.class.getClassLoader(),
+        new Class<?>[] {RawDataFileWriter.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "addScan":
+              final Scan scan = (Scan) args[0];
+              if (decoded != null)
+                assertTrue("Scan #" + scan.getScanNumber() + " was written before decoding",
+                    decoded[scan.getScanNumber()].get());
+              writtenScans.add(scan);
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * Scan which only knows its number
+   */
+  private static Scan createScan(int scanNumber) {
+    return (Scan) Proxy.newProxyInstance(Scan.class.getClassLoader(), new Class<?>[] {Scan.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getScanNumber":
+              return scanNumber;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.function.DoubleFunction;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * Compares the counts of FragmentIonIndex with a nested loop over all pairs of ions, on random
+ * spectra whose m/z values lie on a grid so that many ions hit the bounds of the m/z ranges
+ */
+public class FragmentIonIndexTest {
+
+  private static final double GRID = 0.001;
+
+  private static final DoubleFunction<Range<Double>> ABSOLUTE_RANGE =
+      mz -> Range.closed(mz - 2 * GRID, mz + 2 * GRID);
+
+  @Test
+  public void testSharedIons() {
+    final Random random = new Random(1);
+    for (int run = 0; run < 50; run++) {
+      final DataPoint spectra[][] = createSpectra(random, 200);
+      final FragmentIonIndex index = new FragmentIonIndex(spectra);
+      final Range<Integer> candidates = randomRange(random, spectra.length);
+      for (int q = 0; q < 20; q++) {
+        final DataPoint query[] = createSpectrum(random);
+        assertArrayEquals("Run " + run,
+            countNestedLoop(query, spectra, ABSOLUTE_RANGE, candidates, false),
+            index.countSharedIons(query, ABSOLUTE_RANGE, candidates));
+      }
+    }
+  }
+
+  @Test
+  public void testIonPairs() {
+    final Random random = new Random(2);
+    for (int run = 0; run < 50; run++) {
+      final DataPoint spectra[][] = createSpectra(random, 200);
+      final FragmentIonIndex index = new FragmentIonIndex(spectra);
+      final Range<Integer> candidates = randomRange(random, spectra.length);
+      for (int q = 0; q < 20; q++) {
+        final DataPoint query[] = createSpectrum(random);
+        assertArrayEquals("Run " + run,
+            countNestedLoop(query, spectra, ABSOLUTE_RANGE, candidates, true),
+            index.countIonPairs(query, ABSOLUTE_RANGE, candidates));
+      }
+    }
+  }
+
+  /**
+   * The ions of the flat arrays are indexed the same way as the ions of the spectra
+   */
+  @Test
+  public void testFlatArrays() {
+    final Random random = new Random(3);
+    final DataPoint spectra[][] = createSpectra(random, 100);
+    int numberOfIons = 0;
+    for (DataPoint ions[] : spectra)
+      numberOfIons += ions == null ? 0 : ions.length;
+    // longer arrays, only the first ions are indexed
+    final double mzValues[] = new double[numberOfIons + 10];
+    final int spectrumIndexes[] = new int[numberOfIons + 10];
+    int ion = 0;
+    for (int s = spectra.length - 1; s >= 0; s--) {
+      if (spectra[s] == null)
+        continue;
+      for (DataPoint dp : spectra[s]) {
+        mzValues[ion] = dp.getMZ();
+        spectrumIndexes[ion] = s;
+        ion++;
+      }
+    }
+    final FragmentIonIndex index = new FragmentIonIndex(mzValues, spectrumIndexes, numberOfIons);
+    final Range<Integer> all = Range.closedOpen(0, spectra.length);
+    for (int q = 0; q < 20; q++) {
+      final DataPoint query[] = createSpectrum(random);
+      assertArrayEquals(countNestedLoop(query, spectra, ABSOLUTE_RANGE, all, false),
+          index.countSharedIons(query, ABSOLUTE_RANGE, all));
+    }
+  }
+
+  /**
+   * The closed ppm range used by the MS2 similarity search counts at least the pairs with an m/z
+   * difference below the tolerance, also for ions exactly at the bounds of the window
+   */
+  @Test
+  public void testPpmPairsNotMissed() {
+    final Random random = new Random(4);
+    for (double ppm : new double[] {1, 5, 10, 20}) {
+      final DoubleFunction<Range<Double>> ppmRange = mz -> {
+        final double mzRangeAbsolute = mz * 1e-6 * ppm;
+        return Range.closed(mz - mzRangeAbsolute, mz + mzRangeAbsolute);
+      };
+      for (int run = 0; run < 20; run++) {
+        final DataPoint query[] = createSpectrum(random);
+        final DataPoint spectra[][] = createSpectra(random, 50);
+        // ions at, just inside and just outside the bounds of the query ions
+        for (int s = 0; s < spectra.length; s += 2) {
+          final double mz = query[random.nextInt(query.length)].getMZ();
+          final double mzRangeAbsolute = mz * 1e-6 * ppm;
+          final double bound = random.nextBoolean() ? mz - mzRangeAbsolute : mz + mzRangeAbsolute;
+          final double shift = (random.nextInt(3) - 1) * Math.ulp(bound);
+          spectra[s] = new DataPoint[] {new SimpleDataPoint(bound + shift, 1)};
+        }
+        final FragmentIonIndex index = new FragmentIonIndex(spectra);
+        final Range<Integer> all = Range.closedOpen(0, spectra.length);
+        final int counts[] = index.countIonPairs(query, ppmRange, all);
+        assertArrayEquals(countNestedLoop(query, spectra, ppmRange, all, true), counts);
+        for (int s = 0; s < spectra.length; s++) {
+          final int pairs = countPpmPairs(query, spectra[s], ppm);
+          assertTrue("Missed pairs of spectrum " + s, counts[s] >= pairs);
+        }
+      }
+    }
+  }
+
+  private static int[] countNestedLoop(DataPoint query[], DataPoint spectra[][],
+      DoubleFunction<Range<Double>> mzRange, Range<Integer> candidates, boolean countPairs) {
+    final int first = candidates.lowerEndpoint();
+    final int counts[] = new int[candidates.upperEndpoint() - first];
+    for (int s = first; s < candidates.upperEndpoint(); s++) {
+      if (spectra[s] == null)
+        continue;
+      for (DataPoint queryIon : query) {
+        final Range<Double> range = mzRange.apply(queryIon.getMZ());
+        int matches = 0;
+        for (DataPoint ion : spectra[s]) {
+          if (range.contains(ion.getMZ()))
+            matches++;
+        }
+        counts[s - first] += countPairs ? matches : Math.min(1, matches);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Pairs as counted by the MS2 similarity search: m/z difference below the ppm tolerance of the
+   * query ion
+   */
+  private static int countPpmPairs(DataPoint query[], DataPoint ions[], double ppm) {
+    if (ions == null)
+      return 0;
+    int pairs = 0;
+    for (DataPoint queryIon : query) {
+      final double iMZ = queryIon.getMZ();
+      final double mzRangeAbsolute = iMZ * 1e-6 * ppm;
+      for (DataPoint ion : ions) {
+        if (Math.abs(iMZ - ion.getMZ()) < mzRangeAbsolute)
+          pairs++;
+      }
+    }
+    return pairs;
+  }
+
+  private static DataPoint[][] createSpectra(Random random, int numberOfSpectra) {
+    final DataPoint spectra[][] = new DataPoint[numberOfSpectra][];
+    for (int s = 0; s < numberOfSpectra; s++) {
+      // spectra without ions are skipped by the index
+      if (random.nextInt(10) > 0)
+        spectra[s] = createSpectrum(random);
+    }
+    return spectra;
+  }
+
+  /**
+   * Ions in a narrow m/z range, so that the spectra share many ions, some of them duplicated
+   */
+  private static DataPoint[] createSpectrum(Random random) {
+    final DataPoint ions[] = new DataPoint[1 + random.nextInt(30)];
+    for (int i = 0; i < ions.length; i++) {
+      final double mz =
+          i > 0 && random.nextInt(10) == 0 ? ions[i - 1].getMZ() : 100 + random.nextInt(500) * GRID;
+      ions[i] = new SimpleDataPoint(mz, random.nextDouble());
+    }
+    return ions;
+  }
+
+  private static Range<Integer> randomRange(Random random, int size) {
+    final int first = random.nextInt(size);
+    return Range.closedOpen(first, first + random.nextInt(size - first + 1));
+  }
+
+}